@@ -0,0 +1,488 @@
+package server;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.management.ObjectName;
+
+/**
+ * Keeps blocks of stored files in memory outside the heap, so files that are downloaded over and over
+ * are served without going back to disk. Shared by all of the FileServer's threads.
+ *
+ * Files are cached as they are stored, cipher text, in BLOCK sized pieces. Each piece lives in a slot,
+ * a direct ByteBuffer that is allocated the first time it is needed and reused from then on, so the
+ * cached bytes are never on the heap and a full cache makes no garbage. Slots stop being allocated at
+ * the capacity given to the constructor.
+ *
+ * Eviction is segmented LRU. A block comes in on probation and moves to the protected segment when it
+ * is read again, and only the least recently used block on probation is evicted while there is one.
+ * One large download passing through can only push out other blocks that were read once. A block being
+ * copied out is pinned and never evicted under the reader.
+ *
+ * Blocks are found by the file's path and its length when it was opened. A file that is deleted or
+ * replaced must be invalidated, blocks read while that happens are not kept.
+ */
+public class BlockCache implements BlockCacheMXBean
+{
+    public static final int     BLOCK     = 1 << 16; // Bytes in each block
+    private static final double PROTECTED = 0.8;     // Fraction of the slots the protected segment may fill
+
+    private final int capacity; // Most slots, 0 turns the cache off
+    private final ArrayList<ByteBuffer>   slots     = new ArrayList<>();
+    private final ArrayDeque<Integer>     free      = new ArrayDeque<>(); // Slots holding nothing
+    private final LinkedHashMap<Key, Entry> probation = new LinkedHashMap<>(16, 0.75f, true); // Read once
+    private final LinkedHashMap<Key, Entry> protect   = new LinkedHashMap<>(16, 0.75f, true); // Read again since
+    private long epoch;     // Counts invalidations, blocks read across one aren't kept
+    private long hits;      // Blocks found in the cache
+    private long misses;    // Blocks read from disk
+    private long evictions; // Blocks dropped to make room
+
+    /**
+     * Constructor which accepts the memory the cache may use
+     *
+     * @param bytes The most bytes of blocks held, 0 reads everything from disk
+     */
+    public BlockCache(long bytes)
+    {
+        capacity = (int)Math.min(Integer.MAX_VALUE, Math.max(0, bytes) / BLOCK);
+    }
+
+    /**
+     * Registers the cache with the platform MBean server as server:type=FileServer,name=BlockCache.
+     * Failures are logged, the server runs without it.
+     */
+    public void register()
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("server:type=FileServer,name=BlockCache"));
+        }
+        catch (Exception e)
+        {
+            Log.warn("Error registering block cache metrics: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Opens a stored file to be read through the cache
+     *
+     * @param file The file
+     *
+     * @return The open file, positioned at its start
+     *
+     * @throws IOException If it can't be opened
+     */
+    public CachedFile open(File file) throws IOException
+    {
+        return new CachedFile(file);
+    }
+
+    /**
+     * Drops every block of a file. Call it once the file is deleted or replaced.
+     *
+     * @param file The file
+     */
+    public synchronized void invalidate(File file)
+    {
+        String path = file.getPath();
+        epoch++;
+        invalidate(probation, path);
+        invalidate(protect, path);
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized double getHitRate()
+    {
+        return hits + misses == 0 ? 0 : (double)hits / (hits + misses);
+    }
+
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    public synchronized long getCachedBytes()
+    {
+        long bytes = 0;
+        for (Entry entry : probation.values())
+            bytes += entry.length;
+        for (Entry entry : protect.values())
+            bytes += entry.length;
+        return bytes;
+    }
+
+    public long getCapacityBytes()
+    {
+        return (long)capacity * BLOCK;
+    }
+
+    /**
+     * Returns a one line summary of the cache
+     *
+     * @return The summary
+     */
+    public synchronized String toString()
+    {
+        return String.format("Block cache: %d of %d MB, %d hits, %d misses (%.1f%% hit rate), %d evictions",
+                             getCachedBytes() >> 20, getCapacityBytes() >> 20, hits, misses, getHitRate() * 100, evictions);
+    }
+
+    /**
+     * Copies part of one block of a file to an array or a channel, reading the block from disk if it isn't cached
+     *
+     * @param file The file
+     * @param position The first byte wanted
+     * @param b The array to copy to, null to write to target
+     * @param off Where in b to start
+     * @param len The most bytes wanted, only the rest of the block holding position is copied
+     * @param target The channel to write to if b is null
+     *
+     * @return The bytes copied or written
+     *
+     * @throws IOException If the file can't be read or the channel written
+     */
+    private int copy(CachedFile file, long position, byte[] b, int off, int len, WritableByteChannel target) throws IOException
+    {
+        long  block  = position / BLOCK;
+        int   offset = (int)(position % BLOCK);
+        Key   key    = new Key(file.path, file.length, block);
+        Entry      entry;
+        ByteBuffer slot = null;
+        long       seen;
+        synchronized (this)
+        {
+            seen  = epoch;
+            entry = pin(key);
+            if (entry != null)
+                slot = slots.get(entry.slot).duplicate();
+        }
+
+        boolean loaded = entry != null && entry.length >= 0;
+        try
+        {
+            if (entry == null)
+            {// No slot to spare, read straight from the file
+                if (b != null)
+                    return file.channel.read(ByteBuffer.wrap(b, off, len), position);
+                return (int)file.channel.transferTo(position, len, target);
+            }
+
+            if (!loaded)
+            {// Miss, read the whole block into the slot
+                int length = (int)Math.min(BLOCK, file.length - block * BLOCK);
+                slot.limit(length);
+                while (slot.hasRemaining())
+                    if (file.channel.read(slot, block * BLOCK + slot.position()) < 0)
+                        throw new EOFException("File shrank while it was being read");
+                entry.length = length;
+            }
+
+            slot.limit(Math.min(entry.length, offset + len));
+            slot.position(offset);
+            int n = slot.remaining();
+            if (b != null)
+                slot.get(b, off, n);
+            else
+                while (slot.hasRemaining())
+                    target.write(slot);
+            return n;
+        }
+        finally
+        {
+            if (entry != null)
+                synchronized (this)
+                {
+                    unpin(key, entry, !loaded && entry.length >= 0 && seen == epoch);
+                }
+        }
+    }
+
+    /**
+     * Pins a block, counting a hit if it is cached. On a miss a slot is set aside for it, its length is -1 until it is read.
+     *
+     * @return The entry, null if the cache is off or every slot is pinned
+     */
+    private Entry pin(Key key)
+    {
+        Entry entry = protect.get(key);
+        if (entry == null && (entry = probation.remove(key)) != null)
+        {// Read again, protect it
+            protect.put(key, entry);
+            if (protect.size() > capacity * PROTECTED)
+            {// Make room by putting the protected block used longest ago back on probation
+                Iterator<Map.Entry<Key, Entry>> eldest = protect.entrySet().iterator();
+                Map.Entry<Key, Entry> demoted = eldest.next();
+                eldest.remove();
+                probation.put(demoted.getKey(), demoted.getValue());
+            }
+        }
+        if (entry != null)
+        {
+            hits++;
+            entry.pins++;
+            return entry;
+        }
+
+        misses++;
+        int slot = claim();
+        if (slot < 0)
+            return null;
+        entry        = new Entry(slot);
+        entry.length = -1;
+        entry.pins   = 1;
+        return entry;
+    }
+
+    /**
+     * Unpins a block, and caches it if it was just read
+     *
+     * @param keep Whether a block that was just read should be cached
+     */
+    private void unpin(Key key, Entry entry, boolean keep)
+    {
+        entry.pins--;
+        if (entry.length < 0 || entry.cached)
+        {// Failed to load, or already cached
+            if (entry.pins == 0 && entry.length < 0)
+                free.push(entry.slot);
+            return;
+        }
+        if (entry.dropped)
+        {// Invalidated while it was pinned
+            if (entry.pins == 0)
+                free.push(entry.slot);
+            return;
+        }
+        if (!keep || probation.containsKey(key) || protect.containsKey(key))
+        {// Read across an invalidation, or another thread cached it first
+            free.push(entry.slot);
+            return;
+        }
+        entry.cached = true;
+        probation.put(key, entry);
+    }
+
+    /**
+     * Finds a free slot, allocating one until the capacity is reached and evicting after that
+     *
+     * @return The slot, -1 if every slot is pinned
+     */
+    private int claim()
+    {
+        if (!free.isEmpty())
+            return free.pop();
+        if (slots.size() < capacity)
+        {
+            slots.add(ByteBuffer.allocateDirect(BLOCK));
+            return slots.size() - 1;
+        }
+        int slot = evict(probation);
+        return slot >= 0 ? slot : evict(protect);
+    }
+
+    /**
+     * Evicts the least recently used block of a segment that isn't pinned
+     *
+     * @return Its slot, -1 if there was none
+     */
+    private int evict(LinkedHashMap<Key, Entry> segment)
+    {
+        Iterator<Entry> entries = segment.values().iterator();
+        while (entries.hasNext())
+        {
+            Entry entry = entries.next();
+            if (entry.pins == 0)
+            {
+                entries.remove();
+                entry.cached = false;
+                evictions++;
+                return entry.slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Drops the blocks of a path from a segment, pinned ones go back to the free list once they are unpinned
+     */
+    private void invalidate(LinkedHashMap<Key, Entry> segment, String path)
+    {
+        Iterator<Map.Entry<Key, Entry>> entries = segment.entrySet().iterator();
+        while (entries.hasNext())
+        {
+            Map.Entry<Key, Entry> next = entries.next();
+            if (next.getKey().path.equals(path))
+            {
+                entries.remove();
+                Entry entry = next.getValue();
+                if (entry.pins == 0)
+                    free.push(entry.slot);
+                else
+                    entry.dropped = true;
+                entry.cached = false;
+            }
+        }
+    }
+
+    /**
+     * A stored file opened through the cache. It reads like a FileInputStream, and its channel is
+     * there for anything that needs to look at the file directly.
+     */
+    public class CachedFile extends InputStream
+    {
+        private final String      path;
+        private final FileChannel channel;
+        private final long        length;   // The file's length when it was opened
+        private long              position; // Next byte to read
+
+        private CachedFile(File file) throws IOException
+        {
+            path    = file.getPath();
+            channel = new FileInputStream(file).getChannel();
+            length  = channel.size();
+        }
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (position >= length)
+                return -1;
+            if (len == 0)
+                return 0;
+            int n = capacity == 0 ? channel.read(ByteBuffer.wrap(b, off, (int)Math.min(len, length - position)), position)
+                                  : copy(this, position, b, off, (int)Math.min(len, length - position), null);
+            if (n > 0)
+                position += n;
+            return n;
+        }
+
+        public long skip(long n)
+        {
+            long skipped = Math.max(0, Math.min(n, length - position));
+            position += skipped;
+            return skipped;
+        }
+
+        public int available()
+        {
+            return (int)Math.min(Integer.MAX_VALUE, length - position);
+        }
+
+        /**
+         * Writes part of the file to a channel, the same as FileChannel's transferTo but through the cache.
+         * A selector connection's channel is handed the cached blocks themselves.
+         *
+         * @param start The first byte to write
+         * @param count The most bytes to write
+         * @param target The channel
+         *
+         * @return The bytes written
+         *
+         * @throws IOException If the file can't be read or the channel written
+         */
+        public long transferTo(long start, long count, WritableByteChannel target) throws IOException
+        {
+            long end     = Math.min(length, start + count);
+            long written = start;
+            int  n;
+            if (capacity == 0)
+                return channel.transferTo(start, Math.max(0, end - start), target);
+            while (written < end && (n = copy(this, written, null, 0, (int)Math.min(BLOCK, end - written), target)) > 0)
+                written += n;
+            return written - start;
+        }
+
+        /**
+         * @return The file's length when it was opened
+         */
+        public long length()
+        {
+            return length;
+        }
+
+        /**
+         * @return The file's channel, which reads around the cache
+         */
+        public FileChannel getChannel()
+        {
+            return channel;
+        }
+
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Names one block of one version of a file
+     */
+    private static class Key
+    {
+        final String path;
+        final long   length; // The file's length, so a file of another length never matches
+        final long   block;
+
+        Key(String _path, long _length, long _block)
+        {
+            path   = _path;
+            length = _length;
+            block  = _block;
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key)o;
+            return block == k.block && length == k.length && path.equals(k.path);
+        }
+
+        public int hashCode()
+        {
+            return path.hashCode() * 31 + (int)(block ^ length * 17);
+        }
+    }
+
+    /**
+     * A block's slot and how many readers are copying out of it
+     */
+    private static class Entry
+    {
+        final int slot;
+        int       length;  // Bytes of the block in the slot, -1 until it is read
+        int       pins;    // Readers copying out of it
+        boolean   cached;  // Whether it is in a segment
+        boolean   dropped; // Whether it was invalidated while pinned
+
+        Entry(int _slot)
+        {
+            slot = _slot;
+        }
+    }
+}
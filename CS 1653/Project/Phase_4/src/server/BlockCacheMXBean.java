@@ -0,0 +1,37 @@
+package server;
+
+/**
+ * What JMX shows for the FileServer's cache of stored file blocks, see {@link BlockCache}
+ */
+public interface BlockCacheMXBean
+{
+    /**
+     * @return The reads answered from a cached block
+     */
+    public long getHits();
+
+    /**
+     * @return The blocks read from disk
+     */
+    public long getMisses();
+
+    /**
+     * @return The fraction of reads answered from a cached block, 0 if there were none
+     */
+    public double getHitRate();
+
+    /**
+     * @return The blocks dropped to make room for others
+     */
+    public long getEvictions();
+
+    /**
+     * @return The bytes of blocks held now
+     */
+    public long getCachedBytes();
+
+    /**
+     * @return The most bytes of blocks the cache may hold
+     */
+    public long getCapacityBytes();
+}
@@ -0,0 +1,500 @@
+package server;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * On-disk format for files in shared_files: a header followed by fixed-size blocks, each one sealed
+ * on its own with AES-GCM under the group key.
+ *
+ * The header is a magic number, the format version, the block size, and a random file id. Block i is
+ * encrypted with the nonce (file id, i) and authenticated together with the header and a flag marking
+ * the last block, so blocks can't be reordered, moved between files, or cut off the end without failing
+ * their tag. Every block but the last holds exactly the block size, so the block holding any offset is
+ * known up front: a range is read by skipping straight to its blocks, and a batch of blocks is sealed
+ * or opened in parallel on the common fork-join pool.
+ *
+ * Files written before this format are one AES-CBC stream under the group key and IV, with no header.
+ * StorageMigrator converts them.
+ */
+public class BlockFile
+{
+    public static final int BLOCK_SIZE    = 1 << 16; // Plain text bytes in every block but the last
+    public static final int HEADER_LENGTH = 24;      // Magic, version, block size, file id
+    public static final int TAG_LENGTH    = 16;      // GCM tag at the end of every block
+
+    private static final long MAGIC   = 0x46696c6550696c65L; // "FilePile"
+    private static final int  VERSION = 1;
+    private static final int  BATCH   = 4 * ForkJoinPool.getCommonPoolParallelism(); // Blocks sealed or opened together
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * Each thread of the pool keeps its own cipher, a Cipher can't be shared
+     */
+    private static final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>()
+    {
+        @Override protected Cipher initialValue()
+        {
+            try
+            {
+                return Cipher.getInstance("AES/GCM/NoPadding");
+            }
+            catch (Exception e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * Checks whether a file is stored in this format
+     *
+     * @param file The file
+     *
+     * @return true if it starts with a block file header, false for an AES-CBC file
+     *
+     * @throws IOException If the file can't be read
+     */
+    public static boolean isBlockFile(File file) throws IOException
+    {
+        if (file.length() < HEADER_LENGTH + TAG_LENGTH)
+            return false;
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file)))
+        {
+            return in.readLong() == MAGIC;
+        }
+    }
+
+    /**
+     * Makes the header for a new file, with a file id of its own
+     *
+     * @return The header
+     */
+    public static byte[] newHeader()
+    {
+        byte[] id = new byte[8];
+        random.nextBytes(id);
+        return ByteBuffer.allocate(HEADER_LENGTH).putLong(MAGIC).putInt(VERSION).putInt(BLOCK_SIZE).put(id).array();
+    }
+
+    /**
+     * Returns where a block starts in a file of the current block size
+     *
+     * @param index The index of the block
+     *
+     * @return The offset of the block in the file
+     */
+    public static long blockOffset(long index)
+    {
+        return HEADER_LENGTH + index * (BLOCK_SIZE + TAG_LENGTH);
+    }
+
+    /**
+     * Reads the block size from the header of an open file
+     *
+     * @param file The file
+     *
+     * @return The block size, -1 if it doesn't start with a block file header
+     *
+     * @throws IOException If the file can't be read
+     */
+    public static int blockSize(FileChannel file) throws IOException
+    {
+        if (file.size() < HEADER_LENGTH + TAG_LENGTH)
+            return -1;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        while (header.hasRemaining() && file.read(header, header.position()) > 0);
+        header.flip();
+        if (header.remaining() < HEADER_LENGTH || header.getLong() != MAGIC || header.getInt() != VERSION)
+            return -1;
+        return header.getInt();
+    }
+
+    /**
+     * Returns the length of the plain text held by a block file
+     *
+     * @param storedLength The length of the file on disk
+     * @param blockSize The block size from its header
+     *
+     * @return The plain text length
+     */
+    public static long plainLength(long storedLength, int blockSize)
+    {
+        return storedLength - HEADER_LENGTH - blockCount(storedLength, blockSize) * TAG_LENGTH;
+    }
+
+    /**
+     * Returns the number of blocks in a block file, there is always at least one
+     */
+    private static long blockCount(long storedLength, int blockSize)
+    {
+        long sealed = storedLength - HEADER_LENGTH;
+        return Math.max(1, (sealed + blockSize + TAG_LENGTH - 1) / (blockSize + TAG_LENGTH));
+    }
+
+    /**
+     * Sets up the calling thread's cipher for one block
+     */
+    private static Cipher cipher(int mode, SecretKey key, byte[] header, long index, boolean last) throws Exception
+    {
+        byte[] nonce = ByteBuffer.allocate(12).put(header, 16, 8).putInt((int)index).array();
+
+        Cipher cipher = ciphers.get();
+        cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(header);
+        cipher.updateAAD(new byte[] { (byte)(last ? 1 : 0) });
+        return cipher;
+    }
+
+    /**
+     * Runs a batch of block jobs, on the fork-join pool when there is more than one
+     */
+    private static void run(List<Callable<Void>> jobs) throws IOException
+    {
+        try
+        {
+            if (jobs.size() == 1)
+                jobs.get(0).call();
+            else
+                for (Future<Void> job : ForkJoinPool.commonPool().invokeAll(jobs))
+                    job.get();
+        }
+        catch (ExecutionException e)
+        {
+            throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException();
+        }
+        catch (Exception e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Encrypts a stream into the block format. The header is written right away, blocks are sealed
+     * a batch at a time and the last block is sealed by close.
+     */
+    public static class Writer extends OutputStream
+    {
+        private final OutputStream out;
+        private final SecretKey    key;
+        private final byte[]       header;
+        private final byte[][]     sealed = new byte[BATCH][]; // Sealed blocks, kept for the next batch
+        private final int[]        sizes  = new int[BATCH];    // Bytes in each of sealed
+        private final boolean      end;     // Whether this writer's last block is the last block of the file
+        private byte[]  plain = new byte[0]; // Blocks waiting to be sealed, grown up to a batch as data arrives
+        private int     length;              // Bytes in plain
+        private long    index;               // Index of the first block in plain
+        private boolean closed;
+
+        /**
+         * Constructor which accepts the stream to write to and the group key
+         *
+         * @param _out The stream the file is written to
+         * @param _key The group key
+         *
+         * @throws IOException If the header can't be written
+         */
+        public Writer(OutputStream _out, SecretKey _key) throws IOException
+        {
+            this(_out, _key, newHeader(), 0, true);
+            out.write(header);
+        }
+
+        /**
+         * Constructor for one part of a file written in pieces. The header isn't written, and every
+         * part but the last has to be whole blocks.
+         *
+         * @param _out The stream the part's blocks are written to
+         * @param _key The group key
+         * @param _header The header of the file, from newHeader()
+         * @param _index The index of the part's first block in the file
+         * @param _end Whether this is the last part of the file
+         */
+        public Writer(OutputStream _out, SecretKey _key, byte[] _header, long _index, boolean _end)
+        {
+            out    = _out;
+            key    = _key;
+            header = _header;
+            index  = _index;
+            end    = _end;
+        }
+
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0)
+            {
+                if (length == BATCH * BLOCK_SIZE)
+                    seal(false); // More is coming, so none of these is the last block
+                else if (length + len > plain.length)
+                    plain = Arrays.copyOf(plain, (int)Math.min(BATCH * BLOCK_SIZE, Math.max(2L * plain.length, length + len)));
+
+                int n = Math.min(len, plain.length - length);
+                System.arraycopy(b, off, plain, length, n);
+                length += n;
+                off    += n;
+                len    -= n;
+            }
+        }
+
+        /**
+         * Seals what is left as the last block and flushes it, without closing the stream underneath.
+         * Nothing can be written after this. A part that isn't the last only seals its whole blocks.
+         *
+         * @throws IOException If the blocks can't be written, or an earlier part ends partway through a block
+         */
+        public void finish() throws IOException
+        {
+            if (closed)
+                return;
+            closed = true;
+
+            if (!end && length % BLOCK_SIZE != 0)
+                throw new IOException("Only the last part of a file can end partway through a block");
+            if (end || length > 0)
+                seal(end);
+            out.flush();
+        }
+
+        /**
+         * Seals what is left as the last block and closes the stream
+         */
+        public void close() throws IOException
+        {
+            finish();
+            out.close();
+        }
+
+        /**
+         * Seals the blocks in plain and writes them out in order
+         *
+         * @param last Whether the final block in plain is the last block of the file
+         */
+        private void seal(final boolean last) throws IOException
+        {
+            final int count = Math.max(1, (length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+
+            List<Callable<Void>> jobs = new ArrayList<>();
+            for (int i = 0; i < count; i++)
+            {
+                final int     block  = i;
+                final int     offset = i * BLOCK_SIZE;
+                final int     size   = Math.min(BLOCK_SIZE, length - offset);
+                final boolean isLast = last && i == count - 1;
+                jobs.add(new Callable<Void>()
+                {
+                    public Void call() throws Exception
+                    {
+                        if (sealed[block] == null)
+                            sealed[block] = new byte[BLOCK_SIZE + TAG_LENGTH];
+                        sizes[block] = cipher(Cipher.ENCRYPT_MODE, key, header, index + block, isLast)
+                                .doFinal(plain, offset, size, sealed[block], 0);
+                        return null;
+                    }
+                });
+            }
+            run(jobs);
+
+            for (int i = 0; i < count; i++)
+                out.write(sealed[i], 0, sizes[i]);
+            index += count;
+            length = 0;
+        }
+    }
+
+    /**
+     * Decrypts a block file a batch of blocks at a time. Skipping moves past whole blocks without
+     * decrypting them, which is how a range in the middle of a file is read.
+     */
+    public static class Reader extends InputStream
+    {
+        private final DataInputStream in;
+        private final SecretKey       key;
+        private final byte[]          header = new byte[HEADER_LENGTH];
+        private final int             blockSize;
+        private final long            storedLength;
+        private final byte[]          plain;      // The batch of blocks opened last
+        private final byte[][]        sealed;     // The batch as read from the file, kept for the next batch
+        private final int[]           sizes;      // Bytes in each of sealed
+        private int  position;                    // Next byte to hand out from plain
+        private int  limit;                       // Bytes in plain
+        private long index;                       // Index of the next block to read from the file
+        private long blocks;                      // Number of blocks in the file
+        private long remaining;                   // Plain text bytes not handed out yet
+
+        /**
+         * Constructor which accepts the stream to read from, the length of the file, and the group key
+         *
+         * @param _in The stream the file is read from, positioned at the header
+         * @param _storedLength The length of the file
+         * @param _key The group key
+         *
+         * @throws IOException If the header can't be read or isn't a block file header
+         */
+        public Reader(InputStream _in, long _storedLength, SecretKey _key) throws IOException
+        {
+            in           = new DataInputStream(_in);
+            key          = _key;
+            storedLength = _storedLength;
+
+            in.readFully(header);
+            ByteBuffer h = ByteBuffer.wrap(header);
+            if (h.getLong() != MAGIC || h.getInt() != VERSION)
+                throw new IOException("Not a block file");
+            blockSize = h.getInt();
+            if (blockSize <= 0 || blockSize > 1 << 24)
+                throw new IOException("Bad block size " + blockSize);
+
+            blocks    = blockCount(storedLength, blockSize);
+            remaining = plainLength(storedLength, blockSize);
+            plain     = new byte[(int)Math.min(BATCH, blocks) * blockSize];
+            sealed    = new byte[(int)Math.min(BATCH, blocks)][];
+            sizes     = new int[sealed.length];
+        }
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            while (position == limit)
+            {// Even an empty last block is read, its tag is what says the file wasn't cut short
+                if (index == blocks)
+                    return -1;
+                fill();
+            }
+
+            int n = Math.min(len, limit - position);
+            System.arraycopy(plain, position, b, off, n);
+            position  += n;
+            remaining -= n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException
+        {
+            n = Math.min(n, remaining);
+            long skipped = Math.min(n, limit - position);
+            position += skipped;
+
+            // Whole blocks are skipped on disk without being decrypted
+            long whole = (n - skipped) / blockSize;
+            if (whole > 0)
+            {
+                long bytes = whole * (blockSize + TAG_LENGTH);
+                while (bytes > 0)
+                {
+                    long k = in.skip(bytes);
+                    if (k <= 0)
+                        throw new EOFException();
+                    bytes -= k;
+                }
+                index   += whole;
+                skipped += whole * blockSize;
+            }
+
+            // The rest is inside the next block
+            long rest = n - skipped;
+            if (rest > 0)
+            {
+                fill();
+                position += rest;
+                skipped  += rest;
+            }
+
+            remaining -= skipped;
+            return skipped;
+        }
+
+        /**
+         * Returns the plain text left, which can all be read without waiting on anything but the disk
+         */
+        public int available()
+        {
+            return (int)Math.min(remaining, Integer.MAX_VALUE);
+        }
+
+        public void close() throws IOException
+        {
+            in.close();
+        }
+
+        /**
+         * Reads and opens the next batch of blocks
+         */
+        private void fill() throws IOException
+        {
+            final int  count = (int)Math.min(BATCH, blocks - index);
+            if (count <= 0)
+                throw new EOFException();
+            final long first = index;
+            for (int i = 0; i < count; i++)
+            {
+                long end = Math.min(storedLength, HEADER_LENGTH + (first + i + 1) * (blockSize + TAG_LENGTH));
+                sizes[i] = (int)(end - HEADER_LENGTH - (first + i) * (blockSize + TAG_LENGTH));
+                if (sealed[i] == null)
+                    sealed[i] = new byte[blockSize + TAG_LENGTH];
+                in.readFully(sealed[i], 0, sizes[i]);
+            }
+
+            List<Callable<Void>> jobs = new ArrayList<>();
+            for (int i = 0; i < count; i++)
+            {
+                final int block = i;
+                jobs.add(new Callable<Void>()
+                {
+                    public Void call() throws Exception
+                    {
+                        long number = first + block;
+                        try
+                        {
+                            cipher(Cipher.DECRYPT_MODE, key, header, number, number == blocks - 1)
+                                    .doFinal(sealed[block], 0, sizes[block], plain, block * blockSize);
+                        }
+                        catch (AEADBadTagException e)
+                        {
+                            throw new IOException("Block " + number + " failed its integrity check");
+                        }
+                        return null;
+                    }
+                });
+            }
+            run(jobs);
+
+            index   += count;
+            position = 0;
+            limit    = (count - 1) * blockSize + sizes[count - 1] - TAG_LENGTH;
+        }
+    }
+}
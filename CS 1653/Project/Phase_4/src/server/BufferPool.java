@@ -0,0 +1,68 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Large direct buffers shared by every upload, so writing a file doesn't allocate anything once the
+ * pool is warm. A buffer handed back when the pool already holds its limit is left to the garbage
+ * collector, which only happens under more concurrent uploads than the limit was sized for.
+ */
+public class BufferPool
+{
+    public static final int SIZE = 1 << 18; // Bytes in each buffer
+
+    private final int max;                                      // Most idle buffers kept
+    private final ArrayDeque<ByteBuffer> idle = new ArrayDeque<>(); // Buffers waiting to be taken
+    private long allocated; // Buffers allocated so far
+    private long reused;    // Buffers taken from idle
+
+    /**
+     * Constructor which accepts how many buffers to keep
+     *
+     * @param _max The most idle buffers kept, SIZE bytes each
+     */
+    public BufferPool(int _max)
+    {
+        max = _max;
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating one if none are idle
+     *
+     * @return The buffer, cleared
+     */
+    public synchronized ByteBuffer take()
+    {
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null)
+        {
+            allocated++;
+            return ByteBuffer.allocateDirect(SIZE);
+        }
+        reused++;
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer back to the pool
+     *
+     * @param buffer The buffer, which the caller must not touch again
+     */
+    public synchronized void give(ByteBuffer buffer)
+    {
+        if (idle.size() < max)
+            idle.push(buffer);
+    }
+
+    /**
+     * Returns a one line summary of the pool
+     *
+     * @return The summary
+     */
+    public synchronized String toString()
+    {
+        return String.format("Buffer pool: %d idle of %d allocated, %d reused", idle.size(), allocated, reused);
+    }
+}
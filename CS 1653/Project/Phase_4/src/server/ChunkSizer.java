@@ -0,0 +1,180 @@
+package server;
+
+/**
+ * Picks the size of the chunks a connection sends a file in, and holds the buffer they are read into.
+ *
+ * Every chunk pays a fixed cost on top of its bytes: an envelope, a seal, a frame, and in lock-step a
+ * round trip. The sender times each chunk from reading it until the next one can go. Once it has timed
+ * chunks of two sizes it fits time per chunk = overhead + bytes * cost per byte, and picks the smallest
+ * power of two that keeps the overhead under a tenth of each chunk. Until then, and whenever the fit
+ * says bigger chunks were no slower, it doubles. If throughput falls well below the best seen it goes
+ * back to the size that gave the best.
+ *
+ * Chunks never grow past what both sides agreed to in the handshake, MIN unless the peer negotiated
+ * a CHUNK- feature. The most this side agrees to is set by {@link #setLimit(int)}.
+ */
+public class ChunkSizer
+{
+    public static final int MIN = 4096;    // The original chunk size, and what a peer without CHUNK- gets
+    public static final int MAX = 1 << 22; // Largest limit allowed, well under CryptoTools' frame limit
+
+    private static final long   SAMPLE_NANOS = 20000000L; // Shortest time a size is measured over
+    private static final int    SAMPLE       = 4;         // Fewest chunks a size is measured over
+    private static final int    TARGET       = 9;         // Chunk time per unit of overhead, overhead is 1/10
+    private static final double BACK_OFF     = 0.8;       // Fraction of the best throughput that is tolerated
+
+    private static volatile int limit = 1 << 18; // Most this side agrees to, 256 KB unless configured
+
+    private final int max;  // Negotiated largest chunk
+    private int    size;    // Size of the next chunk
+    private byte[] buffer;  // Reused for every chunk of the current size
+
+    private long   bytes;              // Bytes in the sample being measured
+    private long   nanos;              // Time spent on them
+    private int    chunks;             // Chunks in the sample
+    private int    lastSize;           // Size of the previous sample, 0 if none
+    private double lastPerChunk;       // Its nanoseconds per chunk
+    private double overhead = -1;      // Fitted nanoseconds per chunk spent on anything but bytes, -1 until fitted
+    private double best;               // Best throughput so far in bytes per nanosecond
+    private int    bestSize = MIN;     // The size that gave it
+
+    /**
+     * Constructor which accepts the largest chunk both sides agreed to
+     *
+     * @param _max The largest chunk, at least MIN
+     */
+    public ChunkSizer(int _max)
+    {
+        max  = Math.max(MIN, Math.min(MAX, _max));
+        size = MIN;
+    }
+
+    /**
+     * Sets the largest chunk this side agrees to
+     *
+     * @param bytes The limit, between MIN and MAX
+     *
+     * @return true if it was in range, false otherwise
+     */
+    public static boolean setLimit(int bytes)
+    {
+        if (bytes < MIN || bytes > MAX)
+            return false;
+        limit = bytes;
+        return true;
+    }
+
+    /**
+     * Returns the largest chunk this side agrees to
+     *
+     * @return The limit in bytes
+     */
+    public static int getLimit()
+    {
+        return limit;
+    }
+
+    /**
+     * Returns the buffer to read the next chunk into. Its length is the chunk size, the same array is
+     * handed out until the size changes.
+     *
+     * @return The buffer
+     */
+    public byte[] buffer()
+    {
+        if (buffer == null || buffer.length != size)
+            buffer = new byte[size];
+        return buffer;
+    }
+
+    /**
+     * Returns the size of the next chunk
+     *
+     * @return The size in bytes
+     */
+    public int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the fitted time each chunk spends on anything but its bytes, which in lock-step is mostly the round trip
+     *
+     * @return The overhead in microseconds, -1 until chunks of two sizes were timed
+     */
+    public long getOverheadMicros()
+    {
+        return overhead < 0 ? -1 : (long)(overhead / 1000);
+    }
+
+    /**
+     * Records one chunk that was sent. Short chunks at the end of a file are left out of the samples.
+     *
+     * @param n The bytes in the chunk
+     * @param start When the chunk was read, from System.nanoTime()
+     *
+     * @return Now, which is when the next chunk is read
+     */
+    public long record(int n, long start)
+    {
+        long now = System.nanoTime();
+        if (max == MIN || n != size)
+            return now;
+
+        bytes += n;
+        nanos += now - start;
+        if (++chunks < SAMPLE || nanos < SAMPLE_NANOS)
+            return now;
+
+        double throughput = (double)bytes / nanos;
+        double perChunk   = (double)nanos / chunks;
+        bytes  = 0;
+        nanos  = 0;
+        chunks = 0;
+
+        if (throughput > best)
+        {
+            best     = throughput;
+            bestSize = size;
+        }
+
+        int next = size;
+        if (throughput < best * BACK_OFF)
+        {// Got worse, go back to what worked, or start over from here if that was this size
+            if (bestSize == size)
+                best = throughput;
+            next = bestSize;
+        }
+        else if (lastSize != 0 && lastSize != size)
+        {// Fit the two samples and aim for a small overhead
+            double perByte = (perChunk - lastPerChunk) / (size - lastSize);
+            if (perByte > 0)
+            {
+                overhead = Math.max(0, perChunk - size * perByte);
+                next     = round(TARGET * overhead / perByte);
+            }
+            else
+                next = Math.min(max, Math.max(size, lastSize) * 2); // Bigger chunks cost nothing extra, keep growing
+        }
+        else if (overhead < 0)
+            next = Math.min(max, size * 2); // Nothing to fit yet
+
+        lastSize     = size;
+        lastPerChunk = perChunk;
+        size         = next;
+        return now;
+    }
+
+    /**
+     * Rounds a size up to a power of two between MIN and the negotiated largest chunk
+     */
+    private int round(double target)
+    {
+        if (target >= max)
+            return max;
+        int n = MIN;
+        while (n < target)
+            n *= 2;
+        return Math.min(n, max);
+    }
+}
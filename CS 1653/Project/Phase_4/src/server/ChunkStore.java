@@ -0,0 +1,681 @@
+package server;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Deduplicating store for shared_files. Files are split by the client into content-defined chunks
+ * (see Chunker) and every distinct chunk is kept once in chunk_store, however many files or groups
+ * hold it. The file itself becomes a manifest listing its chunks.
+ *
+ * Chunks can't be encrypted under a group key and still be shared between groups, so each chunk is
+ * encrypted under its own key, the SHA-256 of its plain text, and stored under the SHA-256 of that
+ * key. Equal chunks come out equal on disk without the server keeping any key. The manifest holds
+ * each chunk's id and length in the clear and the chunk keys sealed under the group key as a
+ * BlockFile, so reading a file still takes its group key. Like any convergent encryption this
+ * tells someone who already has a chunk whether the store holds it too.
+ *
+ * A chunk is compressed before it is encrypted, unless it doesn't shrink enough to be worth it, so
+ * the flag byte Compression puts in front says how to read it back. Compressing first keeps equal
+ * chunks equal on disk, since the same server always packs the same plain text the same way.
+ *
+ * Reference counts are how many files hold each chunk. They are only kept in memory: startup
+ * rebuilds them from the manifests in the FileList and deletes chunks nothing refers to. An upload
+ * takes its references on the chunks the server already has before telling the client to skip
+ * them, so a delete running alongside can't collect them first.
+ */
+public class ChunkStore
+{
+    public static final int KEY_LENGTH = 32; // SHA-256
+
+    private static final long MAGIC   = 0x4d616e6966657374L; // "Manifest"
+    private static final int  VERSION = 1;
+
+    private final File                     dir;
+    private final HashMap<String, Integer> refs = new HashMap<>(); // Chunk id -> files holding it
+    private long stored;    // Chunks written
+    private long reused;    // Chunks an upload didn't have to send
+    private long collected; // Chunks deleted once nothing held them
+    private long plain;     // Plain text bytes of the chunks written
+    private long packed;    // Bytes those chunks took once packed
+
+    /**
+     * Each thread packs chunks with its own codec, a Codec can't be shared
+     */
+    private static final ThreadLocal<Compression> packers = new ThreadLocal<Compression>()
+    {
+        @Override protected Compression initialValue()
+        {
+            return new Compression(Compression.newCodec(Compression.getNames().get(0)), true);
+        }
+    };
+
+    /**
+     * The chunks of a file, read from its manifest
+     */
+    public static class Manifest
+    {
+        final byte[][] ids;
+        final int[]    lengths;
+        final byte[][] keys;   // Null unless the manifest was read with the group key
+        final long     length; // Plain text length of the file
+
+        Manifest(byte[][] _ids, int[] _lengths, byte[][] _keys)
+        {
+            ids     = _ids;
+            lengths = _lengths;
+            keys    = _keys;
+
+            long total = 0;
+            for (int n : lengths)
+                total += n;
+            length = total;
+        }
+
+        /**
+         * Returns the plain text length of the file
+         *
+         * @return The length
+         */
+        public long getLength()
+        {
+            return length;
+        }
+    }
+
+    /**
+     * Constructor which accepts the directory chunks are kept in
+     *
+     * @param _dir The directory
+     */
+    public ChunkStore(String _dir)
+    {
+        dir = new File(_dir);
+    }
+
+    /**
+     * Counts the references held by every manifest in the FileList and deletes chunks nothing
+     * refers to, left behind by uploads that never finished
+     *
+     * @param fileList The FileList
+     */
+    public synchronized void recover(FileList fileList)
+    {
+        dir.mkdir();
+        for (ShareFile sf : fileList.getFiles())
+        {
+            File file = new File(sf.getPath());
+            try
+            {
+                if (isManifest(file))
+                    for (String id : distinct(readManifest(file, null).ids))
+                        refs.put(id, refs.containsKey(id) ? refs.get(id) + 1 : 1);
+            }
+            catch (IOException e)
+            {
+                Log.warn("Error reading manifest %s: %s", file.getPath(), e.getMessage(), e);
+            }
+        }
+
+        int    swept   = 0;
+        File[] subdirs = dir.listFiles();
+        for (File subdir : subdirs == null ? new File[0] : subdirs)
+        {
+            File[] chunks = subdir.listFiles();
+            for (File chunk : chunks == null ? new File[0] : chunks)
+                if (!refs.containsKey(chunk.getName()) && chunk.delete())
+                    swept++;
+        }
+        if (swept > 0)
+            Log.info("Deleted %d chunks nothing refers to", swept);
+    }
+
+    /**
+     * Checks whether a file is a manifest
+     *
+     * @param file The file
+     *
+     * @return true if it starts with a manifest header
+     *
+     * @throws IOException If the file can't be read
+     */
+    public static boolean isManifest(File file) throws IOException
+    {
+        if (file.length() < 16)
+            return false;
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file)))
+        {
+            return in.readLong() == MAGIC;
+        }
+    }
+
+    /**
+     * Returns the id a chunk is stored under
+     *
+     * @param key The chunk key, the SHA-256 of its plain text
+     *
+     * @return The id
+     */
+    public static byte[] id(byte[] key)
+    {
+        return sha256(key, 0, key.length);
+    }
+
+    /**
+     * Takes a reference on every chunk in the list that is already stored
+     *
+     * @param ids The distinct ids of a file's chunks
+     *
+     * @return The ids that are stored, the rest have to be sent
+     */
+    public synchronized Set<String> acquire(Collection<String> ids)
+    {
+        Set<String> have = new HashSet<>();
+        for (String id : ids)
+        {
+            Integer count = refs.get(id);
+            if (count != null)
+            {
+                refs.put(id, count + 1);
+                have.add(id);
+            }
+        }
+        reused += have.size();
+        return have;
+    }
+
+    /**
+     * Stores a chunk and takes a reference on it
+     *
+     * @param key The chunk key
+     * @param data The buffer holding the chunk
+     * @param length The length of the chunk
+     *
+     * @return The chunk id
+     *
+     * @throws IOException If the data doesn't hash to the key or can't be written
+     */
+    public String put(byte[] key, byte[] data, int length) throws IOException
+    {
+        if (!MessageDigest.isEqual(key, sha256(data, 0, length)))
+            throw new IOException("Chunk doesn't match its hash");
+
+        String id   = hex(id(key));
+        File   file = file(id);
+        File   temp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        file.getParentFile().mkdir();
+        Compression packer = packers.get();
+        int         n      = packer.pack(data, 0, length);
+        try (FileOutputStream out = new FileOutputStream(temp))
+        {
+            out.write(cipher(Cipher.ENCRYPT_MODE, key).doFinal(packer.array(), 0, n));
+            out.getFD().sync(); // A manifest must never name a chunk that a crash can lose
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException(e);
+        }
+
+        synchronized (this)
+        {// A release can't delete the file between it landing and being counted
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            refs.put(id, refs.containsKey(id) ? refs.get(id) + 1 : 1);
+            stored++;
+            plain  += length;
+            packed += n;
+        }
+        return id;
+    }
+
+    /**
+     * Drops a reference on each chunk and deletes the ones nothing holds anymore
+     *
+     * @param ids The distinct ids of a file's chunks
+     */
+    public synchronized void release(Collection<String> ids)
+    {
+        for (String id : ids)
+        {
+            Integer count = refs.get(id);
+            if (count == null)
+                continue;
+            if (count > 1)
+                refs.put(id, count - 1);
+            else
+            {
+                refs.remove(id);
+                file(id).delete();
+                FileServer.blockCache.invalidate(file(id));
+                collected++;
+            }
+        }
+    }
+
+    /**
+     * Drops the references held by a manifest, called once its file is deleted
+     *
+     * @param manifest The manifest
+     */
+    public void release(Manifest manifest)
+    {
+        release(distinct(manifest.ids));
+    }
+
+    /**
+     * Writes a manifest. It is written to a temp file and renamed into place.
+     *
+     * @param file Where the manifest goes
+     * @param groupKey The group key the chunk keys are sealed under
+     * @param keys The chunk keys, one after another
+     * @param lengths The chunk lengths
+     *
+     * @throws IOException If the manifest can't be written
+     */
+    public static void writeManifest(File file, SecretKey groupKey, byte[] keys, int[] lengths) throws IOException
+    {
+        File temp = new File(file.getPath() + ".manifest");
+        try (FileOutputStream fos = new FileOutputStream(temp))
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(lengths.length);
+            for (int i = 0; i < lengths.length; i++)
+            {
+                out.write(sha256(keys, i * KEY_LENGTH, KEY_LENGTH));
+                out.writeInt(lengths[i]);
+            }
+
+            BlockFile.Writer sealed = new BlockFile.Writer(out, groupKey);
+            sealed.write(keys);
+            sealed.finish();
+            fos.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a manifest
+     *
+     * @param file The manifest
+     * @param groupKey The group key to open the chunk keys with, null to only read ids and lengths
+     *
+     * @return The manifest
+     *
+     * @throws IOException If the manifest can't be read or the chunk keys don't open
+     */
+    public static Manifest readManifest(File file, SecretKey groupKey) throws IOException
+    {
+        try (FileInputStream fis = new FileInputStream(file))
+        {
+            return readManifest(fis, file.length(), groupKey);
+        }
+    }
+
+    /**
+     * Reads a manifest from an open stream
+     *
+     * @param fis The stream, positioned at the start of the manifest
+     * @param storedLength The length of the manifest
+     * @param groupKey The group key to open the chunk keys with, null to only read ids and lengths
+     *
+     * @return The manifest
+     *
+     * @throws IOException If the manifest can't be read or the chunk keys don't open
+     */
+    public static Manifest readManifest(InputStream fis, long storedLength, SecretKey groupKey) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
+        if (in.readLong() != MAGIC || in.readInt() != VERSION)
+            throw new IOException("Not a manifest");
+        int count = in.readInt();
+        if (count < 0 || 16 + count * (long)(KEY_LENGTH + 4) > storedLength)
+            throw new IOException("Bad chunk count " + count);
+
+        byte[][] ids     = new byte[count][KEY_LENGTH];
+        int[]    lengths = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            in.readFully(ids[i]);
+            lengths[i] = in.readInt();
+        }
+        if (groupKey == null)
+            return new Manifest(ids, lengths, null);
+
+        byte[][] keys = new byte[count][KEY_LENGTH];
+        DataInputStream sealed = new DataInputStream(
+                new BlockFile.Reader(in, storedLength - 16 - count * (long)(KEY_LENGTH + 4), groupKey));
+        for (int i = 0; i < count; i++)
+        {
+            sealed.readFully(keys[i]);
+            if (!Arrays.equals(ids[i], id(keys[i])))
+                throw new IOException("Chunk key " + i + " doesn't match its id");
+        }
+        return new Manifest(ids, lengths, keys);
+    }
+
+    /**
+     * Opens the plain text of a file from its manifest
+     *
+     * @param manifest The manifest, read with the group key
+     *
+     * @return The plain text
+     */
+    public InputStream open(Manifest manifest)
+    {
+        return new Reader(manifest);
+    }
+
+    /**
+     * Returns the distinct ids of a list of chunks
+     *
+     * @param ids The ids
+     *
+     * @return The ids as hex, without repeats
+     */
+    public static Set<String> distinct(byte[][] ids)
+    {
+        Set<String> set = new LinkedHashSet<>();
+        for (byte[] id : ids)
+            set.add(hex(id));
+        return set;
+    }
+
+    /**
+     * Returns a one line summary of the store
+     *
+     * @return The summary
+     */
+    public synchronized String toString()
+    {
+        return String.format("Chunk store: %d chunks, %d written, %d reused, %d collected, %d bytes saved by compression",
+                             refs.size(), stored, reused, collected, plain - packed);
+    }
+
+    /**
+     * Returns the file a chunk is kept in, chunks are spread over 256 directories
+     */
+    private File file(String id)
+    {
+        return new File(new File(dir, id.substring(0, 2)), id);
+    }
+
+    /**
+     * Reads a whole chunk through the FileServer's block cache, chunks of popular files stay in memory
+     */
+    private static byte[] readChunk(File file) throws IOException
+    {
+        try (BlockCache.CachedFile in = FileServer.blockCache.open(file))
+        {
+            byte[] sealed = new byte[(int)in.length()];
+            new DataInputStream(in).readFully(sealed);
+            return sealed;
+        }
+    }
+
+    /**
+     * Sets up a cipher for a chunk. Every key encrypts exactly one plain text, so the nonce can be fixed.
+     */
+    private static Cipher cipher(int mode, byte[] key) throws Exception
+    {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(mode, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, new byte[12]));
+        return cipher;
+    }
+
+    private static byte[] sha256(byte[] data, int offset, int length)
+    {
+        try
+        {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(data, offset, length);
+            return sha.digest();
+        }
+        catch (Exception e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes)
+    {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+
+    /**
+     * Starts a deduplicated upload. References are taken right away on every chunk already stored.
+     *
+     * @param keys The file's chunk keys, one after another
+     * @param lengths The file's chunk lengths
+     *
+     * @return The upload, null if the lists don't match up or a chunk is empty or too long
+     */
+    public Upload begin(byte[] keys, int[] lengths)
+    {
+        if (keys.length != lengths.length * KEY_LENGTH)
+            return null;
+        for (int length : lengths)
+            if (length <= 0 || length > Chunker.MAX_SIZE)
+                return null;
+
+        return new Upload(keys, lengths);
+    }
+
+    /**
+     * A file arriving as chunks. The chunks the server already has are held from the start, the rest
+     * are sent back to back through this stream and stored as each one is whole. Until the manifest is
+     * written, abort gives every reference back.
+     */
+    public class Upload extends OutputStream
+    {
+        private final byte[]            keys;    // Every chunk key of the file, one after another
+        private final int[]             lengths; // Every chunk length of the file
+        private final int[]             needed;  // Indexes of the chunks to be sent, in order
+        private final ArrayList<String> taken;   // Chunks the upload holds a reference on
+        private final byte[]            chunk = new byte[Chunker.MAX_SIZE];
+        private int     filled; // Bytes of the current chunk received
+        private int     next;   // Index into needed of the current chunk
+        private boolean ended;
+
+        Upload(byte[] _keys, int[] _lengths)
+        {
+            keys    = _keys;
+            lengths = _lengths;
+
+            // The first time each chunk shows up is where it gets sent, if it has to be
+            LinkedHashMap<String, Integer> first = new LinkedHashMap<>();
+            for (int i = 0; i < lengths.length; i++)
+            {
+                String id = hex(id(key(i)));
+                if (!first.containsKey(id))
+                    first.put(id, i);
+            }
+
+            Set<String> have = acquire(first.keySet());
+            taken  = new ArrayList<>(have);
+            needed = new int[first.size() - have.size()];
+            int n = 0;
+            for (Map.Entry<String, Integer> entry : first.entrySet())
+                if (!have.contains(entry.getKey()))
+                    needed[n++] = entry.getValue();
+        }
+
+        /**
+         * Returns the chunks the client has to send
+         *
+         * @return Their indexes in the file, in the order they're expected
+         */
+        public int[] getNeeded()
+        {
+            return needed;
+        }
+
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            while (len > 0)
+            {
+                if (next == needed.length)
+                    throw new IOException("More data than the chunks asked for");
+
+                int length = lengths[needed[next]];
+                int n      = Math.min(len, length - filled);
+                System.arraycopy(b, off, chunk, filled, n);
+                filled += n;
+                off    += n;
+                len    -= n;
+
+                if (filled == length)
+                {
+                    taken.add(put(key(needed[next]), chunk, length));
+                    filled = 0;
+                    next++;
+                }
+            }
+        }
+
+        /**
+         * Writes the file's manifest once every chunk asked for has arrived
+         *
+         * @param file Where the manifest goes
+         * @param groupKey The group key
+         *
+         * @return true if the manifest was written, false if chunks are missing
+         *
+         * @throws IOException If the manifest can't be written
+         */
+        public boolean finish(File file, SecretKey groupKey) throws IOException
+        {
+            if (next < needed.length)
+                return false;
+
+            writeManifest(file, groupKey, keys, lengths);
+            ended = true;
+            return true;
+        }
+
+        /**
+         * Gives back every reference unless the manifest was written
+         */
+        public void abort()
+        {
+            if (!ended)
+                release(taken);
+            ended = true;
+        }
+
+        private byte[] key(int index)
+        {
+            return Arrays.copyOfRange(keys, index * KEY_LENGTH, (index + 1) * KEY_LENGTH);
+        }
+    }
+
+    /**
+     * Reads a file's chunks in order, one whole chunk at a time. Skipping passes over whole chunks
+     * without reading them.
+     */
+    private class Reader extends InputStream
+    {
+        private final Manifest manifest;
+        private byte[] chunk = new byte[0]; // The chunk being handed out
+        private int    position;            // Next byte to hand out from chunk
+        private int    index;               // Index of the next chunk to read
+
+        Reader(Manifest _manifest)
+        {
+            manifest = _manifest;
+        }
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            while (position == chunk.length)
+            {
+                if (index == manifest.ids.length)
+                    return -1;
+                fill();
+            }
+
+            int n = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException
+        {
+            long skipped = Math.min(n, chunk.length - position);
+            position += skipped;
+
+            // Whole chunks are passed over without being read
+            while (index < manifest.ids.length && skipped + manifest.lengths[index] <= n)
+                skipped += manifest.lengths[index++];
+
+            if (skipped < n && index < manifest.ids.length)
+            {// The rest is inside the next chunk
+                fill();
+                position = (int)(n - skipped);
+                skipped  = n;
+            }
+            return skipped;
+        }
+
+        /**
+         * Reads and decrypts the next chunk
+         */
+        private void fill() throws IOException
+        {
+            String id = hex(manifest.ids[index]);
+            try
+            {
+                byte[]      sealed   = readChunk(file(id));
+                byte[]      unsealed = cipher(Cipher.DECRYPT_MODE, manifest.keys[index]).doFinal(sealed);
+                Compression packer   = packers.get();
+                int         n        = packer.unpack(unsealed, 0, unsealed.length, manifest.lengths[index]);
+                chunk = Arrays.copyOf(packer.array(), n);
+            }
+            catch (AEADBadTagException e)
+            {
+                throw new IOException("Chunk " + id + " failed its integrity check");
+            }
+            catch (IOException e)
+            {
+                throw e;
+            }
+            catch (Exception e)
+            {
+                throw new IOException(e);
+            }
+            if (chunk.length != manifest.lengths[index])
+                throw new IOException("Chunk " + id + " is the wrong length");
+
+            index++;
+            position = 0;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Splits a stream into content-defined chunks for the deduplicating store.
+ *
+ * A gear hash rolls over the data and a chunk ends wherever its top bits are all zero, so cut points
+ * depend only on the bytes around them. An edit near the start of a file moves the chunk boundaries
+ * next to it and leaves every later chunk the same as before. Chunks are at least MIN_SIZE and at
+ * most MAX_SIZE long and average a little over MIN_SIZE + 64 KB. The gear table comes from a fixed
+ * seed, every client has to cut the same data the same way for chunks to be shared.
+ */
+public class Chunker
+{
+    public static final int MIN_SIZE = 1 << 14; // Shortest chunk, except at the end of the stream
+    public static final int MAX_SIZE = 1 << 18; // Longest chunk
+
+    private static final long   MASK = 0xffff000000000000L; // 16 bits, one cut every 64 KB on average
+    private static final long[] GEAR = new long[256];
+
+    static
+    {
+        Random random = new Random(0x4368756e6b6572L); // "Chunker"
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    private final InputStream in;
+    private final byte[]      buf = new byte[MAX_SIZE];
+    private int     length; // Bytes in buf
+    private boolean eof;    // Whether the stream has ended
+
+    /**
+     * Constructor which accepts the stream to split
+     *
+     * @param _in The stream
+     */
+    public Chunker(InputStream _in)
+    {
+        in = _in;
+    }
+
+    /**
+     * Returns the next chunk
+     *
+     * @return The chunk, null at the end of the stream
+     *
+     * @throws IOException If the stream can't be read
+     */
+    public byte[] next() throws IOException
+    {
+        int n;
+        while (!eof && length < buf.length)
+        {
+            if ((n = in.read(buf, length, buf.length - length)) < 0)
+                eof = true;
+            else
+                length += n;
+        }
+        if (length == 0)
+            return null;
+
+        // The hash only covers the last 64 bytes, so it can start just short of the minimum
+        int  cut  = length;
+        long hash = 0;
+        for (int i = Math.max(0, MIN_SIZE - 64); i < length; i++)
+        {
+            hash = (hash << 1) + GEAR[buf[i] & 0xff];
+            if (i + 1 >= MIN_SIZE && (hash & MASK) == 0)
+            {
+                cut = i + 1;
+                break;
+            }
+        }
+
+        byte[] chunk = Arrays.copyOf(buf, cut);
+        System.arraycopy(buf, cut, buf, 0, length - cut);
+        length -= cut;
+        return chunk;
+    }
+}
@@ -3,6 +3,14 @@ package server;
 import java.net.Socket;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 
 /**
  * Base class inherited by FileClient.java and GroupClient.java
@@ -12,6 +20,13 @@ public abstract class Client
 	protected Socket sock;                  // Used as endpoint for connection between two machines
 	protected ObjectOutputStream output;    // The output stream for envelopes
 	protected ObjectInputStream  input;     // The input stream for envelopes
+	protected CryptoTools        ct;        // Session encryption, set up by the handshake
+	protected List<String> features = CryptoTools.getCapabilities(); // Features to ask the server for
+	protected String       address;                 // server:port, which session tickets are kept under
+	protected boolean      resume = true;           // Whether to present a session ticket when reconnecting
+	protected boolean      ecdhe  = true;           // Whether to use ECDHE instead of RSA key transport
+
+	private static final HashMap<String, byte[][]> tickets = new HashMap<>(); // server:port -> {ticket, secret}
 
     /**
      * This method connects to the specified server
@@ -25,7 +40,9 @@ public abstract class Client
     {
         try
         {
-            sock   = new Socket(server, port);
+            sock    = new Socket(server, port);
+            address = server + ":" + port;
+            sock.setTcpNoDelay(true); // Don't let Nagle hold back pipelined chunks
             output = new ObjectOutputStream(sock.getOutputStream());
             input  = new ObjectInputStream(sock.getInputStream());
         }
@@ -52,6 +69,231 @@ public abstract class Client
     }
 
 
+    /**
+     * Asks the server to turn on the features both sides support.
+     * Called at the end of a handshake with the capabilities the server advertised,
+     * servers that predate negotiation don't advertise any and nothing is sent.
+     *
+     * @param offered The server's capabilities
+     *
+     * @return true if the exchange succeeded or wasn't needed, false otherwise
+     *
+     * @throws Exception
+     */
+    protected boolean negotiate(List<?> offered) throws Exception
+    {
+        ArrayList<String> wanted = new ArrayList<>();
+        for (String feature : features)
+            if (CryptoTools.offers(offered, feature))
+                wanted.add(feature);
+        if (wanted.isEmpty())
+            return true;
+
+        // Tell the server which features to use
+        ct.incrementN();
+        Envelope message = new Envelope("NEGOTIATE");
+        message.addObject(ct.getN()); // Add N
+        message.addObject(wanted);    // Add wanted features
+        ct.writeMessage(output, message); // Send message
+
+        // Receive response
+        Envelope response = ct.readMessage(input);
+
+        // Verify message
+        if (ct.verifyMessage(response))
+            ct.incrementN();
+        else
+            return false;
+
+        if (!response.getMessage().equals("OK"))
+            return false;
+
+        // Both sides switch after the OK
+        ct.enable((List<?>)response.getObjContents().get(1));
+        return true;
+    }
+
+    /**
+     * Tries to resume an earlier session with this server using the ticket it handed out.
+     * Called by a handshake right after the server's public key is read. Tickets are single-use,
+     * so the ticket is forgotten whether or not the server accepts it.
+     *
+     * @return true if the session was resumed, false if the full handshake is needed
+     *
+     * @throws Exception If the server accepted the ticket but the session could not be set up
+     */
+    protected boolean resume() throws Exception
+    {
+        byte[][] ticket;
+        synchronized (tickets)
+        {
+            ticket = resume ? tickets.remove(address) : null;
+        }
+        if (ticket == null)
+            return false;
+
+        // Present the ticket with a nonce of our own
+        byte[] clientNonce = new byte[SessionTickets.NONCE_LENGTH];
+        new SecureRandom().nextBytes(clientNonce);
+        Envelope message = new Envelope("RESUME");
+        message.addObject(ticket[0]);   // Add ticket
+        message.addObject(clientNonce); // Add client nonce
+        output.writeObject(message);
+
+        // Receive the server's nonce
+        Envelope response = (Envelope)input.readObject();
+        if (!response.getMessage().equals("RESUMED"))
+            return false;
+
+        // Both sides derive the session keys from the ticket secret
+        ct = CryptoTools.resume(ticket[1], clientNonce, (byte[])response.getObjContents().get(0));
+
+        return confirm(clientNonce, null);
+    }
+
+    /**
+     * Sets up the session with ephemeral ECDH instead of RSA key transport. The server answers
+     * the hello with its own ephemeral key signed by its RSA key, so the whole exchange is one
+     * round trip, and the features to use are agreed in the same messages.
+     *
+     * @param serverKey The server's public key
+     * @param KGS The Group Server's public key to hand a file server, null for a group server
+     *
+     * @return true if the handshake was successful, false otherwise
+     *
+     * @throws Exception
+     */
+    protected boolean ecdhe(PublicKey serverKey, PublicKey KGS) throws Exception
+    {
+        KeyPair ephemeral   = CryptoTools.generateEphemeral();
+        byte[]  clientPoint = ephemeral.getPublic().getEncoded();
+        byte[]  clientNonce = new byte[SessionTickets.NONCE_LENGTH];
+        new SecureRandom().nextBytes(clientNonce);
+
+        // Send our ephemeral key, nonce, and the features we want
+        ArrayList<String> offered = new ArrayList<>(features);
+        Envelope message = new Envelope("ECDHE");
+        message.addObject(clientPoint);                  // Add client ephemeral key
+        message.addObject(clientNonce);                  // Add client nonce
+        message.addObject(KGS);                          // Add KGS
+        message.addObject(offered);                      // Add wanted features
+        output.writeObject(message);
+
+        // Receive the server's ephemeral key and check its signature
+        Envelope response = (Envelope)input.readObject();
+        if (!response.getMessage().equals("ECDHE"))
+            return false;
+        byte[]  serverPoint = (byte[])response.getObjContents().get(0);
+        byte[]  serverNonce = (byte[])response.getObjContents().get(1);
+        List<?> selected    = (List<?>)response.getObjContents().get(3);
+
+        // The signature covers the features both ways, so stripping an offer in transit is caught here
+        Signature verifier = Signature.getInstance("SHA256withRSA");
+        verifier.initVerify(serverKey);
+        verifier.update(CryptoTools.transcript(clientPoint, clientNonce, KGS == null ? null : KGS.getEncoded(),
+                                               serverPoint, serverNonce, CryptoTools.transcript(offered),
+                                               CryptoTools.transcript(selected)));
+        if (!verifier.verify((byte[])response.getObjContents().get(2)))
+            throw new Exception("Server signature verification failed");
+
+        // Both sides derive the session keys from the shared secret
+        ct = CryptoTools.agree(ephemeral.getPrivate(), serverPoint, clientNonce, serverNonce);
+
+        return confirm(clientNonce, selected);
+    }
+
+    /**
+     * Reads the server's first encrypted message of a resumed or ECDHE handshake,
+     * which proves it derived the same keys by echoing the client's nonce
+     *
+     * @param clientNonce The nonce this client sent
+     * @param selected The features the server signed in an ECDHE reply, null when resuming
+     *
+     * @return true if the exchange succeeded, false otherwise
+     *
+     * @throws Exception If the message does not verify
+     */
+    private boolean confirm(byte[] clientNonce, List<?> selected) throws Exception
+    {
+        // Receive the server's proof that it has the same keys
+        Envelope response = ct.readMessage(input);
+
+        // Verify message
+        if (ct.verifyMessage(response))
+            ct.incrementN();
+        else
+            throw new Exception("Message Verification Failed");
+
+        if (!Arrays.equals((byte[])response.getObjContents().get(1), clientNonce))
+            throw new Exception("Handshake nonce mismatch");
+        if (selected != null && (response.getObjContents().size() <= 5 || !selected.equals(response.getObjContents().get(5))))
+            throw new Exception("Handshake features differ from the signed ones");
+
+        return finish(response);
+    }
+
+    /**
+     * Completes a handshake with the server's final message, which may carry the server's
+     * capabilities and a session ticket for the next connection
+     *
+     * @param response The final handshake message
+     *
+     * @return true if the exchange succeeded, false otherwise
+     *
+     * @throws Exception
+     */
+    protected boolean finish(Envelope response) throws Exception
+    {
+        if (response.getObjContents().size() > 4)
+        {// Keep the ticket for the next connection
+            synchronized (tickets)
+            {
+                tickets.put(address, new byte[][] {(byte[])response.getObjContents().get(3),
+                                                   (byte[])response.getObjContents().get(4)});
+            }
+        }
+
+        if (response.getObjContents().size() > 5)
+        {// Features were already agreed in the ECDHE hello
+            ct.enable((List<?>)response.getObjContents().get(5));
+            return true;
+        }
+
+        // Newer servers also advertise what they support
+        return response.getObjContents().size() < 3 || negotiate((List<?>)response.getObjContents().get(2));
+    }
+
+    /**
+     * Sets whether reconnects present a session ticket instead of running the full handshake
+     *
+     * @param resume true to resume sessions
+     */
+    public void setResume(boolean resume)
+    {
+        this.resume = resume;
+    }
+
+    /**
+     * Sets whether the handshake uses ECDHE, false runs the original RSA key transport that
+     * servers predating ECDHE need
+     *
+     * @param ecdhe true to use ECDHE
+     */
+    public void setEcdhe(boolean ecdhe)
+    {
+        this.ecdhe = ecdhe;
+    }
+
+    /**
+     * Sets the features this client asks the server for, an empty list keeps the original wire format
+     *
+     * @param features The features
+     */
+    public void setFeatures(List<String> features)
+    {
+        this.features = new ArrayList<>(features);
+    }
+
     /**
      * This method disconnects from any open connections by sending
      * a DISCONNECT envelope to the connected server
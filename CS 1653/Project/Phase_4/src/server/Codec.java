@@ -0,0 +1,76 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * A compression algorithm that can be negotiated for a connection and used for stored chunks.
+ *
+ * A codec is a stream: each call to compress continues from the data before it and flushes, so the
+ * peer can decompress every message as soon as it arrives and later messages still get the benefit
+ * of the earlier ones. Both sides must see the same calls in the same order. Resetting starts a
+ * fresh stream, which is how a single self-contained block is packed. A codec holds state and is not
+ * thread safe, every connection and thread takes its own from {@link Compression#newCodec(String)}.
+ */
+public interface Codec
+{
+    /**
+     * Returns the name the codec is negotiated by, the feature is COMPRESS- followed by the name
+     *
+     * @return The name
+     */
+    public String getName();
+
+    /**
+     * Returns the byte that marks data packed by this codec. 0 is reserved for data stored as-is.
+     *
+     * @return The id
+     */
+    public byte getId();
+
+    /**
+     * Returns the most bytes compress can produce for an input of the given length
+     *
+     * @param length The input length
+     *
+     * @return The bound
+     */
+    public int maxCompressedLength(int length);
+
+    /**
+     * Compresses data and flushes it, continuing the stream
+     *
+     * @param in The buffer holding the data
+     * @param offset The start of the data
+     * @param length The length of the data
+     * @param out The buffer to write to, with room for {@link #maxCompressedLength(int)} bytes
+     * @param outOffset Where to write
+     *
+     * @return The number of bytes written
+     */
+    public int compress(byte[] in, int offset, int length, byte[] out, int outOffset);
+
+    /**
+     * Decompresses data produced by the peer's compress, continuing the stream
+     *
+     * @param in The buffer holding the compressed data
+     * @param offset The start of the data
+     * @param length The length of the data
+     * @param out The buffer to write to
+     * @param outOffset Where to write
+     * @param outLength The exact number of bytes the data expands to
+     *
+     * @throws IOException If the data is corrupt or doesn't expand to exactly outLength bytes
+     */
+    public void decompress(byte[] in, int offset, int length, byte[] out, int outOffset, int outLength)
+            throws IOException;
+
+    /**
+     * Starts a new stream for compress
+     */
+    public void resetCompress();
+
+    /**
+     * Starts a new stream for decompress
+     */
+    public void resetDecompress();
+}
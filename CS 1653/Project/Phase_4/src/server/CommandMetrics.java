@@ -0,0 +1,198 @@
+package server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and latencies for one command. Every thread records into the same object without locking.
+ *
+ * Latencies go into a histogram laid out the way HdrHistogram lays out its buckets: every value under
+ * 32 microseconds has a bucket of its own, and each power of two above that is split into 16 equal
+ * buckets. A percentile is reported as the top of its bucket, so it is never low and at most 1/16 high.
+ * Values past 2^40 microseconds, about 12 days, share the last bucket.
+ */
+public class CommandMetrics implements CommandMetricsMXBean
+{
+    private static final int LINEAR   = 32;                   // Values below this have a bucket each
+    private static final int SUB      = 16;                   // Buckets per power of two above LINEAR
+    private static final int MAX_EXP  = 40;                   // Values from 2^MAX_EXP up land in the last bucket
+    private static final int BUCKETS  = LINEAR + (MAX_EXP - 5) * SUB;
+
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+    private final LongAdder       count     = new LongAdder();
+    private final LongAdder       micros    = new LongAdder(); // Sum of every latency
+    private final LongAdder       bytesIn   = new LongAdder();
+    private final LongAdder       bytesOut  = new LongAdder();
+    private final AtomicLong      max       = new AtomicLong();
+    private final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<>(); // FAIL code -> count
+
+    /**
+     * Records one request
+     *
+     * @param nanos How long it took
+     * @param in The bytes read from the client
+     * @param out The bytes written to the client
+     * @param error The FAIL code or EXCEPTION if it failed, null if it succeeded
+     */
+    public void record(long nanos, long in, long out, String error)
+    {
+        long value = Math.max(0, nanos / 1000);
+        histogram.incrementAndGet(bucket(value));
+        count.increment();
+        micros.add(value);
+        bytesIn.add(in);
+        bytesOut.add(out);
+
+        long seen = max.get();
+        while (value > seen && !max.compareAndSet(seen, value))
+            seen = max.get();
+
+        if (error != null)
+        {
+            LongAdder codeCount = errors.get(error);
+            if (codeCount == null)
+            {
+                errors.putIfAbsent(error, new LongAdder());
+                codeCount = errors.get(error);
+            }
+            codeCount.increment();
+        }
+    }
+
+    /**
+     * Starts the counts and latencies over. Requests recorded at the same time may be half counted.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+            histogram.set(i, 0);
+        count.reset();
+        micros.reset();
+        bytesIn.reset();
+        bytesOut.reset();
+        max.set(0);
+        errors.clear();
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    public long getErrors()
+    {
+        long sum = 0;
+        for (LongAdder codeCount : errors.values())
+            sum += codeCount.sum();
+        return sum;
+    }
+
+    public Map<String, Long> getErrorCounts()
+    {
+        TreeMap<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : errors.entrySet())
+            counts.put(entry.getKey(), entry.getValue().sum());
+        return counts;
+    }
+
+    public long getBytesIn()
+    {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut()
+    {
+        return bytesOut.sum();
+    }
+
+    public double getMeanMicros()
+    {
+        long n = count.sum();
+        return n == 0 ? 0 : (double)micros.sum() / n;
+    }
+
+    public long getP50Micros()
+    {
+        return percentile(0.5);
+    }
+
+    public long getP90Micros()
+    {
+        return percentile(0.9);
+    }
+
+    public long getP99Micros()
+    {
+        return percentile(0.99);
+    }
+
+    public long getP999Micros()
+    {
+        return percentile(0.999);
+    }
+
+    public long getMaxMicros()
+    {
+        return max.get();
+    }
+
+    /**
+     * Returns the latency below which a fraction of the requests fall
+     *
+     * @param fraction The fraction, 0.99 for the 99th percentile
+     *
+     * @return The latency in microseconds, 0 if nothing was recorded
+     */
+    public long percentile(double fraction)
+    {
+        long[] counts = new long[BUCKETS];
+        long   total  = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {// Copy first, requests recorded during the walk would throw off the total
+            counts[i] = histogram.get(i);
+            total    += counts[i];
+        }
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long)Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highest(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Returns the bucket a latency is counted in
+     */
+    private static int bucket(long value)
+    {
+        if (value < LINEAR)
+            return (int)value;
+        int exp = 63 - Long.numberOfLeadingZeros(value); // 2^exp <= value < 2^(exp + 1)
+        if (exp >= MAX_EXP)
+            return BUCKETS - 1;
+        return LINEAR + (exp - 5) * SUB + (int)((value >>> (exp - 4)) & (SUB - 1));
+    }
+
+    /**
+     * Returns the largest latency counted in a bucket
+     */
+    private static long highest(int bucket)
+    {
+        if (bucket < LINEAR)
+            return bucket;
+        int exp   = (bucket - LINEAR) / SUB + 5;
+        int sub   = (bucket - LINEAR) % SUB;
+        int shift = exp - 4; // Each bucket in this power of two is 2^shift wide
+        return ((long)(SUB + sub + 1) << shift) - 1;
+    }
+}
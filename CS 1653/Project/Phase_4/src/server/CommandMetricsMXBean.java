@@ -0,0 +1,65 @@
+package server;
+
+import java.util.Map;
+
+/**
+ * What JMX shows for one command, see {@link CommandMetrics}.
+ * Latencies are in microseconds, from the request being read until the response was sent.
+ */
+public interface CommandMetricsMXBean
+{
+    /**
+     * @return The number of requests
+     */
+    public long getCount();
+
+    /**
+     * @return The number of requests answered with a FAIL code, or that ended the connection with an exception
+     */
+    public long getErrors();
+
+    /**
+     * @return The number of errors by FAIL code, EXCEPTION for requests that threw
+     */
+    public Map<String, Long> getErrorCounts();
+
+    /**
+     * @return The bytes read from the client for these requests
+     */
+    public long getBytesIn();
+
+    /**
+     * @return The bytes written to the client for these requests
+     */
+    public long getBytesOut();
+
+    /**
+     * @return The mean latency
+     */
+    public double getMeanMicros();
+
+    /**
+     * @return The median latency, the percentiles are accurate to within 1/16
+     */
+    public long getP50Micros();
+
+    /**
+     * @return The 90th percentile latency
+     */
+    public long getP90Micros();
+
+    /**
+     * @return The 99th percentile latency
+     */
+    public long getP99Micros();
+
+    /**
+     * @return The 99.9th percentile latency
+     */
+    public long getP999Micros();
+
+    /**
+     * @return The longest latency
+     */
+    public long getMaxMicros();
+}
@@ -0,0 +1,221 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs messages and stored chunks with a Codec before they are encrypted.
+ *
+ * Packed data starts with a flag byte. It is STORED when the data follows as-is, or the codec's id
+ * followed by the unpacked length and the compressed data. Short data is always stored as-is, and so
+ * is data that doesn't shrink by at least an eighth. A stream that didn't compress usually won't
+ * start to, so after a poor message the next few skip the codec without trying. The number skipped
+ * doubles each time up to MAX_SKIP, and one message that compresses well brings it back to zero.
+ *
+ * On a connection the codec is one stream per direction. A message that was compressed and then
+ * sent as-is anyway restarts the stream, and is flagged RESTART so the peer restarts its side too.
+ * Blocks packed on their own, like stored chunks, restart the stream every time.
+ */
+public class Compression
+{
+    public static final byte STORED  = 0;          // Data follows as-is
+    public static final byte RESTART = (byte)0x80; // Data follows as-is and the codec stream starts over
+
+    private static final int MIN_LENGTH = 256; // Shorter data is stored as-is
+    private static final int MAX_SKIP   = 64;  // Most messages stored without trying after poor ones
+    private static final int HEADER     = 5;   // Flag and unpacked length
+
+    private static final String[] NAMES = { "DEFLATE" }; // Codecs in order of preference, see newCodec
+
+    private final Codec   codec;
+    private final boolean blocks;               // Whether every pack stands alone
+    private byte[] buffer = new byte[0];        // Reused for whatever was last packed or unpacked
+    private int    skip;                        // Messages left to store without trying
+    private int    backoff;                     // Messages to skip after the next poor one
+    private long   unpacked;                    // Bytes before packing or after unpacking
+    private long   packed;                      // Bytes after packing or before unpacking
+
+    /**
+     * Returns the names of the codecs this side supports, in order of preference
+     *
+     * @return The names
+     */
+    public static List<String> getNames()
+    {
+        ArrayList<String> names = new ArrayList<>();
+        for (String name : NAMES)
+            names.add(name);
+        return names;
+    }
+
+    /**
+     * Makes a new codec
+     *
+     * @param name The codec's name
+     *
+     * @return The codec, null if there is none by that name
+     */
+    public static Codec newCodec(String name)
+    {
+        if (name.equals("DEFLATE"))
+            return new DeflateCodec();
+        return null;
+    }
+
+    /**
+     * Constructor which accepts the codec and how it is used
+     *
+     * @param _codec The codec, this object takes it over
+     * @param _blocks true if every pack is unpacked on its own, false for a stream of messages
+     */
+    public Compression(Codec _codec, boolean _blocks)
+    {
+        codec  = _codec;
+        blocks = _blocks;
+    }
+
+    /**
+     * Packs data into the buffer
+     *
+     * @param data The buffer holding the data
+     * @param offset The start of the data
+     * @param length The length of the data
+     *
+     * @return The packed length, the packed data is found in {@link #array()}
+     */
+    public int pack(byte[] data, int offset, int length)
+    {
+        if (length < MIN_LENGTH || skip > 0)
+        {
+            skip = Math.max(0, skip - 1);
+            return store(data, offset, length, STORED);
+        }
+
+        if (blocks)
+            codec.resetCompress();
+        byte[] out = buffer(HEADER + codec.maxCompressedLength(length));
+        int    n   = codec.compress(data, offset, length, out, HEADER);
+
+        if (n > length - (length >> 3))
+        {// Not worth it, send it as-is
+            if (blocks)
+                return store(data, offset, length, STORED);
+
+            codec.resetCompress();
+            backoff = Math.min(MAX_SKIP, Math.max(1, backoff * 2));
+            skip    = backoff;
+            return store(data, offset, length, RESTART);
+        }
+
+        backoff = 0;
+        out[0]  = codec.getId();
+        putInt(out, 1, length);
+        count(length, HEADER + n);
+        return HEADER + n;
+    }
+
+    /**
+     * Unpacks data into the buffer
+     *
+     * @param data The buffer holding the packed data
+     * @param offset The start of the data
+     * @param length The length of the data
+     * @param maxLength The most the data may unpack to
+     *
+     * @return The unpacked length, the data is found in {@link #array()}
+     *
+     * @throws IOException If the data is corrupt, too long, or packed with another codec
+     */
+    public int unpack(byte[] data, int offset, int length, int maxLength) throws IOException
+    {
+        if (length < 1)
+            throw new IOException("Packed data is empty");
+
+        byte flag = data[offset];
+        if (flag == STORED || flag == RESTART)
+        {
+            if (flag == RESTART)
+                codec.resetDecompress();
+            System.arraycopy(data, offset + 1, buffer(length - 1), 0, length - 1);
+            count(length - 1, length);
+            return length - 1;
+        }
+        if (flag != codec.getId() || length < HEADER)
+            throw new IOException("Data was packed with unknown codec " + flag);
+
+        int plain = getInt(data, offset + 1);
+        if (plain < 0 || plain > maxLength)
+            throw new IOException("Packed data unpacks to " + plain + " bytes");
+        if (blocks)
+            codec.resetDecompress();
+        codec.decompress(data, offset + HEADER, length - HEADER, buffer(plain), 0, plain);
+        count(plain, length);
+        return plain;
+    }
+
+    /**
+     * Returns the buffer holding the last packed or unpacked data
+     *
+     * @return The buffer
+     */
+    public byte[] array()
+    {
+        return buffer;
+    }
+
+    /**
+     * Returns the bytes compression has saved so far, going both ways
+     *
+     * @return The bytes saved
+     */
+    public long getSaved()
+    {
+        return unpacked - packed;
+    }
+
+    /**
+     * Returns the codec's name
+     *
+     * @return The name
+     */
+    public String getName()
+    {
+        return codec.getName();
+    }
+
+    private int store(byte[] data, int offset, int length, byte flag)
+    {
+        byte[] out = buffer(length + 1);
+        out[0] = flag;
+        System.arraycopy(data, offset, out, 1, length);
+        count(length, length + 1);
+        return length + 1;
+    }
+
+    private void count(long before, long after)
+    {
+        unpacked += before;
+        packed   += after;
+    }
+
+    private byte[] buffer(int size)
+    {
+        if (buffer.length < size)
+            buffer = new byte[Math.max(size, buffer.length * 2)];
+        return buffer;
+    }
+
+    private static void putInt(byte[] b, int offset, int value)
+    {
+        b[offset]     = (byte)(value >>> 24);
+        b[offset + 1] = (byte)(value >>> 16);
+        b[offset + 2] = (byte)(value >>> 8);
+        b[offset + 3] = (byte)value;
+    }
+
+    private static int getInt(byte[] b, int offset)
+    {
+        return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8 | (b[offset + 3] & 0xff);
+    }
+}
@@ -3,10 +3,18 @@ package server;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
-import java.security.Security;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Provides functionality for commonly used methods pertaining to the security measures used in this system
@@ -18,6 +26,30 @@ public class CryptoTools
     private Mac    HMAC;             // Mac for HMAC
     private int    N;                // Increment value
 
+    private SecretKey KS;            // Session key, kept for AEAD-GCM
+    private byte[]    IV;            // Session IV, prefix of every AEAD-GCM nonce
+
+    public static final String AEAD_GCM     = "AEAD-GCM";     // Feature: AES-GCM replaces AES-CBC and HMAC
+    public static final String WIRE_BINARY  = "WIRE-BINARY";  // Feature: envelopes use EnvelopeCodec frames
+    public static final String RAW_DOWNLOAD = "RAW-DOWNLOAD"; // Feature: downloads send the stored cipher text as-is
+    public static final String COMPRESS     = "COMPRESS-";    // Feature prefix: frames are packed by the named codec
+    public static final String CHUNK        = "CHUNK-";       // Feature prefix: file chunks may grow to this many bytes
+    private static final int   MAX_FRAME    = 1 << 24;        // Largest binary frame accepted from a peer
+
+    private boolean       gcm;                // Whether AEAD-GCM has been negotiated
+    private Cipher        aead;               // AES-GCM cipher, re-initialized with a new nonce per message
+    private boolean       binary;             // Whether WIRE-BINARY has been negotiated
+    private EnvelopeCodec codec;              // Encodes envelopes once WIRE-BINARY is negotiated
+    private byte[]        payload;            // The last envelope encoded by encode
+    private byte[]        frame = new byte[0]; // Reused for sealed frames going out or coming in
+    private Envelope      lastMessage;        // The last message read by readMessage
+    private boolean       lastIntact;         // Whether the last message matched its digest
+    private List<?>       enabled = new ArrayList<>(); // The features turned on by enable
+    private Compression   compression;        // Packs frames before they are encrypted, once negotiated
+    private String        lastSent;           // The message of the last envelope written by writeMessage
+    private long          connection;         // The id Crypto trace events carry, 0 if not set
+    private int           maxChunk = ChunkSizer.MIN; // Largest file chunk either side sends, once negotiated
+
     /**
      * Default Constructor
      * Only used in server-side handshake to decrypt envelope containing session keys
@@ -28,7 +60,8 @@ public class CryptoTools
     public CryptoTools(int N, SecretKey KS, byte[] IV, SecretKey KH) throws Exception
     {
         // Set provider to BouncyCaste
-        Security.addProvider(new BouncyCastleProvider());
+        if (Security.getProvider("BC") == null) // Building the provider is slow, only do it once
+            Security.addProvider(new BouncyCastleProvider());
 
         // Set AES cipher details
         IvParameterSpec IVPS = new IvParameterSpec(IV);
@@ -43,6 +76,132 @@ public class CryptoTools
 
         // Set N
         this.N = N;
+
+        this.KS = KS;
+        this.IV = IV;
+    }
+
+    /**
+     * Sets up a resumed session. N, KS, IV, and KH are all derived from the secret carried in a
+     * session ticket and a nonce from each side, so no RSA is needed and no two sessions share keys.
+     *
+     * @param secret The secret from the ticket
+     * @param clientNonce The client's nonce
+     * @param serverNonce The server's nonce
+     *
+     * @return The CryptoTools for the resumed session
+     *
+     * @throws Exception
+     */
+    public static CryptoTools resume(byte[] secret, byte[] clientNonce, byte[] serverNonce) throws Exception
+    {
+        if (Security.getProvider("BC") == null)
+            Security.addProvider(new BouncyCastleProvider());
+        Mac kdf = Mac.getInstance("HmacSHA256", "BC");
+        kdf.init(new SecretKeySpec(secret, "HmacSHA256"));
+
+        return new CryptoTools(ByteBuffer.wrap(derive(kdf, "N", clientNonce, serverNonce)).getInt(),      // N
+                new SecretKeySpec(derive(kdf, "KS", clientNonce, serverNonce), 0, 16, "AES"),      // KS
+                Arrays.copyOf(derive(kdf, "IV", clientNonce, serverNonce), 16),                    // IV
+                new SecretKeySpec(derive(kdf, "KH", clientNonce, serverNonce), 0, 16, "HmacSHA1")); // KH
+    }
+
+    /**
+     * Derives one value for a resumed or ECDHE session
+     *
+     * @param kdf HMAC keyed with the session secret
+     * @param label What the value is for
+     * @param clientNonce The client's nonce
+     * @param serverNonce The server's nonce
+     *
+     * @return 32 bytes of key material
+     */
+    private static byte[] derive(Mac kdf, String label, byte[] clientNonce, byte[] serverNonce)
+    {
+        kdf.update(label.getBytes(StandardCharsets.UTF_8));
+        kdf.update(clientNonce);
+        kdf.update(serverNonce);
+        return kdf.doFinal();
+    }
+
+    /**
+     * Generates an ephemeral P-256 key pair for one ECDHE handshake
+     *
+     * @return The key pair
+     *
+     * @throws Exception
+     */
+    public static KeyPair generateEphemeral() throws Exception
+    {// The JDK's EC is about twice as fast as BouncyCastle's here
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+        keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        return keyPairGenerator.generateKeyPair();
+    }
+
+    /**
+     * Sets up an ECDHE session. The shared secret is extracted with HMAC-SHA256 keyed by both
+     * nonces, the same way HKDF does, and N, KS, IV, and KH are then expanded from it like a
+     * resumed session.
+     *
+     * @param mine This side's ephemeral private key
+     * @param theirs The peer's ephemeral public key, X.509 encoded
+     * @param clientNonce The client's nonce
+     * @param serverNonce The server's nonce
+     *
+     * @return The CryptoTools for the session
+     *
+     * @throws Exception
+     */
+    public static CryptoTools agree(PrivateKey mine, byte[] theirs, byte[] clientNonce, byte[] serverNonce) throws Exception
+    {
+        KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
+        keyAgreement.init(mine);
+        keyAgreement.doPhase(KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(theirs)), true);
+
+        Mac extract = Mac.getInstance("HmacSHA256", "BC");
+        extract.init(new SecretKeySpec(transcript(clientNonce, serverNonce), "HmacSHA256"));
+        return resume(extract.doFinal(keyAgreement.generateSecret()), clientNonce, serverNonce);
+    }
+
+    /**
+     * Joins the values a handshake signature covers, each prefixed with its length
+     *
+     * @param parts The values, null is treated as empty
+     *
+     * @return The joined values
+     */
+    public static byte[] transcript(byte[]... parts)
+    {
+        int length = 0;
+        for (byte[] part : parts)
+            length += 4 + (part == null ? 0 : part.length);
+
+        ByteBuffer transcript = ByteBuffer.allocate(length);
+        for (byte[] part : parts)
+        {
+            transcript.putInt(part == null ? 0 : part.length);
+            if (part != null)
+                transcript.put(part);
+        }
+        return transcript.array();
+    }
+
+    /**
+     * Encodes a list of features for a handshake transcript, one per line
+     *
+     * @param features The features, null for none
+     *
+     * @return The encoded list, null if there is none
+     */
+    public static byte[] transcript(List<?> features)
+    {
+        if (features == null)
+            return null;
+
+        StringBuilder lines = new StringBuilder();
+        for (Object feature : features)
+            lines.append(feature).append('\n');
+        return lines.toString().getBytes(StandardCharsets.UTF_8);
     }
 
     /**
@@ -123,7 +282,11 @@ public class CryptoTools
      */
     public byte[] encrypt(Object object) throws Exception
     {
-        return encryptionCipher.doFinal(toByteArray(object));
+        TraceEvents.Crypto event = new TraceEvents.Crypto();
+        event.begin();
+        byte[] cipherText = encryptionCipher.doFinal(toByteArray(object));
+        trace(event, "encrypt", null, cipherText.length);
+        return cipherText;
     }
 
     /**
@@ -137,7 +300,11 @@ public class CryptoTools
      */
     public Object decrypt(byte[] object) throws Exception
     {
-        return fromByteArray(decryptionCipher.doFinal(object));
+        TraceEvents.Crypto event = new TraceEvents.Crypto();
+        event.begin();
+        Object plain = fromByteArray(decryptionCipher.doFinal(object));
+        trace(event, "decrypt", null, object.length);
+        return plain;
     }
 
     /**
@@ -151,7 +318,12 @@ public class CryptoTools
      */
     public byte[] getDigest(Object object) throws Exception
     {
-        return HMAC.doFinal(toByteArray(object));
+        TraceEvents.Crypto event = new TraceEvents.Crypto();
+        event.begin();
+        byte[] plain  = toByteArray(object);
+        byte[] digest = HMAC.doFinal(plain);
+        trace(event, "getDigest", null, plain.length);
+        return digest;
     }
 
     /**
@@ -167,6 +339,460 @@ public class CryptoTools
         return Arrays.equals(thisDigest, thatDigest);
     }
 
+    /**
+     * Encrypts a message, computes its digest, and writes both to the peer.
+     * The envelope is serialized exactly once. Binary frames digest the cipher text,
+     * the older format digests the serialized envelope, and AEAD-GCM frames carry their own tag.
+     *
+     * @param output The stream to the peer
+     * @param envelope The message
+     *
+     * @throws Exception
+     */
+    public void writeMessage(ObjectOutputStream output, Envelope envelope) throws Exception
+    {
+        lastSent = envelope.getMessage();
+        TraceEvents.Crypto event = new TraceEvents.Crypto(); // Ends before the socket write
+        event.begin();
+        if (gcm)
+        {// Frame: length, cipher text with tag. One pass, nonce comes from this message's N
+            int length = encode(envelope);
+            aead.init(Cipher.ENCRYPT_MODE, KS, nonce((int)envelope.getObjContents().get(0)));
+
+            byte[] out = frame(aead.getOutputSize(length));
+            int    n   = aead.doFinal(payload, 0, length, out, 0);
+            trace(event, "writeMessage", lastSent, n + 4);
+
+            output.writeInt(n);
+            output.write(out, 0, n);
+            output.flush();
+        }
+        else if (binary)
+        {// Frame: length, cipher text, digest of the cipher text
+            int    length = encode(envelope);
+            byte[] out    = frame(encryptionCipher.getOutputSize(length) + HMAC.getMacLength());
+
+            int n = encryptionCipher.doFinal(payload, 0, length, out, 0);
+            HMAC.update(out, 0, n);
+            HMAC.doFinal(out, n);
+            trace(event, "writeMessage", lastSent, n + HMAC.getMacLength() + 4);
+
+            output.writeInt(n + HMAC.getMacLength());
+            output.write(out, 0, n + HMAC.getMacLength());
+            output.flush();
+        }
+        else
+        {// Cipher text and digest as two objects, which is what older peers expect
+            // Don't let the stream's handle table grow for the life of the session. The reset goes
+            // ahead of the message so the peer reads it with the message instead of it waiting alone
+            byte[] plain      = toByteArray(envelope);
+            byte[] cipherText = encryptionCipher.doFinal(plain);
+            byte[] digest     = HMAC.doFinal(plain);
+            trace(event, "writeMessage", lastSent, cipherText.length + digest.length);
+            output.reset();
+            output.writeObject(cipherText); // Send cipher text
+            output.writeObject(digest);     // Send digest
+        }
+    }
+
+    /**
+     * Reads the next message from the peer and checks it against its digest.
+     * Use {@link #verifyMessage(Envelope)} to find out whether it was intact.
+     * The digest is checked before the envelope is deserialized, a message that fails comes back as FAIL-INTEGRITY.
+     *
+     * @param input The stream from the peer
+     *
+     * @return The message
+     *
+     * @throws Exception
+     */
+    public Envelope readMessage(ObjectInputStream input) throws Exception
+    {
+        lastMessage = null;
+
+        TraceEvents.Crypto event = new TraceEvents.Crypto(); // Starts once the message has arrived
+        int                size;                             // Bytes on the wire, less the frame length
+        if (gcm)
+        {
+            size = readFrame(input);
+            byte[] in = frame;
+            event.begin();
+
+            try
+            {// Only the next N is accepted, anything replayed or reordered fails the tag
+                aead.init(Cipher.DECRYPT_MODE, KS, nonce(N + 1));
+                int n = aead.doFinal(in, 0, size, in, 0);
+                lastIntact  = true;
+                lastMessage = decode(in, 0, n);
+            }
+            catch (AEADBadTagException e)
+            {
+                lastIntact = false;
+            }
+        }
+        else if (binary)
+        {
+            size = readFrame(input);
+            byte[] in = frame;
+            event.begin();
+
+            int n = size - HMAC.getMacLength();
+            HMAC.update(in, 0, n);
+            lastIntact = verifyDigest(HMAC.doFinal(), Arrays.copyOfRange(in, n, size));
+            if (lastIntact)
+            {
+                byte[] plain = decryptionCipher.doFinal(in, 0, n);
+                lastMessage  = decode(plain, 0, plain.length);
+            }
+        }
+        else
+        {
+            byte[] cipherText = (byte[])input.readObject();
+            byte[] digest     = (byte[])input.readObject();
+            event.begin();
+            size = cipherText.length + digest.length;
+
+            byte[] plain = decryptionCipher.doFinal(cipherText);
+            lastIntact   = verifyDigest(HMAC.doFinal(plain), digest);
+            lastMessage  = lastIntact ? (Envelope)fromByteArray(plain) : null;
+        }
+
+        if (lastMessage == null)
+        {// Don't deserialize anything that failed its digest
+            lastMessage = new Envelope("FAIL-INTEGRITY");
+            lastMessage.addObject(0);
+        }
+
+        trace(event, "readMessage", lastMessage.getMessage(), gcm || binary ? size + 4 : size);
+        return lastMessage;
+    }
+
+    /**
+     * Serializes an envelope into payload with whichever codec was negotiated, then packs it if
+     * compression was negotiated
+     *
+     * @param envelope The envelope
+     *
+     * @return The number of valid bytes in payload
+     *
+     * @throws Exception
+     */
+    private int encode(Envelope envelope) throws Exception
+    {
+        int length;
+        if (binary)
+        {
+            length  = codec.encode(envelope);
+            payload = codec.array();
+        }
+        else
+        {
+            payload = toByteArray(envelope);
+            length  = payload.length;
+        }
+
+        if (compression != null)
+        {
+            length  = compression.pack(payload, 0, length);
+            payload = compression.array();
+        }
+        return length;
+    }
+
+    /**
+     * Unpacks and deserializes an envelope with whichever codecs were negotiated
+     *
+     * @param data The buffer
+     * @param offset The start of the envelope
+     * @param length The length of the envelope
+     *
+     * @return The envelope
+     *
+     * @throws Exception
+     */
+    private Envelope decode(byte[] data, int offset, int length) throws Exception
+    {
+        if (compression != null)
+        {
+            length = compression.unpack(data, offset, length, MAX_FRAME);
+            data   = compression.array();
+            offset = 0;
+        }
+
+        if (binary)
+            return codec.decode(data, offset, length);
+        return (Envelope)new ObjectInputStream(new ByteArrayInputStream(data, offset, length)).readObject();
+    }
+
+    /**
+     * Reads a length-prefixed frame into the frame buffer
+     *
+     * @param input The stream from the peer
+     *
+     * @return The length of the frame
+     *
+     * @throws IOException
+     */
+    private int readFrame(ObjectInputStream input) throws IOException
+    {
+        int size = input.readInt();
+        if (size < HMAC.getMacLength() || size > MAX_FRAME)
+            throw new IOException("Bad frame length " + size);
+
+        input.readFully(frame(size), 0, size);
+        return size;
+    }
+
+    /**
+     * Ends a Crypto trace event and commits it if a recording wants it
+     *
+     * @param event The event, begun when the work started
+     * @param operation The method doing the work
+     * @param message The message sealed or opened, null if it isn't an envelope
+     * @param bytes The bytes sealed or opened
+     */
+    private void trace(TraceEvents.Crypto event, String operation, String message, long bytes)
+    {
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.connection = connection;
+            event.operation  = operation;
+            event.message    = message;
+            event.bytes      = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Builds the GCM parameters for a message. The nonce is the first 8 bytes of the session IV
+     * followed by N, which is different for every message sent in either direction.
+     *
+     * @param value The N of the message
+     *
+     * @return The GCM parameters
+     */
+    private GCMParameterSpec nonce(int value)
+    {
+        byte[] nonce = Arrays.copyOf(IV, 12);
+        nonce[8]  = (byte)(value >>> 24);
+        nonce[9]  = (byte)(value >>> 16);
+        nonce[10] = (byte)(value >>> 8);
+        nonce[11] = (byte)value;
+        return new GCMParameterSpec(128, nonce);
+    }
+
+    /**
+     * Verifies the message last returned by {@link #readMessage(ObjectInputStream)}
+     *
+     * @param envelope The message to be verified
+     *
+     * @return true if it matched its digest and N was incremented, false otherwise
+     */
+    public boolean verifyMessage(Envelope envelope)
+    {
+        return envelope == lastMessage && lastIntact && verifyN((int)envelope.getObjContents().get(0));
+    }
+
+    /**
+     * Returns a buffer of at least the given size, reusing the last one when it is big enough
+     *
+     * @param size The size needed
+     *
+     * @return The buffer
+     */
+    private byte[] frame(int size)
+    {
+        if (frame.length < size)
+            frame = new byte[Math.max(size, frame.length * 2)];
+        return frame;
+    }
+
+    /**
+     * Returns the features this side of the connection supports, in order of preference
+     *
+     * @return The list of features
+     */
+    public static ArrayList<String> getCapabilities()
+    {
+        ArrayList<String> capabilities = new ArrayList<>();
+        capabilities.add(AEAD_GCM);
+        capabilities.add(WIRE_BINARY);
+        capabilities.add(RAW_DOWNLOAD);
+        for (String name : Compression.getNames())
+            capabilities.add(COMPRESS + name);
+        capabilities.add(CHUNK + ChunkSizer.getLimit());
+        return capabilities;
+    }
+
+    /**
+     * Returns whether a peer offered a feature. A CHUNK- feature matches any CHUNK- offer, whatever its size.
+     *
+     * @param offered The features the peer offered
+     * @param feature The feature
+     *
+     * @return true if it was offered
+     */
+    public static boolean offers(List<?> offered, String feature)
+    {
+        if (!feature.startsWith(CHUNK))
+            return offered.contains(feature);
+        for (Object offer : offered)
+            if (offer.toString().startsWith(CHUNK))
+                return true;
+        return false;
+    }
+
+    /**
+     * Picks the requested features that this side supports
+     *
+     * @param requested The features a peer asked for
+     *
+     * @return The features that were accepted
+     */
+    public static ArrayList<String> select(List<?> requested)
+    {
+        ArrayList<String> accepted = new ArrayList<>();
+        for (String feature : getCapabilities())
+            if (requested != null && requested.contains(feature))
+                accepted.add(feature);
+        if (requested != null)
+            for (Object feature : requested)
+                if (feature.toString().startsWith(CHUNK))
+                {// The smaller of the two sizes
+                    int size = parseChunk(feature.toString());
+                    if (size >= ChunkSizer.MIN)
+                        accepted.add(CHUNK + Math.min(size, ChunkSizer.getLimit()));
+                    break;
+                }
+        return accepted;
+    }
+
+    /**
+     * Turns on negotiated features. Must be called by both sides right after the NEGOTIATE exchange.
+     *
+     * @param features The accepted features
+     */
+    public void enable(List<?> features) throws Exception
+    {
+        enabled = new ArrayList<>(features);
+        if (features.contains(WIRE_BINARY))
+        {
+            codec  = new EnvelopeCodec();
+            binary = true;
+        }
+        if (features.contains(AEAD_GCM))
+        {
+            aead = Cipher.getInstance("AES/GCM/NoPadding");
+            gcm  = true;
+        }
+        for (Object feature : features)
+            if (compression == null && (binary || gcm) && feature.toString().startsWith(COMPRESS))
+            {// The first codec both sides have, only frames that go through encode can be packed
+                Codec codec = Compression.newCodec(feature.toString().substring(COMPRESS.length()));
+                if (codec != null)
+                    compression = new Compression(codec, false);
+            }
+            else if (feature.toString().startsWith(CHUNK))
+                maxChunk = Math.max(ChunkSizer.MIN, Math.min(ChunkSizer.MAX, parseChunk(feature.toString())));
+    }
+
+    /**
+     * Returns the largest file chunk either side of this connection sends
+     *
+     * @return The size in bytes, ChunkSizer.MIN unless a CHUNK- feature was negotiated
+     */
+    public int getMaxChunk()
+    {
+        return maxChunk;
+    }
+
+    /**
+     * Reads the size out of a CHUNK- feature
+     *
+     * @return The size, -1 if it isn't a number
+     */
+    private static int parseChunk(String feature)
+    {
+        try
+        {
+            return Integer.parseInt(feature.substring(CHUNK.length()));
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the bytes compression has saved on this connection so far, going both ways
+     *
+     * @return The bytes saved, 0 if compression wasn't negotiated
+     */
+    public long getBytesSaved()
+    {
+        return compression == null ? 0 : compression.getSaved();
+    }
+
+    /**
+     * Sets the connection id that Crypto trace events carry
+     *
+     * @param _connection The id
+     */
+    public void setConnection(long _connection)
+    {
+        connection = _connection;
+    }
+
+    /**
+     * Returns the message of the last envelope sent, which is how a request's outcome is recorded
+     *
+     * @return The message, null if nothing was sent yet
+     */
+    public String getLastSent()
+    {
+        return lastSent;
+    }
+
+    /**
+     * Returns whether frames are being compressed
+     *
+     * @return true if a codec was negotiated
+     */
+    public boolean isCompressing()
+    {
+        return compression != null;
+    }
+
+    /**
+     * Returns whether a feature was negotiated
+     *
+     * @param feature The feature
+     *
+     * @return true if both sides turned it on
+     */
+    public boolean isEnabled(String feature)
+    {
+        return enabled.contains(feature);
+    }
+
+    /**
+     * Restores leading zero bytes that raw RSA drops when it decrypts a value such as the IV
+     *
+     * @param value The decrypted value
+     * @param length The length the value should have
+     *
+     * @return The value, left-padded with zeros to length
+     */
+    public static byte[] leftPad(byte[] value, int length)
+    {
+        if (value.length >= length)
+            return value;
+        byte[] padded = new byte[length];
+        System.arraycopy(value, 0, padded, length - value.length, value.length);
+        return padded;
+    }
+
     /**
      * Getter method for N
      *
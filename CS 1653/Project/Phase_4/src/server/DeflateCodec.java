@@ -0,0 +1,80 @@
+package server;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate at its fastest level. Logs and CSVs still shrink several times over at this level, and
+ * higher levels cost far more time than they save on the wire. Each compress ends with a sync
+ * flush so the peer's Inflater can hand back the whole message.
+ */
+public class DeflateCodec implements Codec
+{
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true); // Raw deflate, no zlib header
+    private final Inflater inflater = new Inflater(true);
+    private final byte[]   spare    = new byte[1]; // Catches anything past the expected length
+
+    public String getName()
+    {
+        return "DEFLATE";
+    }
+
+    public byte getId()
+    {
+        return 1;
+    }
+
+    public int maxCompressedLength(int length)
+    {// Bigger than zlib's deflateBound, which also covers the empty block a sync flush adds
+        return length + (length >> 12) * 2 + 16;
+    }
+
+    public int compress(byte[] in, int offset, int length, byte[] out, int outOffset)
+    {
+        deflater.setInput(in, offset, length);
+        int n = outOffset;
+        int got;
+        do
+        {// A deflate that fills the space it was given may have more to flush
+            got = deflater.deflate(out, n, out.length - n, Deflater.SYNC_FLUSH);
+            n  += got;
+        }
+        while (got > 0 && n == out.length);
+        return n - outOffset;
+    }
+
+    public void decompress(byte[] in, int offset, int length, byte[] out, int outOffset, int outLength)
+            throws IOException
+    {
+        inflater.setInput(in, offset, length);
+        try
+        {
+            int n = 0;
+            while (!inflater.needsInput() && !inflater.finished())
+            {// Once out is full only the flush marker should be left, it inflates to nothing
+                int got = n < outLength ? inflater.inflate(out, outOffset + n, outLength - n) : inflater.inflate(spare);
+                n += got;
+                if (got == 0 && (n >= outLength || inflater.needsDictionary()))
+                    break;
+            }
+            if (n != outLength || inflater.getRemaining() > 0)
+                throw new IOException("Compressed data expands to the wrong length");
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("Compressed data is corrupt", e);
+        }
+    }
+
+    public void resetCompress()
+    {
+        deflater.reset();
+    }
+
+    public void resetDecompress()
+    {
+        inflater.reset();
+    }
+}
@@ -0,0 +1,251 @@
+package server;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes Envelopes into the compact binary format used once WIRE-BINARY is negotiated.
+ *
+ * Layout: version byte, message string, object count, then one tagged field per object.
+ * Strings are length-prefixed UTF-8, byte arrays are length-prefixed, and anything without
+ * its own tag (keys, SignedObjects) falls back to Java serialization inside an OBJECT field.
+ * Each codec owns one growable buffer that is reused for every message it encodes.
+ */
+public class EnvelopeCodec
+{
+    private static final byte VERSION    = 1;
+
+    private static final byte NULL       = 0;
+    private static final byte INTEGER    = 1;
+    private static final byte STRING     = 2;
+    private static final byte BYTES      = 3;
+    private static final byte BIGINTEGER = 4;
+    private static final byte LIST       = 5;
+    private static final byte BOOLEAN    = 6;
+    private static final byte LONG       = 7;
+    private static final byte OBJECT     = 8;
+
+    private final Buffer           buffer = new Buffer(); // Reused for every encode
+    private final DataOutputStream out    = new DataOutputStream(buffer);
+
+    /**
+     * Encodes an envelope into this codec's buffer
+     *
+     * @param envelope The envelope
+     *
+     * @return The number of bytes written, which are found in {@link #array()}
+     *
+     * @throws IOException
+     */
+    public int encode(Envelope envelope) throws IOException
+    {
+        buffer.reset();
+        out.writeByte(VERSION);
+        writeString(envelope.getMessage());
+        out.writeInt(envelope.getObjContents().size());
+        for (Object object : envelope.getObjContents())
+            writeField(object);
+        out.flush();
+
+        return buffer.size();
+    }
+
+    /**
+     * Returns the buffer holding the last encoded envelope.
+     * Only the first {@link #encode(Envelope)} bytes are valid.
+     *
+     * @return The buffer
+     */
+    public byte[] array()
+    {
+        return buffer.array();
+    }
+
+    /**
+     * Decodes an envelope
+     *
+     * @param data The buffer
+     * @param offset The start of the encoded envelope
+     * @param length The length of the encoded envelope
+     *
+     * @return The envelope
+     *
+     * @throws IOException If the data is not a valid frame
+     */
+    public Envelope decode(byte[] data, int offset, int length) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+
+        if (in.readByte() != VERSION)
+            throw new IOException("Unknown frame version");
+
+        Envelope envelope = new Envelope(readString(in));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++)
+            envelope.addObject(readField(in));
+
+        return envelope;
+    }
+
+    /**
+     * Writes one tagged field
+     *
+     * @param object The object
+     *
+     * @throws IOException
+     */
+    private void writeField(Object object) throws IOException
+    {
+        if (object == null)
+            out.writeByte(NULL);
+        else if (object instanceof Integer)
+        {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer)object);
+        }
+        else if (object instanceof String)
+        {
+            out.writeByte(STRING);
+            writeString((String)object);
+        }
+        else if (object instanceof byte[])
+        {
+            out.writeByte(BYTES);
+            writeBytes((byte[])object);
+        }
+        else if (object instanceof BigInteger)
+        {
+            out.writeByte(BIGINTEGER);
+            writeBytes(((BigInteger)object).toByteArray());
+        }
+        else if (object instanceof List)
+        {
+            out.writeByte(LIST);
+            out.writeInt(((List)object).size());
+            for (Object element : (List)object)
+                writeField(element);
+        }
+        else if (object instanceof Boolean)
+        {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean)object);
+        }
+        else if (object instanceof Long)
+        {
+            out.writeByte(LONG);
+            out.writeLong((Long)object);
+        }
+        else
+        {// No compact form, fall back to Java serialization
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            ObjectOutputStream    o = new ObjectOutputStream(b);
+            o.writeObject(object);
+            o.flush();
+            out.writeByte(OBJECT);
+            writeBytes(b.toByteArray());
+        }
+    }
+
+    /**
+     * Reads one tagged field
+     *
+     * @param in The input
+     *
+     * @return The object
+     *
+     * @throws IOException
+     */
+    private Object readField(DataInputStream in) throws IOException
+    {
+        byte tag = in.readByte();
+        switch (tag)
+        {
+            case NULL:
+                return null;
+            case INTEGER:
+                return in.readInt();
+            case STRING:
+                return readString(in);
+            case BYTES:
+                return readBytes(in);
+            case BIGINTEGER:
+                return new BigInteger(readBytes(in));
+            case LIST:
+                int size = in.readInt();
+                ArrayList<Object> list = new ArrayList<>(Math.min(size, 1024));
+                for (int i = 0; i < size; i++)
+                    list.add(readField(in));
+                return list;
+            case BOOLEAN:
+                return in.readBoolean();
+            case LONG:
+                return in.readLong();
+            case OBJECT:
+                try
+                {
+                    return new ObjectInputStream(new ByteArrayInputStream(readBytes(in))).readObject();
+                }
+                catch (ClassNotFoundException e)
+                {
+                    throw new IOException(e);
+                }
+            default:
+                throw new IOException("Unknown field tag " + tag);
+        }
+    }
+
+    private void writeString(String s) throws IOException
+    {
+        if (s == null)
+            out.writeInt(-1);
+        else
+            writeBytes(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeBytes(byte[] b) throws IOException
+    {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length == -1)
+            return null;
+        return new String(readBytes(in, length), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException
+    {
+        return readBytes(in, in.readInt());
+    }
+
+    private static byte[] readBytes(DataInputStream in, int length) throws IOException
+    {
+        if (length < 0 || length > in.available())
+            throw new IOException("Bad field length " + length);
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return b;
+    }
+
+    /**
+     * ByteArrayOutputStream that exposes its buffer so encoded frames aren't copied
+     */
+    private static class Buffer extends ByteArrayOutputStream
+    {
+        Buffer()
+        {
+            super(8192);
+        }
+
+        byte[] array()
+        {
+            return buf;
+        }
+    }
+}
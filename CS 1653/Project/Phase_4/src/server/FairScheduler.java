@@ -0,0 +1,362 @@
+package server;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the FileServer's file I/O fairly between the users moving files. Every chunk an upload writes
+ * or a download reads is one request to the scheduler, and at most a set number of chunks are read or
+ * written at once. When more are waiting, the next to go is picked by start-time fair queuing.
+ *
+ * Each user's transfers in one group form a flow. A chunk's start tag is the later of the scheduler's
+ * virtual time and the finish tag of the flow's last chunk, and its finish tag adds its bytes divided by
+ * the group's weight. The waiting chunk with the lowest start tag goes next, so a user with a small
+ * download is served within about one chunk of asking, however much another user has queued. Opening
+ * more connections doesn't buy a flow more of the disk, they all share its tags.
+ *
+ * A user may also be capped to a number of bytes a second. Chunks over the cap wait before they join
+ * the queue, so a capped user never holds a slot while it waits.
+ */
+public class FairScheduler
+{
+    /**
+     * A user's transfers in one group
+     */
+    private static class Flow
+    {
+        double finish; // Finish tag of the flow's last chunk
+    }
+
+    /**
+     * A chunk waiting for, or holding, a slot
+     */
+    public static class Ticket implements Comparable<Ticket>
+    {
+        final Flow   flow;
+        final double start;  // Start tag
+        final double finish; // Finish tag
+        final double weight; // Weight of the flow's group
+        final long   order;  // Breaks ties between equal start tags in arrival order
+        boolean      granted;
+
+        Ticket(Flow _flow, double _start, double _finish, double _weight, long _order)
+        {
+            flow   = _flow;
+            start  = _start;
+            finish = _finish;
+            weight = _weight;
+            order  = _order;
+        }
+
+        public int compareTo(Ticket t)
+        {
+            return start != t.start ? Double.compare(start, t.start) : Long.compare(order, t.order);
+        }
+    }
+
+    private static final int PURGE = 1024; // Chunks between sweeps of idle flows and users
+
+    private int    slots;      // Chunks read or written at once
+    private long   defaultCap; // Bytes a second any user may move, 0 for no cap
+    private final HashMap<String, Long>   caps    = new HashMap<>(); // Caps set for single users
+    private final HashMap<String, Double> weights = new HashMap<>(); // Weights of groups, 1 if not set
+    private final HashMap<String, Flow>   flows   = new HashMap<>(); // By user and group
+    private final HashMap<String, Long>   paced   = new HashMap<>(); // When each capped user's next chunk may go
+    private final PriorityQueue<Ticket>   waiting = new PriorityQueue<>();
+    private double vtime;     // Start tag of the chunk served last
+    private int    busy;      // Slots held
+    private long   order;     // Tickets handed out
+    private long   chunks;    // Chunks served
+    private long   queued;    // Chunks that waited for a slot
+    private long   capped;    // Chunks held back by a cap
+    private long   waitNanos; // Time chunks spent waiting for a slot
+
+    /**
+     * Constructor which accepts how many chunks may be read or written at once
+     *
+     * @param _slots The chunks, at least 1
+     */
+    public FairScheduler(int _slots)
+    {
+        slots = Math.max(1, _slots);
+    }
+
+    /**
+     * Sets how many chunks may be read or written at once
+     *
+     * @param _slots The chunks, at least 1
+     */
+    public synchronized void setSlots(int _slots)
+    {
+        slots = Math.max(1, _slots);
+        grant();
+    }
+
+    /**
+     * Caps how fast one user, or every user without a cap of their own, may move file data
+     *
+     * @param user The user, null for every user
+     * @param bytesPerSecond The cap, 0 for none
+     */
+    public synchronized void setCap(String user, long bytesPerSecond)
+    {
+        if (user == null)
+            defaultCap = Math.max(0, bytesPerSecond);
+        else
+            caps.put(user, Math.max(0, bytesPerSecond));
+    }
+
+    /**
+     * Sets a group's share of the I/O against other groups. A group of weight 2 moves twice the
+     * bytes of a group of weight 1 while both are waiting.
+     *
+     * @param group The group
+     * @param weight The weight, more than 0
+     */
+    public synchronized void setWeight(String group, double weight)
+    {
+        if (weight > 0)
+            weights.put(group, weight);
+    }
+
+    /**
+     * Wraps a stream a download reads file data from, so each read waits its turn
+     *
+     * @param in The stream
+     * @param user The user the file is for
+     * @param group The group of the file
+     *
+     * @return The wrapped stream. Each read fills as much of the array as the stream has.
+     */
+    public InputStream open(InputStream in, final String user, final String group)
+    {
+        return new FilterInputStream(in)
+        {
+            public int read() throws IOException
+            {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                if (len == 0)
+                    return 0;
+
+                Ticket ticket = begin(user, group, len);
+                int    total  = 0;
+                try
+                {// A whole chunk in one turn
+                    int n;
+                    while (total < len && (n = in.read(b, off + total, len - total)) > 0)
+                        total += n;
+                }
+                finally
+                {
+                    end(ticket, total);
+                }
+                return total == 0 ? -1 : total;
+            }
+        };
+    }
+
+    /**
+     * Wraps a stream an upload writes file data to, so each write waits its turn
+     *
+     * @param out The stream
+     * @param user The user the file is from
+     * @param group The group of the file
+     *
+     * @return The wrapped stream
+     */
+    public OutputStream open(OutputStream out, final String user, final String group)
+    {
+        return new FilterOutputStream(out)
+        {
+            public void write(int b) throws IOException
+            {
+                write(new byte[] { (byte)b }, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                Ticket ticket = begin(user, group, len);
+                try
+                {
+                    out.write(b, off, len);
+                }
+                finally
+                {
+                    end(ticket, len);
+                }
+            }
+        };
+    }
+
+    /**
+     * Waits out the user's cap and then for a slot, for I/O that doesn't go through a stream from open.
+     * Every call must be followed by a call to end.
+     *
+     * @param user The user
+     * @param group The group
+     * @param bytes The bytes the chunk may move
+     *
+     * @return The ticket holding the slot, to hand to end
+     *
+     * @throws InterruptedIOException If the thread is interrupted while it waits
+     */
+    public Ticket begin(String user, String group, int bytes) throws InterruptedIOException
+    {
+        long pause = 0;
+        synchronized (this)
+        {
+            Long cap = caps.get(user);
+            long bps = cap == null ? defaultCap : cap;
+            if (bps > 0)
+            {// The chunk goes once the bytes before it have been paid for
+                long now  = System.nanoTime();
+                Long next = paced.get(user);
+                long at   = next == null ? now : Math.max(now, next);
+                pause = at - now;
+                paced.put(user, at + (long)(bytes * 1e9 / bps));
+                if (pause > 0)
+                    capped++;
+            }
+        }
+
+        try
+        {
+            if (pause > 0)
+                TimeUnit.NANOSECONDS.sleep(pause);
+            return take(user + '\n' + group, group, bytes);
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException("Interrupted waiting to read or write a chunk");
+        }
+    }
+
+    /**
+     * Tags a chunk and waits until it has a slot
+     *
+     * @param key The chunk's flow
+     * @param group The group, which sets the flow's weight
+     * @param bytes The bytes the chunk may move
+     *
+     * @return The granted ticket
+     *
+     * @throws InterruptedException If the thread is interrupted while it waits
+     */
+    private synchronized Ticket take(String key, String group, int bytes) throws InterruptedException
+    {
+        Flow flow = flows.get(key);
+        if (flow == null)
+            flows.put(key, flow = new Flow());
+
+        Double weight = weights.get(group);
+        double w      = weight == null ? 1 : weight;
+        double start  = Math.max(vtime, flow.finish);
+        Ticket ticket = new Ticket(flow, start, start + bytes / w, w, order++);
+        flow.finish   = ticket.finish;
+
+        if (busy < slots && waiting.isEmpty())
+        {// Nothing ahead of it
+            busy++;
+            vtime = start;
+            return ticket;
+        }
+
+        queued++;
+        waiting.add(ticket);
+        long since = System.nanoTime();
+        try
+        {
+            while (!ticket.granted)
+                wait();
+        }
+        catch (InterruptedException e)
+        {
+            if (ticket.granted)
+                release();
+            else
+                waiting.remove(ticket);
+            throw e;
+        }
+        finally
+        {
+            waitNanos += System.nanoTime() - since;
+        }
+        return ticket;
+    }
+
+    /**
+     * Gives a chunk's slot to the next one waiting
+     *
+     * @param ticket The chunk's ticket
+     * @param bytes The bytes it moved, if the stream ran out early the flow is only charged for these
+     */
+    public synchronized void end(Ticket ticket, int bytes)
+    {
+        if (ticket.flow.finish == ticket.finish)
+            ticket.flow.finish = ticket.start + Math.max(0, bytes) / ticket.weight;
+        chunks++;
+        release();
+
+        if (chunks % PURGE == 0)
+        {// A flow or user that has caught up is no different from a new one
+            long now = System.nanoTime();
+            for (Iterator<Flow> i = flows.values().iterator(); i.hasNext(); )
+                if (i.next().finish <= vtime)
+                    i.remove();
+            for (Iterator<Long> i = paced.values().iterator(); i.hasNext(); )
+                if (i.next() <= now)
+                    i.remove();
+        }
+    }
+
+    /**
+     * Frees a slot and grants it
+     */
+    private void release()
+    {
+        busy--;
+        grant();
+    }
+
+    /**
+     * Hands free slots to the waiting chunks with the lowest start tags
+     */
+    private void grant()
+    {
+        boolean granted = false;
+        while (busy < slots && !waiting.isEmpty())
+        {
+            Ticket next = waiting.poll();
+            vtime        = next.start;
+            next.granted = true;
+            busy++;
+            granted = true;
+        }
+        if (granted)
+            notifyAll();
+    }
+
+    /**
+     * Returns a one line summary of the scheduler
+     *
+     * @return The summary
+     */
+    public synchronized String toString()
+    {
+        return String.format("Fair scheduler: %d of %d slots busy, %d waiting, %d chunks, %d queued (%.1f ms mean wait), %d capped, %d flows",
+                             busy, slots, waiting.size(), chunks, queued, queued == 0 ? 0 : waitNanos / 1e6 / queued, capped, flows.size());
+    }
+}
@@ -5,19 +5,31 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import javax.crypto.*;
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.security.SignedObject;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * FileClient provides all the client functionality regarding the file server
  */
 public class FileClient extends Client implements FileClientInterface
 {
-    private CryptoTools ct;
     private String fileServerID; // server name + port number
+    private int    window = 16;  // Chunks allowed in flight during a transfer, 1 for lock-step
+    private PublicKey KGS;       // The Group Server's public key, kept to open more connections
+    private ChunkSizer chunks;   // Sizes the chunks of uploads, made again for every connection
+
+    private static final int LIST_BATCH = 500; // Paths in each batch of a listing
+    private static final int RETRIES    = 5;   // Times a request refused with FAIL-BUSY is sent again
 
     /**
      * Handles the handshake protocol between the FileClient and the FileThread
@@ -28,9 +40,12 @@ public class FileClient extends Client implements FileClientInterface
      */
     public boolean handshake(PublicKey KGS)
     {
+        this.KGS = KGS;
+        chunks   = null;
         try
         {// Set provider as BouncyCastle
-            Security.addProvider(new BouncyCastleProvider());
+            if (Security.getProvider("BC") == null)
+                Security.addProvider(new BouncyCastleProvider());
 
             // Receive PublicKey from file server
             PublicKey publicKey = (PublicKey)input.readObject();
@@ -38,6 +53,14 @@ public class FileClient extends Client implements FileClientInterface
             // Receive fileServerID
             fileServerID = (String)input.readObject();
 
+            // Skip the RSA exchange if the server gave us a ticket last time
+            if (resume())
+                return true;
+
+            // Newer servers agree on keys in a single round trip
+            if (ecdhe)
+                return ecdhe(publicKey, KGS);
+
             // Generate RC
             byte[] rndmBytes = new byte[8];
             SecureRandom random = new SecureRandom();
@@ -76,11 +99,10 @@ public class FileClient extends Client implements FileClientInterface
             output.writeObject(cipher.doFinal(ct.toByteArray(RC))); // RC
 
             // Receive cipher text and HMAC from group server
-            Envelope envelope = (Envelope)ct.decrypt((byte[])input.readObject());
-            byte[] digest = (byte[])input.readObject();
+            Envelope envelope = ct.readMessage(input);
 
             // Verify message
-            if (ct.verifyMessage(envelope, digest))
+            if (ct.verifyMessage(envelope))
                 ct.incrementN();
             else
             {// Verification failed
@@ -91,7 +113,10 @@ public class FileClient extends Client implements FileClientInterface
 
             // Check challenge response
             BigInteger RCResponse = (BigInteger)envelope.getObjContents().get(1);
-            return RCResponse.compareTo(new BigInteger(String.valueOf(RC.intValue() + 1))) == 0;
+            if (RCResponse.compareTo(new BigInteger(String.valueOf(RC.intValue() + 1))) != 0)
+                return false;
+
+            return finish(envelope);
         }
         catch (Exception e)
         {
@@ -128,14 +153,13 @@ public class FileClient extends Client implements FileClientInterface
 
         try
         {// Send the message and digest
-			output.writeObject(ct.encrypt(env));
-            output.writeObject(ct.getDigest(env));
+			ct.writeMessage(output, env);
 
             // Receive server response
-		    env = (Envelope)ct.decrypt((byte[])input.readObject());
+		    env = ct.readMessage(input);
 
             // Verify message
-            if (ct.verifyMessage(env, (byte[])input.readObject()))
+            if (ct.verifyMessage(env))
                 ct.incrementN();
             else
             {// Verification failed
@@ -172,6 +196,8 @@ public class FileClient extends Client implements FileClientInterface
      */
 	public boolean download(String sourceFile, String destFile, SecretKey groupKey, byte[] IV, SignedObject token)
     {
+        long saved = ct.getBytesSaved(); // What compression had saved before this transfer
+
         // Check for and remove leading '/'
 		if (sourceFile.charAt(0) == '/')
 			sourceFile = sourceFile.substring(1);
@@ -185,6 +211,9 @@ public class FileClient extends Client implements FileClientInterface
                 file.createNewFile();
                 FileOutputStream fos = new FileOutputStream(file);
 
+                if (ct.isEnabled(CryptoTools.RAW_DOWNLOAD))
+                    return downloadRaw(sourceFile, file, fos, groupKey, IV, token);
+
                 // Tell server to download file
                 ct.incrementN();
                 Envelope env = new Envelope("DOWNLOADF");
@@ -193,14 +222,15 @@ public class FileClient extends Client implements FileClientInterface
                 env.addObject(groupKey);   // Add the group key
                 env.addObject(IV);         // Add the IV
                 env.addObject(token);      // Add the requester token
-                output.writeObject(ct.encrypt(env));   // Send message
-                output.writeObject(ct.getDigest(env)); // Send digest
+                env.addObject(window);     // Add the requested window
+                ct.writeMessage(output, env); // Send message
+                Envelope request = env;       // Kept to send again if the server is busy
 
                 // Receive server response
-                env = (Envelope)ct.decrypt((byte[])input.readObject());
+                env = ct.readMessage(input);
 
                 // Verify message
-                if (ct.verifyMessage(env, (byte[])input.readObject()))
+                if (ct.verifyMessage(env))
                     ct.incrementN();
                 else
                 {// Verification failed
@@ -208,23 +238,39 @@ public class FileClient extends Client implements FileClientInterface
                     disconnect();
                     System.exit(0);
                 }
+                env = retryBusy(request, env);
 
+                int received = 0; // Number of chunks received so far
                 while (env.getMessage().compareTo("CHUNK") == 0)
                 {// File is arriving in chunks
                     fos.write((byte[])env.getObjContents().get(1), 0, (Integer)env.getObjContents().get(2));
-                    System.out.printf(".");
+                    received++;
 
-                    // Tell the server to send next chunk
-                    ct.incrementN();
-                    env = new Envelope("DOWNLOADF");
-                    env.addObject(ct.getN());
-                    output.writeObject(ct.encrypt(env));   // Send message
-                    output.writeObject(ct.getDigest(env)); // Send digest
+                    if (env.getObjContents().size() > 3)
+                    {// Server is streaming, only acknowledge full windows
+                        if (received % (Integer)env.getObjContents().get(3) == 0)
+                        {
+                            System.out.printf("."); // One per window, not one per chunk
+                            ct.incrementN();
+                            env = new Envelope("ACK");
+                            env.addObject(ct.getN()); // Add N
+                            env.addObject(received);  // Add cumulative chunk count
+                            ct.writeMessage(output, env); // Send message
+                        }
+                    }
+                    else
+                    {// Tell the server to send next chunk
+                        System.out.printf(".");
+                        ct.incrementN();
+                        env = new Envelope("DOWNLOADF");
+                        env.addObject(ct.getN());
+                        ct.writeMessage(output, env); // Send message
+                    }
 
                     // Receive response
-                    env = (Envelope)ct.decrypt((byte[])input.readObject());
+                    env = ct.readMessage(input);
                     // Verify message
-                    if (ct.verifyMessage(env, (byte[])input.readObject()))
+                    if (ct.verifyMessage(env))
                         ct.incrementN();
                     else
                     {// Verification failed
@@ -239,14 +285,13 @@ public class FileClient extends Client implements FileClientInterface
                 if (env.getMessage().compareTo("EOF") == 0)
                 {// Reached the end of file
                     fos.close();
-                    System.out.printf("\nTransfer successful file %s\n", sourceFile);
+                    System.out.printf("\nTransfer successful file %s%s\n", sourceFile, savings(saved));
 
                     // Tell the server it was a success
                     ct.incrementN();
                     env = new Envelope("OK");
                     env.addObject(ct.getN());
-                    output.writeObject(ct.encrypt(env));   // Send message
-                    output.writeObject(ct.getDigest(env)); // Send digest
+                    ct.writeMessage(output, env); // Send message
                 }
                 else
                 {// Something went wrong with transfer
@@ -270,16 +315,608 @@ public class FileClient extends Client implements FileClientInterface
         return true;
 	}
 
+    /**
+     * Downloads a file from the server, picking up where an earlier download left off.
+     * If the local file exists only the part of the server's file past its end is fetched,
+     * otherwise the whole file is. A failed transfer leaves what arrived in place to resume again.
+     *
+     * @param sourceFile The filename used on the server
+     * @param destFile   The filename to use locally
+     * @param groupKey   The group key
+     * @param IV         The group IV
+     * @param token      The token of the user downloading the file
+     *
+     * @return true on success, false on failure
+     */
+    public boolean resume(String sourceFile, String destFile, SecretKey groupKey, byte[] IV, SignedObject token)
+    {
+        long saved = ct.getBytesSaved(); // What compression had saved before this transfer
+
+        // Check for and remove leading '/'
+        if (sourceFile.charAt(0) == '/')
+            sourceFile = sourceFile.substring(1);
+
+        try (RandomAccessFile file = new RandomAccessFile(destFile, "rw"))
+        {
+            long have   = file.length();
+            long length = fetchRange(sourceFile, groupKey, IV, token, have, -1, file.getChannel());
+            if (length < 0)
+                return false;
+            if (length < have)
+            {// Local file is longer than the server's, it isn't a piece of this one
+                System.out.printf("Error %s is longer than %s\n", destFile, sourceFile);
+                return false;
+            }
+
+            System.out.printf("\nTransfer successful file %s (%d bytes resumed at %d)%s\n", sourceFile, length - have, have,
+                              savings(saved));
+            return true;
+        }
+        catch (Exception e)
+        {
+            System.out.printf("Error downloading %s: %s\n", sourceFile, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Downloads a file from the server in pieces fetched at the same time over separate connections.
+     * This connection learns the length and fetches the first piece, every other piece gets a
+     * connection of its own with the same features and window.
+     *
+     * @param sourceFile  The filename used on the server
+     * @param destFile    The filename to use locally
+     * @param groupKey    The group key
+     * @param IV          The group IV
+     * @param token       The token of the user downloading the file
+     * @param connections The number of connections to use
+     *
+     * @return true on success, false on failure
+     */
+    public boolean downloadParallel(String sourceFile, String destFile, final SecretKey groupKey, final byte[] IV,
+                                    final SignedObject token, int connections)
+    {
+        // Check for and remove leading '/'
+        if (sourceFile.charAt(0) == '/')
+            sourceFile = sourceFile.substring(1);
+        final String source = sourceFile;
+
+        File file = new File(destFile);
+        if (file.exists())
+        {// File exists already
+            System.out.printf("Error couldn't create file %s\n", destFile);
+            return false;
+        }
+
+        boolean success = false;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            final FileChannel out = raf.getChannel();
+
+            // An empty range just to learn the length
+            long length = fetchRange(source, groupKey, IV, token, 0, 0, out);
+            if (length < 0)
+                return false;
+            raf.setLength(length);
+
+            // Pieces start on block boundaries so the server never opens a block twice
+            long piece = (length + connections - 1) / Math.max(1, connections);
+            piece      = Math.max(1, (piece + BlockFile.BLOCK_SIZE - 1) / BlockFile.BLOCK_SIZE) * BlockFile.BLOCK_SIZE;
+
+            final String host = address.substring(0, address.lastIndexOf(':'));
+            final int    port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+            final boolean[] done    = new boolean[(int)((length + piece - 1) / piece)]; // Whether each piece arrived
+            Thread[]        threads = new Thread[done.length];
+            for (int i = 1; i < done.length; i++)
+            {
+                final int  index  = i;
+                final long offset = i * piece;
+                final long size   = Math.min(piece, length - offset);
+                threads[i] = new Thread(new Runnable()
+                {
+                    public void run()
+                    {
+                        FileClient other = new FileClient();
+                        other.features = features;
+                        other.window   = window;
+                        try
+                        {
+                            if (other.connect(host, port) && other.handshake(KGS))
+                                done[index] = other.fetchRange(source, groupKey, IV, token, offset, size, out) >= 0;
+                        }
+                        catch (Exception e)
+                        {
+                            System.out.printf("Error fetching %s at %d: %s\n", source, offset, e.getMessage());
+                        }
+                        finally
+                        {
+                            other.disconnect();
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+
+            boolean first = done.length == 0 || fetchRange(source, groupKey, IV, token, 0, piece, out) >= 0;
+            for (int i = 1; i < done.length; i++)
+                threads[i].join();
+
+            success = first;
+            for (int i = 1; i < done.length; i++)
+                success &= done[i];
+
+            if (success)
+                System.out.printf("\nTransfer successful file %s (%d connections)\n", source, done.length);
+            return success;
+        }
+        catch (Exception e)
+        {
+            System.out.printf("Error downloading %s: %s\n", source, e.getMessage());
+            return false;
+        }
+        finally
+        {
+            if (!success)
+                file.delete();
+        }
+    }
+
+    /**
+     * Fetches part of a file and writes it at the same offset in the local file
+     *
+     * @param sourceFile The filename used on the server
+     * @param groupKey The group key
+     * @param IV The group IV
+     * @param token The token of the user downloading the file
+     * @param offset The first byte wanted
+     * @param length The number of bytes wanted, -1 for the rest of the file
+     * @param out The local file
+     *
+     * @return The length of the whole file on the server, -1 on failure
+     *
+     * @throws Exception
+     */
+    private long fetchRange(String sourceFile, SecretKey groupKey, byte[] IV, SignedObject token, long offset,
+                            long length, FileChannel out) throws Exception
+    {
+        // Tell server which part of the file to send
+        ct.incrementN();
+        Envelope env = new Envelope("DOWNLOADRANGE");
+        env.addObject(ct.getN());  // Add N
+        env.addObject(sourceFile); // Add the filename on server
+        env.addObject(groupKey);   // Add the group key
+        env.addObject(IV);         // Add the IV
+        env.addObject(token);      // Add the requester token
+        env.addObject(offset);     // Add the first byte wanted
+        env.addObject(length);     // Add the number of bytes wanted
+        env.addObject(window);     // Add the requested window
+        ct.writeMessage(output, env); // Send message
+
+        env = retryBusy(env, receive());
+        if (env.getMessage().compareTo("RANGE") != 0)
+        {// File missing, no permission, ...
+            System.out.printf("Error reading file %s (%s)\n", sourceFile, env.getMessage());
+            return -1;
+        }
+        long fileLength = (Long)env.getObjContents().get(1);
+        long end        = offset + (Long)env.getObjContents().get(2);
+
+        long position = offset;
+        int  received = 0; // Number of chunks received so far
+        env = receive();
+        while (env.getMessage().compareTo("CHUNK") == 0)
+        {// Range is arriving in chunks
+            ByteBuffer chunk = ByteBuffer.wrap((byte[])env.getObjContents().get(1), 0, (Integer)env.getObjContents().get(2));
+            while (chunk.hasRemaining())
+                position += out.write(chunk, position);
+            received++;
+
+            if (received % (Integer)env.getObjContents().get(3) == 0)
+            {// Only acknowledge full windows
+                ct.incrementN();
+                env = new Envelope("ACK");
+                env.addObject(ct.getN()); // Add N
+                env.addObject(received);  // Add cumulative chunk count
+                ct.writeMessage(output, env); // Send message
+            }
+            env = receive();
+        }
+
+        if (env.getMessage().compareTo("EOF") != 0 || position != end)
+        {// Something went wrong with transfer
+            System.out.printf("Error reading file %s (%s)\n", sourceFile, env.getMessage());
+            return -1;
+        }
+
+        // Tell the server it was a success
+        ct.incrementN();
+        env = new Envelope("OK");
+        env.addObject(ct.getN());
+        ct.writeMessage(output, env); // Send message
+
+        return fileLength;
+    }
+
+    /**
+     * Describes what compression saved during a transfer, for its success message
+     *
+     * @param before What compression had saved when the transfer started
+     *
+     * @return The description, empty if compression wasn't negotiated
+     */
+    private String savings(long before)
+    {
+        if (!ct.isCompressing())
+            return "";
+        return String.format(" (%d bytes saved by compression)", ct.getBytesSaved() - before);
+    }
+
+    /**
+     * Reads and verifies the next message from the server
+     *
+     * @return The message
+     *
+     * @throws IOException If the message could not be verified, the connection is closed
+     */
+    private Envelope receive() throws Exception
+    {
+        Envelope env = ct.readMessage(input);
+        if (!ct.verifyMessage(env))
+        {// Verification failed
+            sock.close();
+            throw new IOException("Message Verification Failed");
+        }
+
+        ct.incrementN();
+        return env;
+    }
+
+    /**
+     * Sends a request again each time the server answers FAIL-BUSY, after waiting as long as the
+     * server asked, up to RETRIES times
+     *
+     * @param request The request, already sent once
+     * @param response The server's answer to it, already verified
+     *
+     * @return The first answer that isn't FAIL-BUSY, or the last one if the server stayed busy
+     *
+     * @throws Exception
+     */
+    private Envelope retryBusy(Envelope request, Envelope response) throws Exception
+    {
+        for (int tries = 0; tries < RETRIES && response.getMessage().equals("FAIL-BUSY"); tries++)
+        {
+            long millis = response.getObjContents().size() > 1 ? (Long)response.getObjContents().get(1) : 1000;
+            millis += ThreadLocalRandom.current().nextLong(millis / 2 + 1); // Don't come back with every other refused client
+            System.out.printf("Server busy, trying again in %d ms\n", millis);
+            Thread.sleep(millis);
+
+            ct.incrementN();
+            request.getObjContents().set(0, ct.getN()); // Replace N
+            ct.writeMessage(output, request); // Send message again
+            response = receive();
+        }
+        return response;
+    }
+
+    /**
+     * Downloads the file as the server stores it, encrypted with the group key, and decrypts it here.
+     * The server sends the length and SHA-256 of the cipher text over the session, then the cipher
+     * text itself straight over the socket, so it doesn't have to decrypt and re-encrypt every chunk.
+     *
+     * @param sourceFile The filename used on the server
+     * @param file The local file
+     * @param fos The stream to the local file
+     * @param groupKey The group key
+     * @param IV The group IV
+     * @param token The token of the user downloading the file
+     *
+     * @return true on success, false on failure
+     *
+     * @throws Exception
+     */
+    private boolean downloadRaw(String sourceFile, File file, FileOutputStream fos, SecretKey groupKey, byte[] IV,
+                                SignedObject token) throws Exception
+    {
+        // Tell server to send the file
+        ct.incrementN();
+        Envelope env = new Envelope("DOWNLOADRAW");
+        env.addObject(ct.getN());  // Add N
+        env.addObject(sourceFile); // Add the filename on server
+        env.addObject(token);      // Add the requester token
+        ct.writeMessage(output, env); // Send message
+        Envelope request = env;       // Kept to send again if the server is busy
+
+        // Receive server response
+        env = ct.readMessage(input);
+
+        // Verify message
+        if (ct.verifyMessage(env))
+            ct.incrementN();
+        else
+        {// Verification failed
+            System.out.println("Message Verification Failed");
+            disconnect();
+            System.exit(0);
+        }
+        env = retryBusy(request, env);
+
+        if (env.getMessage().compareTo("FAIL-NOTRAW") == 0)
+        {// Stored as deduplicated chunks, have the server decrypt it
+            boolean success = fetchRange(sourceFile, groupKey, IV, token, 0, -1, fos.getChannel()) >= 0;
+            fos.close();
+            if (!success)
+                file.delete();
+            return success;
+        }
+        if (env.getMessage().compareTo("RAW") != 0)
+        {// Server refused
+            System.out.printf("Error reading file %s (%s)\n", sourceFile, env.getMessage());
+            fos.close();
+            file.delete();
+            return false;
+        }
+
+        // The cipher text follows on the socket itself, not inside envelopes
+        long          size   = (Long)env.getObjContents().get(1);
+        byte[]        digest = (byte[])env.getObjContents().get(2);
+        boolean       blocks = env.getObjContents().size() > 3 && (Boolean)env.getObjContents().get(3);
+        MessageDigest sha    = MessageDigest.getInstance("SHA-256");
+        InputStream   in     = new DigestInputStream(sock.getInputStream(), sha);
+        byte[]        buf    = new byte[1 << 16];
+        try
+        {
+            if (blocks)
+            {// Blocks are opened in parallel, a block that was altered fails right here
+                InputStream plain = new BlockFile.Reader(in, size, groupKey);
+                int n;
+                while ((n = plain.read(buf)) > 0)
+                    fos.write(buf, 0, n);
+                fos.close();
+            }
+            else
+            {
+                CipherOutputStream cos = new CipherOutputStream(fos, ct.getFileCipher("DECRYPT", groupKey, IV));
+                for (long left = size; left > 0; )
+                {
+                    int n = in.read(buf, 0, (int)Math.min(buf.length, left));
+                    if (n < 0)
+                        throw new EOFException("Connection closed during download");
+                    cos.write(buf, 0, n);
+                    left -= n;
+                }
+                cos.close();
+            }
+        }
+        catch (IOException e)
+        {// The rest of the file may still be on its way, so the session can't go on
+            System.out.printf("Error reading file %s (%s)\n", sourceFile, e.getMessage());
+            sock.close();
+            file.delete();
+            return false;
+        }
+
+        // Tell the server whether it arrived intact
+        boolean intact = MessageDigest.isEqual(sha.digest(), digest);
+        ct.incrementN();
+        env = new Envelope(intact ? "OK" : "ERROR-INTEGRITY");
+        env.addObject(ct.getN());
+        ct.writeMessage(output, env); // Send message
+
+        if (!intact)
+        {// Don't keep a file that was altered on the way
+            System.out.printf("Error file %s failed its integrity check\n", sourceFile);
+            file.delete();
+            return false;
+        }
+
+        System.out.printf("\nTransfer successful file %s\n", sourceFile);
+        return true;
+    }
+
+    /**
+     * Hands the file server a group key so it can convert that group's files from the old AES-CBC
+     * format to BlockFiles. The conversion runs in the background on the server.
+     *
+     * @param group The group
+     * @param groupKey The group key
+     * @param IV The group IV
+     * @param token The token of the requester, who must be in the group
+     *
+     * @return The number of files queued for conversion, -1 on failure
+     */
+    public int migrate(String group, SecretKey groupKey, byte[] IV, SignedObject token)
+    {
+        try
+        {
+            // Tell the server which group to convert
+            ct.incrementN();
+            Envelope env = new Envelope("MIGRATE");
+            env.addObject(ct.getN()); // Add N
+            env.addObject(group);     // Add the group
+            env.addObject(groupKey);  // Add the group key
+            env.addObject(IV);        // Add the IV
+            env.addObject(token);     // Add the requester token
+            ct.writeMessage(output, env); // Send message
+
+            // Receive server response
+            env = ct.readMessage(input);
+
+            // Verify message
+            if (ct.verifyMessage(env))
+                ct.incrementN();
+            else
+            {// Verification failed
+                System.out.println("Message Verification Failed");
+                disconnect();
+                System.exit(0);
+            }
+
+            if (env.getMessage().compareTo("OK") == 0)
+                return (Integer)env.getObjContents().get(1);
+            System.out.printf("Error converting group %s (%s)\n", group, env.getMessage());
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace(System.err);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Receives the paths of a listing as they arrive, one batch at a time
+     */
+    public interface ListingListener
+    {
+        /**
+         * Called for each batch, in path order
+         *
+         * @param paths The paths in the batch
+         */
+        public void batch(List<String> paths);
+    }
+
     /**
      * Retrieves a list of files that are allowed to be displayed
      * members of the groups encoded in the supplied user token.
+     * The list arrives in batches, so it can't outgrow a single message.
      *
      * @param token The UserToken object assigned to the user invoking this operation
      *
      * @return A list of filenames, null on failure
      */
-	@SuppressWarnings("unchecked")
 	public List<String> listFiles(SignedObject token)
+    {
+        final ArrayList<String> list = new ArrayList<>();
+        int count = streamFiles(token, null, null, LIST_BATCH, new ListingListener()
+        {
+            public void batch(List<String> paths)
+            {
+                list.addAll(paths);
+            }
+        });
+        return count < 0 ? null : list;
+    }
+
+    /**
+     * Retrieves one page of the files the user can see
+     *
+     * @param token The token of the user
+     * @param prefix Only paths starting with this are listed, null for every path
+     * @param group Only files in this group are listed, null for every group
+     * @param pageSize The most paths on the page, the server may send fewer
+     * @param cursor Where the page starts, null for the first page and the last call's result after that
+     * @param page Filled with the paths on the page, in order
+     *
+     * @return The cursor for the next page, null once there are no more pages or on failure
+     */
+    @SuppressWarnings("unchecked")
+    public String listFiles(SignedObject token, String prefix, String group, int pageSize, String cursor, List<String> page)
+    {
+        try
+        {
+            ct.incrementN();
+            Envelope env = new Envelope("LFILESPAGE");
+            env.addObject(ct.getN()); // Add N
+            env.addObject(token);     // Add requester token
+            env.addObject(prefix);    // Add path prefix
+            env.addObject(group);     // Add group
+            env.addObject(pageSize);  // Add page size
+            env.addObject(cursor);    // Add where the page starts
+            ct.writeMessage(output, env); // Send message
+
+            env = receive();
+            if (!env.getMessage().equals("OK"))
+            {
+                System.out.printf("Listing failed: %s\n", env.getMessage());
+                return null;
+            }
+            page.addAll((List<String>)env.getObjContents().get(1));
+            return (String)env.getObjContents().get(2);
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace(System.err);
+            return null;
+        }
+    }
+
+    /**
+     * Retrieves the files the user can see, handing each batch to a listener as soon as it arrives
+     *
+     * @param token The token of the user
+     * @param prefix Only paths starting with this are listed, null for every path
+     * @param group Only files in this group are listed, null for every group
+     * @param batchSize The most paths in each batch
+     * @param listener Receives the batches, on the calling thread
+     *
+     * @return The number of paths listed, -1 on failure
+     */
+    @SuppressWarnings("unchecked")
+    public int streamFiles(SignedObject token, String prefix, String group, int batchSize, ListingListener listener)
+    {
+        try
+        {
+            ct.incrementN();
+            Envelope env = new Envelope("LFILESSTREAM");
+            env.addObject(ct.getN());  // Add N
+            env.addObject(token);      // Add requester token
+            env.addObject(prefix);     // Add path prefix
+            env.addObject(group);      // Add group
+            env.addObject(batchSize);  // Add batch size
+            ct.writeMessage(output, env); // Send message
+
+            env = receive();
+            if (env.getMessage().equals("FAIL-BADMSG"))
+                return filterFiles(token, prefix, group, listener);
+            while (env.getMessage().equals("BATCH"))
+            {
+                listener.batch((List<String>)env.getObjContents().get(1));
+                env = receive();
+            }
+            if (env.getMessage().equals("END"))
+                return (Integer)env.getObjContents().get(1);
+
+            System.out.printf("Listing failed: %s\n", env.getMessage());
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace(System.err);
+        }
+        return -1;
+    }
+
+    /**
+     * Lists files on a server that predates listings in batches: the whole list is fetched and
+     * filtered here, then handed over as one batch
+     */
+    private int filterFiles(SignedObject token, String prefix, String group, ListingListener listener)
+    {
+        List<String> all = listAll(token);
+        if (all == null)
+            return -1;
+
+        ArrayList<String> paths = new ArrayList<>();
+        for (String path : all)
+            if ((prefix == null || path.startsWith(prefix)) && (group == null || path.startsWith("shared_files/" + group + "/")))
+                paths.add(path);
+        listener.batch(paths);
+        return paths.size();
+    }
+
+    /**
+     * Retrieves every file the user can see in a single message, which is all older servers offer
+     *
+     * @param token The token of the user
+     *
+     * @return A list of filenames, null on failure
+     */
+	@SuppressWarnings("unchecked")
+	private List<String> listAll(SignedObject token)
     {
 		 try
 		 {
@@ -290,14 +927,13 @@ public class FileClient extends Client implements FileClientInterface
 			 message = new Envelope("LFILES");
              message.addObject(ct.getN()); // Add N
 			 message.addObject(token);     // Add requester token
-             output.writeObject(ct.encrypt(message));   // Send message
-             output.writeObject(ct.getDigest(message)); // Send digest
+             ct.writeMessage(output, message); // Send message
 
              // Receive response
-			 e = (Envelope)ct.decrypt((byte[])input.readObject());
+			 e = ct.readMessage(input);
 
              // Verify message
-             if (ct.verifyMessage(e, (byte[])input.readObject()))
+             if (ct.verifyMessage(e))
                  ct.incrementN();
              else
              {// Verification failed
@@ -335,6 +971,8 @@ public class FileClient extends Client implements FileClientInterface
      */
 	public boolean upload(String sourceFile, String destFile, String group, SecretKey groupKey, byte[] IV, SignedObject token)
     {
+        long saved = ct.getBytesSaved(); // What compression had saved before this transfer
+
         // Check for and append a leading '/'
 		if (destFile.charAt(0) != '/')
 			 destFile = "/" + destFile;
@@ -352,17 +990,17 @@ public class FileClient extends Client implements FileClientInterface
             message.addObject(groupKey);  // Add group key
             message.addObject(IV);        // Add IV
             message.addObject(token);     // Add requester token
-            output.writeObject(ct.encrypt(message));   // Send message
-            output.writeObject(ct.getDigest(message)); // Send digest
+            message.addObject(window);    // Add the requested window
+            ct.writeMessage(output, message); // Send message
 
             // Stream to local file
             FileInputStream fis = new FileInputStream(sourceFile);
 
             // Receive server response
-            env = (Envelope)ct.decrypt((byte[])input.readObject());
+            env = ct.readMessage(input);
 
             // Verify message
-            if (ct.verifyMessage(env, (byte[])input.readObject()))
+            if (ct.verifyMessage(env))
                 ct.incrementN();
             else
             {// Verification failed
@@ -370,6 +1008,7 @@ public class FileClient extends Client implements FileClientInterface
                 disconnect();
                 System.exit(0);
             }
+            env = retryBusy(message, env);
 
             // Server is ready for upload
             if (env.getMessage().equals("READY"))
@@ -380,9 +1019,19 @@ public class FileClient extends Client implements FileClientInterface
                 return false;
             }
 
-            do
+            // Server sends back a window if it accepted streaming
+            if (env.getObjContents().size() > 1)
+            {
+                if (!sendStream(fis, Long.MAX_VALUE, (Integer)env.getObjContents().get(1)))
+                {
+                    System.out.println("Upload failed: server acknowledged the wrong chunk");
+                    return false;
+                }
+            }
+            else do
             {// Send the file to server in chunks
-                byte[] buf = new byte[4096];
+                byte[] buf  = chunks().buffer();
+                long   mark = System.nanoTime(); // When the chunk was read
 
                 if (env.getMessage().compareTo("READY") != 0)
                 {// If the server isn't ready
@@ -401,16 +1050,16 @@ public class FileClient extends Client implements FileClientInterface
                 }
                 ct.incrementN();
                 message.addObject(ct.getN());      // Add N
-                message.addObject(buf);            // Add the chunk
+                message.addObject(chunk(buf, n));  // Add the chunk
                 message.addObject(new Integer(n)); // Add chunk size
-                output.writeObject(ct.encrypt(message));   // Send message
-                output.writeObject(ct.getDigest(message)); // Send digest
+                ct.writeMessage(output, message); // Send message
 
                 // Receive response
-                env = (Envelope)ct.decrypt((byte[])input.readObject());
+                env = ct.readMessage(input);
+                chunks.record(n, mark);
 
                 // Verify message
-                if (ct.verifyMessage(env, (byte[])input.readObject()))
+                if (ct.verifyMessage(env))
                     ct.incrementN();
                 else
                 {// Verification failed
@@ -427,14 +1076,13 @@ public class FileClient extends Client implements FileClientInterface
                 ct.incrementN();
                 message = new Envelope("EOF");
                 message.addObject(ct.getN());
-                output.writeObject(ct.encrypt(message));   // Send message
-                output.writeObject(ct.getDigest(message)); // Send digest
+                ct.writeMessage(output, message); // Send message
 
                 // Receive response
-                env = (Envelope)ct.decrypt((byte[])input.readObject());
+                env = ct.readMessage(input);
 
                 // Verify message
-                if (ct.verifyMessage(env, (byte[])input.readObject()))
+                if (ct.verifyMessage(env))
                     ct.incrementN();
                 else
                 {// Verification failed
@@ -444,7 +1092,7 @@ public class FileClient extends Client implements FileClientInterface
                 }
 
                 if (env.getMessage().compareTo("OK") == 0)
-                    System.out.printf("\nFile data upload successful\n");
+                    System.out.printf("\nFile data upload successful%s\n", savings(saved));
                 else
                 {
                     System.out.printf("\nUpload failed: %s\n", env.getMessage());
@@ -467,6 +1115,348 @@ public class FileClient extends Client implements FileClientInterface
 		return true;
 	}
 
+    /**
+     * Uploads a file to a server that deduplicates its storage. The file is split into content-defined
+     * chunks and only their hashes go out first, the server answers with the chunks it doesn't have
+     * and only those are sent. Falls back to upload() if the server doesn't deduplicate.
+     *
+     * @param sourceFile The path to the local file
+     * @param destFile   The filename to use on the server
+     * @param group      The group to share the file with
+     * @param groupKey   The group key
+     * @param IV         The group IV, only needed for the fallback
+     * @param token      The token of the user uploading the file
+     *
+     * @return true on success, false on failure
+     */
+    public boolean uploadDedup(String sourceFile, String destFile, String group, SecretKey groupKey, byte[] IV,
+                               SignedObject token)
+    {
+        long saved = ct.getBytesSaved(); // What compression had saved before this transfer
+
+        // Check for and append a leading '/'
+        if (destFile.charAt(0) != '/')
+            destFile = "/" + destFile;
+
+        try (RandomAccessFile raf = new RandomAccessFile(sourceFile, "r"))
+        {
+            // Cut the file into chunks and hash each one, the hash is also the chunk's key on the server
+            ByteArrayOutputStream keys    = new ByteArrayOutputStream();
+            ArrayList<Integer>    lengths = new ArrayList<>();
+            MessageDigest         sha     = MessageDigest.getInstance("SHA-256");
+            Chunker               chunker = new Chunker(new FileInputStream(raf.getFD()));
+            byte[]                chunk;
+            while ((chunk = chunker.next()) != null)
+            {
+                keys.write(sha.digest(chunk));
+                lengths.add(chunk.length);
+            }
+
+            int[]  length = new int[lengths.size()];
+            long[] offset = new long[lengths.size()];
+            for (int i = 0; i < length.length; i++)
+            {
+                length[i] = lengths.get(i);
+                offset[i] = i == 0 ? 0 : offset[i - 1] + length[i - 1];
+            }
+
+            // Offer the chunks
+            ct.incrementN();
+            Envelope env = new Envelope("UPLOADDEDUP");
+            env.addObject(ct.getN());          // Add N
+            env.addObject(destFile);           // Add filename on server
+            env.addObject(group);              // Add group name
+            env.addObject(groupKey);           // Add group key
+            env.addObject(token);              // Add requester token
+            env.addObject(keys.toByteArray()); // Add chunk hashes
+            env.addObject(length);             // Add chunk lengths
+            env.addObject(window);             // Add the requested window
+            ct.writeMessage(output, env); // Send message
+
+            env = retryBusy(env, receive());
+            if (env.getMessage().equals("FAIL-UNSUPPORTED"))
+                return upload(sourceFile, destFile, group, groupKey, IV, token);
+            if (!env.getMessage().equals("NEED"))
+            {
+                System.out.printf("Upload failed: %s\n", env.getMessage());
+                return false;
+            }
+
+            // Send the chunks the server asked for back to back
+            int[] needed = (int[])env.getObjContents().get(1);
+            long  total  = 0;
+            for (int i : needed)
+                total += length[i];
+            if (!sendStream(new ChunksInputStream(raf, offset, length, needed), total, (Integer)env.getObjContents().get(2)))
+            {
+                System.out.println("Upload failed: server acknowledged the wrong chunk");
+                return false;
+            }
+
+            // Tell server it has reached end of file
+            ct.incrementN();
+            env = new Envelope("EOF");
+            env.addObject(ct.getN());
+            ct.writeMessage(output, env); // Send message
+
+            env = receive();
+            if (env.getMessage().compareTo("OK") != 0)
+            {
+                System.out.printf("\nUpload failed: %s\n", env.getMessage());
+                return false;
+            }
+            System.out.printf("\nFile data upload successful, sent %d of %d chunks%s\n", needed.length, length.length,
+                              savings(saved));
+            return true;
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace(System.err);
+            return false;
+        }
+    }
+
+    /**
+     * Uploads a file in parts sent at the same time over separate connections. The server splits
+     * the file into at most the given number of parts, this connection sends the first one and every
+     * other part gets a connection of its own. The file only appears on the server once every part
+     * is in, if any part fails the upload is dropped.
+     *
+     * @param sourceFile  The path to the local file
+     * @param destFile    The filename to use on the server
+     * @param group       The group to share the file with
+     * @param groupKey    The group key
+     * @param token       The token of the user uploading the file
+     * @param connections The number of connections to use
+     *
+     * @return true on success, false on failure
+     */
+    public boolean uploadParallel(final String sourceFile, String destFile, String group, final SecretKey groupKey,
+                                  final SignedObject token, int connections)
+    {
+        // Check for and append a leading '/'
+        if (destFile.charAt(0) != '/')
+            destFile = "/" + destFile;
+
+        try
+        {
+            // Tell the server how much is coming and in how many parts
+            ct.incrementN();
+            Envelope env = new Envelope("UPLOADBEGIN");
+            env.addObject(ct.getN());                           // Add N
+            env.addObject(destFile);                            // Add filename on server
+            env.addObject(group);                               // Add group name
+            env.addObject(groupKey);                            // Add group key
+            env.addObject(token);                               // Add requester token
+            env.addObject(new File(sourceFile).length());       // Add length of the file
+            env.addObject(connections);                         // Add number of parts wanted
+            ct.writeMessage(output, env); // Send message
+
+            env = receive();
+            if (!env.getMessage().equals("READY"))
+            {
+                System.out.printf("Upload failed: %s\n", env.getMessage());
+                return false;
+            }
+            final String id       = (String)env.getObjContents().get(1);
+            final long   partSize = (Long)env.getObjContents().get(2);
+            int          parts    = (Integer)env.getObjContents().get(3);
+
+            final String    host    = address.substring(0, address.lastIndexOf(':'));
+            final int       port    = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+            final boolean[] done    = new boolean[parts]; // Whether each part arrived
+            Thread[]        threads = new Thread[parts];
+            for (int i = 1; i < parts; i++)
+            {
+                final int index = i;
+                threads[i] = new Thread(new Runnable()
+                {
+                    public void run()
+                    {
+                        FileClient other = new FileClient();
+                        other.features = features;
+                        other.window   = window;
+                        try
+                        {
+                            if (other.connect(host, port) && other.handshake(KGS))
+                                done[index] = other.sendPart(sourceFile, id, index, partSize, token);
+                        }
+                        catch (Exception e)
+                        {
+                            System.out.printf("Error sending part %d of %s: %s\n", index, sourceFile, e.getMessage());
+                        }
+                        finally
+                        {
+                            other.disconnect();
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+
+            boolean success = sendPart(sourceFile, id, 0, partSize, token);
+            for (int i = 1; i < parts; i++)
+            {
+                threads[i].join();
+                success &= done[i];
+            }
+
+            // Have the server add the file, or throw away what arrived
+            ct.incrementN();
+            env = new Envelope(success ? "UPLOADCOMMIT" : "UPLOADABORT");
+            env.addObject(ct.getN()); // Add N
+            env.addObject(id);        // Add the upload id
+            env.addObject(token);     // Add requester token
+            ct.writeMessage(output, env); // Send message
+
+            env = receive();
+            if (success && env.getMessage().equals("OK"))
+            {
+                System.out.printf("\nFile data upload successful (%d parts)\n", parts);
+                return true;
+            }
+            System.out.printf("\nUpload failed: %s\n", success ? env.getMessage() : "a part didn't arrive");
+            return false;
+        }
+        catch (Exception e)
+        {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace(System.err);
+            return false;
+        }
+    }
+
+    /**
+     * Sends one part of an upload
+     *
+     * @param sourceFile The path to the local file
+     * @param id The upload id
+     * @param index The part
+     * @param partSize The length of every part but the last
+     * @param token The token of the user uploading the file
+     *
+     * @return true if the server took the part, false otherwise
+     *
+     * @throws Exception
+     */
+    private boolean sendPart(String sourceFile, String id, int index, long partSize, SignedObject token) throws Exception
+    {
+        ct.incrementN();
+        Envelope env = new Envelope("UPLOADPART");
+        env.addObject(ct.getN()); // Add N
+        env.addObject(id);        // Add the upload id
+        env.addObject(index);     // Add the part
+        env.addObject(token);     // Add requester token
+        env.addObject(window);    // Add the requested window
+        ct.writeMessage(output, env); // Send message
+
+        env = retryBusy(env, receive());
+        if (!env.getMessage().equals("READY"))
+        {
+            System.out.printf("Upload of part %d failed: %s\n", index, env.getMessage());
+            return false;
+        }
+
+        try (FileInputStream fis = new FileInputStream(sourceFile))
+        {
+            fis.getChannel().position(index * partSize);
+            if (!sendStream(fis, partSize, (Integer)env.getObjContents().get(1)))
+                return false;
+        }
+
+        // Tell server the part is done
+        ct.incrementN();
+        env = new Envelope("EOF");
+        env.addObject(ct.getN());
+        ct.writeMessage(output, env); // Send message
+
+        env = receive();
+        if (!env.getMessage().equals("OK"))
+            System.out.printf("Upload of part %d failed: %s\n", index, env.getMessage());
+        return env.getMessage().equals("OK");
+    }
+
+    /**
+     * Sends a file to the server as a stream of chunks, waiting on a cumulative ACK after every full window
+     *
+     * @param in The stream of the local file
+     * @param length The most bytes to send from it
+     * @param window The window accepted by the server
+     *
+     * @return true if every ACK matched the chunks sent, false otherwise
+     *
+     * @throws Exception
+     */
+    private boolean sendStream(InputStream in, long length, int window) throws Exception
+    {
+        ChunkSizer sizer = chunks();
+        byte[]     buf   = sizer.buffer();
+        int        sent  = 0;                 // Number of chunks sent so far
+        long       mark  = System.nanoTime(); // When the chunk being sent was read
+        int        n;
+
+        while (length > 0 && (n = in.read(buf, 0, (int)Math.min(buf.length, length))) != -1)
+        {// Send the file to server in chunks
+            length -= n;
+            ct.incrementN();
+            Envelope message = new Envelope("CHUNK");
+            message.addObject(ct.getN());    // Add N
+            message.addObject(chunk(buf, n)); // Add the chunk
+            message.addObject(n);            // Add chunk size
+            ct.writeMessage(output, message); // Send message
+            sent++;
+
+            if (sent % window == 0)
+            {// Window is full, wait for the server to catch up
+                System.out.printf("."); // One per window, not one per chunk
+                Envelope env = receive(); // Parts are sent from their own threads, so this can't exit
+                if (env.getMessage().compareTo("ACK") != 0 || (Integer)env.getObjContents().get(1) != sent)
+                    return false;
+            }
+            mark = sizer.record(n, mark);
+            buf  = sizer.buffer();
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns this connection's chunk sizer, made once the handshake has agreed on the largest chunk
+     *
+     * @return The sizer
+     */
+    private ChunkSizer chunks()
+    {
+        if (chunks == null)
+            chunks = new ChunkSizer(ct.getMaxChunk());
+        return chunks;
+    }
+
+    /**
+     * Returns the bytes of a chunk to send. The codecs send the whole array, so the short
+     * chunk at the end of a file is copied instead of padding it out to the chunk size.
+     *
+     * @param buf The buffer the chunk was read into
+     * @param n The bytes in the chunk
+     *
+     * @return The buffer, or a copy of its first n bytes
+     */
+    private static byte[] chunk(byte[] buf, int n)
+    {
+        return n == buf.length ? buf : Arrays.copyOf(buf, n);
+    }
+
+    /**
+     * Sets the number of chunks that may be in flight during a transfer
+     *
+     * @param window The window, 1 sends every chunk in lock-step
+     */
+    public void setWindow(int window)
+    {
+        this.window = Math.max(1, window);
+    }
+
     /**
      * Override of disconnect() that makes sure the envelope is encrypted
      */
@@ -479,8 +1469,7 @@ public class FileClient extends Client implements FileClientInterface
                 ct.incrementN();
                 Envelope message = new Envelope("DISCONNECT");
                 message.addObject(ct.getN());
-                output.writeObject(ct.encrypt(message));   // Send message
-                output.writeObject(ct.getDigest(message)); // Send digest
+                ct.writeMessage(output, message); // Send message
             }
             catch(Exception e)
             {
@@ -499,5 +1488,49 @@ public class FileClient extends Client implements FileClientInterface
     {
         return fileServerID;
     }
+    /**
+     * Reads a list of chunks of a local file one after another
+     */
+    private static class ChunksInputStream extends InputStream
+    {
+        private final RandomAccessFile file;
+        private final long[]           offsets; // Where each chunk of the file starts
+        private final int[]            lengths; // How long each chunk of the file is
+        private final int[]            chunks;  // The chunks to read, in order
+        private int next;                       // Index into chunks of the chunk being read
+        private int left = -1;                  // Bytes of it not read yet, -1 before the first
+
+        ChunksInputStream(RandomAccessFile _file, long[] _offsets, int[] _lengths, int[] _chunks)
+        {
+            file    = _file;
+            offsets = _offsets;
+            lengths = _lengths;
+            chunks  = _chunks;
+        }
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            while (left <= 0)
+            {
+                if (left == 0)
+                    next++;
+                if (next >= chunks.length)
+                    return -1;
+                file.seek(offsets[chunks[next]]);
+                left = lengths[chunks[next]];
+            }
+
+            int n = file.read(b, off, Math.min(len, left));
+            if (n > 0)
+                left -= n;
+            return n;
+        }
+    }
 }
 
@@ -0,0 +1,432 @@
+package server;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of FileList mutations, so FileList.bin only has to be rewritten as an
+ * occasional snapshot instead of on every change.
+ *
+ * Each record is its length, the operation, owner, group, and path, then a CRC32 of the record.
+ * Records are buffered on append and made durable by commit, which fsyncs once for every record
+ * appended so far, so concurrent uploads share a single fsync. A snapshot moves the journal aside,
+ * writes the FileList to a temp file and renames it over FileList.bin, then deletes the old journal.
+ * On startup FileList.bin is loaded and both journals are replayed on top of it. Replaying a
+ * record the snapshot already holds is harmless because adds and removes are idempotent.
+ */
+public class FileJournal
+{
+    private static final byte ADD    = 1;
+    private static final byte REMOVE = 2;
+
+    private final File journalFile;  // Records since the last snapshot
+    private final File oldFile;      // Records being folded into a snapshot
+    private final File snapshotFile; // FileList.bin
+    private final File tempFile;     // Snapshot being written
+
+    private FileOutputStream      fos;
+    private FileChannel           channel;
+    private DataOutputStream      out;
+    private ByteArrayOutputStream record    = new ByteArrayOutputStream(); // Reused to build each record
+    private DataOutputStream      recordOut = new DataOutputStream(record);
+    private CRC32                 crc       = new CRC32();
+
+    private long        appended;                // Records appended since startup
+    private long        durable;                 // Records known to be on disk
+    private long        oldestPending;           // When the oldest record that isn't durable was appended, 0 if none
+    private boolean     syncing;                 // Whether a thread is in the middle of an fsync
+    private long        sinceSnapshot;           // Records appended since the last snapshot
+    private long        syncs;                   // Number of fsyncs
+    private long        lastSnapshotMillis = -1; // How long the last snapshot took
+    private long        maxLagMillis;            // Longest a record has waited to become durable
+    private IOException failure;                 // First error appending, reported by commit
+
+    /**
+     * Constructor which accepts the snapshot file, the journal is kept next to it
+     *
+     * @param _snapshotFile FileList.bin
+     */
+    public FileJournal(String _snapshotFile)
+    {
+        snapshotFile = new File(_snapshotFile);
+        tempFile     = new File(_snapshotFile + ".tmp");
+        journalFile  = new File(_snapshotFile + ".journal");
+        oldFile      = new File(_snapshotFile + ".journal.old");
+    }
+
+    /**
+     * Loads the last snapshot and replays the journal on top of it
+     *
+     * @return The FileList, empty if there is no snapshot or journal
+     *
+     * @throws IOException If the snapshot can't be read
+     */
+    public FileList recover() throws IOException
+    {
+        FileList fileList = new FileList();
+        if (snapshotFile.exists())
+        {
+            try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(snapshotFile)))
+            {
+                fileList = (FileList)in.readObject();
+            }
+            catch (ClassNotFoundException e)
+            {
+                throw new IOException(e);
+            }
+        }
+
+        int replayed = replay(oldFile, fileList) + replay(journalFile, fileList);
+        if (replayed > 0)
+            Log.info("Replayed %d file list changes from the journal", replayed);
+        sinceSnapshot = replayed;
+
+        open();
+        return fileList;
+    }
+
+    /**
+     * Buffers a record of a file being added
+     *
+     * @param owner The owner of the file
+     * @param group The group to which this file belongs
+     * @param path The path to the file
+     */
+    public synchronized void add(String owner, String group, String path)
+    {
+        append(ADD, owner, group, path);
+    }
+
+    /**
+     * Buffers a record of a file being removed
+     *
+     * @param path The path to the file
+     */
+    public synchronized void remove(String path)
+    {
+        append(REMOVE, "", "", path);
+    }
+
+    /**
+     * Waits until every record appended so far is on disk. If another thread is already
+     * fsyncing, waits for it and only fsyncs again if that didn't cover this thread's records.
+     *
+     * @throws IOException If a record couldn't be written or the fsync fails
+     */
+    public void commit() throws IOException
+    {
+        long target;
+        long pendingSince;
+        long records; // Records this fsync makes durable
+        synchronized (this)
+        {
+            if (failure != null)
+                throw failure;
+            target = appended;
+            try
+            {
+                while (syncing && durable < target)
+                    wait();
+            }
+            catch (InterruptedException e)
+            {
+                throw new InterruptedIOException();
+            }
+            if (durable >= target)
+                return;
+
+            syncing       = true;
+            target        = appended; // Take everyone who arrived while we waited
+            records       = target - durable;
+            pendingSince  = oldestPending;
+            oldestPending = 0;
+            out.flush();
+        }
+
+        TraceEvents.Persist event = new TraceEvents.Persist();
+        event.begin();
+        boolean synced = false;
+        try
+        {
+            channel.force(false);
+            synced = true;
+            event.end();
+            if (event.shouldCommit())
+            {
+                event.operation = "commit";
+                event.records   = records;
+                event.commit();
+            }
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                if (synced)
+                {
+                    durable = Math.max(durable, target);
+                    syncs++;
+                    maxLagMillis = Math.max(maxLagMillis, System.currentTimeMillis() - pendingSince);
+                }
+                else if (oldestPending == 0)
+                    oldestPending = pendingSince;
+                syncing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of the FileList and starts a new journal. Skipped if nothing changed since the last one.
+     *
+     * @param fileList The FileList
+     *
+     * @throws IOException If the snapshot can't be written, the journal is kept so nothing is lost
+     */
+    public void snapshot(FileList fileList) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        TraceEvents.Persist event = new TraceEvents.Persist();
+        event.begin();
+        ArrayList<ShareFile> files;
+        synchronized (fileList)
+        {// No mutation can be journaled between copying the list and moving the journal aside
+            synchronized (this)
+            {
+                if (sinceSnapshot == 0 && snapshotFile.exists() && !oldFile.exists())
+                    return;
+                files = fileList.copyFiles();
+                rotate();
+            }
+        }
+        FileList copy = new FileList(files);
+
+        // Write the copy to a temp file and atomically replace the old snapshot with it
+        try (FileOutputStream tmp = new FileOutputStream(tempFile))
+        {
+            ObjectOutputStream outStream = new ObjectOutputStream(new BufferedOutputStream(tmp));
+            outStream.writeObject(copy);
+            outStream.flush();
+            tmp.getChannel().force(true);
+        }
+        Files.move(tempFile.toPath(), snapshotFile.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        oldFile.delete();
+
+        synchronized (this)
+        {
+            lastSnapshotMillis = System.currentTimeMillis() - start;
+        }
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.operation = "snapshot";
+            event.records   = files.size();
+            event.bytes     = snapshotFile.length();
+            event.commit();
+        }
+    }
+
+    /**
+     * Closes the journal after making everything in it durable
+     */
+    public synchronized void close() throws IOException
+    {
+        out.flush();
+        channel.force(false);
+        out.close();
+    }
+
+    /**
+     * Returns the number of records that are not on disk yet
+     *
+     * @return The journal lag in records
+     */
+    public synchronized long getLag()
+    {
+        return appended - durable;
+    }
+
+    /**
+     * Returns how long the oldest record that is not on disk yet has been waiting
+     *
+     * @return The journal lag in milliseconds
+     */
+    public synchronized long getLagMillis()
+    {
+        return oldestPending == 0 ? 0 : System.currentTimeMillis() - oldestPending;
+    }
+
+    /**
+     * Returns how long the last snapshot took
+     *
+     * @return Milliseconds, -1 if there hasn't been one
+     */
+    public synchronized long getSnapshotMillis()
+    {
+        return lastSnapshotMillis;
+    }
+
+    /**
+     * Returns a one line summary of the journal
+     *
+     * @return The summary
+     */
+    public synchronized String toString()
+    {
+        return String.format("File journal: %d records, %d fsyncs, lag %d records / %d ms (max %d ms), " +
+                             "%d since snapshot, last snapshot %d ms",
+                             appended, syncs, appended - durable, getLagMillis(), maxLagMillis,
+                             sinceSnapshot, lastSnapshotMillis);
+    }
+
+    /**
+     * Opens the journal for appending
+     */
+    private void open() throws IOException
+    {
+        fos     = new FileOutputStream(journalFile, true);
+        channel = fos.getChannel();
+        out     = new DataOutputStream(new BufferedOutputStream(fos));
+    }
+
+    /**
+     * Buffers one record. Errors are kept for commit to report, since the FileList has already changed.
+     */
+    private void append(byte op, String owner, String group, String path)
+    {
+        try
+        {
+            write(op, owner, group, path);
+        }
+        catch (IOException e)
+        {
+            if (failure == null)
+                failure = e;
+        }
+    }
+
+    private void write(byte op, String owner, String group, String path) throws IOException
+    {
+        record.reset();
+        recordOut.writeByte(op);
+        recordOut.writeUTF(owner);
+        recordOut.writeUTF(group);
+        recordOut.writeUTF(path);
+        recordOut.flush();
+
+        crc.reset();
+        crc.update(record.toByteArray());
+        out.writeInt(record.size());
+        record.writeTo(out);
+        out.writeInt((int)crc.getValue());
+
+        if (oldestPending == 0)
+            oldestPending = System.currentTimeMillis();
+        appended++;
+        sinceSnapshot++;
+    }
+
+    /**
+     * Moves the current journal aside and starts an empty one. If an earlier snapshot failed
+     * the old journal is still there, so the current one is added to the end of it instead.
+     */
+    private void rotate() throws IOException
+    {
+        try
+        {// Let an fsync in progress finish before the channel is closed under it
+            while (syncing)
+                wait();
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException();
+        }
+        close();
+        durable = appended;
+        oldestPending = 0;
+
+        if (oldFile.exists())
+        {
+            try (FileOutputStream old = new FileOutputStream(oldFile, true))
+            {
+                Files.copy(journalFile.toPath(), old);
+                old.getChannel().force(false);
+            }
+            journalFile.delete();
+        }
+        else
+            Files.move(journalFile.toPath(), oldFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        sinceSnapshot = 0;
+        open();
+    }
+
+    /**
+     * Applies every intact record in a journal to the FileList. A torn record at the end,
+     * left by a crash mid-append, is cut off.
+     *
+     * @param file The journal
+     * @param fileList The FileList
+     *
+     * @return The number of records applied
+     */
+    private int replay(File file, FileList fileList) throws IOException
+    {
+        if (!file.exists())
+            return 0;
+
+        int  count = 0;
+        long good  = 0; // Offset just past the last intact record
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            while (true)
+            {
+                byte[] data;
+                try
+                {
+                    int length = in.readInt();
+                    if (length <= 0 || length > 1 << 20)
+                        break;
+                    data = new byte[length];
+                    in.readFully(data);
+                    crc.reset();
+                    crc.update(data);
+                    if (in.readInt() != (int)crc.getValue())
+                        break;
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+
+                DataInputStream r = new DataInputStream(new ByteArrayInputStream(data));
+                byte   op    = r.readByte();
+                String owner = r.readUTF();
+                String group = r.readUTF();
+                String path  = r.readUTF();
+                if (op == ADD)
+                    fileList.addFile(owner, group, path);
+                else if (op == REMOVE)
+                    fileList.removeFile(path);
+
+                good += 4 + data.length + 4;
+                count++;
+            }
+        }
+
+        if (good < file.length())
+        {// Cut off the torn record so new records follow the last intact one
+            Log.warn("Discarding %d bytes of incomplete journal records in %s", file.length() - good, file.getPath());
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+            {
+                raf.setLength(good);
+            }
+        }
+        return count;
+    }
+}
@@ -1,5 +1,8 @@
 package server;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.*;
 
 /**
@@ -8,14 +11,31 @@ import java.util.*;
 public class FileList implements java.io.Serializable
 {
 	private static final long serialVersionUID = -8911161283900260136L;
-	private ArrayList<ShareFile> list;  // list of files
+	private ArrayList<ShareFile> list;  // list of files, only filled in while (de)serializing FileList.bin
+
+	private transient HashMap<String, ShareFile>          paths;  // path -> file
+	private transient HashMap<String, TreeSet<ShareFile>> groups; // group -> files, sorted by path
+	private transient FileJournal journal;                        // Records every change, null while replaying
 
     /**
      * Default constructor, creates empty list
      */
 	public FileList()
 	{
-		list = new ArrayList<>();
+		paths  = new HashMap<>();
+		groups = new HashMap<>();
+	}
+
+    /**
+     * Constructor which accepts the files to start with
+     *
+     * @param files The files
+     */
+	public FileList(Collection<ShareFile> files)
+	{
+		this();
+		for (ShareFile file : files)
+			index(file);
 	}
 
     /**
@@ -24,11 +44,16 @@ public class FileList implements java.io.Serializable
      * @param owner The owner of the file
      * @param group The group to which this file belongs
      * @param path The path to the file
+     *
+     * @return The new file
      */
-	public synchronized void addFile(String owner, String group, String path)
+	public synchronized ShareFile addFile(String owner, String group, String path)
 	{
 		ShareFile newFile = new ShareFile(owner, group, path);
-		list.add(newFile);
+		index(newFile);
+		if (journal != null)
+			journal.add(owner, group, path);
+		return newFile;
 	}
 
     /**
@@ -38,9 +63,52 @@ public class FileList implements java.io.Serializable
      */
 	public synchronized void removeFile(String path)
 	{
-		for (int i = 0; i < list.size(); i++)
-			if (list.get(i).getPath().compareTo(path) == 0)
-				list.remove(i);
+		ShareFile file = paths.remove(path);
+		if (file == null)
+			return;
+		if (journal != null)
+			journal.remove(path);
+
+		TreeSet<ShareFile> groupFiles = groups.get(file.getGroup());
+		groupFiles.remove(file);
+		if (groupFiles.isEmpty())
+			groups.remove(file.getGroup());
+	}
+
+    /**
+     * Sets the journal that records every change from now on
+     *
+     * @param _journal The journal
+     */
+	public synchronized void setJournal(FileJournal _journal)
+	{
+		journal = _journal;
+	}
+
+    /**
+     * Waits until every change made so far is on disk
+     *
+     * @throws IOException If the journal couldn't be written
+     */
+	public void commit() throws IOException
+	{
+		FileJournal j;
+		synchronized (this)
+		{
+			j = journal;
+		}
+		if (j != null)
+			j.commit();
+	}
+
+    /**
+     * Returns the files in no particular order, which is cheaper than getFiles while the list is locked
+     *
+     * @return The files
+     */
+	public synchronized ArrayList<ShareFile> copyFiles()
+	{
+		return new ArrayList<>(paths.values());
 	}
 
     /**
@@ -51,21 +119,82 @@ public class FileList implements java.io.Serializable
      */
 	public synchronized boolean checkFile(String path)
 	{
-        for (ShareFile aList : list)
-            if (aList.getPath().compareTo(path) == 0)
-                return true;
-		return false;
+		return paths.containsKey(path);
 	}
 
     /**
      * Returns list of files in FileList
      *
-     * @return The list of files
+     * @return The list of files, sorted by path
      */
 	public synchronized ArrayList<ShareFile> getFiles()
 	{
-		Collections.sort(list);
-		return list;			
+		ArrayList<ShareFile> files = new ArrayList<>(paths.values());
+		Collections.sort(files);
+		return files;
+	}
+
+    /**
+     * Returns the paths of the files that belong to any of the given groups
+     *
+     * @param groupnames The groups
+     * @return The paths, sorted
+     */
+	public synchronized ArrayList<String> getPaths(List<String> groupnames)
+	{
+		ArrayList<String> result = new ArrayList<>();
+		for (String groupname : new HashSet<>(groupnames))
+		{
+			TreeSet<ShareFile> groupFiles = groups.get(groupname);
+			if (groupFiles != null)
+				for (ShareFile file : groupFiles)
+					result.add(file.getPath());
+		}
+		// Each group is already sorted, only need to sort when more than one group had files
+		if (groupnames.size() > 1)
+			Collections.sort(result);
+		return result;
+	}
+
+    /**
+     * Returns one page of the paths of the files that belong to any of the given groups.
+     * Each group's files are sorted by path, so a page only walks the part of each group it returns.
+     *
+     * @param groupnames The groups
+     * @param prefix Only paths starting with this are returned, null for every path
+     * @param after Only paths sorting after this are returned, null to start from the first
+     * @param limit The most paths to return
+     * @return The paths, sorted
+     */
+	public synchronized ArrayList<String> getPaths(Collection<String> groupnames, String prefix, String after, int limit)
+	{
+		String  start     = prefix == null ? "" : prefix;
+		boolean inclusive = true;
+		if (after != null && after.compareTo(start) >= 0)
+		{// The cursor is past the start of the prefix
+			start     = after;
+			inclusive = false;
+		}
+
+		ArrayList<String> result = new ArrayList<>();
+		for (String groupname : new HashSet<>(groupnames))
+		{
+			TreeSet<ShareFile> groupFiles = groups.get(groupname);
+			if (groupFiles == null)
+				continue;
+
+			int taken = 0;
+			for (ShareFile file : groupFiles.tailSet(new ShareFile(null, null, start), inclusive))
+			{// Stops at the first path past the prefix, or once this group alone could fill the page
+				if (taken++ == limit || (prefix != null && !file.getPath().startsWith(prefix)))
+					break;
+				result.add(file.getPath());
+			}
+		}
+		Collections.sort(result);
+		if (result.size() > limit)
+			result.subList(limit, result.size()).clear();
+		return result;
 	}
 
     /**
@@ -76,9 +205,54 @@ public class FileList implements java.io.Serializable
      */
 	public synchronized ShareFile getFile(String path)
 	{
-        for (ShareFile aList : list)
-            if (aList.getPath().compareTo(path) == 0)
-                return aList;
-		return null;
+		return paths.get(path);
+	}
+
+    /**
+     * Adds a file to both indices, replacing any file already at its path
+     *
+     * @param file The file
+     */
+	private void index(ShareFile file)
+	{
+		ShareFile old = paths.put(file.getPath(), file);
+		if (old != null)
+		{
+			TreeSet<ShareFile> oldFiles = groups.get(old.getGroup());
+			oldFiles.remove(old);
+			if (oldFiles.isEmpty())
+				groups.remove(old.getGroup());
+		}
+
+		TreeSet<ShareFile> groupFiles = groups.get(file.getGroup());
+		if (groupFiles == null)
+		{
+			groupFiles = new TreeSet<>();
+			groups.put(file.getGroup(), groupFiles);
+		}
+		groupFiles.add(file);
+	}
+
+    /**
+     * Writes the files as the same ArrayList that older versions of FileList.bin hold
+     */
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException
+	{
+		list = getFiles();
+		out.defaultWriteObject();
+		list = null;
+	}
+
+    /**
+     * Reads the ArrayList from FileList.bin and rebuilds the indices from it
+     */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		paths  = new HashMap<>();
+		groups = new HashMap<>();
+		for (ShareFile file : list)
+			index(file);
+		list = null;
 	}
-}	
+}
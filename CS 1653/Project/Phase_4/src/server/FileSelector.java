@@ -0,0 +1,170 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Selector front end for the FileServer. Instead of a FileThread blocked on every connection,
+ * idle connections sit on a single Selector and only connections with a request waiting use one
+ * of a small pool of worker threads.
+ *
+ * The protocol is built on blocking object streams, so a worker takes the channel off the selector,
+ * switches it to blocking mode, and runs the connection's FileThread handshake or one request through
+ * the same handler code the thread-per-connection mode uses. When the request is answered the channel
+ * goes back on the selector. A transfer holds its worker until it completes.
+ */
+public class FileSelector
+{
+    private static final int TIMEOUT = 60000; // Milliseconds a worker waits on a silent client
+
+    private final FileServer      my_fs;     // The FileServer
+    private final Selector        selector;  // Watches every idle connection
+    private final ExecutorService workers;   // Runs handshakes and requests
+    private final ConcurrentLinkedQueue<Connection> returned = new ConcurrentLinkedQueue<>(); // Done with a worker
+
+    /**
+     * A client connection and the FileThread that holds its session
+     */
+    private class Connection implements Runnable
+    {
+        final SocketChannel channel;
+        final FileThread    handler;
+        boolean             connected; // Whether the handshake has run
+
+        Connection(SocketChannel _channel)
+        {
+            channel = _channel;
+            handler = new FileThread(channel.socket(), my_fs);
+            FileServer.metrics.connectionOpened();
+        }
+
+        /**
+         * Runs the handshake or one request on a worker
+         */
+        public void run()
+        {
+            try
+            {
+                channel.configureBlocking(true);
+                if (!connected)
+                {
+                    channel.socket().setSoTimeout(TIMEOUT);
+                    handler.handshake();
+                    connected = true;
+                }
+                else if (!handler.handle())
+                {// Client disconnected
+                    close();
+                    return;
+                }
+
+                // Wait for the next request on the selector
+                returned.add(this);
+                selector.wakeup();
+            }
+            catch (Exception e)
+            {
+                Log.warn("Error: %s", e.getMessage());
+                close();
+            }
+        }
+
+        void close()
+        {
+            FileServer.metrics.connectionClosed();
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                Log.error("Error closing connection: %s", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Constructor which accepts the FileServer and the number of workers
+     *
+     * @param _fs The FileServer
+     * @param _workers The number of worker threads
+     *
+     * @throws IOException If the selector can't be opened
+     */
+    public FileSelector(FileServer _fs, int _workers) throws IOException
+    {
+        my_fs    = _fs;
+        selector = Selector.open();
+        workers  = Executors.newFixedThreadPool(_workers);
+    }
+
+    /**
+     * Accepts connections and hands them to workers whenever they have a request, never returns
+     *
+     * @param serverChannel The bound server channel
+     *
+     * @throws IOException If the selector fails
+     */
+    public void run(ServerSocketChannel serverChannel) throws IOException
+    {
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        ArrayList<Connection> ready = new ArrayList<>(); // Connections with a request waiting
+        while (true)
+        {
+            selector.select();
+            do
+            {
+                // Put connections that finished a request back on the selector
+                Connection connection;
+                while ((connection = returned.poll()) != null)
+                {
+                    try
+                    {
+                        connection.channel.configureBlocking(false);
+                        connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    }
+                    catch (IOException e)
+                    {
+                        connection.close();
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                    {
+                        SocketChannel channel = serverChannel.accept();
+                        if (channel != null)
+                            workers.execute(new Connection(channel));
+                    }
+                    else if (key.isReadable())
+                    {// A worker needs the channel in blocking mode, so it has to leave the selector
+                        key.cancel();
+                        ready.add((Connection)key.attachment());
+                    }
+                }
+                if (ready.isEmpty())
+                    break;
+
+                // Cancelled keys are only deregistered by the next select, this one may find more work
+                selector.selectNow();
+                for (Connection c : ready)
+                    workers.execute(c);
+                ready.clear();
+            } while (!selector.selectedKeys().isEmpty());
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package server;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.security.*;
+import java.util.Scanner;
 
 /**
  * FileServer loads files from FileList.bin. Stores files in shared_files directory.
@@ -11,9 +14,25 @@ import java.security.*;
 public class FileServer extends Server
 {
     public static final int SERVER_PORT = 4321;
+    public static final int MAX_WINDOW  = 64;   // The most chunks a client may have in flight during a transfer
+    public static final int MAX_PAGE    = 1000; // The most paths in one page or batch of a listing
     public static FileList  fileList; // The list of files on the server
+    public static FileJournal journal; // Journal of changes to fileList since its last snapshot
+    public static TokenCache tokenCache = new TokenCache(10000, 600000); // Tokens already verified, kept for 10 minutes
+    public static StorageMigrator migrator = new StorageMigrator(); // Converts old AES-CBC files to BlockFiles
+    public static PartUploads uploads = new PartUploads(600000); // Files arriving in parts, dropped after 10 idle minutes
+    public static ChunkStore chunkStore = new ChunkStore("chunk_store"); // Chunks of deduplicated files
+    public static Metrics metrics = new Metrics("FileServer"); // Counts and latencies of every command
+    public static BlockCache blockCache = new BlockCache(64L << 20); // Blocks of stored files, 64 MB off the heap
+    public static BufferPool buffers = new BufferPool(64); // Direct buffers uploads are written through, 16 MB kept idle
+    public static Lane transfers = new Lane("Transfer", Math.max(4, 2 * Runtime.getRuntime().availableProcessors()), 64); // Admits uploads and downloads
+    public static Lane metadata  = new Lane("Metadata", 64, 256); // Admits listings, deletes and other cheap requests
+    public static FairScheduler scheduler = new FairScheduler(Runtime.getRuntime().availableProcessors()); // Shares chunk I/O between users
     public PublicKey  publicKey;      // The public key of this server
     public PrivateKey privateKey;     // The private key of this server
+    private int       workers;        // Worker threads for the selector front end, 0 for a FileThread per connection
+    private boolean   dedup;          // Whether uploads may be stored as chunks in chunkStore
+    public SessionTickets tickets = new SessionTickets(3600000); // Resumption tickets, valid for an hour
 
     /**
      * Default constructor.
@@ -34,6 +53,66 @@ public class FileServer extends Server
         super(_port, "FilePile");
     }
 
+    /**
+     * Serves clients from a Selector and a pool of worker threads instead of a FileThread per connection
+     *
+     * @param _workers The number of worker threads
+     */
+    public void useSelector(int _workers)
+    {
+        workers = _workers;
+    }
+
+    /**
+     * Accepts deduplicated uploads, which are stored as manifests of chunks in chunkStore
+     */
+    public void useDedup()
+    {
+        dedup = true;
+    }
+
+    /**
+     * Sets how much memory the cache of stored file blocks may use
+     *
+     * @param bytes The most bytes cached, 0 reads every download from disk
+     */
+    public void useCache(long bytes)
+    {
+        blockCache = new BlockCache(bytes);
+    }
+
+    /**
+     * Sets how many uploads and downloads run at once and how many more may wait
+     *
+     * @param concurrency The transfers run at once
+     * @param queue The most transfers waiting, the rest are answered FAIL-BUSY
+     */
+    public void useTransfers(int concurrency, int queue)
+    {
+        transfers = new Lane("Transfer", concurrency, queue);
+    }
+
+    /**
+     * Sets how many metadata requests run at once and how many more may wait
+     *
+     * @param concurrency The requests run at once
+     * @param queue The most requests waiting, the rest are answered FAIL-BUSY
+     */
+    public void useMetadata(int concurrency, int queue)
+    {
+        metadata = new Lane("Metadata", concurrency, queue);
+    }
+
+    /**
+     * Returns whether deduplicated uploads are accepted
+     *
+     * @return true if they are
+     */
+    public boolean isDedup()
+    {
+        return dedup;
+    }
+
     /**
      * Main method of server
      */
@@ -41,7 +120,6 @@ public class FileServer extends Server
     {
         String fileFile = "FileList.bin";    // The file holding the FileList
         String keyFile  = "FileKeyPair.bin"; // The file holding the KeyPair
-        ObjectInputStream fileStream;        // The InputStream for the fileFile
         ObjectInputStream keyStream;         // The InputStream for the keyFile
         FileInputStream   fis;               // The FileInputStream for all ObjectInputStreams
         KeyPair keyPair;                     // The KeyPair for this server
@@ -52,12 +130,19 @@ public class FileServer extends Server
         runtime.addShutdownHook(catchExit);
 
         try
-        {// Open user file to get user list
-            // Open and read FileList.bin
-            fis        = new FileInputStream(fileFile);
-            fileStream = new ObjectInputStream(fis);
-            fileList   = (FileList)fileStream.readObject();
-            // Open and read FileKeyPair.bin
+        {// Load the last snapshot of the file list and replay the journal on top of it
+            journal  = new FileJournal(fileFile);
+            fileList = journal.recover();
+            fileList.setJournal(journal);
+        }
+        catch (IOException e)
+        {
+            System.out.println("Error reading from FileList file");
+            System.exit(-1);
+        }
+
+        try
+        {// Open and read FileKeyPair.bin
             fis        = new FileInputStream(keyFile);
             keyStream  = new ObjectInputStream(fis);
             keyPair    = (KeyPair)keyStream.readObject();
@@ -65,11 +150,8 @@ public class FileServer extends Server
             privateKey = keyPair.getPrivate();
         }
         catch (FileNotFoundException e)
-        {// fileFile.bin does not exist
-            System.out.println("FileList or KeyPair Does Not Exist. Creating new FileList...");
-            fileList  = new FileList();
-
-            System.out.println("Generating new KeyPair...");
+        {// keyFile.bin does not exist
+            System.out.println("KeyPair Does Not Exist. Generating new KeyPair...");
             try
             {// Create a new KeyPair
                 KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
@@ -91,7 +173,7 @@ public class FileServer extends Server
         }
         catch (IOException | ClassNotFoundException e)
         {
-            System.out.println("Error reading from FileList file");
+            System.out.println("Error reading from KeyPair file");
             System.exit(-1);
         }
 
@@ -104,13 +186,51 @@ public class FileServer extends Server
         else
             System.out.println("Error creating shared_files directory");
 
-        // Autosave Daemon. Saves lists every 5 minutes
+        // Count chunk references even with dedup off, files stored while it was on are still served
+        chunkStore.recover(fileList);
+
+        // Converts old files whenever a client hands over a group key for it
+        migrator.start();
+
+        // Autosave Daemon. Snapshots the file list every 2 minutes
         AutoSaveFS aSave = new AutoSaveFS();
         aSave.setDaemon(true);
         aSave.start();
 
+        if (workers > 0 && transfers.getConcurrency() + transfers.getQueueLimit() >= workers)
+        {// A transfer running or waiting its turn holds a selector worker, leave one for everything else
+            int concurrency = Math.max(1, Math.min(transfers.getConcurrency(), (workers - 1) / 2));
+            useTransfers(concurrency, Math.max(0, workers - 1 - concurrency));
+            Log.warn("Transfers cut to %d running and %d waiting to leave a selector worker free",
+                     transfers.getConcurrency(), transfers.getQueueLimit());
+        }
+
+        // Expose metrics over JMX, and print them when stats is typed at the console
+        metrics.register();
+        blockCache.register();
+        transfers.register();
+        metadata.register();
+        new StatsConsole(new Scanner(System.in), metrics).start();
+
         boolean running = true;
 
+        if (workers > 0)
+        {
+            try
+            {// Launch FileSelector
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(port), 1024);
+                System.out.printf("%s up and running with %d selector workers\n", this.getClass().getName(), workers);
+
+                new FileSelector(this, workers).run(serverChannel);
+            }
+            catch (Exception e)
+            {
+                Log.error("Error: %s", e.getMessage(), e);
+            }
+            return;
+        }
+
         try
         {// Launch FileThread
             final ServerSocket serverSock = new ServerSocket(port);
@@ -137,19 +257,21 @@ public class FileServer extends Server
 }
 
 /**
- * This thread saves user and group lists
+ * This thread snapshots the file list on exit
  */
 class ShutDownListenerFS implements Runnable
 {
     public void run()
     {
         System.out.println("Shutting down server");
-        ObjectOutputStream outStream;
 
         try
         {
-            outStream = new ObjectOutputStream(new FileOutputStream("FileList.bin"));
-            outStream.writeObject(FileServer.fileList);
+            if (FileServer.fileList != null)
+            {// Only snapshot a list that loaded
+                FileServer.journal.snapshot(FileServer.fileList);
+                FileServer.journal.close();
+            }
         }
         catch(Exception e)
         {
@@ -160,7 +282,7 @@ class ShutDownListenerFS implements Runnable
 }
 
 /**
- * This thread autosaves FileList every 5 min
+ * This thread snapshots FileList every 2 min, changes in between are kept in the journal
  */
 class AutoSaveFS extends Thread
 {
@@ -172,17 +294,25 @@ class AutoSaveFS extends Thread
             {// Save file list every 2 minutes
                 Thread.sleep(120000);
                 System.out.println("Autosave file list...");
-                ObjectOutputStream outStream;
                 try
                 {
-                    outStream = new ObjectOutputStream(new FileOutputStream("FileList.bin"));
-                    outStream.writeObject(FileServer.fileList);
+                    FileServer.journal.snapshot(FileServer.fileList);
                 }
                 catch (Exception e)
                 {
                     System.err.println("Error: " + e.getMessage());
                     e.printStackTrace(System.err);
                 }
+                FileServer.uploads.expire();
+
+                // One message so the stats print together, and as strings since they are formatted later
+                Object[]      parts = { FileServer.journal, FileServer.tokenCache, FileServer.migrator, FileServer.uploads,
+                                        FileServer.chunkStore, FileServer.blockCache, FileServer.buffers, FileServer.transfers,
+                                        FileServer.metadata, FileServer.scheduler, FileServer.metrics };
+                StringBuilder stats = new StringBuilder("File server stats");
+                for (Object part : parts)
+                    stats.append(System.lineSeparator()).append(part.toString().trim());
+                Log.info("%s", stats.toString());
             }
             catch (Exception e)
             {
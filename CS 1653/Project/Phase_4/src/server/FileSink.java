@@ -0,0 +1,294 @@
+package server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * Writes an uploaded file to disk. Bytes are collected in direct buffers from a BufferPool, and once
+ * GATHER buffers are full they go to the file in one gathering write, so a file is written a
+ * megabyte at a time however small the pieces handed to write are.
+ *
+ * How the file is made durable is set for the whole server:
+ * NONE leaves it to the operating system. EOF syncs the file when it is closed, before the upload is
+ * acknowledged or added to the FileList. PERIODIC syncs every file written since the last sync once an
+ * interval, from a background thread, so an upload is acknowledged first and a crash can lose at most
+ * the last interval of them. A closed file waits open for the next sync in that case.
+ */
+public class FileSink extends OutputStream
+{
+    public static final int NONE     = 0; // Never sync
+    public static final int EOF      = 1; // Sync each file as it is closed
+    public static final int PERIODIC = 2; // Sync files in the background once an interval
+
+    private static final int GATHER = 4; // Full buffers written together
+
+    private static volatile int  durability = EOF;
+    private static volatile long interval   = 1000;  // Milliseconds between periodic syncs
+    private static final LinkedHashSet<FileSink> dirty = new LinkedHashSet<>(); // Written since the last periodic sync
+    private static Thread syncer;                     // Runs the periodic syncs, started with the first one needed
+
+    private final FileChannel           channel;
+    private final BufferPool            pool;
+    private final ArrayList<ByteBuffer> full = new ArrayList<>(GATHER); // Buffers waiting to be written
+    private ByteBuffer current;  // Buffer being filled
+    private boolean    closed;   // Whether close was called
+    private boolean    finished; // Whether close has written everything, only the syncer may close the channel after
+    private boolean    released; // Whether the channel is closed, for PERIODIC it can be after close
+
+    /**
+     * Constructor which accepts the file to create and the pool to take buffers from
+     *
+     * @param file The file, which is truncated if it exists
+     * @param _pool The pool
+     *
+     * @throws IOException If the file can't be opened
+     */
+    public FileSink(File file, BufferPool _pool) throws IOException
+    {
+        channel = new FileOutputStream(file).getChannel();
+        pool    = _pool;
+    }
+
+    /**
+     * Sets how every file written from now on is made durable
+     *
+     * @param policy NONE, EOF or PERIODIC
+     * @param millis The interval between syncs for PERIODIC
+     */
+    public static void setDurability(int policy, long millis)
+    {
+        durability = policy;
+        interval   = Math.max(1, millis);
+    }
+
+    /**
+     * Sets how files are made durable by name
+     *
+     * @param name none, eof, or a number of milliseconds between periodic syncs
+     *
+     * @return true if the name was valid, false otherwise
+     */
+    public static boolean setDurability(String name)
+    {
+        if (name.equalsIgnoreCase("none"))
+            setDurability(NONE, interval);
+        else if (name.equalsIgnoreCase("eof"))
+            setDurability(EOF, interval);
+        else
+        {
+            try
+            {
+                long millis = Long.parseLong(name);
+                if (millis <= 0)
+                    return false;
+                setDurability(PERIODIC, millis);
+            }
+            catch (NumberFormatException e)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the durability policy as it would be passed to setDurability
+     *
+     * @return none, eof, or the milliseconds between periodic syncs
+     */
+    public static String getDurability()
+    {
+        return durability == NONE ? "none" : durability == EOF ? "eof" : String.valueOf(interval);
+    }
+
+    public void write(int b) throws IOException
+    {
+        write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if (closed)
+            throw new IOException("File is closed");
+        while (len > 0)
+        {
+            if (current == null)
+                current = pool.take();
+
+            int n = Math.min(len, current.remaining());
+            current.put(b, off, n);
+            off += n;
+            len -= n;
+
+            if (!current.hasRemaining())
+            {// Full, write it once enough are waiting
+                full.add(current);
+                current = null;
+                if (full.size() == GATHER)
+                    drain();
+            }
+        }
+    }
+
+    /**
+     * Writes everything collected so far, including a buffer that isn't full
+     */
+    public void flush() throws IOException
+    {
+        if (current != null && current.position() > 0)
+        {
+            full.add(current);
+            current = null;
+        }
+        drain();
+    }
+
+    /**
+     * Writes what is left, makes the file durable as the policy says, and hands the buffers back
+     */
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+
+        try
+        {
+            flush();
+        }
+        catch (IOException e)
+        {
+            release();
+            throw e;
+        }
+        finally
+        {
+            if (current != null)
+                pool.give(current);
+            current = null;
+            for (ByteBuffer buffer : full) // Only left if a write failed
+                pool.give(buffer);
+            full.clear();
+            synchronized (this)
+            {
+                finished = true;
+            }
+        }
+
+        if (durability == EOF)
+            channel.force(true);
+        if (durability != PERIODIC)
+            release();
+        else
+            synchronized (dirty)
+            {// The syncer closes it after the next sync
+                dirty.add(this);
+                startSyncer();
+            }
+    }
+
+    /**
+     * Writes the full buffers in one gathering write and hands them back to the pool
+     */
+    private void drain() throws IOException
+    {
+        if (full.isEmpty())
+            return;
+
+        ByteBuffer[] buffers = full.toArray(new ByteBuffer[full.size()]);
+        for (ByteBuffer buffer : buffers)
+            buffer.flip();
+        long left = 0;
+        for (ByteBuffer buffer : buffers)
+            left += buffer.remaining();
+        while (left > 0)
+            left -= channel.write(buffers);
+
+        for (ByteBuffer buffer : buffers)
+            pool.give(buffer);
+        full.clear();
+
+        if (durability == PERIODIC)
+            synchronized (dirty)
+            {
+                dirty.add(this);
+                startSyncer();
+            }
+    }
+
+    /**
+     * Syncs the file, and closes it if its upload is done
+     */
+    private synchronized void sync() throws IOException
+    {
+        if (released)
+            return;
+        channel.force(true);
+        if (finished)
+            release();
+    }
+
+    /**
+     * Closes the channel
+     */
+    private synchronized void release() throws IOException
+    {
+        if (!released)
+        {
+            released = true;
+            channel.close();
+        }
+    }
+
+    /**
+     * Starts the thread that runs the periodic syncs, if it isn't running. Called holding dirty.
+     */
+    private static void startSyncer()
+    {
+        if (syncer != null)
+            return;
+        syncer = new Thread("File sync")
+        {
+            public void run()
+            {
+                while (true)
+                {
+                    try
+                    {
+                        Thread.sleep(interval);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+
+                    ArrayList<FileSink> sinks;
+                    synchronized (dirty)
+                    {
+                        sinks = new ArrayList<>(dirty);
+                        dirty.clear();
+                    }
+                    for (FileSink sink : sinks)
+                    {
+                        try
+                        {
+                            sink.sync();
+                        }
+                        catch (IOException e)
+                        {
+                            Log.error("Error syncing an upload: %s", e.getMessage());
+                        }
+                    }
+                }
+            }
+        };
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+}
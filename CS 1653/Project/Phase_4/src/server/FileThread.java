@@ -4,12 +4,18 @@ package server;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 import javax.crypto.*;
+import javax.crypto.spec.IvParameterSpec;
 import java.lang.Thread;
 import java.math.BigInteger;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.*;
 
 /**
@@ -18,8 +24,25 @@ import java.io.*;
  */
 public class FileThread extends Thread
 {
-    private final Socket     socket;           // The socket passed from FileServer
-    private       FileServer my_fs;            // The FileServer
+    private static final AtomicLong connections = new AtomicLong(); // Hands out connection ids
+
+    private final long               id = connections.incrementAndGet(); // Identifies this connection in trace events
+    private final Socket             socket;         // The socket passed from FileServer
+    private       FileServer         my_fs;          // The FileServer
+    private       ObjectInputStream  input;          // Input from the client, set up by the handshake
+    private       ObjectOutputStream output;         // Output to the client, set up by the handshake
+    private       CryptoTools        ct;             // Session encryption, set up by the handshake
+    private       PublicKey          KGS;            // The Group Server's public key named by the client
+    private       boolean            proceed = true; // Whether the client is still connected
+    private       Metrics.CountingInputStream  received; // Counts the bytes read from the client
+    private       Metrics.CountingOutputStream sent;     // Counts the bytes written to the client
+    private       String             command;        // The request being answered, for trace events
+    private       String             user;           // Who the transfer under way is for, for trace events
+    private       String             group;          // The group of the transfer under way, for trace events
+    private       String             path;           // The file of the transfer under way, for trace events
+    private       ChunkSizer         chunks;         // Sizes the chunks of downloads, kept across them
+    private       Lane               lane;           // The lane the request under way was admitted to, null if none
+    private       long               admitted;       // When the request under way was admitted
 
     /**
      * Constructor which accepts the socket passed from FileServer
@@ -36,489 +59,1824 @@ public class FileThread extends Thread
      */
     public void run()
     {
-        boolean proceed = true;
+        FileServer.metrics.connectionOpened();
+        try
+        {// Serve requests until the client disconnects
+            handshake();
+            while (proceed)
+                handle();
+        }
+        catch (Exception e)
+        {
+            Log.error("Error: %s", e.getMessage(), e);
+        }
+        finally
+        {
+            FileServer.metrics.connectionClosed();
+        }
+    }
 
+    /**
+     * Runs the handshake protocol with a newly connected client, and records how long it took
+     *
+     * @throws Exception If the handshake fails
+     */
+    void handshake() throws Exception
+    {
+        long   start   = System.nanoTime();
+        String outcome = Metrics.EXCEPTION;
         try
-        {// Establish connection and input/output streams
-            System.out.println("*** New connection from " + socket.getInetAddress() + ":" + socket.getPort() + " ***");
-            final ObjectInputStream  input  = new ObjectInputStream(socket.getInputStream());
-            final ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+        {
+            runHandshake();
+            outcome = null;
+        }
+        finally
+        {
+            FileServer.metrics.record("HANDSHAKE", System.nanoTime() - start,
+                                      received == null ? 0 : received.getCount(), sent == null ? 0 : sent.getCount(), outcome);
+        }
+    }
+
+    /**
+     * Private method that runs the handshake protocol
+     *
+     * @throws Exception If the handshake fails
+     */
+    private void runHandshake() throws Exception
+    {
+        Log.info("*** New connection %d from %s ***", id, socket.getRemoteSocketAddress());
+        TraceEvents.Handshake phase = phase(null, "HELLO");
+        socket.setTcpNoDelay(true); // Don't let Nagle hold back pipelined chunks
+        received = new Metrics.CountingInputStream(socket.getInputStream());
+        sent     = new Metrics.CountingOutputStream(socket.getOutputStream());
+        input    = new ObjectInputStream(received);
+        output   = new ObjectOutputStream(sent);
 
-            /* HANDSHAKE PROTOCOL */
-            System.out.println("Handshake with FileClient started");
+        /* HANDSHAKE PROTOCOL */
+        Log.debug("Handshake with FileClient started");
 
-            // Set provider as BouncyCastle
+        // Set provider as BouncyCastle
+        if (Security.getProvider("BC") == null)
             Security.addProvider(new BouncyCastleProvider());
 
-            // Set RSA cipher
-            Cipher cipher = Cipher.getInstance("RSA", "BC");
-            cipher.init(Cipher.DECRYPT_MODE, my_fs.privateKey);
+        // Set RSA cipher
+        Cipher cipher = Cipher.getInstance("RSA", "BC");
+        cipher.init(Cipher.DECRYPT_MODE, my_fs.privateKey);
+
+        // Send Public Key to client
+        output.writeObject(my_fs.publicKey);
+
+        // Send fileServerID to client
+        output.writeObject((my_fs.getName() + my_fs.getPort()));
+
+        // A returning client may present a ticket instead of new session keys
+        Object   first    = input.readObject();
+        Envelope envelope = null;
+        if (first instanceof Envelope && ((Envelope)first).getMessage().equals("RESUME"))
+        {// Try to resume, fall back to the full handshake if the ticket is refused
+            phase = phase(phase, "RESUME");
+            Envelope resume = (Envelope)first;
+            SessionTickets.Ticket ticket = my_fs.tickets.redeem((byte[])resume.getObjContents().get(0));
+            byte[] clientNonce = (byte[])resume.getObjContents().get(1);
+            if (ticket != null && clientNonce != null && clientNonce.length == SessionTickets.NONCE_LENGTH)
+            {// Send our nonce, then both sides derive the session keys from the ticket secret
+                byte[] serverNonce = my_fs.tickets.random(SessionTickets.NONCE_LENGTH);
+                envelope = new Envelope("RESUMED");
+                envelope.addObject(serverNonce);
+                output.writeObject(envelope);
+
+                ct  = CryptoTools.resume(ticket.secret, clientNonce, serverNonce);
+                KGS = ticket.KGS;
+
+                // Echo the client's nonce in place of RC + 1
+                ct.incrementN();
+                envelope = new Envelope("RESUMED");
+                envelope.addObject(ct.getN());  // Add N
+                envelope.addObject(clientNonce); // Add client nonce
+            }
+            else
+            {
+                output.writeObject(new Envelope("FAIL-RESUME"));
+                first = input.readObject();
+            }
+        }
+
+        List<String> agreed = null; // Features agreed in an ECDHE hello
+        if (ct == null && first instanceof Envelope && ((Envelope)first).getMessage().equals("ECDHE"))
+        {// Ephemeral key agreement, one round trip and a single RSA signature
+            phase = phase(phase, "ECDHE");
+            Envelope hello       = (Envelope)first;
+            byte[]   clientPoint = (byte[])hello.getObjContents().get(0);
+            byte[]   clientNonce = (byte[])hello.getObjContents().get(1);
+            List<?>  offered     = (List<?>)hello.getObjContents().get(3);
+            KGS    = (PublicKey)hello.getObjContents().get(2);
+            agreed = CryptoTools.select(offered);
+
+            // Sign the exchange, including the KGS and the features, so none of it can be altered in transit
+            KeyPair   ephemeral   = CryptoTools.generateEphemeral();
+            byte[]    serverPoint = ephemeral.getPublic().getEncoded();
+            byte[]    serverNonce = my_fs.tickets.random(SessionTickets.NONCE_LENGTH);
+            Signature signer      = Signature.getInstance("SHA256withRSA");
+            signer.initSign(my_fs.privateKey);
+            signer.update(CryptoTools.transcript(clientPoint, clientNonce, KGS == null ? null : KGS.getEncoded(), serverPoint, serverNonce,
+                                                 CryptoTools.transcript(offered), CryptoTools.transcript(agreed)));
 
-            // Send Public Key to client
-            output.writeObject(my_fs.publicKey);
+            envelope = new Envelope("ECDHE");
+            envelope.addObject(serverPoint);   // Add server ephemeral key
+            envelope.addObject(serverNonce);   // Add server nonce
+            envelope.addObject(signer.sign()); // Add signature
+            envelope.addObject(agreed);        // Add features agreed, covered by the signature
+            output.writeObject(envelope);
 
-            // Send fileServerID to client
-            output.writeObject((my_fs.getName() + my_fs.getPort()));
+            ct = CryptoTools.agree(ephemeral.getPrivate(), clientPoint, clientNonce, serverNonce);
+
+            // Echo the client's nonce in place of RC + 1
+            ct.incrementN();
+            envelope = new Envelope("ECDHE");
+            envelope.addObject(ct.getN());  // Add N
+            envelope.addObject(clientNonce); // Add client nonce
+        }
 
+        if (ct == null)
+        {// Full handshake
+            phase = phase(phase, "RSA");
             // Needed to convert from byte arrays
-            CryptoTools ct = new CryptoTools();
+            ct = new CryptoTools();
 
             // Set up CryptoTools
-            ct = new CryptoTools(new BigInteger(cipher.doFinal((byte[])input.readObject())).intValue(),// N
+            ct = new CryptoTools(new BigInteger(cipher.doFinal((byte[])first)).intValue(),              // N
                     (SecretKey)ct.fromByteArray(cipher.doFinal((byte[])input.readObject())),           // KS
-                     cipher.doFinal((byte[])input.readObject()),                                       // IV
+                     CryptoTools.leftPad(cipher.doFinal((byte[])input.readObject()), 16),             // IV
                     (SecretKey)ct.fromByteArray(cipher.doFinal((byte[])input.readObject())));          // KH
-            PublicKey  KGS = (PublicKey)input.readObject();                                            // KGS
-            BigInteger RC  = (BigInteger)ct.fromByteArray(cipher.doFinal((byte[])input.readObject())); // RC
+            KGS = (PublicKey)input.readObject();                                                       // KGS
+            BigInteger RC = (BigInteger)ct.fromByteArray(cipher.doFinal((byte[])input.readObject())); // RC
 
             // RC + 1
             RC = new BigInteger(String.valueOf(RC.intValue() + 1));
 
             // Encrypt and send back challenge response using KS
             ct.incrementN();
-            Envelope envelope = new Envelope("RC+1");
+            envelope = new Envelope("RC+1");
             envelope.addObject(ct.getN()); // Add N
             envelope.addObject(RC);        // Add RC
-            output.writeObject(ct.encrypt(envelope));   // Send cipher text
-            output.writeObject(ct.getDigest(envelope)); // Send message digest
-
-            System.out.println("Handshake with FileClient complete");
-            do
-            {// Listen for messages from client
-                Envelope e       = (Envelope)ct.decrypt((byte[])input.readObject());
-                byte[]   digest  = (byte[])input.readObject();
-                System.out.println("Request received: " + e.getMessage());
-                // Verify message integrity
-                if (ct.verifyMessage(e, digest))
+        }
+
+        // Hand out a ticket for the next connection
+        phase = phase(phase, "FINISH");
+        ct.setConnection(id);
+        byte[] secret = my_fs.tickets.random(SessionTickets.SECRET_LENGTH);
+        envelope.addObject(CryptoTools.getCapabilities()); // Add features the client may negotiate
+        envelope.addObject(my_fs.tickets.issue(secret, KGS)); // Add ticket
+        envelope.addObject(secret);                           // Add ticket secret
+        if (agreed != null)
+            envelope.addObject(agreed); // Add features agreed in the hello
+        ct.writeMessage(output, envelope); // Send challenge response
+        if (agreed != null)
+            ct.enable(agreed);
+        phase(phase, null);
+
+        Log.debug("Handshake with FileClient complete");
+    }
+
+    /**
+     * Private method that ends one handshake phase's trace event and starts the next
+     *
+     * @param last The phase that is over, null if none
+     * @param next The phase starting, null if the handshake is done
+     *
+     * @return The event for the next phase
+     */
+    private TraceEvents.Handshake phase(TraceEvents.Handshake last, String next)
+    {
+        if (last != null)
+        {
+            last.end();
+            if (last.shouldCommit())
+            {
+                last.connection = id;
+                last.commit();
+            }
+        }
+        if (next == null)
+            return null;
+
+        TraceEvents.Handshake event = new TraceEvents.Handshake();
+        event.phase = next;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Reads and answers one request from the client. Called in a loop by run, and by
+     * FileSelector's workers each time an idle client has something to send.
+     *
+     * @return true if the client is still connected
+     *
+     * @throws Exception If the connection fails
+     */
+    boolean handle() throws Exception
+    {// Listen for messages from client, time starts once one has arrived
+        long     in      = received.getCount();
+        long     out     = sent.getCount();
+        Envelope e       = ct.readMessage(input);
+        long     start   = System.nanoTime();
+        String   outcome = Metrics.EXCEPTION;
+        command = e.getMessage();
+        try
+        {
+            boolean connected = respond(e);
+            outcome = sent.getCount() > out ? ct.getLastSent() : null;
+            return connected;
+        }
+        finally
+        {
+            if (lane != null)
+            {// Let the next request in the lane run
+                lane.leave(System.nanoTime() - admitted);
+                lane = null;
+            }
+            FileServer.metrics.record(e.getMessage(), System.nanoTime() - start,
+                                      received.getCount() - in, sent.getCount() - out, outcome);
+            transfer(null, null, null);
+        }
+    }
+
+    /**
+     * Private method that answers one request
+     *
+     * @param e The request
+     *
+     * @return true if the client is still connected
+     *
+     * @throws Exception If the connection fails
+     */
+    private boolean respond(Envelope e) throws Exception
+    {
+        Log.debug("Request received: %s", e.getMessage());
+        // Verify message integrity
+        if (ct.verifyMessage(e))
+            ct.incrementN();
+        else
+        {// Verification failed
+            Log.warn("Message Verification Failed");
+            socket.close();  // Close the socket
+            proceed = false; // End this communication loop
+        }
+
+        Lane wanted = lane(e.getMessage());
+        if (proceed && wanted != null)
+        {
+            if (!wanted.enter())
+            {// Too busy, tell the client when to try again rather than slow everyone down
+                Log.debug("Lane full, %s refused", e.getMessage());
+                ct.incrementN();
+                Envelope busy = new Envelope("FAIL-BUSY");
+                busy.addObject(ct.getN());               // Add N
+                busy.addObject(wanted.getRetryMillis()); // Add the milliseconds to wait before retrying
+                ct.writeMessage(output, busy);
+                return proceed;
+            }
+            lane     = wanted;
+            admitted = System.nanoTime();
+        }
+
+        Envelope response = null;  // Server response
+        long     saved    = ct.getBytesSaved(); // What compression had saved before this request
+
+        /* Client wants to list files the requester can see */
+        if (e.getMessage().equals("LFILES"))
+        {
+            // Check to make sure parameter is passed and != null
+            if (e.getObjContents().size() < 2 && e.getObjContents().get(1) == null)
+            {
+                ct.incrementN();
+                response = new Envelope("FAIL-BADCONTENTS");
+                response.addObject(ct.getN());
+            }
+
+            else
+            {// Extract token
+                SignedObject so = (SignedObject)e.getObjContents().get(1);
+                UserToken yourToken = verifyToken(so, KGS);
+                // list to hold the files the requester can see, looked up by group
+                // TODO: need to account for ADMIN group
+                List<String> list = FileServer.fileList.getPaths(yourToken.getGroups());
+                // If list is created, change response to OK
+                ct.incrementN();
+                response = new Envelope("OK");
+                response.addObject(ct.getN()); // Add N
+                response.addObject(list);      // Add the list
+            }
+        }
+        /* Client wants a page of the files it can see, or all of them sent in batches */
+        else if (e.getMessage().equals("LFILESPAGE") || e.getMessage().equals("LFILESSTREAM"))
+        {
+            UserToken yourToken = null;
+            if (e.getObjContents().size() > 4 && e.getObjContents().get(1) != null && e.getObjContents().get(4) != null)
+                yourToken = verifyToken((SignedObject)e.getObjContents().get(1), KGS); // Extract requester token
+
+            if (yourToken == null)
+            {
+                ct.incrementN();
+                response = new Envelope("FAIL-BADCONTENTS");
+                response.addObject(ct.getN());
+            }
+            else
+            {
+                String       prefix = (String)e.getObjContents().get(2); // Path prefix, null for every path
+                String       group  = (String)e.getObjContents().get(3); // Group, null for every group
+                int          limit  = Math.max(1, Math.min((Integer)e.getObjContents().get(4), FileServer.MAX_PAGE));
+                List<String> groups = yourToken.getGroups();
+                if (group != null)
+                    groups = groups.contains(group) ? Collections.singletonList(group) : Collections.<String>emptyList();
+
+                if (e.getMessage().equals("LFILESPAGE"))
+                {// The cursor is the last path of the previous page
+                    String            after = e.getObjContents().size() > 5 ? (String)e.getObjContents().get(5) : null;
+                    ArrayList<String> page  = FileServer.fileList.getPaths(groups, prefix, after, limit);
                     ct.incrementN();
+                    response = new Envelope("OK");
+                    response.addObject(ct.getN()); // Add N
+                    response.addObject(page);      // Add the page
+                    response.addObject(page.size() == limit ? page.get(limit - 1) : null); // Add the next cursor, null at the end
+                }
                 else
-                {// Verification failed
-                    System.out.println("Message Verification Failed");
-                    socket.close();  // Close the socket
-                    proceed = false; // End this communication loop
+                    response = sendPaths(groups, prefix, limit);
+            }
+        }
+        /* Client wants to upload file */
+        else if (e.getMessage().equals("UPLOADF"))
+        {
+            // Check to make sure all parameters are passed
+            if (e.getObjContents().size() < 6)
+            {
+                ct.incrementN();
+                response = new Envelope("FAIL-BADCONTENTS");
+                response.addObject(ct.getN());
+            }
+            else
+            {// Check to make sure parameters != null
+                if (e.getObjContents().get(1) == null)
+                {// Filename missing
+                    ct.incrementN();
+                    response = new Envelope("FAIL-BADPATH");
+                    response.addObject(ct.getN());
+                }
+                else if (e.getObjContents().get(2) == null)
+                {// Group name missing
+                    ct.incrementN();
+                    response = new Envelope("FAIL-BADGROUP");
+                    response.addObject(ct.getN());
+                }
+                else if (e.getObjContents().get(3) == null)
+                {// Group key missing
+                    ct.incrementN();
+                    response = new Envelope("FAIL-BADKEY");
+                    response.addObject(ct.getN());
                 }
+                else if (e.getObjContents().get(4) == null)
+                {// IV missing
+                    ct.incrementN();
+                    response = new Envelope("FAIL-BADIV");
+                    response.addObject(ct.getN());
+                }
+                else if (e.getObjContents().get(5) == null)
+                {// Token missing
+                    ct.incrementN();
+                    response = new Envelope("FAIL-BADTOKEN");
+                    response.addObject(ct.getN());
+                }
+                else
+                {
+                    String       remotePath  = (String)e.getObjContents().get(1);       // Extract filename
+                    String       group       = (String)e.getObjContents().get(2);       // Extract group name
+                    SecretKey    groupKey    = (SecretKey)e.getObjContents().get(3);    // Extract group key
+                    byte[]       IV          = (byte[])e.getObjContents().get(4);       // Extract group IV
+                    SignedObject so          = (SignedObject)e.getObjContents().get(5); // Extract SignedObject
+                    UserToken yourToken = verifyToken(so, KGS); // Extract requester token
 
-                Envelope response = null;  // Server response
+                    // Clients that support streaming ask for a window, older clients get lock-step
+                    int window = 1;
+                    if (e.getObjContents().size() > 6 && e.getObjContents().get(6) != null)
+                        window = Math.max(1, Math.min((Integer)e.getObjContents().get(6), FileServer.MAX_WINDOW));
 
-                /* Client wants to list files the requester can see */
-                if (e.getMessage().equals("LFILES"))
-                {
-                    // Check to make sure parameter is passed and != null
-                    if (e.getObjContents().size() < 2 && e.getObjContents().get(1) == null)
-                    {
+                    if (FileServer.fileList.checkFile(remotePath))
+                    {// File exists
+                        Log.warn("Error: file already exists at %s", remotePath);
                         ct.incrementN();
-                        response = new Envelope("FAIL-BADCONTENTS");
+                        response = new Envelope("FAIL-FILEEXISTS");
                         response.addObject(ct.getN());
                     }
-
-                    else
-                    {// Extract token
-                        SignedObject so = (SignedObject)e.getObjContents().get(1);
-                        UserToken yourToken = verifyToken(so, KGS);
-                        // list to hold the files the requester can see
-                        List<String> list = new ArrayList<>();
-                        // Iterate over each file and check against requester groups
-                        // TODO: probably a better way to do this and need to account for ADMIN group
-                        for (int i = 0; i < FileServer.fileList.getFiles().size(); i++)
-                            for (int j = 0; j < yourToken.getGroups().size(); j++)
-                                if (FileServer.fileList.getFiles().get(i).getGroup().equals(yourToken.getGroups().get(j)))
-                                    list.add(FileServer.fileList.getFiles().get(i).getPath());
-                        // If list is created, change response to OK
+                    else if (!yourToken.getGroups().contains(group))
+                    {// Not part of group
+                        Log.warn("Error: user missing valid token for group %s", group);
                         ct.incrementN();
-                        response = new Envelope("OK");
-                        response.addObject(ct.getN()); // Add N
-                        response.addObject(list);      // Add the list
+                        response = new Envelope("FAIL-UNAUTHORIZED");
+                        response.addObject(ct.getN());
                     }
-                    // Send response
-                    output.writeObject(ct.encrypt(response));
-                }
-                /* Client wants to upload file */
-                else if (e.getMessage().equals("UPLOADF"))
-                {
-                    // Check to make sure all parameters are passed
-                    if (e.getObjContents().size() < 6)
+                    else
                     {
+                        transfer(yourToken.getSubject(), group, remotePath);
+
+                        // Create group directory
+                        File file = new File("shared_files/" + group);
+                        if (file.mkdir())
+                            Log.debug("Created new group directory");
+                        else if (file.exists())
+                            Log.debug("Found group directory");
+                        else
+                            Log.warn("Error creating group directory");
+
+                        // Create file on server
+                        file = new File("shared_files/" + group + "/" + remotePath.replace('/', '_'));
+                        file.createNewFile();
+                        FileSink           fos = new FileSink(file, FileServer.buffers);
+                        MessageDigest      sha = MessageDigest.getInstance("SHA-256"); // Digest of the stored cipher text
+                        OutputStream       cos = scheduled(new BlockFile.Writer(new DigestOutputStream(fos, sha), groupKey));
+                        Log.debug("Successfully created file %s", remotePath.replace('/', '_'));
+
+                        // Tell client that server is ready
                         ct.incrementN();
-                        response = new Envelope("FAIL-BADCONTENTS");
+                        response = new Envelope("READY");
                         response.addObject(ct.getN());
-                    }
-                    else
-                    {// Check to make sure parameters != null
-                        if (e.getObjContents().get(1) == null)
-                        {// Filename missing
-                            ct.incrementN();
-                            response = new Envelope("FAIL-BADPATH");
-                            response.addObject(ct.getN());
-                        }
-                        else if (e.getObjContents().get(2) == null)
-                        {// Group name missing
-                            ct.incrementN();
-                            response = new Envelope("FAIL-BADGROUP");
-                            response.addObject(ct.getN());
+                        if (window > 1)
+                            response.addObject(window); // Add the accepted window
+                        ct.writeMessage(output, response); // Send response
+
+                        if (window > 1)
+                            e = receiveStream(input, output, ct, cos, window);
+                        else
+                        {
+                            // Receive message
+                            e = ct.readMessage(input);
+
+                            // Verify message integrity
+                            if (ct.verifyMessage(e))
+                                ct.incrementN();
+                            else
+                            {// Verification failed
+                                Log.warn("Message Verification Failed");
+                                socket.close();  // Close the socket
+                                proceed = false; // End this communication loop
+                            }
                         }
-                        else if (e.getObjContents().get(3) == null)
-                        {// Group key missing
+
+                        int count = 0; // Chunks received in lock-step
+                        while (e.getMessage().compareTo("CHUNK") == 0)
+                        {// There is a chunk to read
+                            TraceEvents.Chunk event = new TraceEvents.Chunk();
+                            event.begin();
+                            cos.write((byte[])e.getObjContents().get(1), 0, (Integer)e.getObjContents().get(2));
+                            trace(event, count++, (Integer)e.getObjContents().get(2));
+
+                            // Tell client that server is ready
                             ct.incrementN();
-                            response = new Envelope("FAIL-BADKEY");
+                            response = new Envelope("READY");
                             response.addObject(ct.getN());
+                            ct.writeMessage(output, response); // Send response
+
+                            // Receive message
+                            e = ct.readMessage(input);
+
+                            // Verify message integrity
+                            if (ct.verifyMessage(e))
+                                ct.incrementN();
+                            else
+                            {// Verification failed
+                                Log.warn("Message Verification Failed");
+                                socket.close();  // Close the socket
+                                proceed = false; // End this communication loop
+                            }
                         }
-                        else if (e.getObjContents().get(4) == null)
-                        {// IV missing
+
+                        if (e.getMessage().compareTo("EOF") == 0)
+                        {// Reached end of file
+                            Log.info("Transfer successful file %s%s", remotePath, savings(saved));
+                            cos.close(); // Write the last block so the digest covers the whole file
+                            FileServer.fileList.addFile(yourToken.getSubject(), group, file.getPath()).setDigest(sha.digest());
+                            FileServer.fileList.commit(); // Don't report success until the entry is on disk
+
+                            // Tell client success
                             ct.incrementN();
-                            response = new Envelope("FAIL-BADIV");
+                            response = new Envelope("OK");
                             response.addObject(ct.getN());
                         }
-                        else if (e.getObjContents().get(5) == null)
-                        {// Token missing
+                        else
+                        {// Error
+                            Log.warn("Error reading file %s from client", remotePath);
                             ct.incrementN();
-                            response = new Envelope("FAIL-BADTOKEN");
+                            response = new Envelope("ERROR-TRANSFER");
                             response.addObject(ct.getN());
                         }
-                        else
-                        {
-                            String       remotePath  = (String)e.getObjContents().get(1);       // Extract filename
-                            String       group       = (String)e.getObjContents().get(2);       // Extract group name
-                            SecretKey    groupKey    = (SecretKey)e.getObjContents().get(3);    // Extract group key
-                            byte[]       IV          = (byte[])e.getObjContents().get(4);       // Extract group IV
-                            SignedObject so          = (SignedObject)e.getObjContents().get(5); // Extract SignedObject
-                            UserToken yourToken = verifyToken(so, KGS); // Extract requester token
-
-                            if (FileServer.fileList.checkFile(remotePath))
-                            {// File exists
-                                System.out.printf("Error: file already exists at %s\n", remotePath);
-                                ct.incrementN();
-                                response = new Envelope("FAIL-FILEEXISTS");
-                                response.addObject(ct.getN());
-                            }
-                            else if (!yourToken.getGroups().contains(group))
-                            {// Not part of group
-                                System.out.printf("Error: user missing valid token for group %s\n", group);
-                                ct.incrementN();
-                                response = new Envelope("FAIL-UNAUTHORIZED");
-                                response.addObject(ct.getN());
-                            }
-                            else
-                            {
-                                // Create group directory
-                                File file = new File("shared_files/" + group);
-                                if (file.mkdir())
-                                    System.out.println("Created new group directory");
-                                else if (file.exists())
-                                    System.out.println("Found group directory");
-                                else
-                                    System.out.println("Error creating group directory");
-
-                                // Create file on server
-                                file = new File("shared_files/" + group + "/" + remotePath.replace('/', '_'));
-                                file.createNewFile();
-                                FileOutputStream   fos = new FileOutputStream(file);
-                                CipherOutputStream cos = new CipherOutputStream(fos, ct.getFileCipher("ENCRYPT", groupKey, IV));
-                                System.out.printf("Successfully created file %s\n", remotePath.replace('/', '_'));
-
-                                // Tell client that server is ready
-                                ct.incrementN();
-                                response = new Envelope("READY");
-                                response.addObject(ct.getN());
-                                output.writeObject(ct.encrypt(response));   // Send response
-                                output.writeObject(ct.getDigest(response)); // Send digest
-
-                                // Receive message
-                                e = (Envelope)ct.decrypt((byte[])input.readObject());
-
-                                // Verify message integrity
-                                if (ct.verifyMessage(e, (byte[])input.readObject()))
-                                    ct.incrementN();
-                                else
-                                {// Verification failed
-                                    System.out.println("Message Verification Failed");
-                                    socket.close();  // Close the socket
-                                    proceed = false; // End this communication loop
-                                }
-
-                                while (e.getMessage().compareTo("CHUNK") == 0)
-                                {// There is a chunk to read
-                                    cos.write((byte[])e.getObjContents().get(1), 0, (Integer)e.getObjContents().get(2));
-
-                                    // Tell client that server is ready
-                                    ct.incrementN();
-                                    response = new Envelope("READY");
-                                    response.addObject(ct.getN());
-                                    output.writeObject(ct.encrypt(response));   // Send response
-                                    output.writeObject(ct.getDigest(response)); // Send digest
-
-                                    // Receive message
-                                    e = (Envelope)ct.decrypt((byte[])input.readObject());
-
-                                    // Verify message integrity
-                                    if (ct.verifyMessage(e, (byte[])input.readObject()))
-                                        ct.incrementN();
-                                    else
-                                    {// Verification failed
-                                        System.out.println("Message Verification Failed");
-                                        socket.close();  // Close the socket
-                                        proceed = false; // End this communication loop
-                                    }
-                                }
-
-                                if (e.getMessage().compareTo("EOF") == 0)
-                                {// Reached end of file
-                                    System.out.printf("Transfer successful file %s\n", remotePath);
-                                    FileServer.fileList.addFile(yourToken.getSubject(), group, file.getPath());
-
-                                    // Tell client success
-                                    ct.incrementN();
-                                    response = new Envelope("OK");
-                                    response.addObject(ct.getN());
-                                }
-                                else
-                                {// Error
-                                    System.out.printf("Error reading file %s from client\n", remotePath);
-                                    ct.incrementN();
-                                    response = new Envelope("ERROR-TRANSFER");
-                                    response.addObject(ct.getN());
-                                }
-
-                                cos.close();
-                                fos.close();
-                            }
-                        }
+
+                        cos.close();
+                        fos.close();
                     }
-                    // Send response
-                    output.writeObject(ct.encrypt(response));
                 }
-                /* Client wants to download file */
-                else if (e.getMessage().compareTo("DOWNLOADF") == 0)
+            }
+        }
+        /* Client wants to upload a file as chunks and only send the ones the server doesn't have */
+        else if (e.getMessage().equals("UPLOADDEDUP"))
+        {
+            ChunkStore.Upload upload = null;
+            if (!my_fs.isDedup())
+            {// Client falls back to UPLOADF
+                ct.incrementN();
+                response = new Envelope("FAIL-UNSUPPORTED");
+                response.addObject(ct.getN());
+            }
+            else if (e.getObjContents().size() < 7 || e.getObjContents().subList(0, 7).contains(null) ||
+                     (upload = FileServer.chunkStore.begin((byte[])e.getObjContents().get(5), (int[])e.getObjContents().get(6))) == null)
+            {// Parameters are missing or the chunk list doesn't add up
+                ct.incrementN();
+                response = new Envelope("FAIL-BADCONTENTS");
+                response.addObject(ct.getN());
+            }
+            else
+            {
+                String       remotePath = (String)e.getObjContents().get(1);       // Extract filename
+                String       group      = (String)e.getObjContents().get(2);       // Extract group name
+                SecretKey    groupKey   = (SecretKey)e.getObjContents().get(3);    // Extract group key
+                SignedObject so         = (SignedObject)e.getObjContents().get(4); // Extract SignedObject
+                UserToken    yourToken  = verifyToken(so, KGS);                    // Extract requester token
+                File         file       = new File("shared_files/" + group + "/" + remotePath.replace('/', '_'));
+
+                int window = 1;
+                if (e.getObjContents().size() > 7 && e.getObjContents().get(7) != null)
+                    window = Math.max(1, Math.min((Integer)e.getObjContents().get(7), FileServer.MAX_WINDOW));
+
+                try
                 {
-                    String       remotePath = (String)e.getObjContents().get(1);       // Extract filename
-                    SecretKey    groupKey   = (SecretKey)e.getObjContents().get(2);    // Extract group key
-                    byte[]       IV         = (byte[])e.getObjContents().get(3);       // Extract group IV
-                    SignedObject so         = (SignedObject)e.getObjContents().get(4); // Extract SignedObject
-                    UserToken    t          = verifyToken(so, KGS);                    // Extract requester token
-                    ShareFile    sf         = FileServer.fileList.getFile(remotePath); // Get the file
-
-                    // Check parameters -- don't know why the skeleton code was set up like this but whatever
-                    //                  -- this should obviously happen before the parameters are set, not after
-                    //                  -- TODO: Change this to be set up like upload
-                    if (e.getObjContents().size() < 5)
-                    {// Parameters are missing
-                        ct.incrementN();
-                        e = new Envelope("FAIL-BADCONTENTS");
-                        e.addObject(ct.getN());
-                        output.writeObject(ct.encrypt(e)); // Send response
-                    }
-                    else if (sf == null)
-                    {// File does not exist in FileList
-                        ct.incrementN();
-                        System.out.printf("Error: File %s doesn't exist\n", remotePath);
-                        e = new Envelope("ERROR_FILEMISSING");
-                        e.addObject(ct.getN());
-                        output.writeObject(ct.encrypt(e)); // Send response
+                    ct.incrementN();
+                    if (yourToken == null || !yourToken.getGroups().contains(group))
+                    {// Not part of group
+                        Log.warn("Error: user missing valid token for group %s", group);
+                        response = new Envelope("FAIL-UNAUTHORIZED");
+                        response.addObject(ct.getN());
                     }
-                    else if (!t.getGroups().contains(sf.getGroup()))
-                    {// File not in client's groups
-                        ct.incrementN();
-                        System.out.printf("Error user %s doesn't have permission\n", t.getSubject());
-                        e = new Envelope("ERROR_PERMISSION");
-                        e.addObject(ct.getN());
-                        output.writeObject(ct.encrypt(e)); // Send response
+                    else if (FileServer.fileList.checkFile(file.getPath()))
+                    {// File exists
+                        Log.warn("Error: file already exists at %s", file.getPath());
+                        response = new Envelope("FAIL-FILEEXISTS");
+                        response.addObject(ct.getN());
                     }
                     else
-                    {
-                        try
-                        {   // PROB GONNA BE ERROR RIGHT HERE
-                            File f = new File(sf.getPath());
+                    {// Tell client which chunks to send
+                        transfer(yourToken.getSubject(), group, remotePath);
+                        response = new Envelope("NEED");
+                        response.addObject(ct.getN());
+                        response.addObject(upload.getNeeded()); // Add the chunks the server doesn't have
+                        response.addObject(window);             // Add the accepted window
+                        ct.writeMessage(output, response); // Send response
 
-                            if (!f.exists())
-                            {// File does not exist on server directory
-                                System.out.printf("Error file %s missing from disk\n", "_"+remotePath.replace('/', '_'));
-                                ct.incrementN();
-                                e = new Envelope("ERROR_NOTONDISK"); // Tell client file does not exist
-                                e.addObject(ct.getN());
-                                output.writeObject(ct.encrypt(e)); // Send response
-                            }
-                            else
-                            {
-                                FileInputStream   fis = new FileInputStream(f);
-                                CipherInputStream cis = new CipherInputStream(fis, ct.getFileCipher("DECRYPT", groupKey, IV));
-
-                                do
-                                {// Send file in chunks
-                                    byte[] buf = new byte[4096];
-
-                                    if (e.getMessage().compareTo("DOWNLOADF") != 0)
-                                    {// Message is wrong
-                                        System.out.printf("Server error: %s\n", e.getMessage());
-                                        break;
-                                    }
-                                    // Tell client a chunk is coming
-                                    e = new Envelope("CHUNK");
-                                    int n = cis.read(buf); // Can throw an IOException
-                                    if (n > 0)             // Amount read
-                                        System.out.printf(".");
-                                    else if (n < 0)        // Didn't read in
-                                        System.out.println("Read error");
-                                    ct.incrementN();
-                                    e.addObject(ct.getN());              // Add N
-                                    e.addObject(buf);                    // Add chunk to be sent
-                                    e.addObject(new Integer(n));         // Add number of bytes in chunk
-                                    output.writeObject(ct.encrypt(e));   // Send response
-                                    output.writeObject(ct.getDigest(e)); // Send digest
-
-                                    // Get message from client
-                                    e = (Envelope)ct.decrypt((byte[])input.readObject());
-
-                                    // Verify message integrity
-                                    if (ct.verifyMessage(e, (byte[])input.readObject()))
-                                        ct.incrementN();
-                                    else
-                                    {// Verification failed
-                                        System.out.println("Message Verification Failed");
-                                        socket.close();  // Close the socket
-                                        proceed = false; // End this communication loop
-                                    }
-                                }
-                                while (cis.available() > 0);
-
-                                cis.close();
-                                fis.close();
-
-                                // If server indicates success, return the member list
-                                if (e.getMessage().compareTo("DOWNLOADF") == 0)
-                                {
-                                    ct.incrementN();
-                                    e = new Envelope("EOF");             // Tell client end of file
-                                    e.addObject(ct.getN());              // Add N
-                                    output.writeObject(ct.encrypt(e));   // Send response
-                                    output.writeObject(ct.getDigest(e)); // Send digest
-
-                                    // Get message from client
-                                    e = (Envelope)ct.decrypt((byte[])input.readObject());
-
-                                    // Verify message integrity
-                                    if (ct.verifyMessage(e, (byte[])input.readObject()))
-                                        ct.incrementN();
-                                    else
-                                    {// Verification failed
-                                        System.out.println("Message Verification Failed");
-                                        socket.close();  // Close the socket
-                                        proceed = false; // End this communication loop
-                                    }
-
-                                    if (e.getMessage().compareTo("OK") == 0)
-                                        System.out.printf("File data upload successful\n");
-                                    else
-                                        System.out.printf("Upload failed: %s\n", e.getMessage());
-                                }
-                                else
-                                    System.out.printf("Upload failed: %s\n", e.getMessage());
-                            }
-                        }
-                        catch (Exception e1)
+                        e = receiveStream(input, output, ct, scheduled(upload), window);
+                        file.getParentFile().mkdir(); // Create group directory
+                        if (e.getMessage().compareTo("EOF") == 0 && upload.finish(file, groupKey))
                         {
-                            System.err.println("Error: " + e.getMessage());
-                            e1.printStackTrace(System.err);
+                            Log.info("Transfer successful file %s, %d new chunks%s", remotePath, upload.getNeeded().length,
+                                     savings(saved));
+                            FileServer.fileList.addFile(yourToken.getSubject(), group, file.getPath());
+                            FileServer.fileList.commit(); // Don't report success until the entry is on disk
+                            response = new Envelope("OK");
+                        }
+                        else
+                        {// Error
+                            Log.warn("Error reading file %s from client", remotePath);
+                            response = new Envelope("ERROR-TRANSFER");
                         }
+                        ct.incrementN();
+                        response.addObject(ct.getN());
+                    }
+                }
+                finally
+                {// Gives the chunk references back unless the manifest was written
+                    upload.abort();
+                }
+            }
+        }
+        /* Client wants to upload a file in parts over several connections */
+        else if (e.getMessage().equals("UPLOADBEGIN"))
+        {
+            if (e.getObjContents().size() < 7 || e.getObjContents().contains(null))
+            {// Parameters are missing
+                ct.incrementN();
+                response = new Envelope("FAIL-BADCONTENTS");
+                response.addObject(ct.getN());
+            }
+            else
+            {
+                String       remotePath = (String)e.getObjContents().get(1);       // Extract filename
+                String       group      = (String)e.getObjContents().get(2);       // Extract group name
+                SecretKey    groupKey   = (SecretKey)e.getObjContents().get(3);    // Extract group key
+                SignedObject so         = (SignedObject)e.getObjContents().get(4); // Extract SignedObject
+                long         length     = (Long)e.getObjContents().get(5);         // Extract length of the file
+                int          parts      = (Integer)e.getObjContents().get(6);      // Extract number of parts wanted
+                UserToken    yourToken  = verifyToken(so, KGS);                    // Extract requester token
+
+                if (yourToken == null || !yourToken.getGroups().contains(group))
+                {// Not part of group
+                    Log.warn("Error: user missing valid token for group %s", group);
+                    ct.incrementN();
+                    response = new Envelope("FAIL-UNAUTHORIZED");
+                    response.addObject(ct.getN());
+                }
+                else
+                {
+                    new File("shared_files/" + group).mkdir(); // Create group directory
+                    File               file   = new File("shared_files/" + group + "/" + remotePath.replace('/', '_'));
+                    PartUploads.Upload upload = length < 0 ? null
+                                                           : FileServer.uploads.begin(yourToken.getSubject(), group, file, groupKey,
+                                                                                      length, Math.min(parts, 64));
+                    ct.incrementN();
+                    if (upload == null)
+                    {// File exists or is already arriving
+                        Log.warn("Error: file already exists at %s", file.getPath());
+                        response = new Envelope("FAIL-FILEEXISTS");
+                        response.addObject(ct.getN());
+                    }
+                    else
+                    {// Tell client how to split the file
+                        Log.info("Receiving %s in %d parts", file.getPath(), upload.getParts());
+                        response = new Envelope("READY");
+                        response.addObject(ct.getN());
+                        response.addObject(upload.getId());       // Add the upload id
+                        response.addObject(upload.getPartSize()); // Add the length of every part but the last
+                        response.addObject(upload.getParts());    // Add the number of parts
                     }
                 }
-                /* Client wants to delete file */
-                else if (e.getMessage().compareTo("DELETEF") == 0)
+            }
+        }
+        /* Client is sending one part of an upload */
+        else if (e.getMessage().equals("UPLOADPART"))
+        {
+            if (e.getObjContents().size() < 4 || e.getObjContents().get(1) == null || e.getObjContents().get(2) == null)
+            {// Parameters are missing
+                ct.incrementN();
+                response = new Envelope("FAIL-BADCONTENTS");
+                response.addObject(ct.getN());
+            }
+            else
+            {
+                PartUploads.Upload upload    = FileServer.uploads.get((String)e.getObjContents().get(1)); // Extract upload
+                int                index     = (Integer)e.getObjContents().get(2);                       // Extract part number
+                UserToken          yourToken = verifyToken((SignedObject)e.getObjContents().get(3), KGS); // Extract requester token
+
+                int window = 1;
+                if (e.getObjContents().size() > 4 && e.getObjContents().get(4) != null)
+                    window = Math.max(1, Math.min((Integer)e.getObjContents().get(4), FileServer.MAX_WINDOW));
+
+                PartUploads.Part part = null;
+                if (upload != null && yourToken != null && yourToken.getSubject().equals(upload.getOwner()))
+                    part = upload.openPart(index);
+
+                ct.incrementN();
+                if (part == null)
+                {// No such upload, not the uploader's, or the part is taken
+                    response = new Envelope("FAIL-BADPART");
+                    response.addObject(ct.getN());
+                }
+                else
                 {
-                    String       remotePath = (String)e.getObjContents().get(1);       // Extract filename
-                    SignedObject so         = (SignedObject)e.getObjContents().get(2); // Extract SignedObject
-                    UserToken    t          = verifyToken(so, KGS);                    // Extract requester token
-                    ShareFile    sf         = FileServer.fileList.getFile(remotePath); // Get the file
+                    try
+                    {// Tell client that server is ready
+                        transfer(yourToken.getSubject(), null, upload.getId());
+                        response = new Envelope("READY");
+                        response.addObject(ct.getN());
+                        response.addObject(window); // Add the accepted window
+                        ct.writeMessage(output, response); // Send response
 
-                    // Check parameters -- TODO: fix this same thing with checking the params in here as well
-                    if (e.getObjContents().size() < 3)
-                    {
+                        e = receiveStream(input, output, ct, scheduled(part), window);
+                        response = new Envelope("ERROR-TRANSFER");
+                        if (e.getMessage().compareTo("EOF") != 0)
+                            Log.warn("Error reading part %d from client", index);
+                        else try
+                        {
+                            part.finish();
+                            response = new Envelope("OK");
+                            Log.info("Part %d received%s", index, savings(saved));
+                        }
+                        catch (IOException e1)
+                        {// Wrong length or disk trouble, the client may send the part again
+                            Log.warn("Error: %s", e1.getMessage());
+                        }
                         ct.incrementN();
-                        e = new Envelope("FAIL-BADCONTENTS");   // Tell client parameters are missing
-                        e.addObject(ct.getN());
+                        response.addObject(ct.getN());
                     }
-                    else if (sf == null)
-                    {// File does not exist in FileList
-                        System.out.printf("Error: File %s doesn't exist\n", remotePath);
-                        ct.incrementN();
-                        e = new Envelope("ERROR_DOESNTEXIST");  // Tell client file is missing
-                        e.addObject(ct.getN());
+                    finally
+                    {// Frees the part for another attempt unless it finished
+                        part.fail();
                     }
-                    else if (!t.getGroups().contains(sf.getGroup()))
-                    {// File not in requester's groups
-                        System.out.printf("Error user %s doesn't have permission\n", t.getSubject());
+                }
+            }
+        }
+        /* Client has sent every part and wants the file added */
+        else if (e.getMessage().equals("UPLOADCOMMIT") || e.getMessage().equals("UPLOADABORT"))
+        {
+            PartUploads.Upload upload    = null;
+            UserToken          yourToken = null;
+            if (e.getObjContents().size() > 2 && e.getObjContents().get(1) != null)
+            {
+                upload    = FileServer.uploads.get((String)e.getObjContents().get(1));     // Extract upload
+                yourToken = verifyToken((SignedObject)e.getObjContents().get(2), KGS); // Extract requester token
+            }
+
+            ct.incrementN();
+            if (upload == null || yourToken == null || !yourToken.getSubject().equals(upload.getOwner()))
+                response = new Envelope("FAIL-BADPART");
+            else if (e.getMessage().equals("UPLOADABORT"))
+            {
+                FileServer.uploads.abort(upload);
+                response = new Envelope("OK");
+            }
+            else if (FileServer.uploads.commit(upload))
+            {
+                Log.info("Transfer successful file %s", upload.file.getPath());
+                response = new Envelope("OK");
+            }
+            else
+                response = new Envelope("FAIL-INCOMPLETE");
+            response.addObject(ct.getN());
+        }
+        /* Client wants to download file */
+        else if (e.getMessage().compareTo("DOWNLOADF") == 0)
+        {
+            String       remotePath = (String)e.getObjContents().get(1);       // Extract filename
+            SecretKey    groupKey   = (SecretKey)e.getObjContents().get(2);    // Extract group key
+            byte[]       IV         = (byte[])e.getObjContents().get(3);       // Extract group IV
+            SignedObject so         = (SignedObject)e.getObjContents().get(4); // Extract SignedObject
+            UserToken    t          = verifyToken(so, KGS);                    // Extract requester token
+            ShareFile    sf         = FileServer.fileList.getFile(remotePath); // Get the file
+
+            // Clients that support streaming ask for a window, older clients get lock-step
+            int window = 1;
+            if (e.getObjContents().size() > 5 && e.getObjContents().get(5) != null)
+                window = Math.max(1, Math.min((Integer)e.getObjContents().get(5), FileServer.MAX_WINDOW));
+
+            // Check parameters -- don't know why the skeleton code was set up like this but whatever
+            //                  -- this should obviously happen before the parameters are set, not after
+            //                  -- TODO: Change this to be set up like upload
+            if (e.getObjContents().size() < 5)
+            {// Parameters are missing
+                ct.incrementN();
+                e = new Envelope("FAIL-BADCONTENTS");
+                e.addObject(ct.getN());
+                ct.writeMessage(output, e); // Send response
+            }
+            else if (sf == null)
+            {// File does not exist in FileList
+                ct.incrementN();
+                Log.warn("Error: File %s doesn't exist", remotePath);
+                e = new Envelope("ERROR_FILEMISSING");
+                e.addObject(ct.getN());
+                ct.writeMessage(output, e); // Send response
+            }
+            else if (!t.getGroups().contains(sf.getGroup()))
+            {// File not in client's groups
+                ct.incrementN();
+                Log.warn("Error user %s doesn't have permission", t.getSubject());
+                e = new Envelope("ERROR_PERMISSION");
+                e.addObject(ct.getN());
+                ct.writeMessage(output, e); // Send response
+            }
+            else
+            {
+                try
+                {   // PROB GONNA BE ERROR RIGHT HERE
+                    File f = new File(sf.getPath());
+
+                    if (!f.exists())
+                    {// File does not exist on server directory
+                        Log.warn("Error file %s missing from disk", "_"+remotePath.replace('/', '_'));
                         ct.incrementN();
-                        e = new Envelope("ERROR_PERMISSION");   // Tell client permission is wrong
+                        e = new Envelope("ERROR_NOTONDISK"); // Tell client file does not exist
                         e.addObject(ct.getN());
+                        ct.writeMessage(output, e); // Send response
                     }
                     else
                     {
-                        try
-                        {
-                            File f = new File(sf.getPath());
+                        transfer(t.getSubject(), sf.getGroup(), remotePath);
+                        BlockCache.CachedFile fis = FileServer.blockCache.open(f);
+                        InputStream           cis;
+                        if (BlockFile.isBlockFile(f))
+                            cis = new BlockFile.Reader(fis, fis.length(), groupKey);
+                        else if (ChunkStore.isManifest(f))
+                            cis = FileServer.chunkStore.open(ChunkStore.readManifest(fis, fis.length(), groupKey));
+                        else
+                            cis = new CipherInputStream(fis, ct.getFileCipher("DECRYPT", groupKey, IV));
+                        cis = scheduled(cis);
 
-                            if (!f.exists())
-                            {// File does not exist on server directory
-                                System.out.printf("Error file %s missing from disk\n", "_"+remotePath.replace('/', '_'));
-                                ct.incrementN();
-                                e = new Envelope("ERROR_FILEMISSING"); // Tell client file does not exist
-                                e.addObject(ct.getN());
+                        byte[] buf   = null;
+                        int    n     = 0;                 // Bytes in the last chunk sent
+                        int    count = 0;                 // Chunks sent in lock-step
+                        long   mark  = System.nanoTime(); // When the chunk being sent was read
+                        if (window > 1)
+                            e = sendStream(input, output, ct, cis, window, e);
+                        else do
+                        {// Send file in chunks
+                            if (e.getMessage().compareTo("DOWNLOADF") != 0)
+                            {// Message is wrong
+                                Log.warn("Server error: %s", e.getMessage());
+                                break;
                             }
-                            else if (f.delete())
-                            {
-                                System.out.printf("File %s deleted from disk\n", "_"+remotePath.replace('/', '_'));
-                                FileServer.fileList.removeFile(remotePath);
+                            // Tell client a chunk is coming
+                            TraceEvents.Chunk event = new TraceEvents.Chunk();
+                            event.begin();
+                            e = new Envelope("CHUNK");
+                            n = fill(cis, buf = chunks().buffer()); // Can throw an IOException
+                            ct.incrementN();
+                            e.addObject(ct.getN());              // Add N
+                            e.addObject(chunk(buf, n));          // Add chunk to be sent
+                            e.addObject(new Integer(n));         // Add number of bytes in chunk
+                            ct.writeMessage(output, e); // Send response
+                            trace(event, count++, n);
+
+                            // Get message from client
+                            e = ct.readMessage(input);
+                            mark = chunks.record(n, mark);
+
+                            // Verify message integrity
+                            if (ct.verifyMessage(e))
                                 ct.incrementN();
-                                e = new Envelope("OK"); // Tell client delete successful
-                                e.addObject(ct.getN());
-                            }
                             else
-                            {
-                                System.out.printf("Error deleting file %s from disk\n", "_"+remotePath.replace('/', '_'));
+                            {// Verification failed
+                                Log.warn("Message Verification Failed");
+                                socket.close();  // Close the socket
+                                proceed = false; // End this communication loop
+                            }
+                        }
+                        while (n == buf.length); // A short chunk is the last one, available() can't tell
+
+                        cis.close();
+                        fis.close();
+
+                        // Client is caught up, either from lock-step or from its last cumulative ACK
+                        if (e.getMessage().compareTo("DOWNLOADF") == 0 || e.getMessage().compareTo("ACK") == 0)
+                        {
+                            ct.incrementN();
+                            e = new Envelope("EOF");             // Tell client end of file
+                            e.addObject(ct.getN());              // Add N
+                            ct.writeMessage(output, e); // Send response
+
+                            // Get message from client
+                            e = ct.readMessage(input);
+
+                            // Verify message integrity
+                            if (ct.verifyMessage(e))
                                 ct.incrementN();
-                                e = new Envelope("ERROR_DELETE");
-                                e.addObject(ct.getN());
+                            else
+                            {// Verification failed
+                                Log.warn("Message Verification Failed");
+                                socket.close();  // Close the socket
+                                proceed = false; // End this communication loop
+                            }
+
+                            Log.debug("Chunks of %d bytes, %d us overhead each", chunks().getSize(), chunks().getOverheadMicros());
+                            if (e.getMessage().compareTo("OK") == 0)
+                            {
+                                Log.info("File data upload successful%s", savings(saved));
+                                FileServer.migrator.confirm(sf);
+                            }
+                            else
+                            {
+                                Log.warn("Upload failed: %s", e.getMessage());
+                                FileServer.migrator.restore(sf);
                             }
                         }
-                        catch (Exception e1)
+                        else
+                        {
+                            Log.warn("Upload failed: %s", e.getMessage());
+                            FileServer.migrator.restore(sf);
+                        }
+                    }
+                }
+                catch (Exception e1)
+                {
+                    Log.error("Error: %s", e1.getMessage(), e1);
+                    FileServer.migrator.restore(sf); // A block that fails its check may be from a conversion under the wrong key
+                }
+            }
+        }
+        /* Client wants part of a file, to resume a download or to fetch pieces of it in parallel */
+        else if (e.getMessage().compareTo("DOWNLOADRANGE") == 0)
+        {
+            if (e.getObjContents().size() < 7 || (Long)e.getObjContents().get(5) < 0)
+            {// Parameters are missing
+                ct.incrementN();
+                response = new Envelope("FAIL-BADCONTENTS");
+                response.addObject(ct.getN());
+            }
+            else
+            {
+                String       remotePath = (String)e.getObjContents().get(1);       // Extract filename
+                SecretKey    groupKey   = (SecretKey)e.getObjContents().get(2);    // Extract group key
+                byte[]       IV         = (byte[])e.getObjContents().get(3);       // Extract group IV
+                SignedObject so         = (SignedObject)e.getObjContents().get(4); // Extract SignedObject
+                long         offset     = (Long)e.getObjContents().get(5);         // Extract first byte wanted
+                long         length     = (Long)e.getObjContents().get(6);         // Extract bytes wanted, -1 for the rest
+                UserToken    t          = verifyToken(so, KGS);                    // Extract requester token
+                ShareFile    sf         = FileServer.fileList.getFile(remotePath); // Get the file
+
+                int window = 1;
+                if (e.getObjContents().size() > 7 && e.getObjContents().get(7) != null)
+                    window = Math.max(1, Math.min((Integer)e.getObjContents().get(7), FileServer.MAX_WINDOW));
+
+                if (sf == null)
+                {// File does not exist in FileList
+                    Log.warn("Error: File %s doesn't exist", remotePath);
+                    ct.incrementN();
+                    response = new Envelope("ERROR_FILEMISSING");
+                    response.addObject(ct.getN());
+                }
+                else if (t == null || !t.getGroups().contains(sf.getGroup()))
+                {// File not in client's groups
+                    Log.warn("Error user %s doesn't have permission", t == null ? "?" : t.getSubject());
+                    ct.incrementN();
+                    response = new Envelope("ERROR_PERMISSION");
+                    response.addObject(ct.getN());
+                }
+                else if (!new File(sf.getPath()).exists())
+                {// File does not exist on server directory
+                    Log.warn("Error file %s missing from disk", sf.getPath());
+                    ct.incrementN();
+                    response = new Envelope("ERROR_NOTONDISK");
+                    response.addObject(ct.getN());
+                }
+                else
+                {
+                    transfer(t.getSubject(), sf.getGroup(), remotePath);
+                    try
+                    {
+                        e = sendRange(sf, groupKey, IV, offset, length, window, e);
+
+                        // Client is caught up, either from the request or from its last cumulative ACK
+                        if (e.getMessage().compareTo("DOWNLOADRANGE") == 0 || e.getMessage().compareTo("ACK") == 0)
                         {
-                            System.err.println("Error: " + e1.getMessage());
-                            e1.printStackTrace(System.err);
                             ct.incrementN();
-                            e = new Envelope(e1.getMessage());
-                            e.addObject(ct.getN());
+                            e = new Envelope("EOF");             // Tell client end of range
+                            e.addObject(ct.getN());              // Add N
+                            ct.writeMessage(output, e); // Send response
+
+                            // Get message from client
+                            e = readMessage(input, ct);
                         }
                     }
-                    // Send response
-                    output.writeObject(ct.encrypt(e));
-                    output.writeObject(ct.getDigest(e));
+                    catch (Exception e1)
+                    {// A block that fails its check may be from a conversion under the wrong key
+                        FileServer.migrator.restore(sf);
+                        throw e1;
+                    }
+
+                    if (e.getMessage().compareTo("OK") == 0)
+                    {
+                        Log.info("Range %d+%d of %s sent%s", offset, length, remotePath, savings(saved));
+                        if (offset == 0 && length < 0) // Only the whole file reads every block back
+                            FileServer.migrator.confirm(sf);
+                    }
+                    else
+                    {
+                        Log.warn("Range download failed: %s", e.getMessage());
+                        FileServer.migrator.restore(sf);
+                    }
+                }
+            }
+        }
+        /* Client wants the stored cipher text of a file, which it decrypts itself */
+        else if (e.getMessage().compareTo("DOWNLOADRAW") == 0)
+        {
+            if (e.getObjContents().size() < 3)
+            {// Parameters are missing
+                ct.incrementN();
+                response = new Envelope("FAIL-BADCONTENTS");
+                response.addObject(ct.getN());
+            }
+            else
+            {
+                String       remotePath = (String)e.getObjContents().get(1);       // Extract filename
+                SignedObject so         = (SignedObject)e.getObjContents().get(2); // Extract SignedObject
+                UserToken    t          = verifyToken(so, KGS);                    // Extract requester token
+                ShareFile    sf         = FileServer.fileList.getFile(remotePath); // Get the file
+
+                if (t == null)
+                {// Token didn't verify against the group server's key
+                    ct.incrementN();
+                    response = new Envelope("FAIL-BADTOKEN");
+                    response.addObject(ct.getN());
+                }
+                else if (sf == null)
+                {// File does not exist in FileList
+                    Log.warn("Error: File %s doesn't exist", remotePath);
+                    ct.incrementN();
+                    response = new Envelope("ERROR_FILEMISSING");
+                    response.addObject(ct.getN());
+                }
+                else if (!t.getGroups().contains(sf.getGroup()))
+                {// File not in client's groups
+                    Log.warn("Error user %s doesn't have permission", t.getSubject());
+                    ct.incrementN();
+                    response = new Envelope("ERROR_PERMISSION");
+                    response.addObject(ct.getN());
+                }
+                else if (!new File(sf.getPath()).exists())
+                {// File does not exist on server directory
+                    Log.warn("Error file %s missing from disk", sf.getPath());
+                    ct.incrementN();
+                    response = new Envelope("ERROR_NOTONDISK");
+                    response.addObject(ct.getN());
                 }
-                /* Client wants to disconnect */
-                else if (e.getMessage().equals("DISCONNECT"))
+                else if (ChunkStore.isManifest(new File(sf.getPath())))
+                {// Chunks aren't under the group key, the client has to ask for the plain text instead
+                    ct.incrementN();
+                    response = new Envelope("FAIL-NOTRAW");
+                    response.addObject(ct.getN());
+                }
+                else
                 {
-                    socket.close();
-                    proceed = false;
+                    transfer(t.getSubject(), sf.getGroup(), remotePath);
+                    try
+                    {
+                        sendRaw(sf);
+
+                        // Get message from client
+                        e = readMessage(input, ct);
+                    }
+                    catch (Exception e1)
+                    {// The client drops the connection when a block fails its check
+                        FileServer.migrator.restore(sf);
+                        throw e1;
+                    }
+                    if (e.getMessage().compareTo("OK") == 0)
+                    {// The client opened every block under its key
+                        Log.info("Raw download of %s successful", remotePath);
+                        FileServer.migrator.confirm(sf);
+                    }
+                    else
+                    {
+                        Log.warn("Raw download failed: %s", e.getMessage());
+                        FileServer.migrator.restore(sf);
+                    }
+                }
+            }
+        }
+        /* Client hands over a group key so the group's old files can be converted */
+        else if (e.getMessage().compareTo("MIGRATE") == 0)
+        {
+            if (e.getObjContents().size() < 5)
+            {// Parameters are missing
+                ct.incrementN();
+                response = new Envelope("FAIL-BADCONTENTS");
+                response.addObject(ct.getN());
+            }
+            else
+            {
+                String       group    = (String)e.getObjContents().get(1);       // Extract group
+                SecretKey    groupKey = (SecretKey)e.getObjContents().get(2);    // Extract group key
+                byte[]       IV       = (byte[])e.getObjContents().get(3);       // Extract group IV
+                SignedObject so       = (SignedObject)e.getObjContents().get(4); // Extract SignedObject
+                UserToken    t        = verifyToken(so, KGS);                    // Extract requester token
+
+                if (t == null || !t.getGroups().contains(group))
+                {// Requester isn't in the group
+                    ct.incrementN();
+                    response = new Envelope("FAIL-UNAUTHORIZED");
+                    response.addObject(ct.getN());
                 }
                 else
-                {// Server does not understand client request
+                {// Conversion happens in the background, just report how many files were queued
+                    int queued = FileServer.migrator.migrate(group, groupKey, IV);
+                    Log.info("Queued %d files of %s for conversion", queued, group);
                     ct.incrementN();
-                    response = new Envelope("FAIL-BADMSG");
+                    response = new Envelope("OK");
                     response.addObject(ct.getN());
-                    output.writeObject(ct.encrypt(response)); // Send response
+                    response.addObject(queued);
                 }
+            }
+        }
+        /* Client wants to delete file */
+        else if (e.getMessage().compareTo("DELETEF") == 0)
+        {
+            String       remotePath = (String)e.getObjContents().get(1);       // Extract filename
+            SignedObject so         = (SignedObject)e.getObjContents().get(2); // Extract SignedObject
+            UserToken    t          = verifyToken(so, KGS);                    // Extract requester token
+            ShareFile    sf         = FileServer.fileList.getFile(remotePath); // Get the file
+
+            // Check parameters -- TODO: fix this same thing with checking the params in here as well
+            if (e.getObjContents().size() < 3)
+            {
+                ct.incrementN();
+                e = new Envelope("FAIL-BADCONTENTS");   // Tell client parameters are missing
+                e.addObject(ct.getN());
+            }
+            else if (sf == null)
+            {// File does not exist in FileList
+                Log.warn("Error: File %s doesn't exist", remotePath);
+                ct.incrementN();
+                e = new Envelope("ERROR_DOESNTEXIST");  // Tell client file is missing
+                e.addObject(ct.getN());
+            }
+            else if (!t.getGroups().contains(sf.getGroup()))
+            {// File not in requester's groups
+                Log.warn("Error user %s doesn't have permission", t.getSubject());
+                ct.incrementN();
+                e = new Envelope("ERROR_PERMISSION");   // Tell client permission is wrong
+                e.addObject(ct.getN());
+            }
+            else
+            {
+                try
+                {
+                    File f = new File(sf.getPath());
+
+                    if (!f.exists())
+                    {// File does not exist on server directory
+                        Log.warn("Error file %s missing from disk", "_"+remotePath.replace('/', '_'));
+                        ct.incrementN();
+                        e = new Envelope("ERROR_FILEMISSING"); // Tell client file does not exist
+                        e.addObject(ct.getN());
+                    }
+                    else
+                    {// A deduplicated file's chunk list is needed after the file is gone
+                        ChunkStore.Manifest manifest = ChunkStore.isManifest(f) ? ChunkStore.readManifest(f, null) : null;
+                        if (f.delete())
+                        {
+                            StorageMigrator.backupOf(f).delete(); // An original kept from a conversion goes too
+                            FileServer.blockCache.invalidate(f);
+                            Log.info("File %s deleted from disk", "_"+remotePath.replace('/', '_'));
+                            FileServer.fileList.removeFile(remotePath);
+                            FileServer.fileList.commit();
+                            if (manifest != null) // Collect the chunks no other file holds
+                                FileServer.chunkStore.release(manifest);
+                            ct.incrementN();
+                            e = new Envelope("OK"); // Tell client delete successful
+                            e.addObject(ct.getN());
+                        }
+                        else
+                        {
+                            Log.warn("Error deleting file %s from disk", "_"+remotePath.replace('/', '_'));
+                            ct.incrementN();
+                            e = new Envelope("ERROR_DELETE");
+                            e.addObject(ct.getN());
+                        }
+                    }
+                }
+                catch (Exception e1)
+                {
+                    Log.error("Error: %s", e1.getMessage(), e1);
+                    ct.incrementN();
+                    e = new Envelope(e1.getMessage());
+                    e.addObject(ct.getN());
+                }
+            }
+            // Send response
+            ct.writeMessage(output, e);
+        }
+        /* Client wants to turn on optional features */
+        else if (e.getMessage().equals("NEGOTIATE"))
+        {
+            List<String> accepted = CryptoTools.select((List<?>)e.getObjContents().get(1));
+            ct.incrementN();
+            response = new Envelope("OK");
+            response.addObject(ct.getN()); // Add N
+            response.addObject(accepted);  // Add accepted features
+            ct.writeMessage(output, response); // Send response
 
-                // Send digest of response message
-                if (response != null)
-                    output.writeObject(ct.getDigest(response));
-            } while (proceed);
+            // Switch only after the OK went out in the old format
+            ct.enable(accepted);
+            response = null;
         }
-        catch (Exception e)
+        /* Client wants to disconnect */
+        else if (e.getMessage().equals("DISCONNECT"))
+        {
+            socket.close();
+            proceed = false;
+        }
+        else
+        {// Server does not understand client request
+            ct.incrementN();
+            response = new Envelope("FAIL-BADMSG");
+            response.addObject(ct.getN());
+        }
+
+        // Send response message
+        if (response != null)
+            ct.writeMessage(output, response);
+
+        return proceed;
+    }
+
+    /**
+     * Private method that picks the lane a request waits its turn in. Transfers move whole files
+     * and go in one lane, everything else that touches the FileList or disk goes in the other.
+     *
+     * @param command The request
+     *
+     * @return The lane, null for requests that are always answered right away
+     */
+    private static Lane lane(String command)
+    {
+        switch (command)
+        {
+            case "UPLOADF":
+            case "UPLOADDEDUP":
+            case "UPLOADPART":
+            case "DOWNLOADF":
+            case "DOWNLOADRANGE":
+            case "DOWNLOADRAW":
+                return FileServer.transfers;
+            case "LFILES":
+            case "LFILESPAGE":
+            case "LFILESSTREAM":
+            case "UPLOADBEGIN":
+            case "UPLOADCOMMIT":
+            case "UPLOADABORT":
+            case "MIGRATE":
+            case "DELETEF":
+                return FileServer.metadata;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Private method that sends a listing as BATCH messages, one page at a time. The FileList is
+     * only locked while each page is read, so a change made during the listing shows up in it if
+     * it lands past the page being sent.
+     *
+     * @param groups The groups whose files are listed
+     * @param prefix Only paths starting with this are listed, null for every path
+     * @param batch The most paths in each BATCH
+     *
+     * @return The END message to send after the last batch
+     *
+     * @throws Exception
+     */
+    private Envelope sendPaths(List<String> groups, String prefix, int batch) throws Exception
+    {
+        int    count = 0;
+        String after = null;
+        do
         {
-            System.err.println("Error: " + e.getMessage());
-            e.printStackTrace(System.err);
+            ArrayList<String> paths = FileServer.fileList.getPaths(groups, prefix, after, batch);
+            ct.incrementN();
+            Envelope message = new Envelope("BATCH");
+            message.addObject(ct.getN()); // Add N
+            message.addObject(paths);     // Add the batch
+            ct.writeMessage(output, message); // Send batch
+
+            count += paths.size();
+            after  = paths.size() == batch ? paths.get(batch - 1) : null;
+        }
+        while (after != null);
+
+        ct.incrementN();
+        Envelope end = new Envelope("END");
+        end.addObject(ct.getN()); // Add N
+        end.addObject(count);     // Add the number of paths sent
+        return end;
+    }
+
+    /**
+     * Private method that receives the chunks of a streaming upload.
+     * The client may have up to window chunks in flight, every full window is answered with
+     * a cumulative ACK so the N counter still alternates between the two sides.
+     *
+     * @param input The input stream from the client
+     * @param output The output stream to the client
+     * @param ct The CryptoTools for this session
+     * @param out The stream the file is written to
+     * @param window The number of chunks the client may send before waiting for an ACK
+     *
+     * @return The first message that was not a CHUNK
+     *
+     * @throws Exception
+     */
+    private Envelope receiveStream(ObjectInputStream input, ObjectOutputStream output, CryptoTools ct,
+                                   OutputStream out, int window) throws Exception
+    {
+        Envelope e     = readMessage(input, ct);
+        int      count = 0; // Number of chunks received so far
+
+        while (e.getMessage().compareTo("CHUNK") == 0)
+        {// There is a chunk to read
+            TraceEvents.Chunk event = new TraceEvents.Chunk();
+            event.begin();
+            out.write((byte[])e.getObjContents().get(1), 0, (Integer)e.getObjContents().get(2));
+            trace(event, count++, (Integer)e.getObjContents().get(2));
+
+            if (count % window == 0)
+            {// Window is full, acknowledge everything received so far
+                ct.incrementN();
+                Envelope ack = new Envelope("ACK");
+                ack.addObject(ct.getN()); // Add N
+                ack.addObject(count);     // Add cumulative chunk count
+                ct.writeMessage(output, ack); // Send response
+            }
+
+            e = readMessage(input, ct);
         }
+
+        return e;
     }
 
     /**
-     * Private method that verifies and extracts a SignedObject containing the UserToken
+     * Private method that sends a file as a streaming download.
+     * Up to window chunks are sent before waiting on the client's cumulative ACK.
+     *
+     * @param input The input stream from the client
+     * @param output The output stream to the client
+     * @param ct The CryptoTools for this session
+     * @param in The stream the file is read from
+     * @param window The number of chunks to send before waiting for an ACK
+     * @param request The DOWNLOADF request that started this transfer
+     *
+     * @return The last message from the client, the request or an ACK if the client is caught up.
+     *         FAIL-ACK, already sent to the client, if an ACK didn't count every chunk sent before it.
+     *
+     * @throws Exception
+     */
+    private Envelope sendStream(ObjectInputStream input, ObjectOutputStream output, CryptoTools ct,
+                                InputStream in, int window, Envelope request) throws Exception
+    {
+        Envelope   last   = request;
+        ChunkSizer sizer  = chunks();
+        byte[]     buf;
+        int        count  = 0;                 // Number of chunks sent so far
+        long       mark   = System.nanoTime(); // When the chunk being sent was read
+        int        n;
+
+        TraceEvents.Chunk event = new TraceEvents.Chunk();
+        event.begin();
+        while ((n = fill(in, buf = sizer.buffer())) > 0)
+        {// Send file in chunks
+            ct.incrementN();
+            Envelope e = new Envelope("CHUNK");
+            e.addObject(ct.getN());      // Add N
+            e.addObject(chunk(buf, n));  // Add chunk to be sent
+            e.addObject(n);              // Add number of bytes in chunk
+            e.addObject(window);         // Add window so client knows when to ACK
+            ct.writeMessage(output, e); // Send response
+            trace(event, count++, n);
+
+            if (count % window == 0)
+            {// Wait for the client to catch up
+                last = readMessage(input, ct);
+                if (last.getMessage().compareTo("ACK") != 0 || (Integer)last.getObjContents().get(1) != count)
+                {// Client lost chunks or stopped acknowledging them, what it has can't be finished with an EOF
+                    Log.warn("Expected an ACK of %d chunks, got %s", count, last.getMessage());
+                    ct.incrementN();
+                    last = new Envelope("FAIL-ACK");
+                    last.addObject(ct.getN());
+                    ct.writeMessage(output, last); // Send response
+                    return last;
+                }
+            }
+            mark = sizer.record(n, mark);
+
+            // The next chunk's time starts with reading it
+            event = new TraceEvents.Chunk();
+            event.begin();
+        }
+
+        return last;
+    }
+
+    /**
+     * Private method that sends part of a file's plain text. The RANGE reply carries the length of
+     * the whole file and of the part being sent, which is then streamed like a download.
+     * A block file starts reading at the block holding the offset and a deduplicated file at the
+     * chunk holding it. An AES-CBC file starts at the cipher block holding it, with the cipher block
+     * before it as the IV, so none of them decrypts anything in front of the range.
+     *
+     * @param sf The file
+     * @param groupKey The group key
+     * @param IV The group IV
+     * @param offset The first byte to send
+     * @param length The number of bytes to send, -1 for the rest of the file
+     * @param window The number of chunks to send before waiting for an ACK
+     * @param request The DOWNLOADRANGE request
+     *
+     * @return The last message from the client, the request or an ACK if the client is caught up, or
+     *         FAIL-ACK as sendStream returns it
+     *
+     * @throws Exception
+     */
+    private Envelope sendRange(ShareFile sf, SecretKey groupKey, byte[] IV, long offset, long length, int window,
+                               Envelope request) throws Exception
+    {
+        BlockCache.CachedFile fis;
+        synchronized (sf)
+        {// StorageMigrator may swap the file, the open stream keeps the one the length is taken from
+            fis = FileServer.blockCache.open(new File(sf.getPath()));
+        }
+
+        try
+        {
+            FileChannel file      = fis.getChannel();
+            int         blockSize = BlockFile.blockSize(file);
+            long        fileLength;
+            InputStream in;
+            if (blockSize > 0)
+            {
+                fileLength = BlockFile.plainLength(file.size(), blockSize);
+                in         = new BlockFile.Reader(fis, file.size(), groupKey);
+            }
+            else if (ChunkStore.isManifest(new File(sf.getPath())))
+            {
+                ChunkStore.Manifest manifest = ChunkStore.readManifest(fis, file.size(), groupKey);
+                fileLength = manifest.getLength();
+                in         = FileServer.chunkStore.open(manifest);
+            }
+            else
+            {
+                fileLength = cbcLength(file, groupKey, IV);
+                in         = null;
+            }
+
+            long start = Math.min(offset, fileLength);
+            long count = length < 0 ? fileLength - start : Math.min(length, fileLength - start);
+            if (in == null)
+                in = cbcFrom(fis, groupKey, IV, start);
+            else
+                in.skip(start);
+
+            ct.incrementN();
+            Envelope e = new Envelope("RANGE");
+            e.addObject(ct.getN());   // Add N
+            e.addObject(fileLength);  // Add length of the whole file
+            e.addObject(count);       // Add number of bytes that follow
+            ct.writeMessage(output, e); // Send response
+
+            return sendStream(input, output, ct, scheduled(new RangeInputStream(in, count)), window, request);
+        }
+        finally
+        {
+            fis.close();
+        }
+    }
+
+    /**
+     * Private method that finds the plain text length of an AES-CBC file by decrypting only its last
+     * block, whose padding says how much of it is plain text
+     *
+     * @param file The file
+     * @param groupKey The group key
+     * @param IV The group IV
+     *
+     * @return The plain text length
+     *
+     * @throws Exception If the file isn't whole cipher blocks or the padding is wrong
+     */
+    private static long cbcLength(FileChannel file, SecretKey groupKey, byte[] IV) throws Exception
+    {
+        long size = file.size();
+        if (size < 16 || size % 16 != 0)
+            throw new IOException("Not an AES-CBC file");
+
+        byte[] iv   = size > 16 ? readAt(file, size - 32, 16) : IV;
+        byte[] last = readAt(file, size - 16, 16);
+
+        Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, groupKey, new IvParameterSpec(iv));
+        int pad = cipher.doFinal(last)[15] & 0xff;
+        if (pad < 1 || pad > 16)
+            throw new IOException("Bad padding, wrong group key?");
+
+        return size - pad;
+    }
+
+    /**
+     * Private method that starts decrypting an AES-CBC file partway through
+     *
+     * @param fis The file
+     * @param groupKey The group key
+     * @param IV The group IV
+     * @param offset The first plain text byte wanted
+     *
+     * @return A stream of the plain text from offset on
+     *
+     * @throws Exception
+     */
+    private static InputStream cbcFrom(BlockCache.CachedFile fis, SecretKey groupKey, byte[] IV, long offset) throws Exception
+    {
+        long   block = offset / 16;
+        byte[] iv    = block > 0 ? readAt(fis.getChannel(), (block - 1) * 16, 16) : IV;
+        fis.skip(block * 16);
+
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE, groupKey, new IvParameterSpec(iv));
+        DataInputStream in = new DataInputStream(new CipherInputStream(fis, cipher));
+        in.readFully(new byte[(int)(offset % 16)]); // The part of the first block in front of the offset
+        return in;
+    }
+
+    /**
+     * Private method that reads bytes from a given position in a file
+     */
+    private static byte[] readAt(FileChannel file, long position, int length) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining())
+            if (file.read(buf, position + buf.position()) < 0)
+                throw new EOFException();
+        return buf.array();
+    }
+
+    /**
+     * Stream that ends after a given number of bytes
+     */
+    private static class RangeInputStream extends FilterInputStream
+    {
+        private long remaining; // Bytes left in the range
+
+        RangeInputStream(InputStream in, long length)
+        {
+            super(in);
+            remaining = length;
+        }
+
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (remaining <= 0)
+                return -1;
+
+            int n = in.read(b, off, (int)Math.min(len, remaining));
+            if (n > 0)
+                remaining -= n;
+            return n;
+        }
+    }
+
+    /**
+     * Private method that sends a file exactly as it is stored. The length and SHA-256 of the
+     * cipher text go over the session channel, then the bytes follow on the socket outside of it.
+     * The client checks them against the digest, so they still can't be altered on the way.
+     * The bytes come through the block cache, and a selector connection has a SocketChannel that cached
+     * blocks are written to straight from their direct buffers. Each block waits its turn in the fair scheduler.
+     *
+     * @param sf The file
+     *
+     * @throws Exception
+     */
+    private void sendRaw(ShareFile sf) throws Exception
+    {
+        BlockCache.CachedFile file;
+        byte[]                digest;
+        synchronized (sf)
+        {// StorageMigrator swaps the file and its digest together
+            file   = FileServer.blockCache.open(new File(sf.getPath()));
+            digest = sf.getDigest();
+        }
+
+        try
+        {
+            long    size   = file.length();
+            boolean blocks = BlockFile.isBlockFile(new File(sf.getPath()));
+            if (digest == null)
+            {// Uploaded before digests were kept, or replayed from the journal
+                digest = digest(file.getChannel());
+                sf.setDigest(digest);
+            }
+
+            ct.incrementN();
+            Envelope e = new Envelope("RAW");
+            e.addObject(ct.getN()); // Add N
+            e.addObject(size);      // Add number of bytes that follow
+            e.addObject(digest);    // Add digest of those bytes
+            e.addObject(blocks);    // Add whether they are a BlockFile or one AES-CBC stream
+            ct.writeMessage(output, e); // Send response
+            output.flush();
+
+            TraceEvents.Chunk event = new TraceEvents.Chunk(); // The whole file is one chunk
+            event.begin();
+            long position = 0;
+            long n;
+            if (socket.getChannel() != null)
+                while (position < size)
+                {// A block at a time, each one waiting its turn in the fair scheduler
+                    FairScheduler.Ticket ticket = FileServer.scheduler.begin(user, group, BlockCache.BLOCK);
+                    n = 0;
+                    try
+                    {
+                        n = file.transferTo(position, Math.min(BlockCache.BLOCK, size - position), socket.getChannel());
+                    }
+                    finally
+                    {
+                        FileServer.scheduler.end(ticket, (int)n);
+                    }
+                    if (n <= 0)
+                        break;
+                    position += n;
+                }
+            else
+            {// No channel to hand the file to, copy it through one large buffer
+                OutputStream out = socket.getOutputStream();
+                InputStream  in  = scheduled(file);
+                byte[]       buf = new byte[BlockCache.BLOCK];
+                while (position < size && (n = in.read(buf, 0, buf.length)) > 0)
+                {
+                    out.write(buf, 0, (int)n);
+                    position += n;
+                }
+                out.flush();
+            }
+            sent.count(position); // These bytes went around the counting stream
+            trace(event, 0, position);
+
+            if (position < size) // The client is still waiting on the rest
+                throw new IOException("File shrank while it was being sent");
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    /**
+     * Private method that computes the SHA-256 of a file
+     *
+     * @param file The file
+     *
+     * @return The digest
+     *
+     * @throws Exception
+     */
+    private static byte[] digest(FileChannel file) throws Exception
+    {
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        ByteBuffer    buf = ByteBuffer.allocate(1 << 16);
+        long          position = 0;
+        int           n;
+
+        while ((n = file.read(buf, position)) > 0)
+        {
+            sha.update(buf.array(), 0, n);
+            position += n;
+            buf.clear();
+        }
+
+        return sha.digest();
+    }
+
+    /**
+     * Private method that reads until the buffer is full or the stream ends.
+     * CipherInputStream hands back small pieces, which would otherwise become small chunks.
+     *
+     * @param in The stream to read from
+     * @param buf The buffer to fill
+     *
+     * @return The number of bytes read, 0 at the end of the stream
+     *
+     * @throws IOException
+     */
+    private static int fill(InputStream in, byte[] buf) throws IOException
+    {
+        int total = 0;
+        int n;
+
+        while (total < buf.length && (n = in.read(buf, total, buf.length - total)) != -1)
+            total += n;
+
+        return total;
+    }
+
+    /**
+     * Private method that returns this connection's chunk sizer, made once the handshake has agreed on the largest chunk
+     *
+     * @return The sizer
+     */
+    private ChunkSizer chunks()
+    {
+        if (chunks == null)
+            chunks = new ChunkSizer(ct.getMaxChunk());
+        return chunks;
+    }
+
+    /**
+     * Private method that returns the bytes of a chunk to send. The codecs send the whole array,
+     * so the short chunk at the end of a file is copied instead of padding it out to the chunk size.
+     *
+     * @param buf The buffer the chunk was read into
+     * @param n The bytes in the chunk
+     *
+     * @return The buffer, or a copy of its first n bytes
+     */
+    private static byte[] chunk(byte[] buf, int n)
+    {
+        return n == buf.length ? buf : Arrays.copyOf(buf, n);
+    }
+
+    /**
+     * Private method that sets who and what the transfer under way is for, which chunk trace events carry
+     *
+     * @param _user The requester
+     * @param _group The group of the file
+     * @param _path The file
+     */
+    private void transfer(String _user, String _group, String _path)
+    {
+        user  = _user;
+        group = _group;
+        path  = _path;
+    }
+
+    /**
+     * Private method that makes every chunk a download reads go through the FileServer's fair scheduler,
+     * as the user and group of the transfer under way
+     *
+     * @param in The stream the file is read from
+     *
+     * @return The scheduled stream
+     */
+    private InputStream scheduled(InputStream in)
+    {
+        return FileServer.scheduler.open(in, user, group);
+    }
+
+    /**
+     * Private method that makes every chunk an upload writes go through the FileServer's fair scheduler,
+     * as the user and group of the transfer under way
+     *
+     * @param out The stream the file is written to
+     *
+     * @return The scheduled stream
+     */
+    private OutputStream scheduled(OutputStream out)
+    {
+        return FileServer.scheduler.open(out, user, group);
+    }
+
+    /**
+     * Private method that ends a chunk's trace event and commits it if a recording wants it
+     *
+     * @param event The event, begun when work on the chunk started
+     * @param chunk The chunk's number within the transfer
+     * @param bytes The bytes in the chunk
+     */
+    private void trace(TraceEvents.Chunk event, int chunk, long bytes)
+    {
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.connection = id;
+            event.command    = command;
+            event.user       = user;
+            event.group      = group;
+            event.path       = path;
+            event.chunk      = chunk;
+            event.bytes      = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Private method that describes what compression saved during a transfer, for its log line
+     *
+     * @param before What compression had saved when the transfer started
+     *
+     * @return The description, empty if compression wasn't negotiated
+     */
+    private String savings(long before)
+    {
+        if (!ct.isCompressing())
+            return "";
+        return String.format(", %d bytes saved by compression", ct.getBytesSaved() - before);
+    }
+
+    /**
+     * Private method that reads and verifies the next message from the client.
+     * Closes the socket if verification fails.
+     *
+     * @param input The input stream from the client
+     * @param ct The CryptoTools for this session
+     *
+     * @return The message
+     *
+     * @throws Exception If the message could not be verified
+     */
+    private Envelope readMessage(ObjectInputStream input, CryptoTools ct) throws Exception
+    {
+        Envelope e = ct.readMessage(input);
+
+        // Verify message integrity
+        if (ct.verifyMessage(e))
+            ct.incrementN();
+        else
+        {// Verification failed
+            socket.close(); // Close the socket
+            throw new Exception("Message Verification Failed");
+        }
+
+        return e;
+    }
+
+    /**
+     * Private method that verifies and extracts a SignedObject containing the UserToken,
+     * and records how long it took as the TOKEN command
      *
      * @param token The SignedObject containing the UserToken
      * @param publicKey The GroupServer's public key
@@ -526,25 +1884,52 @@ public class FileThread extends Thread
      * @return The UserToken
      */
     private UserToken verifyToken(SignedObject token, PublicKey publicKey)
+    {
+        TraceEvents.Token event = new TraceEvents.Token();
+        event.begin();
+        long      start = System.nanoTime();
+        UserToken t     = checkToken(token, publicKey);
+        FileServer.metrics.record("TOKEN", System.nanoTime() - start, 0, 0, t == null ? "FAIL-TOKEN" : null);
+
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.connection = id;
+            event.user       = t == null ? null : t.getSubject();
+            event.valid      = t != null;
+            event.commit();
+        }
+        return t;
+    }
+
+    /**
+     * Private method that does the work of verifyToken
+     */
+    private UserToken checkToken(SignedObject token, PublicKey publicKey)
     {
         try
-        {// Create Verification Engine
-            Signature verificationEngine = Signature.getInstance("SHA1withRSA", "BC");
-
-            // Return the token if the signedObject is verified
-            if (token.verify(publicKey, verificationEngine))
-            {// Check to make sure this is the correct file server
-                UserToken temp = (UserToken)token.getObject();
-                if (temp.getFileServerID().equals(my_fs.getName() + my_fs.getPort()))
-                    return temp;
-                return null;
+        {// Skip the signature check if this token was verified before
+            String    fingerprint = TokenCache.fingerprint(token, publicKey); // Hashed once, outside the cache's lock
+            UserToken temp        = FileServer.tokenCache.get(fingerprint);
+            if (temp == null)
+            {// Create Verification Engine
+                Signature verificationEngine = Signature.getInstance("SHA1withRSA", "BC");
+
+                // Return null if the signedObject is not verified
+                if (!token.verify(publicKey, verificationEngine))
+                    return null;
+                temp = (UserToken)token.getObject();
+                FileServer.tokenCache.put(fingerprint, temp);
             }
-            else
-                return null;
+
+            // Check to make sure this is the correct file server
+            if (temp.getFileServerID().equals(my_fs.getName() + my_fs.getPort()))
+                return temp;
+            return null;
         }
         catch (Exception e)
         {
-            e.printStackTrace();
+            Log.error("Error verifying token: %s", e.getMessage(), e);
         }
         return null;
     }
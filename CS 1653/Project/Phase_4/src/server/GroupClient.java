@@ -19,7 +19,6 @@ public class GroupClient extends Client implements GroupClientInterface
     private String      password;     // User password
     private String      fileServerID; // FileServer's ID
     private PublicKey   publicKey;    // GroupServer public key
-    private CryptoTools ct;           // Handles a lot of the encryption shit
 
     /**
      * Method responsible for handling the GroupClient side of the handshake protocol
@@ -30,11 +29,20 @@ public class GroupClient extends Client implements GroupClientInterface
     {
         try
         {// Set provider as BouncyCastle
-            Security.addProvider(new BouncyCastleProvider());
+            if (Security.getProvider("BC") == null)
+                Security.addProvider(new BouncyCastleProvider());
 
             // Receive PublicKey from group server
             publicKey = (PublicKey)input.readObject();
 
+            // Skip the RSA exchange if the server gave us a ticket last time
+            if (resume())
+                return true;
+
+            // Newer servers agree on keys in a single round trip
+            if (ecdhe)
+                return ecdhe(publicKey, null);
+
             // Generate RC
             byte[] rndmBytes = new byte[8];
             SecureRandom random = new SecureRandom();
@@ -72,11 +80,10 @@ public class GroupClient extends Client implements GroupClientInterface
             output.writeObject(cipher.doFinal(ct.toByteArray(RC))); // RC
 
             // Receive cipher text and HMAC from group server
-            Envelope envelope = (Envelope)ct.decrypt((byte[])input.readObject());
-            byte[] digest = (byte[])input.readObject();
+            Envelope envelope = ct.readMessage(input);
 
             // Verify message
-            if (ct.verifyMessage(envelope, digest))
+            if (ct.verifyMessage(envelope))
                 ct.incrementN();
             else
             {// Verification failed
@@ -87,7 +94,10 @@ public class GroupClient extends Client implements GroupClientInterface
 
             // Check challenge response
             BigInteger RCResponse = (BigInteger)envelope.getObjContents().get(1);
-            return RCResponse.compareTo(new BigInteger(String.valueOf(RC.intValue() + 1))) == 0;
+            if (RCResponse.compareTo(new BigInteger(String.valueOf(RC.intValue() + 1))) != 0)
+                return false;
+
+            return finish(envelope);
         }
         catch (Exception e)
         {
@@ -120,14 +130,13 @@ public class GroupClient extends Client implements GroupClientInterface
             message.addObject(username);     // Add user name string
             message.addObject(password);     // Add password
             message.addObject(fileServerID); // Add fileServerID;
-            output.writeObject(ct.encrypt(message));   // Send message
-            output.writeObject(ct.getDigest(message)); // Send digest
+            ct.writeMessage(output, message); // Send message
 
             // Get the response from the server
-            response = (Envelope)ct.decrypt((byte[])input.readObject());
+            response = ct.readMessage(input);
 
             // Verify message
-            if (ct.verifyMessage(response, (byte[])input.readObject()))
+            if (ct.verifyMessage(response))
                 ct.incrementN();
             else
             {// Verification failed
@@ -177,14 +186,13 @@ public class GroupClient extends Client implements GroupClientInterface
             message.addObject(username);  // Add user name string
             message.addObject(password);  // Add user password
             message.addObject(token);     // Add the requester token
-            output.writeObject(ct.encrypt(message));   // Send message
-            output.writeObject(ct.getDigest(message)); // Send digest
+            ct.writeMessage(output, message); // Send message
 
             // Get server response
-            response = (Envelope)ct.decrypt((byte[])input.readObject());
+            response = ct.readMessage(input);
 
             // Verify message
-            if (ct.verifyMessage(response, (byte[])input.readObject()))
+            if (ct.verifyMessage(response))
                 ct.incrementN();
             else
             {// Verification failed
@@ -227,14 +235,13 @@ public class GroupClient extends Client implements GroupClientInterface
             message.addObject(ct.getN()); // Add N
             message.addObject(username);  // Add user name
             message.addObject(token);     // Add requester token
-            output.writeObject(ct.encrypt(message));   // Send message
-            output.writeObject(ct.getDigest(message)); // Send digest
+            ct.writeMessage(output, message); // Send message
 
             // Get server response
-            response = (Envelope)ct.decrypt((byte[])input.readObject());
+            response = ct.readMessage(input);
 
             // Verify message
-            if (ct.verifyMessage(response, (byte[])input.readObject()))
+            if (ct.verifyMessage(response))
                 ct.incrementN();
             else
             {// Verification failed
@@ -276,14 +283,13 @@ public class GroupClient extends Client implements GroupClientInterface
             message.addObject(ct.getN()); // Add N
             message.addObject(groupname); // Add the group name string
             message.addObject(token);     // Add the requester token
-            output.writeObject(ct.encrypt(message));   // Send message
-            output.writeObject(ct.getDigest(message)); // Send digest
+            ct.writeMessage(output, message); // Send message
 
             // Get server response
-            response = (Envelope)ct.decrypt((byte[])input.readObject());
+            response = ct.readMessage(input);
 
             // Verify message
-            if (ct.verifyMessage(response, (byte[])input.readObject()))
+            if (ct.verifyMessage(response))
                 ct.incrementN();
             else
             {// Verification failed
@@ -325,14 +331,13 @@ public class GroupClient extends Client implements GroupClientInterface
             message.addObject(ct.getN()); // Add N
             message.addObject(groupname); // Add group name string
             message.addObject(token);     // Add requester token
-            output.writeObject(ct.encrypt(message));   // Send message
-            output.writeObject(ct.getDigest(message)); // Send digest
+            ct.writeMessage(output, message); // Send message
 
             // Get server response
-            response = (Envelope)ct.decrypt((byte[])input.readObject());
+            response = ct.readMessage(input);
 
             // Verify message
-            if (ct.verifyMessage(response, (byte[])input.readObject()))
+            if (ct.verifyMessage(response))
                 ct.incrementN();
             else
             {// Verification failed
@@ -378,14 +383,13 @@ public class GroupClient extends Client implements GroupClientInterface
             message.addObject(ct.getN()); // Add N
             message.addObject(group);     // Add group name string
             message.addObject(token);     // Add requester token
-            output.writeObject(ct.encrypt(message));   // Send message
-            output.writeObject(ct.getDigest(message)); // Send digest
+            ct.writeMessage(output, message); // Send message
 
             // Get server response
-            response = (Envelope)ct.decrypt((byte[])input.readObject());
+            response = ct.readMessage(input);
 
             // Verify message
-            if (ct.verifyMessage(response, (byte[])input.readObject()))
+            if (ct.verifyMessage(response))
                 ct.incrementN();
             else
             {// Verification failed
@@ -432,14 +436,13 @@ public class GroupClient extends Client implements GroupClientInterface
             message.addObject(username);  // Add user name string
             message.addObject(groupname); // Add group name string
             message.addObject(token);     // Add requester token
-            output.writeObject(ct.encrypt(message));   // Send message
-            output.writeObject(ct.getDigest(message)); // Send digest
+            ct.writeMessage(output, message); // Send message
 
             // Get server response
-            response = (Envelope)ct.decrypt((byte[])input.readObject());
+            response = ct.readMessage(input);
 
             // Verify message
-            if (ct.verifyMessage(response, (byte[])input.readObject()))
+            if (ct.verifyMessage(response))
                 ct.incrementN();
             else
             {// Verification failed
@@ -483,14 +486,13 @@ public class GroupClient extends Client implements GroupClientInterface
             message.addObject(username);  // Add user name string
             message.addObject(groupname); // Add group name string
             message.addObject(token);     // Add requester token
-            output.writeObject(ct.encrypt(message));   // Send message
-            output.writeObject(ct.getDigest(message)); // Send digest
+            ct.writeMessage(output, message); // Send message
 
             // Get server response
-            response = (Envelope)ct.decrypt((byte[])input.readObject());
+            response = ct.readMessage(input);
 
             // Verify message
-            if (ct.verifyMessage(response, (byte[])input.readObject()))
+            if (ct.verifyMessage(response))
                 ct.incrementN();
             else
             {// Verification failed
@@ -522,14 +524,13 @@ public class GroupClient extends Client implements GroupClientInterface
             message.addObject(ct.getN()); // Add N
             message.addObject(groupname); // Add group name string
             message.addObject(token);     // Add requester token
-            output.writeObject(ct.encrypt(message));   // Send message
-            output.writeObject(ct.getDigest(message)); // Send digest
+            ct.writeMessage(output, message); // Send message
 
             // Get server response
-            response = (Envelope)ct.decrypt((byte[])input.readObject());
+            response = ct.readMessage(input);
 
             // Verify message
-            if (ct.verifyMessage(response, (byte[])input.readObject()))
+            if (ct.verifyMessage(response))
                 ct.incrementN();
             else
             {// Verification failed
@@ -577,8 +578,7 @@ public class GroupClient extends Client implements GroupClientInterface
                 ct.incrementN();
                 Envelope message = new Envelope("DISCONNECT");
                 message.addObject(ct.getN());
-                output.writeObject(ct.encrypt(message));   // Send message
-                output.writeObject(ct.getDigest(message)); // Send digest
+                ct.writeMessage(output, message); // Send message
             }
             catch(Exception e)
             {
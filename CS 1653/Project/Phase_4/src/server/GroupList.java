@@ -4,28 +4,43 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * This list represents the groups on GroupServer
+ *
+ * Guarded by a read/write lock the same way as UserList. Member lists are handed out as copies.
  */
 public class GroupList implements Serializable
 {
     private static final long serialVersionUID = 7600343803563417993L;
     private Hashtable<String, Group> list = new Hashtable<>(); // list of groups
+    private transient ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // Guards list and every Group in it
 
     /**
      * Adds some group to GroupList
      *
      * @param groupname The group
      */
-    public synchronized void addGroup(String groupname)
+    public void addGroup(String groupname)
     {
-        Group newGroup = new Group();
-        list.put(groupname, newGroup);
+        Group newGroup = new Group(); // Generates the group key, no need to hold the lock for that
+        lock.writeLock().lock();
+        try
+        {
+            list.put(groupname, newGroup);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
@@ -33,9 +48,17 @@ public class GroupList implements Serializable
      *
      * @param groupname The group
      */
-    public synchronized void deleteGroup(String groupname)
+    public void deleteGroup(String groupname)
     {
-        list.remove(groupname);
+        lock.writeLock().lock();
+        try
+        {
+            list.remove(groupname);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
@@ -45,9 +68,17 @@ public class GroupList implements Serializable
      *
      * @return true is group was found, false otherwise
      */
-    public synchronized boolean checkGroup(String groupname)
+    public boolean checkGroup(String groupname)
     {
-        return list.containsKey(groupname);
+        lock.readLock().lock();
+        try
+        {
+            return list.containsKey(groupname);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -57,9 +88,17 @@ public class GroupList implements Serializable
      *
      * @return The list of members, null otherwise
      */
-    public synchronized ArrayList<String> getGroupMembers(String groupname)
+    public ArrayList<String> getGroupMembers(String groupname)
     {
-        return list.get(groupname).getMembers();
+        lock.readLock().lock();
+        try
+        {
+            return new ArrayList<>(list.get(groupname).getMembers());
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -69,9 +108,17 @@ public class GroupList implements Serializable
      *
      * @return The owner of group, null otherwise
      */
-    public synchronized String getGroupOwner(String groupname)
+    public String getGroupOwner(String groupname)
     {
-        return list.get(groupname).getOwner();
+        lock.readLock().lock();
+        try
+        {
+            return list.get(groupname).getOwner();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -80,9 +127,17 @@ public class GroupList implements Serializable
      * @param username The member
      * @param groupname The group
      */
-    public synchronized void addMember(String username, String groupname)
+    public void addMember(String username, String groupname)
     {
-        list.get(groupname).addMember(username);
+        lock.writeLock().lock();
+        try
+        {
+            list.get(groupname).addMember(username);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
@@ -92,12 +147,20 @@ public class GroupList implements Serializable
      * @param username The member
      * @param groupname The group
      */
-    public synchronized void removeMember(String username, String groupname)
-    { // deletes group if removed member is owner
-        if ( list.get(groupname).getOwner().equals(username) )
-            deleteGroup(groupname);
-        else
-            list.get(groupname).removeMember(username);
+    public void removeMember(String username, String groupname)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if (list.get(groupname).getOwner().equals(username)) // deletes group if removed member is owner
+                deleteGroup(groupname);
+            else
+                list.get(groupname).removeMember(username);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
@@ -106,9 +169,17 @@ public class GroupList implements Serializable
      * @param username The member
      * @param groupname The group
      */
-    public synchronized void setOwner(String username, String groupname)
+    public void setOwner(String username, String groupname)
     {
-        list.get(groupname).setOwner(username);
+        lock.writeLock().lock();
+        try
+        {
+            list.get(groupname).setOwner(username);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
@@ -118,9 +189,17 @@ public class GroupList implements Serializable
      *
      * @return The group key
      */
-    public synchronized SecretKey getGroupKey(String groupname)
+    public SecretKey getGroupKey(String groupname)
     {
-        return list.get(groupname).getGroupKey();
+        lock.readLock().lock();
+        try
+        {
+            return list.get(groupname).getGroupKey();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -130,9 +209,42 @@ public class GroupList implements Serializable
      *
      * @return The initialization vector
      */
-    public synchronized byte[] getGroupIV(String groupname)
+    public byte[] getGroupIV(String groupname)
+    {
+        lock.readLock().lock();
+        try
+        {
+            return list.get(groupname).getIV();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Serializes the list under the read lock so a save never sees a half-made change
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        lock.readLock().lock();
+        try
+        {
+            out.defaultWriteObject();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gives a deserialized list its lock
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
     {
-        return list.get(groupname).getIV();
+        in.defaultReadObject();
+        lock = new ReentrantReadWriteLock();
     }
 
     /**
@@ -153,7 +265,8 @@ public class GroupList implements Serializable
             owner   = null;
             members = new ArrayList<>();
 
-            Security.addProvider(new BouncyCastleProvider());
+            if (Security.getProvider("BC") == null)
+                Security.addProvider(new BouncyCastleProvider());
             try
             {
                 KeyGenerator keyGenerator = KeyGenerator.getInstance("AES", "BC");
@@ -5,6 +5,12 @@ import java.net.Socket;
 import java.io.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * GroupServer loads the users from UserList.bin and the groups from GroupList.bin,
@@ -19,6 +25,13 @@ public class GroupServer extends Server
     public GroupList  groupList;  // The list of groups on this server
     public PublicKey  publicKey;  // The public key of the server
     public PrivateKey privateKey; // The private key of the server
+    public SessionTickets tickets = new SessionTickets(3600000); // Resumption tickets, valid for an hour
+    public TokenCache tokenCache = new TokenCache(10000, 600000); // Tokens already verified, kept for 10 minutes
+    public Metrics    metrics    = new Metrics("GroupServer");    // Counts and latencies of every command
+    private int             maxConnections; // Connections served at once on the executor, 0 for a GroupThread per connection
+    private ExecutorService executor;       // Runs connections when maxConnections is set
+    private ServerSocket    serverSock;     // Closed by stop
+    private volatile boolean stopping;      // Whether stop has been called
 
     /**
      * Default constructor.
@@ -40,6 +53,41 @@ public class GroupServer extends Server
 		super(_port, "ALPHA");
 	}
 
+    /**
+     * Runs each connection on a virtual thread instead of starting a GroupThread for it.
+     * Virtual threads need Java 21, on older runtimes the connections share a thread pool instead.
+     * Either way at most maxConnections are served at once, the rest wait in the accept backlog.
+     *
+     * @param _maxConnections The most connections served at once
+     */
+    public void useExecutor(int _maxConnections)
+    {
+        maxConnections = _maxConnections;
+    }
+
+    /**
+     * Stops accepting connections and gives the ones being served a few seconds to finish
+     */
+    public void stop()
+    {
+        stopping = true;
+        try
+        {
+            if (serverSock != null)
+                serverSock.close();
+            if (executor != null)
+            {
+                executor.shutdown();
+                if (!executor.awaitTermination(5, TimeUnit.SECONDS))
+                    Log.warn("Connections still open, saving anyway");
+            }
+        }
+        catch (IOException | InterruptedException e)
+        {
+            Log.error("Error stopping: %s", e.getMessage(), e);
+        }
+    }
+
     /**
      * Main server method
      */
@@ -133,10 +181,21 @@ public class GroupServer extends Server
 		aSave.setDaemon(true);
 		aSave.start();
 
+        // Expose metrics over JMX, and print them when stats is typed at the console
+        metrics.register();
+        new StatsConsole(console, metrics).start();
+
 		// This block listens for connections and creates threads on new connections
 		try
 		{
-			final ServerSocket serverSock = new ServerSocket(port);
+            if (maxConnections > 0)
+            {
+                serverSock = new ServerSocket(port, 1024); // Room for a login storm to queue up
+                serve();
+                return;
+            }
+
+			serverSock = new ServerSocket(port);
             System.out.printf("%s up and running\n", this.getClass().getName());
 
 			Socket      sock;
@@ -151,10 +210,89 @@ public class GroupServer extends Server
 		}
 		catch (Exception e)
 		{
+            if (stopping)
+                return;
 			System.err.println("Error: " + e.getMessage());
 			e.printStackTrace(System.err);
 		}
 	}
+
+    /**
+     * Accepts connections and runs them on the executor, at most maxConnections at a time, until stop is called
+     *
+     * @throws Exception If accepting fails for any reason but stop closing the socket
+     */
+    private void serve() throws Exception
+    {
+        executor = newConnectionExecutor();
+        final Semaphore permits = new Semaphore(maxConnections);
+        System.out.printf("%s up and running on %s, at most %d connections at once\n", this.getClass().getName(),
+                          executor instanceof ThreadPoolExecutor ? "a thread pool" : "virtual threads",
+                          maxConnections);
+
+        while (!stopping)
+        {// Leave connections in the backlog while at the limit, looking up now and then in case stop was called
+            if (!permits.tryAcquire(1, TimeUnit.SECONDS))
+                continue;
+            Socket sock;
+            try
+            {
+                sock = serverSock.accept();
+            }
+            catch (IOException e)
+            {
+                permits.release();
+                if (stopping) // stop closed the socket
+                    return;
+                throw e;
+            }
+
+            final GroupThread handler = new GroupThread(sock, this); // Run on the executor, never started
+            try
+            {
+                executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            handler.run();
+                        }
+                        finally
+                        {
+                            permits.release();
+                        }
+                    }
+                });
+            }
+            catch (RejectedExecutionException e)
+            {// stop shut the executor down after this connection was accepted
+                permits.release();
+                sock.close();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns an executor that starts a virtual thread per connection, or a pool of platform
+     * threads that are reused between connections if this runtime doesn't have virtual threads
+     *
+     * @return The executor
+     */
+    private static ExecutorService newConnectionExecutor()
+    {
+        try
+        {// Looked up by name so the server still builds and runs before Java 21
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {// Said once at startup so a pooled run isn't mistaken for a virtual thread one
+            Log.warn("Java %s has no virtual threads, -virtual runs connections on a cached thread pool instead",
+                     System.getProperty("java.version"));
+            return Executors.newCachedThreadPool();
+        }
+    }
 }
 
 /**
@@ -172,6 +310,7 @@ class ShutDownListener extends Thread
 	public void run()
 	{
 		System.out.println("Shutting down server");
+		my_gs.stop();
 		ObjectOutputStream outStream;
 		try
 		{
@@ -221,6 +360,7 @@ class AutoSave extends Thread
 					System.err.println("Error: " + e.getMessage());
 					e.printStackTrace(System.err);
 				}
+				Log.info("Group server stats%n%s%n%s", my_gs.tokenCache.toString(), my_gs.metrics.toString().trim());
             }
 			catch(Exception e)
 			{
@@ -20,6 +20,8 @@ public class GroupThread extends Thread
 {
 	private final Socket      socket; // The socket
 	private       GroupServer my_gs;  // The GroupServer
+	private       Metrics.CountingInputStream  received; // Counts the bytes read from the client
+	private       Metrics.CountingOutputStream sent;     // Counts the bytes written to the client
 
     /**
      * Constructor which accepts the socket and GroupServer
@@ -41,19 +43,28 @@ public class GroupThread extends Thread
 	public void run()
 	{
 		boolean proceed = true;
+		String  command = "HANDSHAKE";       // What is being answered, null while waiting for a request
+		long    start   = System.nanoTime(); // When it started
+		long    in      = 0;                 // Bytes read before it started
+		long    out     = 0;                 // Bytes written before it started
 
+		my_gs.metrics.connectionOpened();
 		try
 		{
 			// Announces connection and opens object streams
-			System.out.println("*** New connection from " + socket.getInetAddress() + ":" + socket.getPort() + " ***");
-			final ObjectInputStream  input  = new ObjectInputStream(socket.getInputStream());
-			final ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+			Log.info("*** New connection from %s ***", socket.getRemoteSocketAddress());
+			socket.setTcpNoDelay(true); // Handshake replies are several small writes, don't let Nagle hold them back
+			received = new Metrics.CountingInputStream(socket.getInputStream());
+			sent     = new Metrics.CountingOutputStream(socket.getOutputStream());
+			final ObjectInputStream  input  = new ObjectInputStream(received);
+			final ObjectOutputStream output = new ObjectOutputStream(sent);
 
             /* HANDSHAKE PROTOCOL */
-            System.out.println("Handshake with GroupClient started");
+            Log.debug("Handshake with GroupClient started");
 
             // Set provider as BouncyCastle
-            Security.addProvider(new BouncyCastleProvider());
+            if (Security.getProvider("BC") == null)
+                Security.addProvider(new BouncyCastleProvider());
 
             // Set RSA cipher
             Cipher cipher = Cipher.getInstance("RSA", "BC");
@@ -62,39 +73,120 @@ public class GroupThread extends Thread
             // Send Public Key to client
             output.writeObject(my_gs.publicKey);
 
-            // Needed to convert from byte arrays
-            CryptoTools ct = new CryptoTools();
-
-            // Set up CryptoTools
-            ct = new CryptoTools(new BigInteger(cipher.doFinal((byte[])input.readObject())).intValue(),   // N       // N
-                                (SecretKey)ct.fromByteArray(cipher.doFinal((byte[])input.readObject())),  // KS
-                                 cipher.doFinal((byte[])input.readObject()),                              // IV
-                                (SecretKey)ct.fromByteArray(cipher.doFinal((byte[]) input.readObject()))); // KH
-            BigInteger RC = (BigInteger)ct.fromByteArray(cipher.doFinal((byte[]) input.readObject()));     // RC
+            // A returning client may present a ticket instead of new session keys
+            CryptoTools ct    = null;
+            Object      first = input.readObject();
+            Envelope    envelope = null;
+            if (first instanceof Envelope && ((Envelope)first).getMessage().equals("RESUME"))
+            {// Try to resume, fall back to the full handshake if the ticket is refused
+                Envelope resume = (Envelope)first;
+                SessionTickets.Ticket ticket = my_gs.tickets.redeem((byte[])resume.getObjContents().get(0));
+                byte[] clientNonce = (byte[])resume.getObjContents().get(1);
+                if (ticket != null && clientNonce != null && clientNonce.length == SessionTickets.NONCE_LENGTH)
+                {// Send our nonce, then both sides derive the session keys from the ticket secret
+                    byte[] serverNonce = my_gs.tickets.random(SessionTickets.NONCE_LENGTH);
+                    envelope = new Envelope("RESUMED");
+                    envelope.addObject(serverNonce);
+                    output.writeObject(envelope);
+
+                    ct = CryptoTools.resume(ticket.secret, clientNonce, serverNonce);
+
+                    // Echo the client's nonce in place of RC + 1
+                    ct.incrementN();
+                    envelope = new Envelope("RESUMED");
+                    envelope.addObject(ct.getN());  // Add N
+                    envelope.addObject(clientNonce); // Add client nonce
+                }
+                else
+                {
+                    output.writeObject(new Envelope("FAIL-RESUME"));
+                    first = input.readObject();
+                }
+            }
 
-            // RC + 1
-            RC = new BigInteger(String.valueOf(RC.intValue() + 1));  // RC + 1
+            List<String> agreed = null; // Features agreed in an ECDHE hello
+            if (ct == null && first instanceof Envelope && ((Envelope)first).getMessage().equals("ECDHE"))
+            {// Ephemeral key agreement, one round trip and a single RSA signature
+                Envelope hello       = (Envelope)first;
+                byte[]   clientPoint = (byte[])hello.getObjContents().get(0);
+                byte[]   clientNonce = (byte[])hello.getObjContents().get(1);
+                List<?>  offered     = (List<?>)hello.getObjContents().get(3);
+                agreed = CryptoTools.select(offered);
+
+                // Sign the exchange and the features so the client knows who it agreed with, and on what
+                KeyPair   ephemeral   = CryptoTools.generateEphemeral();
+                byte[]    serverPoint = ephemeral.getPublic().getEncoded();
+                byte[]    serverNonce = my_gs.tickets.random(SessionTickets.NONCE_LENGTH);
+                Signature signer      = Signature.getInstance("SHA256withRSA");
+                signer.initSign(my_gs.privateKey);
+                signer.update(CryptoTools.transcript(clientPoint, clientNonce, null, serverPoint, serverNonce,
+                                                     CryptoTools.transcript(offered), CryptoTools.transcript(agreed)));
+
+                envelope = new Envelope("ECDHE");
+                envelope.addObject(serverPoint);   // Add server ephemeral key
+                envelope.addObject(serverNonce);   // Add server nonce
+                envelope.addObject(signer.sign()); // Add signature
+                envelope.addObject(agreed);        // Add features agreed, covered by the signature
+                output.writeObject(envelope);
+
+                ct = CryptoTools.agree(ephemeral.getPrivate(), clientPoint, clientNonce, serverNonce);
+
+                // Echo the client's nonce in place of RC + 1
+                ct.incrementN();
+                envelope = new Envelope("ECDHE");
+                envelope.addObject(ct.getN());  // Add N
+                envelope.addObject(clientNonce); // Add client nonce
+            }
 
-            // Encrypt and send back challenge response using KS
-            ct.incrementN();
-            Envelope envelope = new Envelope("RC+1");
-            envelope.addObject(ct.getN()); // Add N
-            envelope.addObject(RC);        // Add RC
-            output.writeObject(ct.encrypt(envelope));   // Send cipher text
-            output.writeObject(ct.getDigest(envelope)); // Send message digest
+            if (ct == null)
+            {// Full handshake
+                // Needed to convert from byte arrays
+                ct = new CryptoTools();
+
+                // Set up CryptoTools
+                ct = new CryptoTools(new BigInteger(cipher.doFinal((byte[])first)).intValue(),                  // N
+                                    (SecretKey)ct.fromByteArray(cipher.doFinal((byte[])input.readObject())),  // KS
+                                     CryptoTools.leftPad(cipher.doFinal((byte[])input.readObject()), 16),    // IV
+                                    (SecretKey)ct.fromByteArray(cipher.doFinal((byte[]) input.readObject()))); // KH
+                BigInteger RC = (BigInteger)ct.fromByteArray(cipher.doFinal((byte[]) input.readObject()));     // RC
+
+                // RC + 1
+                RC = new BigInteger(String.valueOf(RC.intValue() + 1));  // RC + 1
+
+                // Encrypt and send back challenge response using KS
+                ct.incrementN();
+                envelope = new Envelope("RC+1");
+                envelope.addObject(ct.getN()); // Add N
+                envelope.addObject(RC);        // Add RC
+            }
 
-            System.out.println("Handshake with GroupClient complete");
+            // Hand out a ticket for the next connection
+            byte[] secret = my_gs.tickets.random(SessionTickets.SECRET_LENGTH);
+            envelope.addObject(CryptoTools.getCapabilities()); // Add features the client may negotiate
+            envelope.addObject(my_gs.tickets.issue(secret, null)); // Add ticket
+            envelope.addObject(secret);                            // Add ticket secret
+            if (agreed != null)
+                envelope.addObject(agreed); // Add features agreed in the hello
+            ct.writeMessage(output, envelope); // Send challenge response
+            if (agreed != null)
+                ct.enable(agreed);
+
+            Log.debug("Handshake with GroupClient complete");
+            command = record(command, start, in, out, null);
    			do
-			{// Listen for messages from client
-                Envelope message = (Envelope) ct.decrypt((byte[]) input.readObject());
-                byte[]   digest  = (byte[])input.readObject();
-                System.out.println("Request received: " + message.getMessage());
+			{// Listen for messages from client, time starts once one has arrived
+                in  = received.getCount();
+                out = sent.getCount();
+                Envelope message = ct.readMessage(input);
+                command = message.getMessage();
+                start   = System.nanoTime();
+                Log.debug("Request received: %s", message.getMessage());
                 // Verify message integrity
-                if (ct.verifyMessage(message, digest))
+                if (ct.verifyMessage(message))
                     ct.incrementN();
                 else
                 {// Verification failed
-                    System.out.println("Message Verification Failed");
+                    Log.warn("Message Verification Failed");
                     socket.close();  // Close the socket
                     proceed = false; // End this communication loop
                 }
@@ -115,7 +207,6 @@ public class GroupThread extends Thread
 						response = new Envelope("FAIL");
                         response.addObject(ct.getN());
 						response.addObject(null);
-						output.writeObject(ct.encrypt(response));
 					}
 					else
 					{// Create a SignedObject containing the token
@@ -126,7 +217,6 @@ public class GroupThread extends Thread
 						response = new Envelope("OK");
                         response.addObject(ct.getN());
 						response.addObject(so);
-						output.writeObject(ct.encrypt(response));
 					}
 				}
                 /* Client wants to create a user */
@@ -156,7 +246,6 @@ public class GroupThread extends Thread
                     // Send response
                     ct.incrementN();
                     response.addObject(ct.getN());
-					output.writeObject(ct.encrypt(response));
 				}
                 /* Client wants to delete a user */
 				else if (message.getMessage().equals("DUSER"))
@@ -183,7 +272,6 @@ public class GroupThread extends Thread
 					// Send response
                     ct.incrementN();
                     response.addObject(ct.getN());
-                    output.writeObject(ct.encrypt(response));
 				}
                 /* Client wants to create a group */
 				else if (message.getMessage().equals("CGROUP"))
@@ -210,7 +298,6 @@ public class GroupThread extends Thread
                     // Send response
                     ct.incrementN();
                     response.addObject(ct.getN());
-                    output.writeObject(ct.encrypt(response));
 				}
                 /* Client wants to delete a group */
 				else if (message.getMessage().equals("DGROUP"))
@@ -237,7 +324,6 @@ public class GroupThread extends Thread
                     // Send response
                     ct.incrementN();
                     response.addObject(ct.getN());
-                    output.writeObject(ct.encrypt(response));
 				}
                 /* Client wants a list of members in a group */
 				else if (message.getMessage().equals("LMEMBERS"))
@@ -248,7 +334,6 @@ public class GroupThread extends Thread
                         ct.incrementN();
                         response = new Envelope("FAIL");
                         response.addObject(ct.getN());
-                        output.writeObject(ct.encrypt(response));
                     }
                     else
                     {
@@ -268,14 +353,12 @@ public class GroupThread extends Thread
                                     response = new Envelope("OK");
                                     response.addObject(ct.getN());
                                     response.addObject(temp);
-                                    output.writeObject(ct.encrypt(response));
                                 }
                                 else
                                 {// Member list was not returned
                                     ct.incrementN();
                                     response = new Envelope("FAIL");
                                     response.addObject(ct.getN());
-                                    output.writeObject(ct.encrypt(response));
                                 }
                             }
                             else
@@ -283,7 +366,6 @@ public class GroupThread extends Thread
                                 ct.incrementN();
                                 response = new Envelope("FAIL");
                                 response.addObject(ct.getN());
-                                output.writeObject(ct.encrypt(response));
                             }
                         }
                         else
@@ -291,7 +373,6 @@ public class GroupThread extends Thread
                             ct.incrementN();
                             response = new Envelope("FAIL");
                             response.addObject(ct.getN());
-                            output.writeObject(ct.encrypt(response));
                         }
                     }
 				}
@@ -322,7 +403,6 @@ public class GroupThread extends Thread
                     // Send response
                     ct.incrementN();
                     response.addObject(ct.getN());
-                    output.writeObject(ct.encrypt(response));
 				}
                 /* Client wants to remove user from a group */
 				else if (message.getMessage().equals("RUSERFROMGROUP"))
@@ -351,7 +431,6 @@ public class GroupThread extends Thread
                     // Send response
                     ct.incrementN();
                     response.addObject(ct.getN());
-                    output.writeObject(ct.encrypt(response));
                 }
                 /* Client wants a group's key and IV */
                 else if (message.getMessage().equals("GETGROUPKEY"))
@@ -383,7 +462,6 @@ public class GroupThread extends Thread
                                         response.addObject(ct.getN());
                                         response.addObject(my_gs.groupList.getGroupKey(groupname));
                                         response.addObject(my_gs.groupList.getGroupIV(groupname));
-                                        output.writeObject(ct.encrypt(response));
                                     }
                                     else
                                     {// Requester not part of group
@@ -414,11 +492,27 @@ public class GroupThread extends Thread
                         }
                     }
                 }
+                /* Client wants to turn on optional features */
+                else if (message.getMessage().equals("NEGOTIATE"))
+                {
+                    List<String> accepted = CryptoTools.select((List<?>)message.getObjContents().get(1));
+                    ct.incrementN();
+                    response = new Envelope("OK");
+                    response.addObject(ct.getN()); // Add N
+                    response.addObject(accepted);  // Add accepted features
+                    ct.writeMessage(output, response); // Send response
+
+                    // Switch only after the OK went out in the old format
+                    ct.enable(accepted);
+                    command = record(command, start, in, out, response.getMessage());
+                    continue;
+                }
                 /* Client wants to disconnect */
 				else if (message.getMessage().equals("DISCONNECT"))
 				{
 					socket.close();  // Close the socket
 					proceed = false; // End this communication loop
+                    command = record(command, start, in, out, null);
                     break;
 				}
 				else
@@ -426,22 +520,46 @@ public class GroupThread extends Thread
 					response = new Envelope("FAIL"); // Server does not understand client request
                     ct.incrementN();
                     response.addObject(ct.getN());
-                    output.writeObject(ct.encrypt(response));
 				}
 
-                // Send digest of response message
-                output.writeObject(ct.getDigest(response));
+                // Send response message
+                ct.writeMessage(output, response);
+                command = record(command, start, in, out, response.getMessage());
 			} while (proceed);
 		}
 		catch (Exception e)
 		{
-			System.err.println("Error: " + e.getMessage());
-			e.printStackTrace(System.err);
+			Log.error("Error: %s", e.getMessage(), e);
+			if (command != null)
+				record(command, start, in, out, Metrics.EXCEPTION);
+		}
+		finally
+		{
+			my_gs.metrics.connectionClosed();
 		}
 	}
 
     /**
-     * Private method that verifies and extracts a SignedObject containing the UserToken
+     * Private method that records a request in the server's metrics
+     *
+     * @param command The request's message
+     * @param start When it started, from System.nanoTime
+     * @param in The bytes read before it started
+     * @param out The bytes written before it started
+     * @param outcome The message of the response, null if there was none
+     *
+     * @return null, for clearing the command being answered
+     */
+    private String record(String command, long start, long in, long out, String outcome)
+    {
+        my_gs.metrics.record(command, System.nanoTime() - start,
+                             received == null ? 0 : received.getCount() - in, sent == null ? 0 : sent.getCount() - out, outcome);
+        return null;
+    }
+
+    /**
+     * Private method that verifies and extracts a SignedObject containing the UserToken,
+     * and records how long it took as the TOKEN command
      *
      * @param token The SignedObject containing the UserToken
      * @param publicKey The GroupServer's public key
@@ -449,20 +567,41 @@ public class GroupThread extends Thread
      * @return The UserToken
      */
     private UserToken verifyToken(SignedObject token, PublicKey publicKey)
+    {
+        long      start = System.nanoTime();
+        UserToken t     = checkToken(token, publicKey);
+        my_gs.metrics.record("TOKEN", System.nanoTime() - start, 0, 0, t == null ? "FAIL-TOKEN" : null);
+        return t;
+    }
+
+    /**
+     * Private method that does the work of verifyToken
+     */
+    private UserToken checkToken(SignedObject token, PublicKey publicKey)
     {
         try
-        {// Create Verification Engine
+        {// Skip the signature check if this token was verified before
+            String    fingerprint = TokenCache.fingerprint(token, publicKey); // Hashed once, outside the cache's lock
+            UserToken temp        = my_gs.tokenCache.get(fingerprint);
+            if (temp != null)
+                return temp;
+
+            // Create Verification Engine
             Signature verificationEngine = Signature.getInstance("SHA1withRSA", "BC");
 
             // Return the token if the signedObject is verified
             if (token.verify(publicKey, verificationEngine))
-                return (UserToken)token.getObject();
+            {
+                temp = (UserToken)token.getObject();
+                my_gs.tokenCache.put(fingerprint, temp);
+                return temp;
+            }
             else
                 return null;
         }
         catch (Exception e)
         {
-            e.printStackTrace();
+            Log.error("Error verifying token: %s", e.getMessage(), e);
         }
         return null;
     }
@@ -492,7 +631,7 @@ public class GroupThread extends Thread
             }
             catch (Exception e)
             {
-                e.printStackTrace();
+                Log.error("Error signing token: %s", e.getMessage(), e);
             }
         }
 		else // user does not exist
@@ -604,7 +743,7 @@ public class GroupThread extends Thread
                     }
                     catch (Exception e)
                     {
-                        e.printStackTrace();
+                        Log.error("Error signing token: %s", e.getMessage(), e);
                     }
 
 					// Delete the user from the user list
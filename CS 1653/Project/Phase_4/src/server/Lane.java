@@ -0,0 +1,194 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
+
+/**
+ * Admits requests of one kind to the FileServer. At most a set number run at once, a bounded number
+ * more wait their turn in arrival order, and anything past that is turned away straight away so the
+ * client can come back later instead of every request slowing down together.
+ *
+ * A waiting request also gives up after WAIT milliseconds. The FileServer keeps one lane for bulk
+ * transfers and one for cheap metadata requests, so a backlog of transfers never holds up a listing.
+ */
+public class Lane implements LaneMXBean
+{
+    public static final long WAIT      = 10000; // Most milliseconds a request waits for its turn
+    public static final long MIN_RETRY = 100;   // Fewest milliseconds a refused client is told to wait
+    public static final long MAX_RETRY = 10000; // Most milliseconds a refused client is told to wait
+
+    private final String    name;        // Names the lane in JMX and in toString
+    private final int       concurrency; // Requests run at once
+    private final int       queueLimit;  // Most requests waiting
+    private final Semaphore permits;     // One for each request that may run, handed out in arrival order
+    private int    waiting;  // Requests waiting now
+    private int    peak;     // Most requests ever waiting at once
+    private long   admitted; // Requests run
+    private long   rejected; // Requests turned away, including those that waited too long
+    private long   timedOut; // Requests that waited WAIT milliseconds and were turned away
+    private double hold;     // Smoothed milliseconds a request holds its permit, 0 until one has
+
+    /**
+     * Constructor which accepts the lane's name and size
+     *
+     * @param _name The name, e.g. Transfer
+     * @param _concurrency The requests run at once, at least 1
+     * @param _queueLimit The most requests waiting, 0 turns away any request that can't run right away
+     */
+    public Lane(String _name, int _concurrency, int _queueLimit)
+    {
+        name        = _name;
+        concurrency = Math.max(1, _concurrency);
+        queueLimit  = Math.max(0, _queueLimit);
+        permits     = new Semaphore(concurrency, true);
+    }
+
+    /**
+     * Registers the lane with the platform MBean server as server:type=FileServer,name=[name]Lane.
+     * Failures are logged, the server runs without it.
+     */
+    public void register()
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("server:type=FileServer,name=" + name + "Lane"));
+        }
+        catch (Exception e)
+        {
+            Log.warn("Error registering %s lane metrics: %s", name, e.getMessage());
+        }
+    }
+
+    /**
+     * Waits for the request's turn. Every call that returns true must be followed by a call to leave.
+     *
+     * @return true if the request may run, false if the lane is full or the wait ran out
+     *
+     * @throws InterruptedException If the thread is interrupted while it waits
+     */
+    public boolean enter() throws InterruptedException
+    {
+        if (permits.tryAcquire(0, TimeUnit.MILLISECONDS))
+        {// Runs right away, the timed form doesn't jump ahead of anyone waiting
+            synchronized (this)
+            {
+                admitted++;
+            }
+            return true;
+        }
+
+        synchronized (this)
+        {
+            if (waiting >= queueLimit)
+            {// Queue is full
+                rejected++;
+                return false;
+            }
+            peak = Math.max(peak, ++waiting);
+        }
+
+        boolean entered = false;
+        try
+        {
+            entered = permits.tryAcquire(WAIT, TimeUnit.MILLISECONDS);
+            return entered;
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                waiting--;
+                if (entered)
+                    admitted++;
+                else
+                {
+                    rejected++;
+                    timedOut++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Ends a request that entered, letting the next one run
+     *
+     * @param nanos How long the request ran, which sets how long refused clients are told to wait
+     */
+    public void leave(long nanos)
+    {
+        synchronized (this)
+        {
+            hold = hold == 0 ? nanos / 1e6 : 0.9 * hold + 0.1 * (nanos / 1e6);
+        }
+        permits.release();
+    }
+
+    /**
+     * Returns how long a refused client should wait before trying again, about how long it takes the
+     * lane to work through the requests waiting now
+     *
+     * @return Milliseconds, from MIN_RETRY to MAX_RETRY
+     */
+    public synchronized long getRetryMillis()
+    {
+        return Math.max(MIN_RETRY, Math.min(MAX_RETRY, (long)(hold * (waiting + 1) / concurrency)));
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public int getConcurrency()
+    {
+        return concurrency;
+    }
+
+    public int getQueueLimit()
+    {
+        return queueLimit;
+    }
+
+    public int getActive()
+    {
+        return concurrency - permits.availablePermits();
+    }
+
+    public synchronized int getQueueDepth()
+    {
+        return waiting;
+    }
+
+    public synchronized int getPeakQueueDepth()
+    {
+        return peak;
+    }
+
+    public synchronized long getAdmitted()
+    {
+        return admitted;
+    }
+
+    public synchronized long getRejected()
+    {
+        return rejected;
+    }
+
+    public synchronized long getTimedOut()
+    {
+        return timedOut;
+    }
+
+    /**
+     * Returns a one line summary of the lane
+     *
+     * @return The summary
+     */
+    public synchronized String toString()
+    {
+        return String.format("%s lane: %d of %d running, %d of %d waiting (peak %d), %d admitted, %d rejected (%d timed out)",
+                             name, getActive(), concurrency, waiting, queueLimit, peak, admitted, rejected, timedOut);
+    }
+}
@@ -0,0 +1,52 @@
+package server;
+
+/**
+ * What JMX shows for one of the FileServer's admission lanes, see {@link Lane}
+ */
+public interface LaneMXBean
+{
+    /**
+     * @return The requests the lane runs at once
+     */
+    public int getConcurrency();
+
+    /**
+     * @return The most requests that may wait
+     */
+    public int getQueueLimit();
+
+    /**
+     * @return The requests running now
+     */
+    public int getActive();
+
+    /**
+     * @return The requests waiting now
+     */
+    public int getQueueDepth();
+
+    /**
+     * @return The most requests ever waiting at once
+     */
+    public int getPeakQueueDepth();
+
+    /**
+     * @return The requests run
+     */
+    public long getAdmitted();
+
+    /**
+     * @return The requests answered FAIL-BUSY, including those that waited too long
+     */
+    public long getRejected();
+
+    /**
+     * @return The requests that waited as long as they may and were answered FAIL-BUSY
+     */
+    public long getTimedOut();
+
+    /**
+     * @return The milliseconds a client refused now is told to wait
+     */
+    public long getRetryMillis();
+}
@@ -0,0 +1,499 @@
+package server;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled logging for the servers that keeps console output off the threads serving clients.
+ *
+ * A message is a printf format and its arguments. Logging one only checks the level, claims a slot in
+ * a ring buffer with a compare-and-set, and stores the format and arguments there. A single writer
+ * thread formats the messages and prints them in batches, so connection threads never wait on the
+ * System.out lock. A message below the level returns before anything else, and with up to two
+ * arguments not even an argument array is built. Arguments are formatted later, so they should be
+ * strings, numbers, or anything else that won't change in the meantime. A Throwable as the last
+ * argument has its stack trace printed after the message.
+ *
+ * Each format may be logged at most LIMIT times a second, the rest are counted and reported as
+ * suppressed once the next second's first message gets through. When the ring is full messages are
+ * dropped rather than making the caller wait, and the writer reports how many.
+ */
+public class Log
+{
+    public static final int ERROR = 0;
+    public static final int WARN  = 1;
+    public static final int INFO  = 2;
+    public static final int DEBUG = 3;
+    public static final int TRACE = 4;
+    private static final String[] NAMES = { "ERROR", "WARN", "INFO", "DEBUG", "TRACE" };
+
+    private static final int  CAPACITY = 8192;      // Slots in the ring, a power of two
+    private static final int  LIMIT    = 50;        // Most messages a second with the same format
+    private static final int  FORMATS  = 1024;      // Most formats rate limited separately, the rest aren't limited
+    private static final long IDLE     = 100000000; // Nanoseconds the writer sleeps when it isn't woken
+
+    private static volatile int level = INFO; // Messages above this are ignored
+
+    private static final Entry[]    ring     = new Entry[CAPACITY];
+    private static final AtomicLong tail     = new AtomicLong(); // Next slot to claim
+    private static volatile long    head;                         // Next slot to print
+    private static final AtomicLong dropped  = new AtomicLong();  // Messages dropped because the ring was full
+    private static long             reported;                     // Drops already reported
+    private static final ConcurrentHashMap<String, Limiter> limiters = new ConcurrentHashMap<>();
+
+    private static final PrintStream out = System.out;
+    private static final PrintStream err = System.err;
+    private static final Thread      writer;
+    private static volatile boolean  sleeping; // Whether the writer is parked and has to be woken
+    private static final SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss.SSS"); // Only used under the drain lock
+
+    static
+    {
+        for (int i = 0; i < CAPACITY; i++)
+            ring[i] = new Entry(i - CAPACITY);
+
+        writer = new Thread("Log writer")
+        {
+            public void run()
+            {
+                while (true)
+                {
+                    if (drain() == 0)
+                    {// Check again after saying so, a message published in between would otherwise wait out the park
+                        sleeping = true;
+                        if (ring[(int)(head & (CAPACITY - 1))].sequence != head)
+                            LockSupport.parkNanos(this, IDLE);
+                        sleeping = false;
+                    }
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+
+        // Print whatever is still in the ring when the server exits
+        Runtime.getRuntime().addShutdownHook(new Thread()
+        {
+            public void run()
+            {
+                drain();
+            }
+        });
+    }
+
+    private Log()
+    {
+    }
+
+    /**
+     * Sets the level. Messages more detailed than it are ignored.
+     *
+     * @param _level ERROR, WARN, INFO, DEBUG or TRACE
+     */
+    public static void setLevel(int _level)
+    {
+        level = Math.max(ERROR, Math.min(TRACE, _level));
+    }
+
+    /**
+     * Sets the level by name
+     *
+     * @param name error, warn, info, debug or trace, in any case
+     *
+     * @return true if the name was one of them
+     */
+    public static boolean setLevel(String name)
+    {
+        for (int i = 0; i < NAMES.length; i++)
+            if (NAMES[i].equalsIgnoreCase(name))
+            {
+                setLevel(i);
+                return true;
+            }
+        return false;
+    }
+
+    /**
+     * Returns the name of the level
+     *
+     * @return The name
+     */
+    public static String getLevel()
+    {
+        return NAMES[level];
+    }
+
+    /**
+     * Returns whether messages at a level are being logged, to skip building expensive arguments
+     *
+     * @param _level The level
+     *
+     * @return true if they are
+     */
+    public static boolean isEnabled(int _level)
+    {
+        return _level <= level;
+    }
+
+    /**
+     * Logs a message at ERROR level
+     *
+     * @param format The message, a printf format
+     */
+    public static void error(String format)
+    {
+        if (ERROR <= level)
+            add(ERROR, format, 0, null, null, null);
+    }
+
+    public static void error(String format, Object a)
+    {
+        if (ERROR <= level)
+            add(ERROR, format, 1, a, null, null);
+    }
+
+    public static void error(String format, Object a, Object b)
+    {
+        if (ERROR <= level)
+            add(ERROR, format, 2, a, b, null);
+    }
+
+    public static void error(String format, Object... args)
+    {
+        if (ERROR <= level)
+            add(ERROR, format, -1, null, null, args);
+    }
+
+    /**
+     * Logs a message at WARN level
+     *
+     * @param format The message, a printf format
+     */
+    public static void warn(String format)
+    {
+        if (WARN <= level)
+            add(WARN, format, 0, null, null, null);
+    }
+
+    public static void warn(String format, Object a)
+    {
+        if (WARN <= level)
+            add(WARN, format, 1, a, null, null);
+    }
+
+    public static void warn(String format, Object a, Object b)
+    {
+        if (WARN <= level)
+            add(WARN, format, 2, a, b, null);
+    }
+
+    public static void warn(String format, Object... args)
+    {
+        if (WARN <= level)
+            add(WARN, format, -1, null, null, args);
+    }
+
+    /**
+     * Logs a message at INFO level
+     *
+     * @param format The message, a printf format
+     */
+    public static void info(String format)
+    {
+        if (INFO <= level)
+            add(INFO, format, 0, null, null, null);
+    }
+
+    public static void info(String format, Object a)
+    {
+        if (INFO <= level)
+            add(INFO, format, 1, a, null, null);
+    }
+
+    public static void info(String format, Object a, Object b)
+    {
+        if (INFO <= level)
+            add(INFO, format, 2, a, b, null);
+    }
+
+    public static void info(String format, Object... args)
+    {
+        if (INFO <= level)
+            add(INFO, format, -1, null, null, args);
+    }
+
+    /**
+     * Logs a message at DEBUG level
+     *
+     * @param format The message, a printf format
+     */
+    public static void debug(String format)
+    {
+        if (DEBUG <= level)
+            add(DEBUG, format, 0, null, null, null);
+    }
+
+    public static void debug(String format, Object a)
+    {
+        if (DEBUG <= level)
+            add(DEBUG, format, 1, a, null, null);
+    }
+
+    public static void debug(String format, Object a, Object b)
+    {
+        if (DEBUG <= level)
+            add(DEBUG, format, 2, a, b, null);
+    }
+
+    public static void debug(String format, Object... args)
+    {
+        if (DEBUG <= level)
+            add(DEBUG, format, -1, null, null, args);
+    }
+
+    /**
+     * Logs a message at TRACE level
+     *
+     * @param format The message, a printf format
+     */
+    public static void trace(String format)
+    {
+        if (TRACE <= level)
+            add(TRACE, format, 0, null, null, null);
+    }
+
+    public static void trace(String format, Object a)
+    {
+        if (TRACE <= level)
+            add(TRACE, format, 1, a, null, null);
+    }
+
+    public static void trace(String format, Object a, Object b)
+    {
+        if (TRACE <= level)
+            add(TRACE, format, 2, a, b, null);
+    }
+
+    public static void trace(String format, Object... args)
+    {
+        if (TRACE <= level)
+            add(TRACE, format, -1, null, null, args);
+    }
+
+    /**
+     * Returns the number of messages dropped because the ring was full
+     *
+     * @return The number
+     */
+    public static long getDropped()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * Prints every message logged so far before returning
+     */
+    public static void flush()
+    {
+        drain();
+    }
+
+    /**
+     * Rate limits a message and puts it in the ring
+     */
+    private static void add(int _level, String format, int argc, Object a, Object b, Object[] args)
+    {
+        long    now     = System.currentTimeMillis();
+        Limiter limiter = limiters.get(format);
+        if (limiter == null && limiters.size() < FORMATS)
+        {
+            limiters.putIfAbsent(format, new Limiter());
+            limiter = limiters.get(format);
+        }
+        if (limiter != null)
+        {
+            int suppressed = limiter.allow(now / 1000);
+            if (suppressed < 0)
+                return;
+            if (suppressed > 0)
+                publish(_level, now, "%d more messages like \"%s\" were suppressed", 2, suppressed, format.trim(), null);
+        }
+        publish(_level, now, format, argc, a, b, args);
+    }
+
+    /**
+     * Claims a slot, fills it in and publishes it to the writer
+     */
+    private static void publish(int _level, long now, String format, int argc, Object a, Object b, Object[] args)
+    {
+        long slot;
+        do
+        {
+            slot = tail.get();
+            if (slot - head >= CAPACITY)
+            {// Full, the writer reports drops once it catches up
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        while (!tail.compareAndSet(slot, slot + 1));
+
+        Entry entry = ring[(int)(slot & (CAPACITY - 1))];
+        entry.level  = _level;
+        entry.time   = now;
+        entry.format = format;
+        entry.argc   = argc;
+        entry.a      = a;
+        entry.b      = b;
+        entry.args   = args;
+        entry.sequence = slot; // Publishes the fields above to the writer
+
+        if (sleeping)
+            LockSupport.unpark(writer);
+    }
+
+    /**
+     * Prints every published message in order
+     *
+     * @return The number printed
+     */
+    private static synchronized int drain()
+    {
+        StringBuilder normal = new StringBuilder();
+        StringBuilder errors = new StringBuilder();
+        int           count  = 0;
+
+        long next = head;
+        while (true)
+        {
+            Entry entry = ring[(int)(next & (CAPACITY - 1))];
+            if (entry.sequence != next)
+                break; // Not published yet
+
+            format(entry.level == ERROR ? errors : normal, entry);
+            entry.format = null;
+            entry.a      = null;
+            entry.b      = null;
+            entry.args   = null;
+            head = ++next; // Frees the slot
+            count++;
+
+            if (count % 256 == 0)
+                print(normal, errors); // Don't hold a long backlog in memory
+        }
+
+        long drops = dropped.get();
+        if (drops > reported)
+        {
+            normal.append(String.format("%s WARN  %d log messages dropped, the log queue was full%n",
+                                        time.format(new Date()), drops - reported));
+            reported = drops;
+        }
+        print(normal, errors);
+        return count;
+    }
+
+    private static void print(StringBuilder normal, StringBuilder errors)
+    {
+        if (normal.length() > 0)
+        {
+            out.print(normal);
+            out.flush();
+            normal.setLength(0);
+        }
+        if (errors.length() > 0)
+        {
+            err.print(errors);
+            err.flush();
+            errors.setLength(0);
+        }
+    }
+
+    private static void format(StringBuilder s, Entry entry)
+    {
+        Object[] args;
+        switch (entry.argc)
+        {
+            case 0:  args = new Object[0]; break;
+            case 1:  args = new Object[] { entry.a }; break;
+            case 2:  args = new Object[] { entry.a, entry.b }; break;
+            default: args = entry.args == null ? new Object[0] : entry.args;
+        }
+
+        s.append(time.format(new Date(entry.time))).append(' ');
+        s.append(String.format("%-5s ", NAMES[entry.level]));
+        try
+        {
+            s.append(String.format(entry.format, args));
+        }
+        catch (RuntimeException e)
+        {// A bad format shouldn't take the writer down
+            s.append(entry.format).append(" (").append(e).append(')');
+        }
+        s.append(System.lineSeparator());
+
+        if (args.length > 0 && args[args.length - 1] instanceof Throwable)
+        {
+            StringWriter trace = new StringWriter();
+            ((Throwable)args[args.length - 1]).printStackTrace(new PrintWriter(trace));
+            s.append(trace);
+        }
+    }
+
+    /**
+     * A slot in the ring. Its sequence is the slot number it was last published as.
+     */
+    private static class Entry
+    {
+        volatile long sequence;
+        int      level;
+        long     time;
+        String   format;
+        int      argc; // Arguments in a and b, -1 if they are in args
+        Object   a;
+        Object   b;
+        Object[] args;
+
+        Entry(long _sequence)
+        {
+            sequence = _sequence;
+        }
+    }
+
+    /**
+     * Counts the messages logged with one format in the current second
+     */
+    private static class Limiter
+    {
+        private final AtomicLong    second     = new AtomicLong();
+        private final AtomicInteger count      = new AtomicInteger();
+        private final AtomicInteger suppressed = new AtomicInteger();
+
+        /**
+         * Decides whether a message gets through
+         *
+         * @param now The current second
+         *
+         * @return -1 if it is suppressed, otherwise the number suppressed before it that haven't been reported
+         */
+        int allow(long now)
+        {
+            long current = second.get();
+            if (current != now && second.compareAndSet(current, now))
+                count.set(0);
+            if (count.incrementAndGet() > LIMIT)
+            {
+                suppressed.incrementAndGet();
+                return -1;
+            }
+            return suppressed.getAndSet(0);
+        }
+    }
+}
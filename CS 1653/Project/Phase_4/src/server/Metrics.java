@@ -0,0 +1,279 @@
+package server;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts and latencies for every command a server answers, and its connections. Shared by all of
+ * the server's threads.
+ *
+ * Once registered the server shows up in JMX as server:type=FileServer (or GroupServer), and each
+ * command as server:type=FileServer,command=UPLOADF and so on. The handshake and token verification
+ * are recorded as the HANDSHAKE and TOKEN commands so they can be told apart from the work done after.
+ * Command names come from clients, so past MAX_COMMANDS of them the rest are counted as OTHER.
+ */
+public class Metrics implements MetricsMXBean
+{
+    public static final String OTHER        = "OTHER";     // Counts commands past MAX_COMMANDS
+    public static final String EXCEPTION    = "EXCEPTION"; // Outcome of a request that threw
+    private static final int   MAX_COMMANDS = 64;          // Most command names tracked separately
+
+    private final String type;                             // FileServer or GroupServer
+    private final ConcurrentHashMap<String, CommandMetrics> commands = new ConcurrentHashMap<>();
+    private final AtomicInteger active = new AtomicInteger(); // Connections open now
+    private final LongAdder     total  = new LongAdder();     // Connections opened so far
+    private volatile MBeanServer beans;                       // Where commands are registered, null until register
+
+    /**
+     * Constructor which accepts the kind of server
+     *
+     * @param _type The name JMX shows as the type, FileServer or GroupServer
+     */
+    public Metrics(String _type)
+    {
+        type = _type;
+    }
+
+    /**
+     * Registers the server and every command seen so far with the platform MBean server.
+     * Commands seen later are registered as they show up. Failures are printed, the server runs without JMX.
+     */
+    public void register()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName("server:type=" + type));
+            beans = server;
+            for (Map.Entry<String, CommandMetrics> entry : commands.entrySet())
+                register(entry.getKey(), entry.getValue());
+        }
+        catch (Exception e)
+        {
+            Log.warn("Error registering %s metrics: %s", type, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Records one request
+     *
+     * @param command The request's message
+     * @param nanos How long it took to answer
+     * @param in The bytes read from the client
+     * @param out The bytes written to the client
+     * @param outcome The message of the response, EXCEPTION if it threw, null if there was none.
+     *                Outcomes starting with FAIL count as errors.
+     */
+    public void record(String command, long nanos, long in, long out, String outcome)
+    {
+        String error = outcome != null && (outcome.startsWith("FAIL") || outcome.equals(EXCEPTION)) ? outcome : null;
+        get(command).record(nanos, in, out, error);
+    }
+
+    /**
+     * Counts a connection opening, call {@link #connectionClosed()} once when it closes
+     */
+    public void connectionOpened()
+    {
+        active.incrementAndGet();
+        total.increment();
+    }
+
+    /**
+     * Counts a connection closing
+     */
+    public void connectionClosed()
+    {
+        active.decrementAndGet();
+    }
+
+    /**
+     * Returns a command's metrics, making them the first time it is seen
+     *
+     * @param command The command
+     *
+     * @return The metrics
+     */
+    public CommandMetrics get(String command)
+    {
+        if (command == null)
+            command = OTHER;
+        CommandMetrics metrics = commands.get(command);
+        if (metrics != null)
+            return metrics;
+        if (commands.size() >= MAX_COMMANDS && !command.equals(OTHER))
+            return get(OTHER);
+
+        metrics = new CommandMetrics();
+        CommandMetrics existing = commands.putIfAbsent(command, metrics);
+        if (existing != null)
+            return existing;
+        if (beans != null)
+            register(command, metrics);
+        return metrics;
+    }
+
+    public int getActiveConnections()
+    {
+        return active.get();
+    }
+
+    public long getTotalConnections()
+    {
+        return total.sum();
+    }
+
+    public String[] getCommands()
+    {
+        ArrayList<String> names = new ArrayList<>(commands.keySet());
+        Collections.sort(names);
+        return names.toArray(new String[names.size()]);
+    }
+
+    public void reset()
+    {
+        for (CommandMetrics metrics : commands.values())
+            metrics.reset();
+    }
+
+    public String snapshot()
+    {
+        StringBuilder s = new StringBuilder();
+        s.append(String.format("%s: %d active connections, %d since start%n", type, getActiveConnections(), getTotalConnections()));
+        s.append(String.format("%-14s %9s %7s %9s %9s %9s %9s %9s %12s %12s%n",
+                               "COMMAND", "COUNT", "ERRORS", "MEAN us", "P50 us", "P90 us", "P99 us", "MAX us", "BYTES IN", "BYTES OUT"));
+        for (String name : getCommands())
+        {
+            CommandMetrics m = commands.get(name);
+            s.append(String.format("%-14s %9d %7d %9.0f %9d %9d %9d %9d %12d %12d%n",
+                                   name, m.getCount(), m.getErrors(), m.getMeanMicros(), m.getP50Micros(), m.getP90Micros(),
+                                   m.getP99Micros(), m.getMaxMicros(), m.getBytesIn(), m.getBytesOut()));
+            if (m.getErrors() > 0)
+                s.append(String.format("%-14s %s%n", "", m.getErrorCounts()));
+        }
+        return s.toString();
+    }
+
+    /**
+     * Returns the same table as {@link #snapshot()}
+     *
+     * @return The table
+     */
+    public String toString()
+    {
+        return snapshot();
+    }
+
+    private void register(String command, CommandMetrics metrics)
+    {
+        try
+        {// Names other than plain words have to be quoted to be part of an ObjectName
+            String value = command.matches("[A-Za-z0-9_+.-]+") ? command : ObjectName.quote(command);
+            beans.registerMBean(metrics, new ObjectName("server:type=" + type + ",command=" + value));
+        }
+        catch (Exception e)
+        {
+            Log.warn("Error registering metrics for %s: %s", command, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Counts the bytes read from a connection. Wraps the socket's stream, under any buffering, so
+     * every byte is counted once whichever message format was negotiated.
+     */
+    public static class CountingInputStream extends FilterInputStream
+    {
+        private volatile long count; // Only the connection's current thread adds to it
+
+        public CountingInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        public int read() throws IOException
+        {
+            int b = in.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int n = in.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException
+        {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        /**
+         * @return The bytes read so far
+         */
+        public long getCount()
+        {
+            return count;
+        }
+    }
+
+    /**
+     * Counts the bytes written to a connection
+     */
+    public static class CountingOutputStream extends FilterOutputStream
+    {
+        private volatile long count; // Only the connection's current thread adds to it
+
+        public CountingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {// FilterOutputStream would write one byte at a time
+            out.write(b, off, len);
+            count += len;
+        }
+
+        /**
+         * Counts bytes that were written to the socket without going through this stream
+         *
+         * @param n The number of bytes
+         */
+        public void count(long n)
+        {
+            count += n;
+        }
+
+        /**
+         * @return The bytes written so far
+         */
+        public long getCount()
+        {
+            return count;
+        }
+    }
+}
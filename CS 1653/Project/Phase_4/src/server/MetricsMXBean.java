@@ -0,0 +1,32 @@
+package server;
+
+/**
+ * What JMX shows for a whole server, see {@link Metrics}. Each command has its own bean under the same type.
+ */
+public interface MetricsMXBean
+{
+    /**
+     * @return The connections open right now
+     */
+    public int getActiveConnections();
+
+    /**
+     * @return The connections opened since the server started
+     */
+    public long getTotalConnections();
+
+    /**
+     * @return The commands seen so far
+     */
+    public String[] getCommands();
+
+    /**
+     * @return A table of every command's counts and latencies, the same as the console's stats command
+     */
+    public String snapshot();
+
+    /**
+     * Starts every command's counts and latencies over. Connection counts are kept.
+     */
+    public void reset();
+}
@@ -0,0 +1,404 @@
+package server;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Uploads sent as several parts at the same time, each over its own connection.
+ *
+ * The file is split into parts of whole BlockFile blocks, so every part knows which blocks it holds
+ * and where they go on disk before anything arrives. Each part is sealed straight into its place in a
+ * temp file that shares one header, so there is nothing to stitch together afterwards. Once every part
+ * is in, commit syncs the temp file, renames it into place, and only then adds it to the FileList.
+ * An upload that is abandoned, or stops hearing from its client, is deleted.
+ */
+public class PartUploads
+{
+    private static final int IDLE   = 0; // Part not sent yet, or its last attempt failed
+    private static final int ACTIVE = 1; // Part arriving
+    private static final int DONE   = 2; // Part written
+
+    private final long lifetime; // Milliseconds an upload may go without hearing from its client
+    private final HashMap<String, Upload> uploads = new HashMap<>(); // Upload id -> upload
+    private final SecureRandom random = new SecureRandom();
+    private long committed; // Uploads added to the FileList
+    private long dropped;   // Uploads aborted or expired
+
+    /**
+     * One file being uploaded in parts
+     */
+    public class Upload
+    {
+        final String      id;
+        final String      owner;
+        final String      group;
+        final File        file;     // Where the file goes once it's whole
+        final File        temp;     // Where the parts are written
+        final SecretKey   groupKey;
+        final byte[]      header = BlockFile.newHeader();
+        final long        length;   // Plain text length of the whole file
+        final long        partSize; // Plain text bytes in every part but the last
+        final int[]       parts;    // State of each part
+        final FileChannel channel;
+        volatile long     lastUsed = System.currentTimeMillis();
+
+        Upload(String _id, String _owner, String _group, File _file, SecretKey _groupKey, long _length, int _parts)
+                throws IOException
+        {
+            id       = _id;
+            owner    = _owner;
+            group    = _group;
+            file     = _file;
+            temp     = new File(_file.getPath() + ".upload");
+            groupKey = _groupKey;
+            length   = _length;
+
+            // Round parts up to whole blocks, which may leave fewer parts than asked for
+            long blocks = (_length + BlockFile.BLOCK_SIZE - 1) / BlockFile.BLOCK_SIZE;
+            partSize = Math.max(1, (blocks + _parts - 1) / _parts) * BlockFile.BLOCK_SIZE;
+            parts    = new int[(int)Math.max(1, (_length + partSize - 1) / partSize)];
+
+            channel = new RandomAccessFile(temp, "rw").getChannel();
+            channel.write(ByteBuffer.wrap(header), 0);
+        }
+
+        /**
+         * Returns the plain text length of a part
+         */
+        long partLength(int index)
+        {
+            return index < parts.length - 1 ? partSize : length - index * partSize;
+        }
+
+        /**
+         * Starts receiving a part
+         *
+         * @param index The part
+         *
+         * @return The stream the part is written to, null if the part doesn't exist or is already taken
+         */
+        public synchronized Part openPart(int index)
+        {
+            if (index < 0 || index >= parts.length || parts[index] != IDLE)
+                return null;
+
+            parts[index] = ACTIVE;
+            lastUsed     = System.currentTimeMillis();
+            return new Part(this, index);
+        }
+
+        /**
+         * Records how a part ended
+         */
+        synchronized void endPart(int index, boolean done)
+        {
+            parts[index] = done ? DONE : IDLE;
+            lastUsed     = System.currentTimeMillis();
+        }
+
+        /**
+         * Checks whether every part has been written
+         */
+        synchronized boolean isComplete()
+        {
+            for (int state : parts)
+                if (state != DONE)
+                    return false;
+            return true;
+        }
+
+        /**
+         * Returns the number of parts the file was split into
+         *
+         * @return The number of parts
+         */
+        public int getParts()
+        {
+            return parts.length;
+        }
+
+        /**
+         * Returns the plain text length of every part but the last
+         *
+         * @return The part size
+         */
+        public long getPartSize()
+        {
+            return partSize;
+        }
+
+        /**
+         * Returns the id clients name this upload by
+         *
+         * @return The upload id
+         */
+        public String getId()
+        {
+            return id;
+        }
+
+        /**
+         * Returns the user who started the upload
+         *
+         * @return The owner
+         */
+        public String getOwner()
+        {
+            return owner;
+        }
+
+        /**
+         * Closes and deletes the temp file
+         */
+        void discard()
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                Log.warn("Error closing %s: %s", temp.getPath(), e.getMessage(), e);
+            }
+            temp.delete();
+        }
+    }
+
+    /**
+     * The stream one part is written through. Its blocks are sealed straight into their place in
+     * the temp file, and it can't take more than the part's length.
+     */
+    public static class Part extends OutputStream
+    {
+        private final Upload           upload;
+        private final int              index;
+        private final long             expected; // Plain text length of the part
+        private final BlockFile.Writer writer;
+        private long    written;                 // Plain text bytes taken so far
+        private long    position;                // Where the next sealed bytes go in the temp file
+        private boolean ended;
+
+        Part(Upload _upload, int _index)
+        {
+            upload   = _upload;
+            index    = _index;
+            expected = upload.partLength(index);
+            position = BlockFile.blockOffset(index * (upload.partSize / BlockFile.BLOCK_SIZE));
+
+            OutputStream disk = new OutputStream()
+            {
+                public void write(int b) throws IOException
+                {
+                    write(new byte[] { (byte)b }, 0, 1);
+                }
+
+                public void write(byte[] b, int off, int len) throws IOException
+                {
+                    ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+                    while (buf.hasRemaining())
+                        position += upload.channel.write(buf, position);
+                }
+            };
+            writer = new BlockFile.Writer(disk, upload.groupKey, upload.header,
+                                          index * (upload.partSize / BlockFile.BLOCK_SIZE), index == upload.parts.length - 1);
+        }
+
+        public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (written + len > expected)
+                throw new IOException("Part " + index + " is longer than " + expected + " bytes");
+
+            writer.write(b, off, len);
+            written += len;
+            upload.lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * Writes the rest of the part and marks it done
+         *
+         * @throws IOException If the part is the wrong length or can't be written, it can be sent again
+         */
+        public void finish() throws IOException
+        {
+            try
+            {
+                if (written != expected)
+                    throw new IOException("Part " + index + " is " + written + " bytes, expected " + expected);
+                writer.finish();
+                ended = true;
+                upload.endPart(index, true);
+            }
+            finally
+            {
+                if (!ended)
+                    fail();
+            }
+        }
+
+        /**
+         * Gives the part up so it can be sent again, does nothing once the part has ended
+         */
+        public void fail()
+        {
+            if (ended)
+                return;
+            ended = true;
+            upload.endPart(index, false);
+        }
+    }
+
+    /**
+     * Constructor which accepts how long an upload may sit without hearing from its client
+     *
+     * @param _lifetime Milliseconds before an idle upload is dropped
+     */
+    public PartUploads(long _lifetime)
+    {
+        lifetime = _lifetime;
+    }
+
+    /**
+     * Starts an upload
+     *
+     * @param owner The user uploading the file
+     * @param group The group to which the file belongs
+     * @param file Where the file goes
+     * @param groupKey The group key
+     * @param length The plain text length of the file
+     * @param parts The number of parts the client wants to send
+     *
+     * @return The upload, null if the file exists or is already being uploaded
+     *
+     * @throws IOException If the temp file can't be created
+     */
+    public synchronized Upload begin(String owner, String group, File file, SecretKey groupKey, long length, int parts)
+            throws IOException
+    {
+        if (FileServer.fileList.checkFile(file.getPath()))
+            return null;
+        for (Upload upload : uploads.values())
+            if (upload.file.equals(file))
+                return null;
+
+        String id     = new BigInteger(128, random).toString(36);
+        Upload upload = new Upload(id, owner, group, file, groupKey, length, Math.max(1, parts));
+        uploads.put(id, upload);
+        return upload;
+    }
+
+    /**
+     * Finds an upload in progress
+     *
+     * @param id The upload id
+     *
+     * @return The upload, null if there isn't one by that id
+     */
+    public synchronized Upload get(String id)
+    {
+        return uploads.get(id);
+    }
+
+    /**
+     * Moves a finished upload into place and adds it to the FileList
+     *
+     * @param upload The upload
+     *
+     * @return true if it was added, false if parts are still missing
+     *
+     * @throws IOException If the file can't be synced or moved, the upload is dropped
+     */
+    public boolean commit(Upload upload) throws IOException
+    {
+        synchronized (this)
+        {// Only one commit can take the upload
+            if (!upload.isComplete() || uploads.get(upload.id) != upload)
+                return false;
+            uploads.remove(upload.id);
+        }
+
+        try
+        {
+            upload.channel.force(true);
+            upload.channel.close();
+            Files.move(upload.temp.toPath(), upload.file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            upload.discard();
+            synchronized (this)
+            {
+                dropped++;
+            }
+            throw e;
+        }
+
+        FileServer.fileList.addFile(upload.owner, upload.group, upload.file.getPath());
+        FileServer.fileList.commit(); // Don't report success until the entry is on disk
+        synchronized (this)
+        {
+            committed++;
+        }
+        return true;
+    }
+
+    /**
+     * Drops an upload and deletes what arrived of it
+     *
+     * @param upload The upload
+     */
+    public void abort(Upload upload)
+    {
+        synchronized (this)
+        {
+            if (uploads.remove(upload.id) != upload)
+                return;
+            dropped++;
+        }
+        upload.discard();
+    }
+
+    /**
+     * Drops every upload that hasn't heard from its client within the lifetime
+     */
+    public void expire()
+    {
+        long now = System.currentTimeMillis();
+        synchronized (this)
+        {
+            Iterator<Upload> it = uploads.values().iterator();
+            while (it.hasNext())
+            {
+                Upload upload = it.next();
+                if (now - upload.lastUsed > lifetime)
+                {
+                    it.remove();
+                    upload.discard();
+                    dropped++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a one line summary of the uploads
+     *
+     * @return The summary
+     */
+    public synchronized String toString()
+    {
+        return String.format("Part uploads: %d in progress, %d committed, %d dropped", uploads.size(), committed, dropped);
+    }
+}
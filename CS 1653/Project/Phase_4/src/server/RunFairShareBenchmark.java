@@ -0,0 +1,160 @@
+package server;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Driver program that shows how small downloads fare while bulk downloads flood the server. Bulk
+ * threads read a large block file over and over, the way DOWNLOADF reads it, as one user mirroring a
+ * group. Another user reads a small file every few milliseconds and each read is timed. This is done
+ * with no scheduler, with every chunk in one first come first served queue, with the FairScheduler,
+ * and with the FairScheduler and a cap on the mirroring user.
+ *
+ * Usage: RunFairShareBenchmark [bulk threads] [seconds per run] [directory]
+ */
+public class RunFairShareBenchmark
+{
+    private static final int  CHUNK = 1 << 18; // Bytes bulk readers ask for at a time
+    private static final int  SMALL = 1 << 16; // Bytes in the small file
+    private static final long PAUSE = 20;      // Milliseconds between small reads
+
+    public static void main(String[] args) throws Exception
+    {
+        int  threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int  seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        File dir     = new File(args.length > 2 ? args[2] : "benchmark_files");
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            System.out.printf("Error creating %s\n", dir);
+            return;
+        }
+
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        SecretKey key   = generator.generateKey();
+        File      bulk  = write(new File(dir, "bulk"), 32 << 20, key);
+        File      small = write(new File(dir, "small"), SMALL, key);
+
+        int slots = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d bulk readers, %d chunk slots, a %d KB read every %d ms, %d s a run\n",
+                          threads, slots, SMALL >> 10, PAUSE, seconds);
+        System.out.printf("%-16s %10s %10s %10s %10s %8s\n", "SCHEDULER", "BULK MB/s", "P50 ms", "P99 ms", "MAX ms", "READS");
+        run("none", threads, 1, slots, bulk, small, key); // Warm up, the first run would pay for compiling the cipher
+        String[] modes = { "none", "fifo", "fair", "fair+cap" };
+        for (String mode : modes)
+            System.out.println(run(mode, threads, seconds, slots, bulk, small, key));
+
+        bulk.delete();
+        small.delete();
+    }
+
+    /**
+     * Floods one scheduler with bulk reads while timing small ones
+     *
+     * @param mode none, fifo, fair, or fair+cap to also cap the bulk user at 8 MB/s
+     *
+     * @return A line of results
+     */
+    private static String run(final String mode, int threads, int seconds, int slots, final File bulk, final File small,
+                             final SecretKey key) throws Exception
+    {
+        final FairScheduler scheduler = mode.equals("none") ? null : new FairScheduler(slots);
+        if (mode.equals("fair+cap"))
+            scheduler.setCap("mirror", 8L << 20);
+        final long       deadline = System.nanoTime() + seconds * 1000000000L;
+        final long[]     bytes    = new long[threads];
+        ArrayList<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < threads; t++)
+        {
+            final int id = t;
+            Thread reader = new Thread()
+            {
+                public void run()
+                {
+                    byte[] buf = new byte[CHUNK];
+                    try
+                    {
+                        while (System.nanoTime() < deadline)
+                        {
+                            InputStream in = open(scheduler, mode, bulk, key, "mirror", "big");
+                            int n;
+                            while (System.nanoTime() < deadline && (n = in.read(buf)) > 0)
+                                bytes[id] += n;
+                            in.close();
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        System.out.printf("Error reading %s: %s\n", bulk, e.getMessage());
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+
+        // Time small reads while the bulk readers run
+        ArrayList<Double> latencies = new ArrayList<>();
+        byte[]            buf       = new byte[SMALL];
+        Thread.sleep(PAUSE * 10); // Let the flood build up first
+        while (System.nanoTime() < deadline)
+        {
+            long        start = System.nanoTime();
+            InputStream in    = open(scheduler, mode, small, key, "reader", "small");
+            while (in.read(buf) > 0)
+                ;
+            in.close();
+            latencies.add((System.nanoTime() - start) / 1e6);
+            Thread.sleep(PAUSE);
+        }
+
+        long total = 0;
+        for (int t = 0; t < threads; t++)
+        {
+            readers.get(t).join();
+            total += bytes[t];
+        }
+        Collections.sort(latencies);
+        int count = latencies.size();
+        return String.format("%-16s %10.1f %10.1f %10.1f %10.1f %8d", mode, total / 1048576.0 / seconds,
+                             latencies.get(count / 2), latencies.get(Math.min(count - 1, count * 99 / 100)),
+                             latencies.get(count - 1), count);
+    }
+
+    /**
+     * Opens a block file for reading the way a download does, through the scheduler if there is one
+     *
+     * @param user The user reading, every reader shares one flow for fifo
+     * @param group The group of the file
+     */
+    private static InputStream open(FairScheduler scheduler, String mode, File file, SecretKey key, String user,
+                                    String group) throws IOException
+    {
+        InputStream in = new BlockFile.Reader(new BufferedInputStream(new FileInputStream(file), 1 << 16), file.length(), key);
+        if (scheduler == null)
+            return in;
+        if (mode.equals("fifo"))
+            return scheduler.open(in, "", "");
+        return scheduler.open(in, user, group);
+    }
+
+    /**
+     * Writes a block file of random plain text
+     *
+     * @return The file
+     */
+    private static File write(File file, int length, SecretKey key) throws Exception
+    {
+        byte[] data = new byte[length];
+        new Random(1).nextBytes(data);
+        OutputStream out = new BlockFile.Writer(new FileOutputStream(file), key);
+        out.write(data);
+        ((BlockFile.Writer)out).finish();
+        out.close();
+        return file;
+    }
+}
@@ -7,11 +7,159 @@ public class RunFileServer
 {
 	public static void main(String[] args)
     {
+        int     workers   = 0;     // Selector workers, 0 runs a FileThread per connection
+        boolean dedup     = false; // Whether to store uploads as deduplicated chunks
+        long    cache     = -1;    // Megabytes of stored file blocks to cache, -1 for the default
+        int[]   transfers = null;  // Transfers run at once and waiting, null for the default
+        int[]   metadata  = null;  // Metadata requests run at once and waiting, null for the default
+
+        while (args.length > 0 && args[args.length - 1].startsWith("-"))
+        {
+            String flag = args[args.length - 1];
+            if (flag.equals("-dedup"))
+                dedup = true;
+            else if (flag.startsWith("-log="))
+            {// -log=<level> sets how much connections log, info by default
+                if (!Log.setLevel(flag.substring("-log=".length())))
+                {
+                    System.out.println("Log levels are error, warn, info, debug and trace");
+                    return;
+                }
+            }
+            else if (flag.startsWith("-cache="))
+            {// -cache=<megabytes> sizes the block cache, 0 turns it off
+                try
+                {
+                    cache = Long.parseLong(flag.substring("-cache=".length()));
+                    if (cache < 0)
+                        throw new NumberFormatException();
+                }
+                catch (NumberFormatException e)
+                {
+                    System.out.println("Use -cache=<megabytes> to size the block cache, 0 turns it off");
+                    return;
+                }
+            }
+            else if (flag.startsWith("-sync="))
+            {// -sync=none, -sync=eof or -sync=<milliseconds> picks when uploads are synced to disk
+                if (!FileSink.setDurability(flag.substring("-sync=".length())))
+                {
+                    System.out.println("Use -sync=none, -sync=eof (the default) or -sync=<milliseconds> between periodic syncs");
+                    return;
+                }
+            }
+            else if (flag.startsWith("-chunk="))
+            {// -chunk=<bytes> caps the chunks clients may negotiate
+                try
+                {
+                    if (!ChunkSizer.setLimit(Integer.parseInt(flag.substring("-chunk=".length()))))
+                        throw new NumberFormatException();
+                }
+                catch (NumberFormatException e)
+                {
+                    System.out.printf("Use -chunk=<bytes> with %d to %d bytes to cap the chunk size\n", ChunkSizer.MIN, ChunkSizer.MAX);
+                    return;
+                }
+            }
+            else if (flag.startsWith("-transfers=") || flag.startsWith("-metadata="))
+            {// -transfers=<running>[,<waiting>] and -metadata=<running>[,<waiting>] size the admission lanes
+                int[] lane = parseLane(flag.substring(flag.indexOf('=') + 1));
+                if (lane == null)
+                {
+                    System.out.printf("Use %s<running>[,<waiting>] to set how many requests run at once and how many more may wait\n",
+                                      flag.substring(0, flag.indexOf('=') + 1));
+                    return;
+                }
+                if (flag.startsWith("-transfers="))
+                    transfers = lane;
+                else
+                    metadata = lane;
+            }
+            else if (flag.startsWith("-io="))
+            {// -io=<chunks> sets how many chunks are read or written at once
+                try
+                {
+                    int slots = Integer.parseInt(flag.substring("-io=".length()));
+                    if (slots < 1)
+                        throw new NumberFormatException();
+                    FileServer.scheduler.setSlots(slots);
+                }
+                catch (NumberFormatException e)
+                {
+                    System.out.println("Use -io=<chunks> to set how many chunks are read or written at once");
+                    return;
+                }
+            }
+            else if (flag.startsWith("-cap="))
+            {// -cap=<KB/s> caps every user, -cap=<user>:<KB/s> caps one, 0 lifts the cap
+                String value = flag.substring("-cap=".length());
+                int    colon = value.lastIndexOf(':');
+                try
+                {
+                    long kbps = Long.parseLong(value.substring(colon + 1));
+                    if (kbps < 0)
+                        throw new NumberFormatException();
+                    FileServer.scheduler.setCap(colon < 0 ? null : value.substring(0, colon), kbps << 10);
+                }
+                catch (NumberFormatException e)
+                {
+                    System.out.println("Use -cap=<KB/s> to cap every user or -cap=<user>:<KB/s> to cap one, 0 for no cap");
+                    return;
+                }
+            }
+            else if (flag.startsWith("-weight="))
+            {// -weight=<group>:<weight> sets a group's share of the I/O, 1 by default
+                String value = flag.substring("-weight=".length());
+                int    colon = value.lastIndexOf(':');
+                try
+                {
+                    double weight = Double.parseDouble(value.substring(colon + 1));
+                    if (colon <= 0 || !(weight > 0))
+                        throw new NumberFormatException();
+                    FileServer.scheduler.setWeight(value.substring(0, colon), weight);
+                }
+                catch (NumberFormatException e)
+                {
+                    System.out.println("Use -weight=<group>:<weight> with a weight above 0 to set a group's share of the I/O");
+                    return;
+                }
+            }
+            else if (flag.startsWith("-nio"))
+            {// -nio or -nio=<workers> picks the selector front end
+                try
+                {
+                    workers = flag.equals("-nio") ? 4 * Runtime.getRuntime().availableProcessors()
+                                                  : Integer.parseInt(flag.substring("-nio=".length()));
+                }
+                catch (NumberFormatException | StringIndexOutOfBoundsException e)
+                {
+                    System.out.println("Use -nio or -nio=<workers> to serve clients from a selector");
+                    return;
+                }
+            }
+            else
+            {
+                System.out.println("Options are -nio[=<workers>], -dedup, -cache=<megabytes>, -chunk=<bytes>, -sync=<policy>, -transfers=<running>[,<waiting>], -metadata=<running>[,<waiting>], -io=<chunks>, -cap=[<user>:]<KB/s>, -weight=<group>:<weight> and -log=<level>");
+                return;
+            }
+            args = java.util.Arrays.copyOf(args, args.length - 1);
+        }
+
 		if (args.length > 0)
         {
 			try
             {
 				FileServer server = new FileServer(Integer.parseInt(args[0]));
+				if (workers > 0)
+					server.useSelector(workers);
+				if (dedup)
+					server.useDedup();
+				if (cache >= 0)
+					server.useCache(cache << 20);
+				if (transfers != null)
+					server.useTransfers(transfers[0], transfers[1]);
+				if (metadata != null)
+					server.useMetadata(metadata[0], metadata[1]);
 				server.start();
 			}
 			catch (NumberFormatException e)
@@ -23,7 +171,41 @@ public class RunFileServer
 		else
         {
 			FileServer server = new FileServer();
+			if (workers > 0)
+				server.useSelector(workers);
+			if (dedup)
+				server.useDedup();
+			if (cache >= 0)
+				server.useCache(cache << 20);
+			if (transfers != null)
+				server.useTransfers(transfers[0], transfers[1]);
+			if (metadata != null)
+				server.useMetadata(metadata[0], metadata[1]);
 			server.start();
 		}
 	}
+
+    /**
+     * Parses the size of an admission lane
+     *
+     * @param value <running> or <running>,<waiting>
+     *
+     * @return The requests run at once and the most waiting, null if the value isn't valid
+     */
+    private static int[] parseLane(String value)
+    {
+        try
+        {
+            String[] parts   = value.split(",");
+            int      running = Integer.parseInt(parts[0]);
+            int      waiting = parts.length > 1 ? Integer.parseInt(parts[1]) : 4 * running;
+            if (parts.length > 2 || running < 1 || waiting < 0)
+                return null;
+            return new int[] { running, waiting };
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
 }
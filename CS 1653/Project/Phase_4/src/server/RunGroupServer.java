@@ -7,11 +7,47 @@ public class RunGroupServer
 {
 	public static void main(String[] args)
     {
+        int maxConnections = 0; // Connections served at once on virtual threads, 0 runs a GroupThread per connection
+
+        while (args.length > 0 && args[args.length - 1].startsWith("-"))
+        {
+            String flag = args[args.length - 1];
+            if (flag.startsWith("-log="))
+            {// -log=<level> sets how much connections log, info by default
+                if (!Log.setLevel(flag.substring("-log=".length())))
+                {
+                    System.out.println("Log levels are error, warn, info, debug and trace");
+                    return;
+                }
+            }
+            else if (flag.startsWith("-virtual"))
+            {// -virtual or -virtual=<max connections> picks the executor
+                try
+                {
+                    maxConnections = flag.equals("-virtual") ? 1000
+                                                             : Integer.parseInt(flag.substring("-virtual=".length()));
+                }
+                catch (NumberFormatException | StringIndexOutOfBoundsException e)
+                {
+                    System.out.println("Use -virtual or -virtual=<max connections> to run connections on virtual threads");
+                    return;
+                }
+            }
+            else
+            {
+                System.out.println("Options are -virtual[=<max connections>] and -log=<level>");
+                return;
+            }
+            args = java.util.Arrays.copyOf(args, args.length - 1);
+        }
+
 		if (args.length> 0)
         {
 			try
             {
 				GroupServer server = new GroupServer(Integer.parseInt(args[0]));
+				if (maxConnections > 0)
+					server.useExecutor(maxConnections);
 				server.start();
 			}
 			catch (NumberFormatException e)
@@ -23,6 +59,8 @@ public class RunGroupServer
 		else
         {
 			GroupServer server = new GroupServer();
+			if (maxConnections > 0)
+				server.useExecutor(maxConnections);
 			server.start();
 		}
 	}
@@ -0,0 +1,73 @@
+package server;
+
+import java.security.PublicKey;
+
+/**
+ * Driver program that measures how many connections a second a client can set up with a running
+ * FileServer. Each connection runs a handshake and disconnects, one after another. This is done with the
+ * original RSA key transport, with ECDHE, and with session tickets, where every connection after the
+ * first presents the ticket the last one was handed instead of running a full handshake.
+ *
+ * Usage: RunHandshakeBenchmark [seconds per run] [group server] [file server]
+ */
+public class RunHandshakeBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int    seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        String gsName  = args.length > 1 ? args[1] : "localhost";
+        String fsName  = args.length > 2 ? args[2] : "localhost";
+
+        // The file server's handshake carries the group server's key
+        GroupClient groupClient = new GroupClient();
+        if (!groupClient.connect(gsName, GroupServer.SERVER_PORT) || !groupClient.handshake())
+        {
+            System.out.println("Error connecting to the group server");
+            System.exit(-1);
+        }
+        PublicKey KGS = groupClient.getPublicKey();
+        groupClient.disconnect();
+
+        run("rsa", fsName, KGS, 1); // Warm up both ends
+        run("resumed", fsName, KGS, 1);
+
+        System.out.printf("Handshakes with %s:%d, %d s a run\n", fsName, FileServer.SERVER_PORT, seconds);
+        System.out.printf("%-12s %14s %10s\n", "HANDSHAKE", "HANDSHAKES/s", "MEAN ms");
+        String[] modes = { "rsa", "ecdhe", "resumed" };
+        for (String mode : modes)
+            System.out.println(run(mode, fsName, KGS, seconds));
+        System.exit(0);
+    }
+
+    /**
+     * Connects, handshakes and disconnects over and over for a number of seconds
+     *
+     * @param mode rsa for RSA key transport, ecdhe for ECDHE, or resumed to present session tickets
+     *
+     * @return A line of results
+     */
+    private static String run(String mode, String fsName, PublicKey KGS, int seconds) throws Exception
+    {
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        long busy     = 0; // Time spent in handshakes, not counting connecting and disconnecting
+        int  count    = 0;
+        while (System.nanoTime() < deadline)
+        {
+            FileClient fileClient = new FileClient();
+            fileClient.setEcdhe(!mode.equals("rsa"));
+            fileClient.setResume(mode.equals("resumed"));
+            if (!fileClient.connect(fsName, FileServer.SERVER_PORT))
+                throw new Exception("Error connecting to the file server");
+
+            long start = System.nanoTime();
+            if (!fileClient.handshake(KGS))
+                throw new Exception("Handshake failed");
+            busy += System.nanoTime() - start;
+            count++;
+
+            fileClient.disconnect();
+            fileClient.sock.close(); // Don't pile up sockets waiting for the server to close them
+        }
+        return String.format("%-12s %14.1f %10.2f", mode, count / (double)seconds, busy / 1e6 / count);
+    }
+}
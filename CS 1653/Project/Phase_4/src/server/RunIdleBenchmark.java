@@ -0,0 +1,92 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import javax.management.MBeanServerConnection;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * Driver program that shows what idle connections cost a running FileServer. Connections are opened and
+ * handshaken one after another and then left alone, and at each step the server's heap after a
+ * collection and its live threads are read over JMX. Run it once against a server started with -nio and
+ * once against one without it to compare the selector with a FileThread per connection.
+ *
+ * The FileServer has to be started with remote JMX on, e.g.
+ * -Dcom.sun.management.jmxremote.port=9999 -Dcom.sun.management.jmxremote.authenticate=false
+ * -Dcom.sun.management.jmxremote.ssl=false. Each connection is a socket in this process as well, so the
+ * open file limit has to allow for them.
+ *
+ * Usage: RunIdleBenchmark [connections] [JMX port] [group server] [file server]
+ */
+public class RunIdleBenchmark
+{
+    private static final int STEPS = 5; // Times the server is read while connections are opened
+
+    public static void main(String[] args) throws Exception
+    {
+        int    connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int    jmxPort     = args.length > 1 ? Integer.parseInt(args[1]) : 9999;
+        String gsName      = args.length > 2 ? args[2] : "localhost";
+        String fsName      = args.length > 3 ? args[3] : "localhost";
+
+        // The file server's handshake carries the group server's key
+        GroupClient groupClient = new GroupClient();
+        if (!groupClient.connect(gsName, GroupServer.SERVER_PORT) || !groupClient.handshake())
+        {
+            System.out.println("Error connecting to the group server");
+            System.exit(-1);
+        }
+        PublicKey KGS = groupClient.getPublicKey();
+        groupClient.disconnect();
+
+        JMXConnector jmx = JMXConnectorFactory.connect(new JMXServiceURL("service:jmx:rmi:///jndi/rmi://" + fsName + ":"
+                                                                         + jmxPort + "/jmxrmi"));
+        MBeanServerConnection server  = jmx.getMBeanServerConnection();
+        MemoryMXBean          memory  = ManagementFactory.newPlatformMXBeanProxy(server, ManagementFactory.MEMORY_MXBEAN_NAME,
+                                                                                 MemoryMXBean.class);
+        ThreadMXBean          threads = ManagementFactory.newPlatformMXBeanProxy(server, ManagementFactory.THREAD_MXBEAN_NAME,
+                                                                                 ThreadMXBean.class);
+
+        System.out.printf("%d idle connections to %s:%d\n", connections, fsName, FileServer.SERVER_PORT);
+        System.out.printf("%-12s %10s %10s %12s %10s\n", "CONNECTIONS", "SECONDS", "HEAP MB", "KB EACH", "THREADS");
+        memory.gc();
+        long base = memory.getHeapMemoryUsage().getUsed();
+        System.out.printf("%-12d %10.1f %10.1f %12s %10d\n", 0, 0.0, base / 1048576.0, "-", threads.getThreadCount());
+
+        // Resumed handshakes, so opening thousands of connections doesn't take minutes
+        ArrayList<FileClient> open  = new ArrayList<>();
+        long                  start = System.nanoTime();
+        for (int step = 1; step <= STEPS; step++)
+        {
+            for (int i = open.size(); i < (long)connections * step / STEPS; i++)
+            {
+                FileClient fileClient = new FileClient();
+                if (!fileClient.connect(fsName, FileServer.SERVER_PORT) || !fileClient.handshake(KGS))
+                {
+                    System.out.printf("Error opening connection %d\n", i + 1);
+                    System.exit(-1);
+                }
+                open.add(fileClient);
+            }
+
+            memory.gc();
+            long heap = memory.getHeapMemoryUsage().getUsed();
+            System.out.printf("%-12d %10.1f %10.1f %12.1f %10d\n", open.size(), (System.nanoTime() - start) / 1e9,
+                              heap / 1048576.0, open.isEmpty() ? 0 : (heap - base) / 1024.0 / open.size(),
+                              threads.getThreadCount());
+        }
+
+        for (FileClient fileClient : open)
+        {
+            fileClient.disconnect();
+            fileClient.sock.close();
+        }
+        jmx.close();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,125 @@
+package server;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.security.SignedObject;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Driver program that measures how parallel downloads scale with the number of connections against
+ * running servers. A file of random bytes is uploaded to a new group, then fetched over and over with
+ * downloadParallel split across 1, 2, 4 and 8 connections. The time includes the handshakes of the extra
+ * connections, as a client would pay for them. The group and the file are deleted at the end.
+ *
+ * Usage: RunParallelBenchmark [user] [password] [megabytes] [downloads] [group server] [file server]
+ */
+public class RunParallelBenchmark
+{
+    private static final int[] CONNECTIONS = { 1, 2, 4, 8 }; // Connections timed
+
+    public static void main(String[] args) throws Exception
+    {
+        String user      = args.length > 0 ? args[0] : "admin";
+        String password  = args.length > 1 ? args[1] : "";
+        int    megabytes = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int    downloads = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        String gsName    = args.length > 4 ? args[4] : "localhost";
+        String fsName    = args.length > 5 ? args[5] : "localhost";
+
+        GroupClient groupClient = new GroupClient();
+        FileClient  fileClient  = new FileClient();
+        if (!groupClient.connect(gsName, GroupServer.SERVER_PORT) || !groupClient.handshake()
+            || !fileClient.connect(fsName, FileServer.SERVER_PORT) || !fileClient.handshake(groupClient.getPublicKey()))
+        {
+            System.out.println("Error connecting to the servers");
+            System.exit(-1);
+        }
+        groupClient.setFileServerID(fileClient.getFileServerID());
+        groupClient.setPassword(password);
+
+        String       group = "parallel_benchmark_" + System.currentTimeMillis();
+        SignedObject token = groupClient.getToken(user);
+        if (token == null || !groupClient.createGroup(group, token))
+        {
+            System.out.printf("Error creating group %s as %s\n", group, user);
+            System.exit(-1);
+        }
+        token = groupClient.getToken(user);
+        ArrayList<Object> groupKey = groupClient.getGroupKey(group, token);
+        SecretKey         key      = (SecretKey)groupKey.get(0);
+        byte[]            IV       = (byte[])groupKey.get(1);
+
+        File   source = new File("parallel_benchmark.bin");
+        File   dest   = new File("parallel_benchmark.out");
+        byte[] data   = new byte[1 << 20];
+        new Random(1).nextBytes(data);
+        OutputStream out = new FileOutputStream(source);
+        for (int i = 0; i < megabytes; i++)
+            out.write(data);
+        out.close();
+
+        String remote = null;
+        fileClient.setWindow(FileServer.MAX_WINDOW);
+        if (fileClient.upload(source.getPath(), source.getName(), group, key, IV, token))
+            for (String path : fileClient.listFiles(token))
+                if (path.endsWith(source.getName()) && path.contains(group))
+                    remote = path;
+        if (remote == null)
+        {
+            System.out.printf("Error uploading %s\n", source);
+            System.exit(-1);
+        }
+
+        // The client prints as it downloads, so the table waits until the end
+        run(fileClient, remote, dest, key, IV, token, CONNECTIONS[CONNECTIONS.length - 1], 1); // Warm up both ends
+        ArrayList<String> lines = new ArrayList<>();
+        for (int connections : CONNECTIONS)
+            lines.add(run(fileClient, remote, dest, key, IV, token, connections, downloads));
+
+        fileClient.delete(remote, token);
+        groupClient.deleteGroup(group, token);
+        fileClient.disconnect();
+        groupClient.disconnect();
+        source.delete();
+
+        System.out.printf("\n%d downloads of %d MB with a window of %d for each number of connections\n", downloads,
+                          megabytes, FileServer.MAX_WINDOW);
+        System.out.printf("%-12s %12s %12s %12s\n", "CONNECTIONS", "MEAN ms", "BEST ms", "MB/s");
+        for (String line : lines)
+            System.out.println(line);
+        System.exit(0);
+    }
+
+    /**
+     * Downloads the file a number of times over one number of connections
+     *
+     * @param connections The connections each download is split across
+     *
+     * @return A line of results
+     */
+    private static String run(FileClient fileClient, String remote, File dest, SecretKey key, byte[] IV,
+                              SignedObject token, int connections, int downloads)
+    {
+        long total = 0;
+        long best  = Long.MAX_VALUE;
+        long bytes = 0;
+        for (int i = 0; i < downloads; i++)
+        {
+            dest.delete();
+            long start = System.nanoTime();
+            if (!fileClient.downloadParallel(remote, dest.getPath(), key, IV, token, connections))
+            {
+                System.out.printf("Error downloading %s over %d connections\n", remote, connections);
+                System.exit(-1);
+            }
+            long time = System.nanoTime() - start;
+            total += time;
+            best   = Math.min(best, time);
+            bytes += dest.length();
+        }
+        dest.delete();
+        return String.format("%-12d %12.1f %12.1f %12.1f", connections, total / 1e6 / downloads, best / 1e6,
+                             bytes / 1048576.0 / (total / 1e9));
+    }
+}
@@ -0,0 +1,92 @@
+package server;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Driver program that measures sustained upload writes on local disk, the way UPLOADF stores a file:
+ * chunks sealed into a BlockFile, digested, and written out. Each way of writing is timed over a run of
+ * files, once with the bytes only written and once with sealing as well.
+ *
+ * Usage: RunWriteBenchmark [megabytes per file] [files] [directory]
+ */
+public class RunWriteBenchmark
+{
+    private static final int CHUNK = 4096; // Bytes handed over at a time, the size of a chunk from an old client
+
+    public static void main(String[] args) throws Exception
+    {
+        int  megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int  files     = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        File dir       = new File(args.length > 2 ? args[2] : "benchmark_files");
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            System.out.printf("Error creating %s\n", dir);
+            return;
+        }
+
+        byte[] data = new byte[1 << 20];
+        new Random(1).nextBytes(data);
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        SecretKey key = generator.generateKey();
+
+        run("stream", dir, 1, megabytes, data, key); // Warm up, the first run would pay for compiling the cipher
+        run("sink none", dir, 1, megabytes, data, key);
+
+        System.out.printf("%d files of %d MB in %s, %d byte writes\n", files, megabytes, dir, CHUNK);
+        System.out.printf("%-28s %12s %12s\n", "WRITE PATH", "PLAIN MB/s", "SEALED MB/s");
+        String[] modes = { "stream", "stream+fsync", "sink none", "sink eof", "sink 1000" };
+        for (String mode : modes)
+            System.out.printf("%-28s %12.1f %12.1f\n", mode, run(mode, dir, files, megabytes, data, null),
+                              run(mode, dir, files, megabytes, data, key));
+    }
+
+    /**
+     * Writes a run of files one way and returns the rate
+     *
+     * @param mode stream for a FileOutputStream, stream+fsync to sync it on close, or sink and a durability policy
+     * @param key The group key to seal with, null to write the bytes as they are
+     *
+     * @return Megabytes per second over the whole run
+     */
+    private static double run(String mode, File dir, int files, int megabytes, byte[] data, SecretKey key) throws Exception
+    {
+        if (mode.startsWith("sink"))
+            FileSink.setDurability(mode.substring("sink ".length()));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < files; i++)
+        {
+            File          file = new File(dir, "file" + i);
+            MessageDigest sha  = MessageDigest.getInstance("SHA-256");
+            OutputStream  disk;
+            FileOutputStream fos = null;
+            if (mode.startsWith("sink"))
+                disk = new FileSink(file, FileServer.buffers);
+            else
+                disk = fos = new FileOutputStream(file);
+
+            OutputStream out = new DigestOutputStream(disk, sha);
+            if (key != null)
+                out = new BlockFile.Writer(out, key);
+            for (int m = 0; m < megabytes; m++)
+                for (int off = 0; off < data.length; off += CHUNK)
+                    out.write(data, off, CHUNK);
+            if (key != null)
+                ((BlockFile.Writer)out).finish();
+            if (mode.equals("stream+fsync"))
+                fos.getFD().sync();
+            out.close();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        for (int i = 0; i < files; i++)
+            new File(dir, "file" + i).delete();
+        return (double)files * megabytes / seconds;
+    }
+}
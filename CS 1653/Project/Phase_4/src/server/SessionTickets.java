@@ -0,0 +1,174 @@
+package server;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.*;
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Issues and redeems session tickets, which let a reconnecting client skip the RSA part of the handshake.
+ *
+ * A ticket is the secret for the next session (plus the client's KGS on a file server), its expiry,
+ * and a random id, sealed with AES-GCM under a key that never leaves this server. The client gets the
+ * secret itself over the encrypted channel. Tickets are single-use: the id of every redeemed ticket is
+ * remembered until the ticket would have expired, so a replayed ticket is refused. The key only lives
+ * in memory, so restarting the server invalidates every outstanding ticket.
+ */
+public class SessionTickets
+{
+    public static final int NONCE_LENGTH  = 16; // Bytes in each side's resumption nonce
+    public static final int SECRET_LENGTH = 32; // Bytes in a ticket secret
+
+    private final long         lifetime;                    // Milliseconds a ticket stays valid
+    private final SecretKey    ticketKey;                   // Seals tickets, never sent anywhere
+    private final SecureRandom random = new SecureRandom();
+    private final HashMap<String, Long> redeemed = new HashMap<>(); // Ids of used tickets -> their expiry
+    private int nextPurge = 1024;                           // Size of redeemed that triggers a purge
+
+    /**
+     * A redeemed ticket
+     */
+    public static class Ticket
+    {
+        public final byte[]    secret; // Secret the session keys are derived from
+        public final PublicKey KGS;    // The Group Server's public key, null on a group server
+
+        Ticket(byte[] _secret, PublicKey _KGS)
+        {
+            secret = _secret;
+            KGS    = _KGS;
+        }
+    }
+
+    /**
+     * Constructor which accepts how long tickets stay valid
+     *
+     * @param _lifetime Milliseconds a ticket stays valid
+     */
+    public SessionTickets(long _lifetime)
+    {
+        lifetime = _lifetime;
+        try
+        {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+            keyGenerator.init(128);
+            ticketKey = keyGenerator.generateKey();
+        }
+        catch (Exception e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns random bytes for a nonce or secret
+     *
+     * @param length The number of bytes
+     *
+     * @return The bytes
+     */
+    public byte[] random(int length)
+    {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Seals a new ticket
+     *
+     * @param secret The secret the client will resume with
+     * @param KGS The Group Server's public key the client handed this file server, null on a group server
+     *
+     * @return The ticket, opaque to the client
+     *
+     * @throws Exception
+     */
+    public byte[] issue(byte[] secret, PublicKey KGS) throws Exception
+    {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        DataOutputStream      d = new DataOutputStream(b);
+        d.write(random(16));                                 // Id
+        d.writeLong(System.currentTimeMillis() + lifetime);  // Expiry
+        d.writeInt(secret.length);
+        d.write(secret);                                     // Secret
+        byte[] key = KGS == null ? new byte[0] : KGS.getEncoded();
+        d.writeInt(key.length);
+        d.write(key);                                        // KGS
+        d.flush();
+
+        byte[] iv = random(12);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, ticketKey, new GCMParameterSpec(128, iv));
+        byte[] sealed = cipher.doFinal(b.toByteArray());
+
+        byte[] ticket = new byte[iv.length + sealed.length];
+        System.arraycopy(iv, 0, ticket, 0, iv.length);
+        System.arraycopy(sealed, 0, ticket, iv.length, sealed.length);
+        return ticket;
+    }
+
+    /**
+     * Opens a ticket presented by a client and marks it used
+     *
+     * @param ticket The ticket
+     *
+     * @return The ticket's contents, null if it is forged, expired, or was already redeemed
+     */
+    public Ticket redeem(byte[] ticket)
+    {
+        try
+        {
+            if (ticket == null || ticket.length < 12 + 16)
+                return null;
+
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, ticketKey, new GCMParameterSpec(128, ticket, 0, 12));
+            DataInputStream d = new DataInputStream(new ByteArrayInputStream(
+                    cipher.doFinal(ticket, 12, ticket.length - 12)));
+
+            byte[] id = new byte[16];
+            d.readFully(id);
+            long expiry = d.readLong();
+            byte[] secret = new byte[d.readInt()];
+            d.readFully(secret);
+            byte[] key = new byte[d.readInt()];
+            d.readFully(key);
+
+            long now = System.currentTimeMillis();
+            if (expiry < now)
+                return null;
+
+            synchronized (redeemed)
+            {// Refuse replays
+                if (redeemed.size() >= nextPurge)
+                {// Forget tickets that would have expired anyway
+                    Iterator<Map.Entry<String, Long>> it = redeemed.entrySet().iterator();
+                    while (it.hasNext())
+                        if (it.next().getValue() < now)
+                            it.remove();
+                    nextPurge = Math.max(1024, redeemed.size() * 2);
+                }
+                if (redeemed.put(new BigInteger(1, id).toString(16), expiry) != null)
+                    return null;
+            }
+
+            PublicKey KGS = key.length == 0 ? null :
+                    KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(key));
+            return new Ticket(secret, KGS);
+        }
+        catch (Exception e)
+        {// Not sealed by this server
+            return null;
+        }
+    }
+}
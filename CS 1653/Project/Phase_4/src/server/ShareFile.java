@@ -9,6 +9,7 @@ public class ShareFile implements java.io.Serializable, Comparable<ShareFile>
 	private String group;   // Group to which this file belongs
 	private String path;    // Path to the file on server
 	private String owner;   // Owner of the file
+	private byte[] digest;  // SHA-256 of the stored cipher text, null until it is first needed
 
     /**
      * Constructor which accepts the owner, group, and path
@@ -54,6 +55,26 @@ public class ShareFile implements java.io.Serializable, Comparable<ShareFile>
 		return group;
 	}
 
+    /**
+     * Returns the SHA-256 of the file as stored on disk
+     *
+     * @return The digest, null if it hasn't been computed
+     */
+	public synchronized byte[] getDigest()
+	{
+		return digest;
+	}
+
+    /**
+     * Sets the SHA-256 of the file as stored on disk
+     *
+     * @param _digest The digest
+     */
+	public synchronized void setDigest(byte[] _digest)
+	{
+		digest = _digest;
+	}
+
     /**
      * Compares two files
      *
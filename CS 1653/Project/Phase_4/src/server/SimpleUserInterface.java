@@ -1,5 +1,6 @@
 package server;
 import javax.crypto.SecretKey;
+import java.io.File;
 import java.io.IOException;
 import java.security.PublicKey;
 import java.security.Signature;
@@ -136,6 +137,9 @@ public class SimpleUserInterface extends Client
                         case "D":   // Delete User
                             deleteUser(token);
                             break;
+                        case "M":   // Migrate Storage
+                            migrateStorage(token);
+                            break;
                         default:
                             System.out.println("Invalid command entered");
                     }
@@ -224,6 +228,7 @@ public class SimpleUserInterface extends Client
         displayMainMenu();
         System.out.println("C: Create user");
         System.out.println("D: Delete user");
+        System.out.println("M: Convert your groups' files to the block storage format");
     }
 
     /**
@@ -313,7 +318,16 @@ public class SimpleUserInterface extends Client
 
         printLineBreaks(1);
 
-        if (fileClient.download(sourceFile, destFile, groupKey, IV, token))
+        boolean success;
+        if (new File(destFile).exists())
+        {// Probably an earlier download that didn't finish
+            System.out.println("The local file already exists, resume downloading into it? (y/n)");
+            success = scanner.nextLine().equalsIgnoreCase("y") && fileClient.resume(sourceFile, destFile, groupKey, IV, token);
+        }
+        else
+            success = fileClient.download(sourceFile, destFile, groupKey, IV, token);
+
+        if (success)
             System.out.println("File downloaded successfully");
         else
             System.out.println("Error downloading file...");
@@ -534,4 +548,34 @@ public class SimpleUserInterface extends Client
 
         printLineBreaks(3);
     }
+
+    /**
+     * Private method that has the file server convert the files of every group the user is in
+     * to the block storage format
+     *
+     * @param token The token of the requester
+     */
+    private static void migrateStorage(SignedObject token)
+    {
+        printLineBreaks(3);
+
+        try
+        {
+            for (String group : ((UserToken)token.getObject()).getGroups())
+            {
+                List<Object> key    = groupClient.getGroupKey(group, token);
+                int          queued = fileClient.migrate(group, (SecretKey)key.get(0), (byte[])key.get(1), token);
+                if (queued >= 0)
+                    System.out.printf("%d files of %s queued for conversion\n", queued, group);
+                else
+                    System.out.printf("Error converting the files of %s...\n", group);
+            }
+        }
+        catch (IOException | ClassNotFoundException e)
+        {
+            System.out.println("Error reading your token...");
+        }
+
+        printLineBreaks(3);
+    }
 }
@@ -0,0 +1,60 @@
+package server;
+
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+
+/**
+ * Reads commands typed at the server's console while it runs, to print metrics or change the log level. Runs as a daemon and stops quietly
+ * when the console is closed, so a server started without one is unaffected.
+ */
+public class StatsConsole extends Thread
+{
+    private final Scanner console; // The server's console
+    private final Metrics metrics; // What the stats command prints
+
+    /**
+     * Constructor which accepts the console and the server's metrics
+     *
+     * @param _console The console, shared with anything else the server reads from it
+     * @param _metrics The metrics
+     */
+    public StatsConsole(Scanner _console, Metrics _metrics)
+    {
+        console = _console;
+        metrics = _metrics;
+        setDaemon(true);
+    }
+
+    public void run()
+    {
+        try
+        {
+            while (true)
+            {
+                String command = console.nextLine().trim();
+                if (command.equals("stats"))
+                    System.out.print(metrics.snapshot());
+                else if (command.equals("reset"))
+                {
+                    metrics.reset();
+                    System.out.println("Command metrics reset");
+                }
+                else if (command.startsWith("log"))
+                {// Show or change the log level
+                    String name = command.substring(3).trim();
+                    if (!name.isEmpty() && !Log.setLevel(name))
+                        System.out.println("Log levels are error, warn, info, debug and trace");
+                    System.out.println("Log level is " + Log.getLevel());
+                }
+                else if (command.equals("help"))
+                    System.out.println("Commands: stats (print command counts and latencies), reset (start them over), " +
+                                       "log [level] (show or set the log level), help");
+                else if (!command.isEmpty())
+                    System.out.println("Unknown command " + command + ", try help");
+            }
+        }
+        catch (NoSuchElementException | IllegalStateException e)
+        {// Console closed
+        }
+    }
+}
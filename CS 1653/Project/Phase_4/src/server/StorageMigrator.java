@@ -0,0 +1,262 @@
+package server;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Converts files stored as one AES-CBC stream to the BlockFile format in the background.
+ *
+ * The server never keeps group keys, so a client that holds one asks for its group to be converted
+ * (the MIGRATE request) and the group's old files are queued here with the key. Each file is decrypted
+ * into a temp file in the new format, which is renamed over the original only if nothing replaced the
+ * file in the meantime. A file that doesn't decrypt under the key it was queued with is left alone.
+ *
+ * The server can't check the key it is handed, and AES-CBC padding still checks out under a wrong key
+ * about 1 time in 256. So the original is kept next to the converted file as [path].cbc until a download
+ * reads the converted file back under a client's key, and is put back if a download of it fails.
+ */
+public class StorageMigrator extends Thread
+{
+    public static final String BACKUP = ".cbc"; // Suffix of an original kept until its conversion is read back
+
+    private final LinkedBlockingQueue<Job> queue = new LinkedBlockingQueue<>();
+    private long migrated;  // Files converted
+    private long failed;    // Files left as they were
+    private long confirmed; // Conversions read back, their originals dropped
+    private long restored;  // Conversions undone because a download of them failed
+
+    /**
+     * A file to convert and the key it is encrypted with
+     */
+    private static class Job
+    {
+        final ShareFile file;
+        final SecretKey groupKey;
+        final byte[]    IV;
+
+        Job(ShareFile _file, SecretKey _groupKey, byte[] _IV)
+        {
+            file     = _file;
+            groupKey = _groupKey;
+            IV       = _IV;
+        }
+    }
+
+    /**
+     * Default constructor
+     */
+    public StorageMigrator()
+    {
+        super("StorageMigrator");
+        setDaemon(true);
+    }
+
+    /**
+     * Queues every file of a group that is still stored in the old format
+     *
+     * @param group The group
+     * @param groupKey The group key
+     * @param IV The group IV
+     *
+     * @return The number of files queued
+     *
+     * @throws IOException If a file can't be checked
+     */
+    public int migrate(String group, SecretKey groupKey, byte[] IV) throws IOException
+    {
+        int queued = 0;
+        for (String path : FileServer.fileList.getPaths(Collections.singletonList(group)))
+        {
+            ShareFile file = FileServer.fileList.getFile(path);
+            File f = new File(path);
+            if (file != null && f.exists() && !BlockFile.isBlockFile(f) && !ChunkStore.isManifest(f))
+            {
+                queue.add(new Job(file, groupKey, IV));
+                queued++;
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Converts queued files one at a time, never returns
+     */
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                boolean converted = convert(queue.take());
+                synchronized (this)
+                {
+                    if (converted)
+                        migrated++;
+                    else
+                        failed++;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns where the original of a converted file is kept
+     *
+     * @param file The stored file
+     *
+     * @return The original's path
+     */
+    public static File backupOf(File file)
+    {
+        return new File(file.getPath() + BACKUP);
+    }
+
+    /**
+     * Drops the original of a converted file once a download has read all of it back under a client's key
+     *
+     * @param sf The file
+     */
+    public void confirm(ShareFile sf)
+    {
+        File backup = backupOf(new File(sf.getPath()));
+        synchronized (sf)
+        {
+            if (!backup.exists() || !backup.delete())
+                return;
+        }
+        synchronized (this)
+        {
+            confirmed++;
+        }
+        Log.info("Conversion of %s read back, dropped the original", sf.getPath());
+    }
+
+    /**
+     * Puts back the original of a converted file after a download of it failed. The key it was converted
+     * under may have been wrong, and the original is the only copy that is known to be good.
+     *
+     * @param sf The file
+     */
+    public void restore(ShareFile sf)
+    {
+        File file   = new File(sf.getPath());
+        File backup = backupOf(file);
+        synchronized (sf)
+        {
+            if (!backup.exists())
+                return;
+            try
+            {
+                Files.move(backup.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException e)
+            {
+                Log.error("Error restoring the original of %s: %s", sf.getPath(), e.getMessage(), e);
+                return;
+            }
+            FileServer.blockCache.invalidate(file);
+            sf.setDigest(null);
+        }
+        synchronized (this)
+        {
+            restored++;
+        }
+        Log.warn("A download of converted file %s failed, put the original back", sf.getPath());
+    }
+
+    /**
+     * Returns a one line summary of the migration
+     *
+     * @return The summary
+     */
+    public synchronized String toString()
+    {
+        return String.format("Storage migration: %d converted, %d failed, %d queued, %d read back, %d undone",
+                             migrated, failed, queue.size(), confirmed, restored);
+    }
+
+    /**
+     * Converts one file
+     *
+     * @param job The file and its key
+     *
+     * @return true if the file was converted or no longer needs to be
+     */
+    private boolean convert(Job job)
+    {
+        File file = new File(job.file.getPath());
+        File temp = new File(job.file.getPath() + ".migrating");
+        try
+        {
+            if (!file.exists() || BlockFile.isBlockFile(file) || ChunkStore.isManifest(file))
+                return true;
+            long modified = file.lastModified();
+            long length   = file.length();
+
+            // Decrypt the old stream and write it back out in blocks
+            Cipher        cipher = new CryptoTools().getFileCipher("DECRYPT", job.groupKey, job.IV);
+            MessageDigest sha    = MessageDigest.getInstance("SHA-256");
+            try (InputStream in = new FileInputStream(file); FileOutputStream fos = new FileOutputStream(temp))
+            {
+                BlockFile.Writer out = new BlockFile.Writer(new DigestOutputStream(new BufferedOutputStream(fos), sha),
+                                                            job.groupKey);
+                byte[] buf = new byte[1 << 16];
+                int    n;
+                while ((n = in.read(buf)) > 0)
+                {
+                    byte[] plain = cipher.update(buf, 0, n);
+                    if (plain != null)
+                        out.write(plain);
+                }
+                out.write(cipher.doFinal()); // Under the wrong key the padding almost never checks out
+                out.finish();
+                fos.getFD().sync();
+                out.close();
+            }
+
+            synchronized (job.file)
+            {// Only replace the file if no upload replaced it while it was being converted
+                if (FileServer.fileList.getFile(job.file.getPath()) != job.file ||
+                    file.lastModified() != modified || file.length() != length)
+                {
+                    temp.delete();
+                    return true;
+                }
+                // Keep the original under a second name, the converted file takes its place without a gap
+                File backup = backupOf(file);
+                Files.deleteIfExists(backup.toPath());
+                try
+                {
+                    Files.createLink(backup.toPath(), file.toPath());
+                }
+                catch (IOException | UnsupportedOperationException e)
+                {// No hard links here, copy it instead
+                    Files.copy(file.toPath(), backup.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+                }
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                FileServer.blockCache.invalidate(file);
+                job.file.setDigest(sha.digest());
+            }
+
+            Log.info("Converted %s to the block format, the original is kept until it is read back", job.file.getPath());
+            return true;
+        }
+        catch (Exception e)
+        {
+            Log.warn("Error converting %s: %s", job.file.getPath(), e.getMessage(), e);
+            temp.delete();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.SignedObject;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers tokens whose signatures have already been verified so the same SignedObject
+ * doesn't pay for an RSA verification on every request. Shared by all of a server's threads.
+ *
+ * Entries are keyed by a SHA-256 of the whole SignedObject (content and signature), so a
+ * signature can't be paired with different content to hit the cache, together with a SHA-256
+ * of the public key it was verified with, so a token is only found again when it is checked
+ * against the same key. Entries expire after a fixed lifetime, and the least recently used
+ * entry is dropped when the cache is full.
+ */
+public class TokenCache
+{
+    private final int  capacity; // Most entries held at once
+    private final long lifetime; // Milliseconds an entry stays valid
+
+    private final Entries cache;
+    private long          hits;   // Lookups answered from the cache
+    private long          misses; // Lookups that needed a full verification
+
+    private static volatile KeyHash lastKey; // The last public key hashed, nearly always the group server's
+
+    /**
+     * Constructor which accepts the size and lifetime of the cache
+     *
+     * @param _capacity The most entries held at once
+     * @param _lifetime Milliseconds an entry stays valid
+     */
+    public TokenCache(int _capacity, long _lifetime)
+    {
+        capacity = _capacity;
+        lifetime = _lifetime;
+        cache    = new Entries(capacity);
+    }
+
+    /**
+     * Returns the token a fingerprint was cached under, if it is still valid
+     *
+     * @param fingerprint The token's fingerprint, from fingerprint, null if it couldn't be computed
+     *
+     * @return The UserToken, null if it has to be verified
+     */
+    public synchronized UserToken get(String fingerprint)
+    {
+        Verified entry = fingerprint == null ? null : cache.get(fingerprint);
+        if (entry == null || entry.expires < System.currentTimeMillis())
+        {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry.token;
+    }
+
+    /**
+     * Adds a token that was just verified
+     *
+     * @param fingerprint The token's fingerprint, from fingerprint. Nothing is cached if it is null.
+     * @param userToken The UserToken inside it
+     */
+    public void put(String fingerprint, UserToken userToken)
+    {
+        if (fingerprint == null) // Not cached if it can't be told apart from other tokens
+            return;
+        Verified entry = new Verified(userToken, System.currentTimeMillis() + lifetime);
+        synchronized (this)
+        {
+            cache.put(fingerprint, entry);
+        }
+    }
+
+    /**
+     * Drops every entry
+     */
+    public synchronized void clear()
+    {
+        cache.clear();
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache
+     *
+     * @return The hits
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that needed a full verification
+     *
+     * @return The misses
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Returns the fraction of lookups answered from the cache
+     *
+     * @return The hit rate, 0 if there were no lookups
+     */
+    public synchronized double getHitRate()
+    {
+        return hits + misses == 0 ? 0 : (double)hits / (hits + misses);
+    }
+
+    /**
+     * Returns a one line summary of the cache
+     *
+     * @return The summary
+     */
+    public synchronized String toString()
+    {
+        return String.format("Token cache: %d entries, %d hits, %d misses (%.1f%% hit rate)",
+                             cache.size(), hits, misses, getHitRate() * 100);
+    }
+
+    /**
+     * Hashes the public key and the serialized SignedObject, which covers both its content and its signature.
+     * Called once per request before get and put, so the hashing happens outside the cache's lock.
+     *
+     * @param token The SignedObject
+     * @param key The public key the token is checked against
+     *
+     * @return The two hashes as hex strings, null if they couldn't be computed
+     */
+    public static String fingerprint(SignedObject token, PublicKey key)
+    {
+        try
+        {
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            ObjectOutputStream    o = new ObjectOutputStream(b);
+            o.writeObject(token);
+            o.flush();
+
+            KeyHash known = lastKey;
+            if (known == null || (known.key != key && !known.key.equals(key)))
+                lastKey = known = new KeyHash(key, hex(key.getEncoded()));
+            return known.hash + ":" + hex(b.toByteArray());
+        }
+        catch (Exception e)
+        {
+            Log.error("Error fingerprinting token, it won't be cached: %s", e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the SHA-256 of some bytes in hex
+     */
+    private static String hex(byte[] bytes) throws Exception
+    {
+        return new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(bytes)).toString(16);
+    }
+
+    /**
+     * A public key and its hash, so the group server's key isn't hashed again for every token
+     */
+    private static class KeyHash
+    {
+        final PublicKey key;
+        final String    hash;
+
+        KeyHash(PublicKey _key, String _hash)
+        {
+            key  = _key;
+            hash = _hash;
+        }
+    }
+
+    /**
+     * The entries in least recently used order, dropping the eldest past the capacity
+     */
+    private static class Entries extends LinkedHashMap<String, Verified>
+    {
+        private static final long serialVersionUID = 5161327826458384437L;
+
+        private final int capacity;
+
+        Entries(int _capacity)
+        {
+            super(16, 0.75f, true);
+            capacity = _capacity;
+        }
+
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest)
+        {
+            return size() > capacity;
+        }
+    }
+
+    /**
+     * A verified token and when it stops being valid
+     */
+    private static class Verified
+    {
+        final UserToken token;
+        final long      expires;
+
+        Verified(UserToken _token, long _expires)
+        {
+            token   = _token;
+            expires = _expires;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder events for the work a FileServer connection does, so a recording ties socket, crypto
+ * and disk time back to a connection and a command. Every event carries the connection's id, which
+ * is also printed when the connection is accepted.
+ *
+ * Recording costs nothing until one is started, for example with
+ * -XX:StartFlightRecording=filename=fs.jfr on the server's command line or jcmd's JFR.start.
+ * The events show up in JDK Mission Control under File Server, or with jfr print --categories "File Server".
+ * Crypto and Chunk fire for every message and chunk, so they skip the stack trace.
+ */
+public class TraceEvents
+{
+    @Name("server.Handshake")
+    @Label("Handshake Phase")
+    @Category({ "File Server", "Connection" })
+    @Description("One phase of a connection's handshake: HELLO waits for the client's first message, " +
+                 "RESUME, ECDHE or RSA sets up the session keys, FINISH hands out the ticket")
+    public static class Handshake extends Event
+    {
+        @Label("Connection")
+        public long connection;
+
+        @Label("Phase")
+        public String phase;
+    }
+
+    @Name("server.Token")
+    @Label("Token Verification")
+    @Category({ "File Server", "Connection" })
+    @Description("Checking a token's signature, or finding it in the token cache")
+    public static class Token extends Event
+    {
+        @Label("Connection")
+        public long connection;
+
+        @Label("User")
+        public String user;
+
+        @Label("Valid")
+        public boolean valid;
+    }
+
+    @Name("server.Crypto")
+    @Label("Session Crypto")
+    @Category({ "File Server", "Crypto" })
+    @Description("Sealing or opening one message with the session keys, including serializing it")
+    @StackTrace(false)
+    public static class Crypto extends Event
+    {
+        @Label("Connection")
+        public long connection;
+
+        @Label("Operation")
+        @Description("writeMessage, readMessage, encrypt, decrypt or getDigest")
+        public String operation;
+
+        @Label("Message")
+        public String message;
+
+        @Label("Bytes")
+        @Description("Bytes on the wire, or the cipher text for encrypt and decrypt")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("server.Chunk")
+    @Label("File Chunk")
+    @Category({ "File Server", "Transfer" })
+    @Description("Storing one uploaded chunk, or reading and sending one downloaded chunk")
+    @StackTrace(false)
+    public static class Chunk extends Event
+    {
+        @Label("Connection")
+        public long connection;
+
+        @Label("Command")
+        public String command;
+
+        @Label("User")
+        public String user;
+
+        @Label("Group")
+        public String group;
+
+        @Label("Path")
+        public String path;
+
+        @Label("Chunk")
+        @Description("The chunk's number within the transfer, starting at 0")
+        public int chunk;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("server.FileListPersist")
+    @Label("File List Persistence")
+    @Category({ "File Server", "Storage" })
+    @Description("Making journal records durable, or writing a snapshot of the file list")
+    public static class Persist extends Event
+    {
+        @Label("Operation")
+        @Description("commit or snapshot")
+        public String operation;
+
+        @Label("Records")
+        @Description("Journal records made durable, or files in the snapshot")
+        public long records;
+
+        @Label("Bytes")
+        @Description("The size of the snapshot, 0 for commit")
+        @DataAmount
+        public long bytes;
+    }
+}
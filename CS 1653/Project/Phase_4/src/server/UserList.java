@@ -2,28 +2,45 @@ package server;
 
 import com.sun.org.apache.xerces.internal.impl.dv.util.Base64;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * This list represents the users on the server
+ *
+ * Guarded by a read/write lock rather than synchronized methods, so the lookups every login makes
+ * run side by side and a blocked thread never holds a monitor. Group lists are handed out as copies
+ * so callers can iterate them without holding the lock.
  */
 public class UserList implements java.io.Serializable
 {
     private static final long serialVersionUID = 7600343803563417992L;
 	private Hashtable<String, User> list = new Hashtable<>(); // The list of users
+    private transient ReentrantReadWriteLock lock = new ReentrantReadWriteLock(); // Guards list and every User in it
 
     /**
      * Adds some user to UserList
      *
      * @param username The user
      */
-	public synchronized void addUser(String username, String password)
+	public void addUser(String username, String password)
 	{
-		User newUser = new User(password);
-		list.put(username, newUser);
+        User newUser = new User(password); // Hashes the password, no need to hold the lock for that
+        lock.writeLock().lock();
+        try
+        {
+            list.put(username, newUser);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
 	}
 
     /**
@@ -31,9 +48,17 @@ public class UserList implements java.io.Serializable
      *
      * @param username The user
      */
-	public synchronized void deleteUser(String username)
+	public void deleteUser(String username)
 	{
-		list.remove(username);
+        lock.writeLock().lock();
+        try
+        {
+            list.remove(username);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
 	}
 
     /**
@@ -43,9 +68,17 @@ public class UserList implements java.io.Serializable
      *
      * @return true is user exists, false otherwise
      */
-	public synchronized boolean checkUser(String username)
+	public boolean checkUser(String username)
 	{
-        return list.containsKey(username);
+        lock.readLock().lock();
+        try
+        {
+            return list.containsKey(username);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
 	}
 
     /**
@@ -55,9 +88,17 @@ public class UserList implements java.io.Serializable
      *
      * @return The list of groups for that user
      */
-	public synchronized ArrayList<String> getUserGroups(String username)
+	public ArrayList<String> getUserGroups(String username)
 	{
-		return list.get(username).getGroups();
+        lock.readLock().lock();
+        try
+        {
+            return new ArrayList<>(list.get(username).getGroups());
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
 	}
 
     /**
@@ -67,9 +108,17 @@ public class UserList implements java.io.Serializable
      *
      * @return The list of groups that user owns
      */
-	public synchronized ArrayList<String> getUserOwnership(String username)
+	public ArrayList<String> getUserOwnership(String username)
 	{
-		return list.get(username).getOwnership();
+        lock.readLock().lock();
+        try
+        {
+            return new ArrayList<>(list.get(username).getOwnership());
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
 	}
 
     /**
@@ -78,9 +127,17 @@ public class UserList implements java.io.Serializable
      * @param user The user
      * @param groupname The group
      */
-	public synchronized void addGroup(String user, String groupname)
+	public void addGroup(String user, String groupname)
 	{
-		list.get(user).addGroup(groupname);
+        lock.writeLock().lock();
+        try
+        {
+            list.get(user).addGroup(groupname);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
 	}
 
     /**
@@ -89,9 +146,17 @@ public class UserList implements java.io.Serializable
      * @param user The user
      * @param groupname The group
      */
-	public synchronized void removeGroup(String user, String groupname)
+	public void removeGroup(String user, String groupname)
 	{
-		list.get(user).removeGroup(groupname);
+        lock.writeLock().lock();
+        try
+        {
+            list.get(user).removeGroup(groupname);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
 	}
 
     /**
@@ -100,9 +165,17 @@ public class UserList implements java.io.Serializable
      * @param user The user
      * @param groupname The group
      */
-	public synchronized void addOwnership(String user, String groupname)
+	public void addOwnership(String user, String groupname)
 	{
-		list.get(user).addOwnership(groupname);
+        lock.writeLock().lock();
+        try
+        {
+            list.get(user).addOwnership(groupname);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
 	}
 
     /**
@@ -110,14 +183,59 @@ public class UserList implements java.io.Serializable
      * @param user The user
      * @param groupname The group
      */
-	public synchronized void removeOwnership(String user, String groupname)
+	public void removeOwnership(String user, String groupname)
 	{
-		list.get(user).removeOwnership(groupname);
+        lock.writeLock().lock();
+        try
+        {
+            list.get(user).removeOwnership(groupname);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
 	}
 
-    public synchronized boolean checkPassword(String user, String password)
+    public boolean checkPassword(String user, String password)
+    {
+        User found;
+        lock.readLock().lock();
+        try
+        {
+            found = list.get(user);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        // The salt and hash never change, so the hashing can happen outside the lock
+        return found != null && found.checkPass(password);
+    }
+
+    /**
+     * Serializes the list under the read lock so a save never sees a half-made change
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        lock.readLock().lock();
+        try
+        {
+            out.defaultWriteObject();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gives a deserialized list its lock
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
     {
-        return list.get(user).checkPass(password);
+        in.defaultReadObject();
+        lock = new ReentrantReadWriteLock();
     }
 
     /**
@@ -1,14 +1,18 @@
 package userclient.gui.controller;
 
+import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.ListView;
 import javafx.scene.control.TreeItem;
 import javafx.scene.control.TreeView;
 import javafx.scene.input.*;
+import server.FileClient;
 import userclient.gui.model.FilePathTreeItem;
 
 import javax.crypto.SecretKey;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Controller for MainScene
@@ -22,6 +26,8 @@ public class MainSceneController
 
     private Main mainApp;
 
+    private static final int LIST_BATCH = 200; // Paths added to serverFileTreeView at a time
+
     // FilePathTreeItem to help with generating TreeViews
     private FilePathTreeItem pathItem = new FilePathTreeItem();
 
@@ -46,12 +52,45 @@ public class MainSceneController
 
     /**
      * Updates the serverFileTreeView
+     * The listing is read on a background thread and each batch is added to the tree as it arrives.
+     * The tree is disabled until the listing ends, the FileClient can only carry one request at a time.
      */
     private void updateServerTree()
     {
-        TreeItem<String> serverRootNode = pathItem.buildServerTreeRoot(mainApp.fileClient.listFiles(mainApp.getUserToken()));
+        final TreeItem<String> serverRootNode = pathItem.buildServerTreeRoot(new ArrayList<String>());
         serverRootNode.setExpanded(true);
         serverFileTreeView.setRoot(serverRootNode);
+        serverFileTreeView.setDisable(true);
+
+        Thread listing = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                mainApp.fileClient.streamFiles(mainApp.getUserToken(), null, null, LIST_BATCH, new FileClient.ListingListener()
+                {
+                    public void batch(final List<String> paths)
+                    {// Hand each batch to the JavaFX thread
+                        Platform.runLater(new Runnable()
+                        {
+                            public void run()
+                            {
+                                pathItem.addServerPaths(serverRootNode, paths);
+                            }
+                        });
+                    }
+                });
+
+                Platform.runLater(new Runnable()
+                {
+                    public void run()
+                    {
+                        serverFileTreeView.setDisable(false);
+                    }
+                });
+            }
+        });
+        listing.setDaemon(true); // Don't keep the application open
+        listing.start();
     }
 
     /**
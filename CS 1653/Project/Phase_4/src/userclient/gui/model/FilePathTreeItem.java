@@ -82,6 +82,30 @@ public class FilePathTreeItem extends TreeItem<String>
             return rootNode;
     }
 
+    /**
+     * Adds a batch of paths to the root node built by buildServerTreeRoot
+     * Batches arrive sorted by path, so a file's group is either the last group node or a new one
+     *
+     * @param rootNode The root node
+     * @param fileList The batch of files on the file server
+     */
+    public void addServerPaths(TreeItem<String> rootNode, List<String> fileList)
+    {
+        if (!fileList.isEmpty() && fileList.get(0).contains("\\"))
+            fileList = fixPathSlashes(fileList);
+
+        List<TreeItem<String>> groupNodes = rootNode.getChildren();
+        for (String file : fileList)
+        {// Iterate over the batch
+            String groupName = file.split("/")[1];
+            if (groupNodes.isEmpty() || !groupNodes.get(groupNodes.size() - 1).getValue().equals(groupName))
+                groupNodes.add(new TreeItem<>(groupName)); // File is in the next group
+
+            // Add file to the last groupNode
+            groupNodes.get(groupNodes.size() - 1).getChildren().add(new TreeItem<>(file.split("/")[2]));
+        }
+    }
+
     /**
      * Replaces the '\' char with '/'
      *